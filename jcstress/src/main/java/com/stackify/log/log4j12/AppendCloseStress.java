@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+/**
+ * An event appended while the appender closes is either uploaded by the closing pipeline or dropped
+ * by the closed appender, never handed to the pipeline after it closed.
+ */
+@JCStressTest
+@Description("append racing close")
+@Outcome(id = "1, 0", expect = Expect.ACCEPTABLE, desc = "Appended before the close, uploaded by the pipeline")
+@Outcome(id = "0, 0", expect = Expect.ACCEPTABLE, desc = "Dropped by the closed appender")
+@Outcome(expect = Expect.FORBIDDEN, desc = "Appended to a closed pipeline, the event is lost")
+@State
+public class AppendCloseStress {
+
+	/**
+	 * Pipeline of the appender
+	 */
+	private final RecordingPipeline pipeline = new RecordingPipeline();
+
+	/**
+	 * Appender under test
+	 */
+	private final StackifyLogAppender appender = RecordingPipeline.newAppender(pipeline);
+
+	/**
+	 * Logs an event
+	 */
+	@Actor
+	public void append() {
+		appender.doAppend(RecordingPipeline.newEvent("event"));
+	}
+
+	/**
+	 * Closes the appender
+	 */
+	@Actor
+	public void close() {
+		appender.close();
+	}
+
+	/**
+	 * @param r Recorded events and events appended to the closed pipeline
+	 */
+	@Arbiter
+	public void arbiter(final II_Result r) {
+		r.r1 = pipeline.count("event");
+		r.r2 = pipeline.getLate();
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.III_Result;
+
+import com.stackify.api.LogMsg;
+
+/**
+ * A reconfiguration that keeps the pipeline swaps the settings of the running pipeline. An event
+ * appended meanwhile is converted with the old or the new MDC selection and is never lost.
+ */
+@JCStressTest
+@Description("append racing a reconfiguration that keeps the pipeline")
+@Outcome(id = "1, 0, 1", expect = Expect.ACCEPTABLE, desc = "Converted with the old MDC selection")
+@Outcome(id = "1, 0, 0", expect = Expect.ACCEPTABLE, desc = "Converted with the new MDC selection")
+@Outcome(expect = Expect.FORBIDDEN, desc = "Event lost, duplicated or appended to a closed pipeline")
+@State
+public class AppendReconfigureStress {
+
+	/**
+	 * Pipeline of the appender
+	 */
+	private final RecordingPipeline pipeline = new RecordingPipeline();
+
+	/**
+	 * Appender under test
+	 */
+	private final StackifyLogAppender appender = RecordingPipeline.newAppender(pipeline);
+
+	/**
+	 * Logs an event with a secret property
+	 */
+	@Actor
+	public void append() {
+		LoggingEvent event = RecordingPipeline.newEvent("event");
+		event.setProperty("secret", "x");
+		appender.doAppend(event);
+	}
+
+	/**
+	 * Excludes the secret property from the uploaded MDC
+	 */
+	@Actor
+	public void reconfigure() {
+		appender.setMdcExclude("secret");
+		appender.activateOptions();
+	}
+
+	/**
+	 * @param r Recorded events, events appended to a closed pipeline and whether the secret property was uploaded
+	 */
+	@Arbiter
+	public void arbiter(final III_Result r) {
+		r.r1 = pipeline.count("event");
+		r.r2 = pipeline.getLate();
+
+		for (LogMsg msg : pipeline.getMsgs()) {
+			r.r3 = (msg.getData() != null && msg.getData().contains("secret")) ? 1 : 0;
+		}
+	}
+}
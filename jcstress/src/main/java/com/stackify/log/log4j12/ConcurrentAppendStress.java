@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+import com.stackify.api.LogMsg;
+
+/**
+ * Two threads log through the same appender, every event reaches the pipeline exactly once.
+ */
+@JCStressTest
+@Description("concurrent producers on the appender")
+@Outcome(id = "4, 4", expect = Expect.ACCEPTABLE, desc = "Every event appended once")
+@Outcome(expect = Expect.FORBIDDEN, desc = "Event lost or duplicated")
+@State
+public class ConcurrentAppendStress {
+
+	/**
+	 * Pipeline of the appender
+	 */
+	private final RecordingPipeline pipeline = new RecordingPipeline();
+
+	/**
+	 * Appender under test
+	 */
+	private final StackifyLogAppender appender = RecordingPipeline.newAppender(pipeline);
+
+	/**
+	 * Logs two events
+	 */
+	@Actor
+	public void first() {
+		appender.doAppend(RecordingPipeline.newEvent("a1"));
+		appender.doAppend(RecordingPipeline.newEvent("a2"));
+	}
+
+	/**
+	 * Logs two events
+	 */
+	@Actor
+	public void second() {
+		appender.doAppend(RecordingPipeline.newEvent("b1"));
+		appender.doAppend(RecordingPipeline.newEvent("b2"));
+	}
+
+	/**
+	 * @param r Recorded events and distinct recorded events
+	 */
+	@Arbiter
+	public void arbiter(final II_Result r) {
+		Set<String> distinct = new HashSet<String>();
+
+		for (LogMsg msg : pipeline.getMsgs()) {
+			distinct.add(msg.getMsg());
+		}
+
+		r.r1 = pipeline.getMsgs().size();
+		r.r2 = distinct.size();
+	}
+}
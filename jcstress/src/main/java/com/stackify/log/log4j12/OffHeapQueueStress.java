@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+import com.stackify.api.LogMsg;
+
+/**
+ * Two producers and a consumer share an off-heap queue with small slabs, every message is taken
+ * exactly once.
+ */
+@JCStressTest
+@Description("concurrent producers on the off-heap queue")
+@Outcome(id = "3, 3", expect = Expect.ACCEPTABLE, desc = "Every message taken once")
+@Outcome(expect = Expect.FORBIDDEN, desc = "Message lost or duplicated")
+@State
+public class OffHeapQueueStress {
+
+	/**
+	 * Queue under test, each slab holds a few messages
+	 */
+	private final OffHeapLogQueue queue = new OffHeapLogQueue(64 * 1024, 256);
+
+	/**
+	 * Message taken by the consumer (null if the queue was empty)
+	 */
+	private LogMsg polled;
+
+	/**
+	 * Queues two messages
+	 */
+	@Actor
+	public void first() {
+		queue.offer(LogMsg.newBuilder().msg("a1").build());
+		queue.offer(LogMsg.newBuilder().msg("a2").build());
+	}
+
+	/**
+	 * Queues one message
+	 */
+	@Actor
+	public void second() {
+		queue.offer(LogMsg.newBuilder().msg("b1").build());
+	}
+
+	/**
+	 * Takes a message if there is one
+	 */
+	@Actor
+	public void consumer() {
+		polled = queue.poll();
+	}
+
+	/**
+	 * @param r Messages taken and distinct messages taken
+	 */
+	@Arbiter
+	public void arbiter(final II_Result r) {
+		List<LogMsg> taken = new ArrayList<LogMsg>();
+
+		if (polled != null) {
+			taken.add(polled);
+		}
+
+		for (LogMsg msg = queue.poll(); msg != null; msg = queue.poll()) {
+			taken.add(msg);
+		}
+
+		Set<String> distinct = new HashSet<String>();
+
+		for (LogMsg msg : taken) {
+			distinct.add(msg.getMsg());
+		}
+
+		r.r1 = taken.size();
+		r.r2 = distinct.size();
+	}
+}
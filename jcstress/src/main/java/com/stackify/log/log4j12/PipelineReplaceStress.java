@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+/**
+ * A reconfiguration that changes the environment closes the pipeline and adopts a new one. An event
+ * appended meanwhile goes to either pipeline, or is dropped while neither is attached, but is never
+ * handed to the old pipeline after it closed.
+ */
+@JCStressTest
+@Description("append racing a reconfiguration that replaces the pipeline")
+@Outcome(id = "1, 0", expect = Expect.ACCEPTABLE, desc = "Uploaded by the old or the new pipeline")
+@Outcome(id = "0, 0", expect = Expect.ACCEPTABLE_INTERESTING, desc = "Dropped while the old pipeline was closed and the new one not attached yet")
+@Outcome(expect = Expect.FORBIDDEN, desc = "Appended to a closed pipeline, the event is lost")
+@State
+public class PipelineReplaceStress {
+
+	/**
+	 * Pipeline of the initial options
+	 */
+	private final RecordingPipeline pipeline = new RecordingPipeline();
+
+	/**
+	 * Pipeline of the new environment
+	 */
+	private final RecordingPipeline replacement = new RecordingPipeline();
+
+	/**
+	 * Appender under test
+	 */
+	private final StackifyLogAppender appender = RecordingPipeline.newAppender(pipeline);
+
+	/**
+	 * Parks the replacement pipeline under the key of the new environment
+	 */
+	public PipelineReplaceStress() {
+		appender.setEnvironment("replaced");
+		RecordingPipeline.park(appender, replacement);
+		appender.setEnvironment("stress");
+	}
+
+	/**
+	 * Logs an event
+	 */
+	@Actor
+	public void append() {
+		appender.doAppend(RecordingPipeline.newEvent("event"));
+	}
+
+	/**
+	 * Changes the environment
+	 */
+	@Actor
+	public void reconfigure() {
+		appender.setEnvironment("replaced");
+		appender.activateOptions();
+	}
+
+	/**
+	 * @param r Recorded events and events appended to a closed pipeline
+	 */
+	@Arbiter
+	public void arbiter(final II_Result r) {
+		appender.close();
+
+		r.r1 = pipeline.count("event") + replacement.count("event");
+		r.r2 = pipeline.getLate();
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.stackify.api.EnvironmentDetail;
+import com.stackify.api.LogMsg;
+import com.stackify.api.common.mask.Masker;
+
+/**
+ * Pipeline converting and recording the events it accepts instead of uploading them. It starts no
+ * threads, so the stress tests can create one per sample, and it counts the events appended to it
+ * while or after it is closed, which a real pipeline would lose.
+ */
+final class RecordingPipeline extends LogPipeline {
+
+	/**
+	 * Logger of the stress test events
+	 */
+	private static final Logger LOGGER = Logger.getLogger("stress");
+
+	/**
+	 * Environment of the converted messages
+	 */
+	private static final EnvironmentDetail ENV = EnvironmentDetail.newBuilder().appName("stress").configuredEnvironmentName("stress").build();
+
+	/**
+	 * Options of the pipelines, without lanes
+	 */
+	private static final PipelineOptions OPTIONS = PipelineOptions.newBuilder().build();
+
+	/**
+	 * Sequence of the appender names
+	 */
+	private static final AtomicLong NAMES = new AtomicLong();
+
+	/**
+	 * Adapter converting the events
+	 */
+	private final LoggingEventAdapter adapter;
+
+	/**
+	 * Messages of the accepted events
+	 */
+	private final Queue<LogMsg> msgs = new ConcurrentLinkedQueue<LogMsg>();
+
+	/**
+	 * Appends in progress
+	 */
+	private final AtomicInteger appending = new AtomicInteger();
+
+	/**
+	 * Events appended while or after the pipeline was closed
+	 */
+	private final AtomicInteger late = new AtomicInteger();
+
+	/**
+	 * True once closed
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor
+	 */
+	RecordingPipeline() {
+		this(new LoggingEventAdapter(ENV));
+	}
+
+	/**
+	 * Constructor
+	 * @param adapter Adapter converting the events
+	 */
+	private RecordingPipeline(final LoggingEventAdapter adapter) {
+		super("stress", adapter, AppenderSettings.newBuilder().masker(new Masker()).mdcProjection(MdcProjection.ALL).build(), OPTIONS);
+		this.adapter = adapter;
+	}
+
+	/**
+	 * Records the converted event, or counts it when the pipeline is closed
+	 * @see com.stackify.log.log4j12.LogPipeline#append(org.apache.log4j.spi.LoggingEvent)
+	 */
+	@Override
+	public void append(final LoggingEvent event) {
+		appending.incrementAndGet();
+
+		try {
+			if (closed) {
+				late.incrementAndGet();
+			} else {
+				msgs.add(adapter.getLogMsg(event, null));
+			}
+		} finally {
+			appending.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Closes the pipeline, counting an append still in progress as late
+	 * @see com.stackify.log.log4j12.LogPipeline#close()
+	 */
+	@Override
+	public void close() {
+		closed = true;
+
+		if (appending.get() != 0) {
+			late.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param message The message
+	 * @return Number of recorded messages equal to the message
+	 */
+	int count(final String message) {
+		int count = 0;
+
+		for (LogMsg msg : msgs) {
+			if (message.equals(msg.getMsg())) {
+				++count;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * @return The recorded messages
+	 */
+	Queue<LogMsg> getMsgs() {
+		return msgs;
+	}
+
+	/**
+	 * @return Number of events appended while or after the pipeline was closed
+	 */
+	int getLate() {
+		return late.get();
+	}
+
+	/**
+	 * Creates an activated appender sending its events to a recording pipeline. The pipeline is
+	 * parked under the key of the appender, which adopts it as it would after a reconfiguration.
+	 * @param pipeline The pipeline
+	 * @return The appender
+	 */
+	static StackifyLogAppender newAppender(final RecordingPipeline pipeline) {
+		StackifyLogAppender appender = new StackifyLogAppender();
+		appender.setName("stress-" + NAMES.incrementAndGet());
+		appender.setApiKey("key");
+		appender.setApplication("stress");
+		appender.setEnvironment("stress");
+
+		park(appender, pipeline);
+		appender.activateOptions();
+
+		return appender;
+	}
+
+	/**
+	 * Parks a pipeline under the current key of an appender
+	 * @param appender The appender
+	 * @param pipeline The pipeline
+	 */
+	static void park(final StackifyLogAppender appender, final RecordingPipeline pipeline) {
+		PipelineRegistry.park(appender.getPipelineKey(), pipeline, 60000);
+	}
+
+	/**
+	 * @param message The message
+	 * @return INFO event of the stress test logger
+	 */
+	static LoggingEvent newEvent(final Object message) {
+		return new LoggingEvent(Logger.class.getName(), LOGGER, Level.INFO, message, null);
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import org.apache.log4j.MDC;
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+/**
+ * An MDC value that logs to the same appender while the event is converted, as a toString() with
+ * logging would. The nested event is dropped by the reentrancy guard of its thread only, the event
+ * of the other thread is kept.
+ */
+@JCStressTest
+@Description("reentrant logging from inside conversion")
+@Outcome(id = "2, 0", expect = Expect.ACCEPTABLE, desc = "Both events kept, the nested event dropped")
+@Outcome(expect = Expect.FORBIDDEN, desc = "Event lost or nested event appended")
+@State
+public class ReentrantAppendStress {
+
+	/**
+	 * Pipeline of the appender
+	 */
+	private final RecordingPipeline pipeline = new RecordingPipeline();
+
+	/**
+	 * Appender under test
+	 */
+	private final StackifyLogAppender appender = RecordingPipeline.newAppender(pipeline);
+
+	/**
+	 * Logs an event with an MDC value that logs while it is converted
+	 */
+	@Actor
+	public void reentrant() {
+		MDC.put("user", new Object() {
+			@Override
+			public String toString() {
+				appender.doAppend(RecordingPipeline.newEvent("nested"));
+				return "user";
+			}
+		});
+
+		try {
+			appender.doAppend(RecordingPipeline.newEvent("event"));
+		} finally {
+			MDC.remove("user");
+		}
+	}
+
+	/**
+	 * Logs a plain event
+	 */
+	@Actor
+	public void plain() {
+		appender.doAppend(RecordingPipeline.newEvent("event"));
+	}
+
+	/**
+	 * @param r Recorded events and recorded nested events
+	 */
+	@Arbiter
+	public void arbiter(final II_Result r) {
+		r.r1 = pipeline.count("event");
+		r.r2 = pipeline.count("nested");
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.I_Result;
+
+import com.stackify.api.LogMsg;
+
+/**
+ * A message staged by a thread while the staging closes is handed off by the close or by the
+ * thread itself, including when the thread stages its first message.
+ */
+@JCStressTest
+@Description("thread staging add racing close")
+@Outcome(id = "1", expect = Expect.ACCEPTABLE, desc = "Message handed off once")
+@Outcome(expect = Expect.FORBIDDEN, desc = "Message lost or handed off twice")
+@State
+public class StagingCloseStress {
+
+	/**
+	 * Handed off messages
+	 */
+	private final Queue<LogMsg> sunk = new ConcurrentLinkedQueue<LogMsg>();
+
+	/**
+	 * Staging under test, the linger never expires during a sample
+	 */
+	private final ThreadStaging staging = new ThreadStaging(100, 60000, new ThreadStaging.Sink() {
+		@Override
+		public void addAll(final List<LogMsg> msgs) {
+			sunk.addAll(msgs);
+		}
+	});
+
+	/**
+	 * Stages a message
+	 */
+	@Actor
+	public void add() {
+		staging.add(LogMsg.newBuilder().msg("event").build());
+	}
+
+	/**
+	 * Closes the staging
+	 */
+	@Actor
+	public void close() {
+		staging.close();
+	}
+
+	/**
+	 * @param r Handed off messages
+	 */
+	@Arbiter
+	public void arbiter(final I_Result r) {
+		r.r1 = sunk.size();
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import com.stackify.api.common.mask.Masker;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Immutable snapshot of the appender options that can be swapped on a running pipeline
+ * without restarting the background service.
+ */
+@Getter
+@Builder(builderClassName = "Builder", builderMethodName = "newBuilder", toBuilder = true)
+public final class AppenderSettings {
+
+	/**
+	 * Masker applied to messages before upload
+	 */
+	@NonNull
+	private final Masker masker;
+
+	/**
+	 * MDC entries copied into the log message data
+	 */
+	@NonNull
+	private final MdcProjection mdcProjection;
+
+	/**
+	 * Drops events by logger, level and message content (null to keep every event)
+	 */
+	private final ContentFilter contentFilter;
+
+	/**
+	 * Detail captured for each event (null for full fidelity)
+	 */
+	private final Fidelity fidelity;
+
+	/**
+	 * One DEBUG or INFO event kept out of this many (0 or 1 to keep every event)
+	 */
+	private final int sampleRate;
+}
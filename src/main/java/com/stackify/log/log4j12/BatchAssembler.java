@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.log4j.helpers.LogLog;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stackify.api.LogMsgGroup;
+import com.stackify.api.common.ApiConfiguration;
+import com.stackify.api.common.http.HttpClient;
+import com.stackify.api.common.log.LogTransportPreProcessor;
+import com.stackify.api.common.mask.Masker;
+
+/**
+ * Masks and serializes batches on a bounded fork-join pool, then posts them like the direct transport.
+ *
+ * <p>
+ * Used by a lane draining a backlog: the batches are split in halves until each task holds a single
+ * batch, and the serialized bodies are returned in the order of the batches so they are uploaded in
+ * the order the messages were logged.
+ */
+final class BatchAssembler implements Closeable {
+
+	/**
+	 * Log save path of the Stackify API
+	 */
+	private static final String LOG_SAVE_PATH = "/Log/Save";
+
+	/**
+	 * API configuration
+	 */
+	private final ApiConfiguration apiConfig;
+
+	/**
+	 * Masking and JSON tagging
+	 */
+	private final LogTransportPreProcessor preProcessor;
+
+	/**
+	 * JSON converter
+	 */
+	private final ObjectMapper json = new ObjectMapper();
+
+	/**
+	 * Assembly threads
+	 */
+	private final ForkJoinPool pool;
+
+	/**
+	 * Constructor
+	 * @param apiConfig API configuration
+	 * @param masker Masker applied to the messages
+	 * @param skipJson Skip JSON tagging
+	 * @param parallelism Number of assembly threads
+	 */
+	BatchAssembler(final ApiConfiguration apiConfig, final Masker masker, final boolean skipJson, final int parallelism) {
+		this.apiConfig = apiConfig;
+		this.preProcessor = new LogTransportPreProcessor(masker, skipJson);
+		this.pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			@Override
+			public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+				ForkJoinWorkerThread t = ThreadRegistry.register(ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool));
+				t.setName("Stackify_LogAssembler-" + t.getPoolIndex());
+				t.setDaemon(true);
+				return t;
+			}
+		}, null, false);
+	}
+
+	/**
+	 * @return Number of assembly threads
+	 */
+	int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Masks and serializes the batches in parallel
+	 * @param groups The batches in upload order
+	 * @return The request bodies in the same order, null for a batch that could not be serialized
+	 */
+	List<byte[]> assemble(final List<LogMsgGroup> groups) {
+		byte[][] bodies = new byte[groups.size()][];
+
+		if (!groups.isEmpty()) {
+			pool.invoke(new AssembleTask(groups, bodies, 0, groups.size()));
+		}
+
+		return Arrays.asList(bodies);
+	}
+
+	/**
+	 * Masks and serializes one batch
+	 * @param group The batch
+	 * @return The request body, null if the batch could not be serialized
+	 */
+	private byte[] assemble(final LogMsgGroup group) {
+		try {
+			preProcessor.execute(group);
+			return json.writeValueAsBytes(group);
+		} catch (Exception e) {
+			LogLog.error("Exception serializing Stackify log batch", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Posts a serialized batch
+	 * @param body The request body
+	 * @throws Exception If the upload fails
+	 */
+	void send(final byte[] body) throws Exception {
+		new HttpClient(apiConfig).post(LOG_SAVE_PATH, body, true);
+	}
+
+	/**
+	 * Stops the assembly threads
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Assembles a range of batches, splitting it in halves
+	 */
+	private final class AssembleTask extends RecursiveAction {
+
+		/**
+		 * Serial version
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The batches
+		 */
+		private final List<LogMsgGroup> groups;
+
+		/**
+		 * The request bodies by batch index
+		 */
+		private final byte[][] bodies;
+
+		/**
+		 * First batch of the range
+		 */
+		private final int from;
+
+		/**
+		 * End of the range (exclusive)
+		 */
+		private final int to;
+
+		/**
+		 * Constructor
+		 * @param groups The batches
+		 * @param bodies The request bodies by batch index
+		 * @param from First batch of the range
+		 * @param to End of the range (exclusive)
+		 */
+		private AssembleTask(final List<LogMsgGroup> groups, final byte[][] bodies, final int from, final int to) {
+			this.groups = groups;
+			this.bodies = bodies;
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				bodies[from] = assemble(groups.get(from));
+				return;
+			}
+
+			int mid = (from + to) >>> 1;
+			invokeAll(new AssembleTask(groups, bodies, from, mid), new AssembleTask(groups, bodies, mid, to));
+		}
+	}
+}
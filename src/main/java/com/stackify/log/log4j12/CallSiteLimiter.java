@@ -0,0 +1,526 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Limits the rate of the events of each call site, so that a single log statement in a runaway loop
+ * can not flood the pipeline.
+ *
+ * <p>
+ * Each call site has a token bucket refilled at the configured rate, the events finding it empty are
+ * dropped before they are converted. The call site is the logger and the caller location when the
+ * location is captured, otherwise the logger, the level and the message with its digits ignored.
+ * Once per window every call site that dropped events sends a single summary message with the count
+ * in its data, like a {@link LogRollup} summary.
+ *
+ * <p>
+ * At most maxSites buckets are kept. A new call site beyond that evicts the fullest of the first
+ * {@link #EVICTION_SCAN} buckets, or the first full one, so a flooding call site keeps its empty
+ * bucket. The buckets that are full and dropped nothing are removed after each window. A removed
+ * bucket is retired under its lock, so an event still holding it moves to a new bucket and no
+ * dropped event goes uncounted.
+ */
+final class CallSiteLimiter implements Closeable {
+
+	/**
+	 * Logger of the summary of the evicted call sites
+	 */
+	private static final String EVICTED = "evicted";
+
+	/**
+	 * Buckets compared to choose the one to evict
+	 */
+	private static final int EVICTION_SCAN = 64;
+
+	/**
+	 * Tokens added per nanosecond
+	 */
+	private final double tokensPerNano;
+
+	/**
+	 * Maximum tokens of a bucket
+	 */
+	private final double burst;
+
+	/**
+	 * Maximum number of buckets
+	 */
+	private final int maxSites;
+
+	/**
+	 * Buckets by call site
+	 */
+	private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+	/**
+	 * Events dropped by evicted buckets before their summary was sent
+	 */
+	private final LongAdder evicted = new LongAdder();
+
+	/**
+	 * Sends the summaries
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Pipeline receiving the summaries
+	 */
+	private volatile LogPipeline target;
+
+	/**
+	 * Start of the current window (epoch milliseconds)
+	 */
+	private long windowStart = System.currentTimeMillis();
+
+	/**
+	 * Constructor
+	 * @param rate Events per second of each call site
+	 * @param burst Events a call site can log at once
+	 * @param maxSites Maximum number of buckets
+	 * @param window Summary window (milliseconds), 0 to send the summaries only from flush()
+	 */
+	CallSiteLimiter(final double rate, final int burst, final int maxSites, final long window) {
+		if (rate <= 0 || burst < 1 || maxSites < 1 || window < 0) {
+			throw new IllegalArgumentException("Invalid rate limit options: rateLimit=" + rate + ", rateLimitBurst=" + burst
+					+ ", rateLimitMaxSites=" + maxSites + ", rateLimitWindow=" + window);
+		}
+
+		this.tokensPerNano = rate / TimeUnit.SECONDS.toNanos(1);
+		this.burst = burst;
+		this.maxSites = maxSites;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = ThreadRegistry.register(new Thread(r, "Stackify_LogRateLimit"));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		if (0 < window) {
+			this.scheduler.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, window, window, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Parses the rate limit options
+	 * @param rate The rateLimit option (null or empty for no limit)
+	 * @param burst The rateLimitBurst option (null or empty for one second of events)
+	 * @param maxSites The rateLimitMaxSites option
+	 * @param window The rateLimitWindow option
+	 * @return The started limiter, null without a rate
+	 */
+	static CallSiteLimiter create(final String rate, final String burst, final String maxSites, final String window) {
+		if (rate == null || rate.trim().isEmpty()) {
+			return null;
+		}
+
+		double eventsPerSecond = Double.parseDouble(rate.trim());
+		int events = (burst == null || burst.trim().isEmpty()) ? (int) Math.ceil(eventsPerSecond) : Integer.parseInt(burst.trim());
+
+		return new CallSiteLimiter(eventsPerSecond, events, Integer.parseInt(maxSites.trim()), Long.parseLong(window.trim()));
+	}
+
+	/**
+	 * @param target Pipeline receiving the summaries
+	 */
+	void setTarget(final LogPipeline target) {
+		this.target = target;
+	}
+
+	/**
+	 * Takes a token from the bucket of the call site of the event
+	 * @param event The logging event
+	 * @param fidelity Current fidelity, the location is only used when it is captured
+	 * @return True if the bucket is empty and the event must not be sent
+	 */
+	boolean drops(final LoggingEvent event, final Fidelity fidelity) {
+		return drops(event, fidelity, System.nanoTime());
+	}
+
+	/**
+	 * Takes a token from the bucket of the call site of the event
+	 * @param event The logging event
+	 * @param fidelity Current fidelity, the location is only used when it is captured
+	 * @param now Current time (System.nanoTime)
+	 * @return True if the bucket is empty and the event must not be sent
+	 */
+	boolean drops(final LoggingEvent event, final Fidelity fidelity, final long now) {
+		boolean located = event.locationInformationExists()
+				|| (fidelity.capturesLocation() && !LoggingEventAdapter.isDetached(event));
+
+		String site = located ? getLocatedSite(event) : getTemplateSite(event);
+
+		while (true) {
+			Bucket bucket = buckets.get(site);
+
+			if (bucket == null) {
+				if (maxSites <= buckets.size()) {
+					evictOne(now);
+				}
+
+				Bucket created = new Bucket(event, located, burst, now);
+				bucket = buckets.putIfAbsent(site, created);
+
+				if (bucket == null) {
+					bucket = created;
+				}
+			}
+
+			int result = bucket.take(tokensPerNano, burst, now);
+
+			if (result != Bucket.RETIRED) {
+				return result == Bucket.DROPPED;
+			}
+
+			// removed by another thread, which may not have unmapped it yet
+
+			buckets.remove(site, bucket);
+		}
+	}
+
+	/**
+	 * @return Number of call sites tracked
+	 */
+	int getSiteCount() {
+		return buckets.size();
+	}
+
+	/**
+	 * Sends a summary for each call site that dropped events during the current window, removes the
+	 * idle buckets and starts a new window
+	 */
+	synchronized void flush() {
+		long now = System.currentTimeMillis();
+		long nanos = System.nanoTime();
+		long start = windowStart;
+		windowStart = now;
+
+		LogPipeline pipeline = target;
+
+		for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+			Bucket bucket = entry.getValue();
+			long dropped = bucket.takeDropped();
+
+			if (0 < dropped) {
+				send(pipeline, bucket.newSummaryEvent(new LogRollup.Summary("rateLimit " + entry.getKey(), dropped, start, now - start), now));
+			} else if (bucket.retireIfIdle(tokensPerNano, burst, nanos)) {
+				buckets.remove(entry.getKey(), bucket);
+			}
+		}
+
+		long dropped = evicted.sumThenReset();
+
+		if (0 < dropped) {
+			send(pipeline, new LoggingEvent(CallSiteLimiter.class.getName(), Logger.getLogger(EVICTED), now, Level.WARN,
+					new LogRollup.Summary("rateLimit " + EVICTED, dropped, start, now - start), Thread.currentThread().getName(),
+					null, null, new LocationInfo(null, EVICTED, "rateLimit", null), null));
+		}
+	}
+
+	/**
+	 * Stops the limiter after sending the summaries of the current window
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+		flush();
+	}
+
+	/**
+	 * Removes the fullest of the first buckets, keeping the count of the events it dropped
+	 * @param now Current time (System.nanoTime)
+	 */
+	private void evictOne(final long now) {
+		Map.Entry<String, Bucket> victim = null;
+		double victimTokens = -1;
+		int scanned = 0;
+
+		for (Iterator<Map.Entry<String, Bucket>> it = buckets.entrySet().iterator(); it.hasNext() && scanned < EVICTION_SCAN; ++scanned) {
+			Map.Entry<String, Bucket> entry = it.next();
+			double tokens = entry.getValue().getTokens(tokensPerNano, burst, now);
+
+			if (victimTokens < tokens) {
+				victim = entry;
+				victimTokens = tokens;
+
+				if (burst <= tokens) {
+					break;
+				}
+			}
+		}
+
+		if (victim != null) {
+			long dropped = victim.getValue().retire();
+
+			if (0 <= dropped) {
+				buckets.remove(victim.getKey(), victim.getValue());
+				evicted.add(dropped);
+			}
+		}
+	}
+
+	/**
+	 * @param pipeline Pipeline receiving the summaries (may be null)
+	 * @param summary The summary event
+	 */
+	private static void send(final LogPipeline pipeline, final LoggingEvent summary) {
+		if (pipeline == null) {
+			return;
+		}
+
+		try {
+			pipeline.appendInternal(summary);
+		} catch (Exception e) {
+			LogLog.error("Exception sending the Stackify rate limit summary", e);
+		}
+	}
+
+	/**
+	 * @param event The logging event
+	 * @return Logger and caller location of the event
+	 */
+	private static String getLocatedSite(final LoggingEvent event) {
+		LocationInfo location = event.getLocationInformation();
+		return event.getLoggerName() + " " + location.getClassName() + "." + location.getMethodName() + ":" + location.getLineNumber();
+	}
+
+	/**
+	 * @param event The logging event
+	 * @return Logger, level and hash of the message ignoring its digits
+	 */
+	private static String getTemplateSite(final LoggingEvent event) {
+		Object message = event.getMessage();
+		int hash = 0;
+
+		if (message instanceof String) {
+			String msg = (String) message;
+			boolean digits = false;
+
+			for (int i = 0; i < msg.length(); ++i) {
+				char c = msg.charAt(i);
+
+				if ('0' <= c && c <= '9') {
+					if (!digits) {
+						hash = 31 * hash + '#';
+						digits = true;
+					}
+				} else {
+					hash = 31 * hash + c;
+					digits = false;
+				}
+			}
+		} else if (message != null) {
+			hash = message.getClass().getName().hashCode();
+		}
+
+		return event.getLoggerName() + " " + event.getLevel() + " #" + Integer.toHexString(hash);
+	}
+
+	/**
+	 * Token bucket of a call site
+	 */
+	private static final class Bucket {
+
+		/**
+		 * Result of {@link #take(double, double, long)}: a token was taken
+		 */
+		static final int TAKEN = 0;
+
+		/**
+		 * Result of {@link #take(double, double, long)}: the bucket is empty
+		 */
+		static final int DROPPED = 1;
+
+		/**
+		 * Result of {@link #take(double, double, long)}: the bucket was removed
+		 */
+		static final int RETIRED = 2;
+
+		/**
+		 * Logger of the call site
+		 */
+		private final String loggerName;
+
+		/**
+		 * Level of the first event
+		 */
+		private final Level level;
+
+		/**
+		 * Caller location (null when not captured)
+		 */
+		private final LocationInfo location;
+
+		/**
+		 * Tokens left
+		 */
+		private double tokens;
+
+		/**
+		 * Time of the last refill (System.nanoTime)
+		 */
+		private long refilled;
+
+		/**
+		 * Events dropped since the last summary
+		 */
+		private long dropped;
+
+		/**
+		 * True once removed from the map
+		 */
+		private boolean retired;
+
+		/**
+		 * Constructor
+		 * @param event First event of the call site
+		 * @param located True if the call site is keyed by the caller location
+		 * @param burst Initial tokens
+		 * @param now Current time (System.nanoTime)
+		 */
+		private Bucket(final LoggingEvent event, final boolean located, final double burst, final long now) {
+			this.loggerName = event.getLoggerName();
+			this.level = event.getLevel();
+			this.location = located ? event.getLocationInformation() : null;
+			this.tokens = burst;
+			this.refilled = now;
+		}
+
+		/**
+		 * Refills the bucket, then takes a token or counts a dropped event
+		 * @param tokensPerNano Tokens added per nanosecond
+		 * @param burst Maximum tokens
+		 * @param now Current time (System.nanoTime)
+		 * @return {@link #TAKEN}, {@link #DROPPED}, or {@link #RETIRED} if the event must use a new bucket
+		 */
+		synchronized int take(final double tokensPerNano, final double burst, final long now) {
+			if (retired) {
+				return RETIRED;
+			}
+
+			refill(tokensPerNano, burst, now);
+
+			if (1 <= tokens) {
+				tokens -= 1;
+				return TAKEN;
+			}
+
+			++dropped;
+			return DROPPED;
+		}
+
+		/**
+		 * @param tokensPerNano Tokens added per nanosecond
+		 * @param burst Maximum tokens
+		 * @param now Current time (System.nanoTime)
+		 * @return Tokens left after the refill
+		 */
+		synchronized double getTokens(final double tokensPerNano, final double burst, final long now) {
+			refill(tokensPerNano, burst, now);
+			return tokens;
+		}
+
+		/**
+		 * Retires the bucket if it is full again and dropped nothing
+		 * @param tokensPerNano Tokens added per nanosecond
+		 * @param burst Maximum tokens
+		 * @param now Current time (System.nanoTime)
+		 * @return True if retired
+		 */
+		synchronized boolean retireIfIdle(final double tokensPerNano, final double burst, final long now) {
+			refill(tokensPerNano, burst, now);
+
+			if (retired || dropped != 0 || tokens < burst) {
+				return false;
+			}
+
+			retired = true;
+			return true;
+		}
+
+		/**
+		 * Retires the bucket
+		 * @return Events dropped since the last summary, -1 if already retired
+		 */
+		synchronized long retire() {
+			if (retired) {
+				return -1;
+			}
+
+			retired = true;
+			return takeDropped();
+		}
+
+		/**
+		 * @return Events dropped since the last call, then resets the count
+		 */
+		synchronized long takeDropped() {
+			long count = dropped;
+			dropped = 0;
+			return count;
+		}
+
+		/**
+		 * Adds the tokens earned since the last refill
+		 * @param tokensPerNano Tokens added per nanosecond
+		 * @param burst Maximum tokens
+		 * @param now Current time (System.nanoTime)
+		 */
+		private void refill(final double tokensPerNano, final double burst, final long now) {
+			if (refilled < now) {
+				tokens = Math.min(burst, tokens + (now - refilled) * tokensPerNano);
+				refilled = now;
+			}
+		}
+
+		/**
+		 * @param summary The window summary
+		 * @param timestamp End of the window (epoch milliseconds)
+		 * @return Event carrying the summary, at the call site of the dropped events
+		 */
+		LoggingEvent newSummaryEvent(final LogRollup.Summary summary, final long timestamp) {
+			LocationInfo locationInfo = (location != null) ? location : new LocationInfo(null, loggerName, "rateLimit", null);
+
+			return new LoggingEvent(CallSiteLimiter.class.getName(), Logger.getLogger(loggerName), timestamp,
+					level.isGreaterOrEqual(Level.WARN) ? level : Level.WARN, summary, Thread.currentThread().getName(), null, null,
+					locationInfo, null);
+		}
+	}
+}
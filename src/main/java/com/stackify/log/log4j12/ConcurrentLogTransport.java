@@ -0,0 +1,314 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.helpers.LogLog;
+
+import com.stackify.api.LogMsg;
+import com.stackify.api.LogMsgGroup;
+import com.stackify.api.common.log.LogTransport;
+import com.stackify.api.common.util.Preconditions;
+
+/**
+ * Log transport that keeps several batch uploads in flight at once.
+ *
+ * <p>
+ * Each batch is split into partitions (by thread name or by transaction id) and every partition
+ * is pinned to one upload lane. A lane is a single thread with its own queue, so messages of the
+ * same partition are always delivered in order while different lanes upload concurrently. A lane
+ * that fails backs off on its own without holding up the other lanes.
+ */
+public class ConcurrentLogTransport implements LogTransport, Closeable {
+
+	/**
+	 * Partition batches by the thread name of each message
+	 */
+	public static final String PARTITION_THREAD = "thread";
+
+	/**
+	 * Partition batches by the transaction id of each message (falls back to the thread name)
+	 */
+	public static final String PARTITION_TRANSACTION = "transaction";
+
+	/**
+	 * Maximum number of batches waiting in a single lane
+	 */
+	private static final int LANE_CAPACITY = 16;
+
+	/**
+	 * Milliseconds to wait for the lanes to drain on close
+	 */
+	private static final long CLOSE_TIMEOUT = 5000;
+
+	/**
+	 * Transport used by every lane to upload a batch
+	 */
+	private final LogTransport delegate;
+
+	/**
+	 * True to partition by transaction id, false to partition by thread name
+	 */
+	private final boolean byTransaction;
+
+	/**
+	 * Initial backoff after a failed upload (milliseconds)
+	 */
+	private final long minBackoff;
+
+	/**
+	 * Maximum backoff after repeated failed uploads (milliseconds)
+	 */
+	private final long maxBackoff;
+
+	/**
+	 * Upload attempts per batch before it is dropped
+	 */
+	private final int maxAttempts;
+
+	/**
+	 * Upload lanes
+	 */
+	private final Lane[] lanes;
+
+	/**
+	 * Constructor
+	 * @param delegate Transport used to upload each batch
+	 * @param threads Number of concurrent upload lanes
+	 * @param partition Partition strategy (thread or transaction)
+	 */
+	public ConcurrentLogTransport(final LogTransport delegate, final int threads, final String partition) {
+		this(delegate, threads, partition, 1000, 60000, 5);
+	}
+
+	/**
+	 * Constructor
+	 * @param delegate Transport used to upload each batch
+	 * @param threads Number of concurrent upload lanes
+	 * @param partition Partition strategy (thread or transaction)
+	 * @param minBackoff Initial backoff after a failed upload (milliseconds)
+	 * @param maxBackoff Maximum backoff after repeated failed uploads (milliseconds)
+	 * @param maxAttempts Upload attempts per batch before it is dropped
+	 */
+	ConcurrentLogTransport(final LogTransport delegate, final int threads, final String partition,
+			final long minBackoff, final long maxBackoff, final int maxAttempts) {
+		Preconditions.checkNotNull(delegate);
+		Preconditions.checkArgument(0 < threads);
+		Preconditions.checkArgument(0 < maxAttempts);
+
+		this.delegate = delegate;
+		this.byTransaction = PARTITION_TRANSACTION.equalsIgnoreCase(partition);
+		this.minBackoff = minBackoff;
+		this.maxBackoff = maxBackoff;
+		this.maxAttempts = maxAttempts;
+		this.lanes = new Lane[threads];
+
+		for (int i = 0; i < threads; ++i) {
+			lanes[i] = ThreadRegistry.register(new Lane("Stackify_LogUploader-" + i));
+			lanes[i].start();
+		}
+	}
+
+	/**
+	 * @see com.stackify.api.common.log.LogTransport#send(com.stackify.api.LogMsgGroup)
+	 */
+	@Override
+	public void send(final LogMsgGroup group) throws Exception {
+
+		if (lanes.length == 1) {
+			lanes[0].enqueue(group);
+			return;
+		}
+
+		List<List<LogMsg>> partitions = new ArrayList<List<LogMsg>>(lanes.length);
+
+		for (int i = 0; i < lanes.length; ++i) {
+			partitions.add(null);
+		}
+
+		for (LogMsg msg : group.getMsgs()) {
+			int index = getLaneIndex(msg);
+
+			List<LogMsg> partition = partitions.get(index);
+
+			if (partition == null) {
+				partition = new ArrayList<LogMsg>();
+				partitions.set(index, partition);
+			}
+
+			partition.add(msg);
+		}
+
+		for (int i = 0; i < lanes.length; ++i) {
+			List<LogMsg> partition = partitions.get(i);
+
+			if (partition != null) {
+				lanes[i].enqueue(group.toBuilder().msgs(partition).build());
+			}
+		}
+	}
+
+	/**
+	 * @return Number of batches waiting to be uploaded across all lanes
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+
+		for (Lane lane : lanes) {
+			depth += lane.queue.size();
+		}
+
+		return depth;
+	}
+
+	/**
+	 * Stops accepting batches and waits for the lanes to drain
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		for (Lane lane : lanes) {
+			lane.running = false;
+		}
+
+		long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+
+		for (Lane lane : lanes) {
+			try {
+				lane.join(Math.max(1, deadline - System.currentTimeMillis()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Maps a message to its lane
+	 * @param msg The log message
+	 * @return The lane index
+	 */
+	private int getLaneIndex(final LogMsg msg) {
+		String key = null;
+
+		if (byTransaction) {
+			key = msg.getTransId();
+		}
+
+		if (key == null) {
+			key = msg.getTh();
+		}
+
+		if (key == null) {
+			return 0;
+		}
+
+		return (key.hashCode() & Integer.MAX_VALUE) % lanes.length;
+	}
+
+	/**
+	 * Single upload lane with its own queue and backoff
+	 */
+	private class Lane extends Thread {
+
+		/**
+		 * Batches waiting to be uploaded by this lane
+		 */
+		private final BlockingQueue<LogMsgGroup> queue = new ArrayBlockingQueue<LogMsgGroup>(LANE_CAPACITY);
+
+		/**
+		 * Current backoff of this lane (milliseconds)
+		 */
+		private long backoff = 0;
+
+		/**
+		 * False once the transport has been closed
+		 */
+		private volatile boolean running = true;
+
+		/**
+		 * Constructor
+		 * @param name Thread name
+		 */
+		Lane(final String name) {
+			super(name);
+			setDaemon(true);
+		}
+
+		/**
+		 * Queues a batch, blocking while the lane is full
+		 * @param group The batch
+		 * @throws InterruptedException If interrupted while waiting for room
+		 */
+		void enqueue(final LogMsgGroup group) throws InterruptedException {
+			if (!running) {
+				throw new IllegalStateException("Stackify log uploader is closed");
+			}
+
+			queue.put(group);
+		}
+
+		/**
+		 * @see java.lang.Thread#run()
+		 */
+		@Override
+		public void run() {
+			try {
+				while (running || !queue.isEmpty()) {
+					LogMsgGroup group = queue.poll(100, TimeUnit.MILLISECONDS);
+
+					if (group != null) {
+						upload(group);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Uploads a batch, backing off after each failure
+		 * @param group The batch
+		 * @throws InterruptedException If interrupted while backing off
+		 */
+		private void upload(final LogMsgGroup group) throws InterruptedException {
+			for (int attempt = 1; ; ++attempt) {
+				if (0 < backoff) {
+					Thread.sleep(backoff);
+				}
+
+				try {
+					delegate.send(group);
+					backoff = 0;
+					return;
+				} catch (Exception e) {
+					backoff = (backoff == 0) ? minBackoff : Math.min(maxBackoff, backoff * 2);
+
+					if (maxAttempts <= attempt) {
+						LogLog.warn("Dropping Stackify log batch after " + attempt + " failed upload(s)", e);
+						return;
+					}
+				}
+			}
+		}
+	}
+}
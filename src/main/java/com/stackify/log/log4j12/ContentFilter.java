@@ -0,0 +1,421 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Drops events by logger, level and message content before they are converted.
+ *
+ * <p>
+ * Rules are separated by semicolons, each rule is a comma separated list of attributes (see
+ * {@link RuleParser} for the escapes):
+ * <pre>
+ * action=keep,logger=com.example.payments;logger=org.apache.http,level=WARN,contains=Connection reset;regex=Retrying after \d+ms
+ * </pre>
+ * <ul>
+ * <li>action: drop (default) or keep</li>
+ * <li>logger: logger name, matching the logger and its descendants (any logger when absent)</li>
+ * <li>level: exact event level (any level when absent)</li>
+ * <li>contains: text the message contains</li>
+ * <li>regex: regular expression found in the message</li>
+ * </ul>
+ *
+ * <p>
+ * The first matching rule decides, events matching no rule are kept. The message literals of all
+ * rules (the contains texts and the longest literal each regex requires) are searched in a single
+ * pass, and a regex is only run on the messages containing its literal.
+ */
+final class ContentFilter {
+
+	/**
+	 * Rules in match order
+	 */
+	private final List<Rule> rules;
+
+	/**
+	 * Search of the message literals (null when no rule has a literal)
+	 */
+	private final LiteralSearch literals;
+
+	/**
+	 * Constructor
+	 * @param rules Rules in match order
+	 * @param literals Search of the message literals (null when no rule has a literal)
+	 */
+	private ContentFilter(final List<Rule> rules, final LiteralSearch literals) {
+		this.rules = rules;
+		this.literals = literals;
+	}
+
+	/**
+	 * Compiles the filter rules
+	 * @param rules The filterRules option (null or empty for none)
+	 * @return The filter, null without rules
+	 */
+	static ContentFilter compile(final String rules) {
+		if (rules == null || rules.trim().isEmpty()) {
+			return null;
+		}
+
+		List<Rule> parsed = new ArrayList<Rule>();
+		List<String> literals = new ArrayList<String>();
+
+		for (List<RuleParser.Attribute> rule : RuleParser.parse("filterRules", rules)) {
+			parsed.add(Rule.parse(rule, literals));
+		}
+
+		return new ContentFilter(parsed, literals.isEmpty() ? null : new LiteralSearch(literals));
+	}
+
+	/**
+	 * @param event The logging event
+	 * @param message The event message (LoggingEventAdapter.getMessage)
+	 * @return True if the event must be dropped
+	 */
+	boolean drops(final LoggingEvent event, final String message) {
+		BitSet found = null;
+
+		for (int i = 0; i < rules.size(); ++i) {
+			Rule rule = rules.get(i);
+
+			if (!rule.matchesSource(event)) {
+				continue;
+			}
+
+			if (rule.literal != -1 || rule.regex != null) {
+				if (message == null) {
+					continue;
+				}
+
+				if (rule.literal != -1) {
+					if (found == null) {
+						found = literals.search(message);
+					}
+
+					if (!found.get(rule.literal)) {
+						continue;
+					}
+				}
+
+				if (rule.regex != null && !rule.regex.matcher(message).find()) {
+					continue;
+				}
+			}
+
+			return rule.drop;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Longest literal text every match of a regular expression contains
+	 * @param regex The regular expression
+	 * @return The literal, null if none can be determined
+	 */
+	static String requiredLiteral(final String regex) {
+		if (regex.indexOf('|') != -1 || regex.contains("(?") || regex.contains("\\Q")) {
+			return null;
+		}
+
+		String longest = "";
+		StringBuilder run = new StringBuilder();
+		int depth = 0;
+
+		for (int i = 0; i < regex.length(); ++i) {
+			char c = regex.charAt(i);
+			char literal = 0;
+
+			if (c == '\\' && i + 1 < regex.length()) {
+				char escaped = regex.charAt(++i);
+
+				if (Character.isLetterOrDigit(escaped)) {
+
+					// a class, a code point or a back reference ends the literal
+
+					i = skipEscapeArgument(regex, i);
+				} else {
+					literal = escaped;
+				}
+			} else if (c == '[') {
+				i = skipClass(regex, i);
+
+				if (i == -1) {
+					return null;
+				}
+			} else if (c == '(') {
+				++depth;
+			} else if (c == ')') {
+				--depth;
+			} else if (c == '?' || c == '*' || c == '{') {
+
+				// the previous character is optional
+
+				if (0 < run.length()) {
+					run.setLength(run.length() - 1);
+				}
+			} else if ("+.^$".indexOf(c) == -1) {
+				literal = c;
+			}
+
+			if (literal != 0 && depth == 0) {
+				run.append(literal);
+				continue;
+			}
+
+			if (longest.length() < run.length()) {
+				longest = run.toString();
+			}
+
+			run.setLength(0);
+
+			if (c == '{') {
+				while (i + 1 < regex.length() && regex.charAt(i) != '}') {
+					++i;
+				}
+			}
+		}
+
+		if (longest.length() < run.length()) {
+			longest = run.toString();
+		}
+
+		return longest.isEmpty() ? null : longest;
+	}
+
+	/**
+	 * Skips a character class, including a leading ] and nested or intersected classes such as [a-z&&[^b]]
+	 * @param regex The regular expression
+	 * @param i Index of the opening [
+	 * @return Index of the closing ], -1 if the class is not closed
+	 */
+	private static int skipClass(final String regex, final int i) {
+		int j = i + 1;
+
+		if (j < regex.length() && regex.charAt(j) == '^') {
+			++j;
+		}
+
+		// a ] right after the opening [ or [^ is a literal
+
+		if (j < regex.length() && regex.charAt(j) == ']') {
+			++j;
+		}
+
+		while (j < regex.length()) {
+			char c = regex.charAt(j);
+
+			if (c == ']') {
+				return j;
+			}
+
+			if (c == '\\') {
+				j += 2;
+			} else if (c == '[') {
+				j = skipClass(regex, j);
+
+				if (j == -1) {
+					return -1;
+				}
+
+				++j;
+			} else {
+				++j;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Skips the argument of an escape such as the hexadecimal digits of \x41 or the name of \p{Lu}
+	 * @param regex The regular expression
+	 * @param i Index of the escaped letter or digit
+	 * @return Index of the last character of the escape
+	 */
+	private static int skipEscapeArgument(final String regex, final int i) {
+		char escaped = regex.charAt(i);
+		int end = i;
+
+		switch (escaped) {
+		case 'x':
+			end = (i + 1 < regex.length() && regex.charAt(i + 1) == '{') ? regex.indexOf('}', i) : i + 2;
+			break;
+		case 'u':
+			end = i + 4;
+			break;
+		case 'c':
+			end = i + 1;
+			break;
+		case 'p':
+		case 'P':
+			end = (i + 1 < regex.length() && regex.charAt(i + 1) == '{') ? regex.indexOf('}', i) : i + 1;
+			break;
+		case 'k':
+			end = regex.indexOf('>', i);
+			break;
+		case '0':
+			while (end + 1 < regex.length() && end < i + 3 && '0' <= regex.charAt(end + 1) && regex.charAt(end + 1) <= '7') {
+				++end;
+			}
+			break;
+		default:
+			if (Character.isDigit(escaped)) {
+				while (end + 1 < regex.length() && Character.isDigit(regex.charAt(end + 1))) {
+					++end;
+				}
+			}
+			break;
+		}
+
+		return (end < 0) ? regex.length() - 1 : Math.min(end, regex.length() - 1);
+	}
+
+	/**
+	 * Filter rule
+	 */
+	private static final class Rule {
+
+		/**
+		 * True to drop the matching events, false to keep them
+		 */
+		private final boolean drop;
+
+		/**
+		 * Logger name (null for any)
+		 */
+		private final String logger;
+
+		/**
+		 * Event level (null for any)
+		 */
+		private final Level level;
+
+		/**
+		 * Index of the literal the message must contain (-1 for none)
+		 */
+		private final int literal;
+
+		/**
+		 * Regular expression found in the message (null for none)
+		 */
+		private final Pattern regex;
+
+		/**
+		 * Constructor
+		 * @param drop True to drop the matching events, false to keep them
+		 * @param logger Logger name (null for any)
+		 * @param level Event level (null for any)
+		 * @param literal Index of the literal the message must contain (-1 for none)
+		 * @param regex Regular expression found in the message (null for none)
+		 */
+		private Rule(final boolean drop, final String logger, final Level level, final int literal, final Pattern regex) {
+			this.drop = drop;
+			this.logger = logger;
+			this.level = level;
+			this.literal = literal;
+			this.regex = regex;
+		}
+
+		/**
+		 * Parses a rule
+		 * @param rule The rule attributes
+		 * @param literals Literals of the previous rules, the literal of this rule is added
+		 * @return The rule
+		 */
+		static Rule parse(final List<RuleParser.Attribute> rule, final List<String> literals) {
+			boolean drop = true;
+			String logger = null;
+			Level level = null;
+			String contains = null;
+			Pattern regex = null;
+
+			for (RuleParser.Attribute attribute : rule) {
+				String key = attribute.getKey();
+				String value = attribute.getValue();
+
+				if ("action".equals(key)) {
+					if ("drop".equalsIgnoreCase(value)) {
+						drop = true;
+					} else if ("keep".equalsIgnoreCase(value)) {
+						drop = false;
+					} else {
+						throw new IllegalArgumentException("Invalid filterRules action: " + value);
+					}
+				} else if ("logger".equals(key)) {
+					logger = value;
+				} else if ("level".equals(key)) {
+					level = Level.toLevel(value, null);
+
+					if (level == null) {
+						throw new IllegalArgumentException("Invalid filterRules level: " + value);
+					}
+				} else if ("contains".equals(key)) {
+					contains = value;
+				} else if ("regex".equals(key)) {
+					try {
+						regex = Pattern.compile(value);
+					} catch (PatternSyntaxException e) {
+						throw new IllegalArgumentException("Invalid filterRules regex: " + value, e);
+					}
+				} else {
+					throw new IllegalArgumentException("Invalid filterRules attribute: " + key);
+				}
+			}
+
+			if (contains != null && regex != null) {
+				throw new IllegalArgumentException("A filterRules rule can not have both contains and regex: contains=" + contains + ", regex=" + regex);
+			}
+
+			String text = (regex != null) ? requiredLiteral(regex.pattern()) : contains;
+			int literal = -1;
+
+			if (text != null && !text.isEmpty()) {
+				literal = literals.size();
+				literals.add(text);
+			}
+
+			return new Rule(drop, logger, level, literal, regex);
+		}
+
+		/**
+		 * @param event The logging event
+		 * @return True if the event's logger and level match the rule
+		 */
+		boolean matchesSource(final LoggingEvent event) {
+			if (level != null && !level.equals(event.getLevel())) {
+				return false;
+			}
+
+			if (logger != null) {
+				String loggerName = event.getLoggerName();
+
+				return loggerName != null && loggerName.startsWith(logger)
+						&& (loggerName.length() == logger.length() || loggerName.charAt(logger.length()) == '.');
+			}
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Keeps the CPU time spent logging under a share of the CPU available to the JVM.
+ *
+ * <p>
+ * The CPU time of the logging threads is measured by sampling one event in {@link #MEASURE_INTERVAL}
+ * on the thread logging it, and the CPU time of the background threads the appender's pipelines
+ * started (conversion of the rollups, masking, serialization and uploads), as listed by its
+ * {@link ThreadRegistry}, is read every second. The uploads the collector runs on shared pools are
+ * measured around each batch, as those threads also run other tasks. The governor never enables the
+ * JVM-wide thread CPU time measurement, it is disabled when the measurement is. When a second is over budget,
+ * the governor lowers the fidelity one step, or more when far over budget: the call site, then the
+ * MDC are no longer captured, then DEBUG and INFO events are sampled at an increasing rate, then
+ * dropped, and finally only ERROR and FATAL events are sent with truncated stack traces. A step is
+ * restored after {@link #RECOVERY_WINDOWS} seconds below half the budget.
+ */
+final class CpuGovernor implements Closeable {
+
+	/**
+	 * Fidelity of each step
+	 */
+	private static final Fidelity[] FIDELITIES = {Fidelity.FULL, Fidelity.NO_LOCATION, Fidelity.NO_MDC, Fidelity.NO_MDC,
+			Fidelity.NO_MDC, Fidelity.NO_MDC, Fidelity.NO_MDC, Fidelity.WARN_AND_ABOVE, Fidelity.ERROR_ONLY};
+
+	/**
+	 * One DEBUG or INFO event kept out of this many at each step
+	 */
+	private static final int[] SAMPLE_RATES = {1, 1, 1, 2, 4, 8, 16, 1, 1};
+
+	/**
+	 * One event measured out of this many
+	 */
+	static final int MEASURE_INTERVAL = 16;
+
+	/**
+	 * Length of a measurement window (milliseconds)
+	 */
+	private static final long WINDOW = 1000;
+
+	/**
+	 * Windows below {@link #RECOVERY_RATIO} of the budget before a step is restored
+	 */
+	private static final int RECOVERY_WINDOWS = 5;
+
+	/**
+	 * Share of the budget under which a window counts toward recovery
+	 */
+	private static final double RECOVERY_RATIO = 0.5;
+
+	/**
+	 * CPU budget (percent of the CPU available to the JVM)
+	 */
+	private final double budgetPercent;
+
+	/**
+	 * Receives the fidelity changes
+	 */
+	private final Fidelity.Listener listener;
+
+	/**
+	 * Thread CPU time source (null when not measuring)
+	 */
+	private final ThreadMXBean threads;
+
+	/**
+	 * Background threads of the appender (null when not measuring)
+	 */
+	private final ThreadRegistry registry;
+
+	/**
+	 * CPU time of reading the thread CPU time, counted once by each measured event (nanoseconds)
+	 */
+	private final long timerNanos;
+
+	/**
+	 * Ends the measurement windows (null when not measuring)
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Scaled CPU time of the measured events of the current window (nanoseconds)
+	 */
+	private final LongAdder eventNanos = new LongAdder();
+
+	/**
+	 * Last CPU time of each background thread (nanoseconds, by thread id)
+	 */
+	private final Map<Long, Long> backgroundNanos = new HashMap<Long, Long>();
+
+	/**
+	 * Last CPU time of the uploads run on shared pools (nanoseconds)
+	 */
+	private long sharedNanos = 0;
+
+	/**
+	 * Start of the current window (System.nanoTime)
+	 */
+	private long windowStart = System.nanoTime();
+
+	/**
+	 * Consecutive windows below the recovery ratio
+	 */
+	private int calmWindows = 0;
+
+	/**
+	 * Current step
+	 */
+	private volatile int level = 0;
+
+	/**
+	 * Number of step changes
+	 */
+	private volatile long transitions = 0;
+
+	/**
+	 * CPU used by logging in the last window (percent of the CPU available to the JVM)
+	 */
+	private volatile double usagePercent = 0;
+
+	/**
+	 * Constructor
+	 * @param budgetPercent CPU budget (percent of the CPU available to the JVM)
+	 * @param listener Receives the fidelity changes
+	 * @param registry Background threads of the appender to measure, null to only apply the usages passed to update
+	 */
+	CpuGovernor(final double budgetPercent, final Fidelity.Listener listener, final ThreadRegistry registry) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+		this.budgetPercent = budgetPercent;
+		this.listener = listener;
+
+		boolean supported = threadBean.isThreadCpuTimeSupported() && threadBean.isCurrentThreadCpuTimeSupported();
+
+		if (registry == null || !supported || !threadBean.isThreadCpuTimeEnabled()) {
+			if (registry != null) {
+
+				// enabling it would change the JVM for every other user of the thread MXBean
+
+				LogLog.warn("Stackify cpuBudgetPercent is ignored, thread CPU time is " + (supported ? "disabled in" : "not supported by") + " this JVM");
+			}
+
+			this.threads = null;
+			this.registry = null;
+			this.timerNanos = 0;
+			this.scheduler = null;
+			return;
+		}
+
+		this.threads = threadBean;
+		this.registry = registry;
+		this.timerNanos = calibrate(threadBean);
+
+		// the first window only counts the CPU time used from now on
+
+		backgroundDelta();
+		sharedDelta();
+		ThreadRegistry.startMonitor();
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "Stackify_CpuGovernor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				check();
+			}
+		}, WINDOW, WINDOW, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param threadBean Thread CPU time source
+	 * @return Average CPU time of reading the current thread CPU time (nanoseconds)
+	 */
+	private static long calibrate(final ThreadMXBean threadBean) {
+		int reads = 10000;
+		long start = threadBean.getCurrentThreadCpuTime();
+
+		for (int i = 1; i < reads; ++i) {
+			threadBean.getCurrentThreadCpuTime();
+		}
+
+		return (threadBean.getCurrentThreadCpuTime() - start) / reads;
+	}
+
+	/**
+	 * Parses the cpuBudgetPercent option
+	 * @param value Percent of the CPU available to the JVM (null or empty for none)
+	 * @return The budget, null for none
+	 */
+	static Double parseBudget(final String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return null;
+		}
+
+		double budget = Double.parseDouble(value.trim());
+
+		if (budget <= 0 || 100 < budget) {
+			throw new IllegalArgumentException("Invalid cpuBudgetPercent: " + value);
+		}
+
+		return budget;
+	}
+
+	/**
+	 * Starts measuring an event on the current thread
+	 * @return Start CPU time of the thread, -1 when the event is not measured
+	 */
+	long begin() {
+		if (threads == null || ThreadLocalRandom.current().nextInt(MEASURE_INTERVAL) != 0) {
+			return -1;
+		}
+
+		return threads.getCurrentThreadCpuTime();
+	}
+
+	/**
+	 * Ends measuring an event
+	 * @param start Value returned by begin
+	 */
+	void end(final long start) {
+		if (start < 0) {
+			return;
+		}
+
+		long elapsed = threads.getCurrentThreadCpuTime() - start - timerNanos;
+
+		if (0 < elapsed) {
+			eventNanos.add(elapsed * MEASURE_INTERVAL);
+		}
+	}
+
+	/**
+	 * Ends a window and applies its CPU usage
+	 */
+	private void check() {
+		try {
+			long now = System.nanoTime();
+			long used = eventNanos.sumThenReset() + backgroundDelta() + sharedDelta();
+			long capacity = (now - windowStart) * Runtime.getRuntime().availableProcessors();
+
+			windowStart = now;
+
+			if (0 < capacity) {
+				update(100.0 * used / capacity);
+			}
+		} catch (Exception e) {
+			LogLog.error("Exception checking the Stackify CPU usage", e);
+		}
+	}
+
+	/**
+	 * @return CPU time of the registered background threads since the last window (nanoseconds)
+	 */
+	private long backgroundDelta() {
+		long delta = 0;
+		Map<Long, Long> current = new HashMap<Long, Long>();
+
+		for (Long id : registry.getThreadIds()) {
+			long cpu = threads.getThreadCpuTime(id);
+
+			if (cpu < 0) {
+				continue;
+			}
+
+			Long last = backgroundNanos.get(id);
+			delta += cpu - ((last != null) ? last : 0);
+			current.put(id, cpu);
+		}
+
+		backgroundNanos.clear();
+		backgroundNanos.putAll(current);
+
+		return delta;
+	}
+
+	/**
+	 * @return CPU time of the uploads measured on other threads since the last window (nanoseconds)
+	 */
+	private long sharedDelta() {
+		long total = registry.getSharedNanos();
+		long delta = total - sharedNanos;
+
+		sharedNanos = total;
+		return delta;
+	}
+
+	/**
+	 * Moves to the step of a window's CPU usage
+	 * @param usage CPU used by logging in the window (percent of the CPU available to the JVM)
+	 */
+	synchronized void update(final double usage) {
+		usagePercent = usage;
+
+		double ratio = usage / budgetPercent;
+		int next = level;
+
+		if (1 < ratio) {
+
+			// one step per doubling of the budget
+
+			next = Math.min(FIDELITIES.length - 1, level + Math.max(1, (int) (Math.log(ratio) / Math.log(2))));
+			calmWindows = 0;
+		} else if (ratio < RECOVERY_RATIO) {
+			if (RECOVERY_WINDOWS <= ++calmWindows && 0 < level) {
+				next = level - 1;
+				calmWindows = 0;
+			}
+		} else {
+			calmWindows = 0;
+		}
+
+		if (next == level) {
+			return;
+		}
+
+		LogLog.warn("Stackify logging CPU at " + Math.round(usage * 10) / 10.0 + "% (budget " + budgetPercent + "%), logging fidelity "
+				+ describe(level) + " -> " + describe(next));
+
+		level = next;
+		++transitions;
+
+		listener.onFidelityChange(FIDELITIES[next]);
+	}
+
+	/**
+	 * @param step A step
+	 * @return Fidelity and sample rate of the step
+	 */
+	private static String describe(final int step) {
+		return (SAMPLE_RATES[step] == 1) ? FIDELITIES[step].toString() : FIDELITIES[step] + " 1/" + SAMPLE_RATES[step];
+	}
+
+	/**
+	 * @return The fidelity of the current step
+	 */
+	Fidelity getFidelity() {
+		return FIDELITIES[level];
+	}
+
+	/**
+	 * @return One DEBUG or INFO event kept out of this many at the current step
+	 */
+	int getSampleRate() {
+		return SAMPLE_RATES[level];
+	}
+
+	/**
+	 * @return Current step, 0 for full fidelity
+	 */
+	int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return Number of step changes
+	 */
+	long getTransitions() {
+		return transitions;
+	}
+
+	/**
+	 * @return CPU used by logging in the last window (percent of the CPU available to the JVM)
+	 */
+	double getUsagePercent() {
+		return usagePercent;
+	}
+
+	/**
+	 * Stops measuring
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		if (scheduler != null && !scheduler.isShutdown()) {
+			scheduler.shutdownNow();
+			ThreadRegistry.stopMonitor();
+		}
+	}
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.stackify.api.LogMsg;
+import com.stackify.api.LogMsgGroup;
+import com.stackify.api.StackifyError;
+
+/**
+ * Compact encoding of a log message batch.
+ *
+ * <p>
+ * Strings that repeat across the messages of a batch (thread name, level, source method, transaction
+ * id and the MDC data) are written once into a per-batch dictionary and referenced by index. The
+ * result is deflated with a pooled {@link Deflater}.
+ *
+ * <p>
+ * The Stackify API only accepts plain JSON batches, so this encoding is only used between components
+ * that both understand it (see {@link #decode(byte[])}).
+ *
+ * <pre>
+ * {"v":1,"group":{...},"dict":["...",...],"msgs":[[msg,data,th,epochMs,level,transId,srcMethod,srcLine,id,ex,tags],...]}
+ * </pre>
+ */
+public class DictionaryBatchCodec {
+
+	/**
+	 * Encoding version
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Index written for a null string
+	 */
+	private static final int NULL_INDEX = -1;
+
+	/**
+	 * Maximum number of idle deflaters kept in the pool
+	 */
+	private static final int DEFLATER_POOL_SIZE = 4;
+
+	/**
+	 * JSON converter
+	 */
+	private final ObjectMapper json = new ObjectMapper()
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+			.configure(SerializationFeature.FLUSH_AFTER_WRITE_VALUE, false);
+
+	/**
+	 * Idle deflaters
+	 */
+	private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+	/**
+	 * Deflate compression level
+	 */
+	private final int level;
+
+	/**
+	 * Constructor with the default compression level
+	 */
+	public DictionaryBatchCodec() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Constructor
+	 * @param level Deflate compression level (Deflater.BEST_SPEED trades some size for less CPU)
+	 */
+	public DictionaryBatchCodec(final int level) {
+		this.level = level;
+	}
+
+	/**
+	 * Encodes a batch
+	 * @param group The batch
+	 * @return The deflated, dictionary encoded batch
+	 * @throws IOException If the batch can not be serialized
+	 */
+	public byte[] encode(final LogMsgGroup group) throws IOException {
+
+		List<LogMsg> msgs = group.getMsgs() != null ? group.getMsgs() : new ArrayList<LogMsg>();
+
+		// build the dictionary
+
+		Map<String, Integer> dictionary = new HashMap<String, Integer>();
+		List<String> entries = new ArrayList<String>();
+		int[] refs = new int[msgs.size() * 5];
+		int r = 0;
+
+		for (LogMsg msg : msgs) {
+			refs[r++] = lookup(dictionary, entries, msg.getData());
+			refs[r++] = lookup(dictionary, entries, msg.getTh());
+			refs[r++] = lookup(dictionary, entries, msg.getLevel());
+			refs[r++] = lookup(dictionary, entries, msg.getTransId());
+			refs[r++] = lookup(dictionary, entries, msg.getSrcMethod());
+		}
+
+		// write the batch
+
+		Deflater deflater = deflaters.poll();
+
+		if (deflater == null) {
+			deflater = new Deflater(level);
+		}
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(msgs.size() * 64 + 1024);
+			JsonGenerator gen = json.getFactory().createGenerator(bytes);
+
+			gen.writeStartObject();
+			gen.writeNumberField("v", VERSION);
+
+			gen.writeFieldName("group");
+			json.writeValue(gen, group.toBuilder().msgs(null).build());
+
+			gen.writeArrayFieldStart("dict");
+
+			for (String entry : entries) {
+				gen.writeString(entry);
+			}
+
+			gen.writeEndArray();
+
+			gen.writeArrayFieldStart("msgs");
+
+			r = 0;
+
+			for (LogMsg msg : msgs) {
+				gen.writeStartArray();
+				gen.writeString(msg.getMsg());
+				gen.writeNumber(refs[r++]);
+				gen.writeNumber(refs[r++]);
+				writeNumber(gen, msg.getEpochMs());
+				gen.writeNumber(refs[r++]);
+				gen.writeNumber(refs[r++]);
+				gen.writeNumber(refs[r++]);
+				writeNumber(gen, msg.getSrcLine() != null ? Long.valueOf(msg.getSrcLine()) : null);
+				gen.writeString(msg.getId());
+				writeObject(gen, msg.getEx());
+				writeObject(gen, msg.getTags());
+				gen.writeEndArray();
+			}
+
+			gen.writeEndArray();
+			gen.writeEndObject();
+			gen.close();
+
+			return deflate(deflater, bytes.toByteArray());
+		} finally {
+			deflater.reset();
+
+			if (DEFLATER_POOL_SIZE <= deflaters.size() || !deflaters.offer(deflater)) {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Compresses the serialized batch in one pass
+	 * @param deflater The deflater
+	 * @param input The serialized batch
+	 * @return The compressed batch
+	 */
+	private static byte[] deflate(final Deflater deflater, final byte[] input) {
+		deflater.setInput(input);
+		deflater.finish();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4 + 64);
+		byte[] buffer = new byte[8192];
+
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			out.write(buffer, 0, n);
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a batch
+	 * @param encoded The deflated, dictionary encoded batch
+	 * @return The batch
+	 * @throws IOException If the batch is malformed
+	 */
+	public LogMsgGroup decode(final byte[] encoded) throws IOException {
+
+		InputStream is = new InflaterInputStream(new ByteArrayInputStream(encoded));
+		JsonParser parser = json.getFactory().createParser(is);
+
+		try {
+			LogMsgGroup group = null;
+			List<String> dictionary = new ArrayList<String>();
+			List<LogMsg> msgs = new ArrayList<LogMsg>();
+
+			expect(parser.nextToken(), JsonToken.START_OBJECT);
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+
+				if ("v".equals(field)) {
+					if (parser.getIntValue() != VERSION) {
+						throw new IOException("Unsupported batch encoding version " + parser.getText());
+					}
+				} else if ("group".equals(field)) {
+					group = json.readValue(parser, LogMsgGroup.class);
+				} else if ("dict".equals(field)) {
+					while (parser.nextToken() != JsonToken.END_ARRAY) {
+						dictionary.add(parser.getValueAsString());
+					}
+				} else if ("msgs".equals(field)) {
+					while (parser.nextToken() == JsonToken.START_ARRAY) {
+						msgs.add(readMsg(parser, dictionary));
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+
+			if (group == null) {
+				throw new IOException("Batch without group header");
+			}
+
+			group.setMsgs(msgs);
+			return group;
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Reads one message array
+	 * @param parser Parser positioned on the start of the array
+	 * @param dictionary The batch dictionary
+	 * @return The log message
+	 * @throws IOException If the message is malformed
+	 */
+	private LogMsg readMsg(final JsonParser parser, final List<String> dictionary) throws IOException {
+		LogMsg.Builder builder = LogMsg.newBuilder();
+
+		parser.nextToken();
+		builder.msg(parser.getValueAsString());
+		parser.nextToken();
+		builder.data(entry(dictionary, parser.getIntValue()));
+		parser.nextToken();
+		builder.th(entry(dictionary, parser.getIntValue()));
+		parser.nextToken();
+		builder.epochMs(parser.getCurrentToken() == JsonToken.VALUE_NULL ? null : Long.valueOf(parser.getLongValue()));
+		parser.nextToken();
+		builder.level(entry(dictionary, parser.getIntValue()));
+		parser.nextToken();
+		builder.transId(entry(dictionary, parser.getIntValue()));
+		parser.nextToken();
+		builder.srcMethod(entry(dictionary, parser.getIntValue()));
+		parser.nextToken();
+		builder.srcLine(parser.getCurrentToken() == JsonToken.VALUE_NULL ? null : Integer.valueOf(parser.getIntValue()));
+		parser.nextToken();
+		builder.id(parser.getValueAsString());
+		parser.nextToken();
+		builder.ex(parser.getCurrentToken() == JsonToken.VALUE_NULL ? null : json.readValue(parser, StackifyError.class));
+		parser.nextToken();
+
+		if (parser.getCurrentToken() != JsonToken.VALUE_NULL) {
+			List<String> tags = new ArrayList<String>();
+
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				tags.add(parser.getValueAsString());
+			}
+
+			builder.tags(tags);
+		}
+
+		expect(parser.nextToken(), JsonToken.END_ARRAY);
+
+		return builder.build();
+	}
+
+	/**
+	 * Adds a string to the dictionary
+	 * @param dictionary Index by string
+	 * @param entries Strings by index
+	 * @param value The string
+	 * @return The dictionary index
+	 */
+	private static int lookup(final Map<String, Integer> dictionary, final List<String> entries, final String value) {
+		if (value == null) {
+			return NULL_INDEX;
+		}
+
+		Integer index = dictionary.get(value);
+
+		if (index == null) {
+			index = entries.size();
+			dictionary.put(value, index);
+			entries.add(value);
+		}
+
+		return index;
+	}
+
+	/**
+	 * @param dictionary The batch dictionary
+	 * @param index Dictionary index
+	 * @return The string at the index
+	 * @throws IOException If the index is out of range
+	 */
+	private static String entry(final List<String> dictionary, final int index) throws IOException {
+		if (index == NULL_INDEX) {
+			return null;
+		}
+
+		if (index < 0 || dictionary.size() <= index) {
+			throw new IOException("Invalid dictionary reference " + index);
+		}
+
+		return dictionary.get(index);
+	}
+
+	/**
+	 * Writes a nullable number
+	 * @param gen The generator
+	 * @param value The number
+	 * @throws IOException If the number can not be written
+	 */
+	private static void writeNumber(final JsonGenerator gen, final Long value) throws IOException {
+		if (value == null) {
+			gen.writeNull();
+		} else {
+			gen.writeNumber(value.longValue());
+		}
+	}
+
+	/**
+	 * Writes a nullable object
+	 * @param gen The generator
+	 * @param value The object
+	 * @throws IOException If the object can not be written
+	 */
+	private void writeObject(final JsonGenerator gen, final Object value) throws IOException {
+		if (value == null) {
+			gen.writeNull();
+		} else {
+			json.writeValue(gen, value);
+		}
+	}
+
+	/**
+	 * @param actual Token read
+	 * @param expected Token expected
+	 * @throws IOException If the tokens differ
+	 */
+	private static void expect(final JsonToken actual, final JsonToken expected) throws IOException {
+		if (actual != expected) {
+			throw new IOException("Malformed batch, expected " + expected + " but found " + actual);
+		}
+	}
+}
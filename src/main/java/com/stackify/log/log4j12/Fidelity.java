@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import org.apache.log4j.Level;
+
+/**
+ * Detail captured for each event, lowered step by step to reduce the cost of logging. Each level
+ * includes the reductions of the previous ones.
+ */
+public enum Fidelity {
+
+	/**
+	 * Everything is captured
+	 */
+	FULL,
+
+	/**
+	 * The call site is not captured, unless the event already holds it
+	 */
+	NO_LOCATION,
+
+	/**
+	 * The MDC and NDC are not copied into the message data
+	 */
+	NO_MDC,
+
+	/**
+	 * DEBUG and INFO events are dropped
+	 */
+	WARN_AND_ABOVE,
+
+	/**
+	 * Only ERROR and FATAL events are sent, with truncated stack traces and without the system properties
+	 */
+	ERROR_ONLY;
+
+	/**
+	 * Receives the fidelity changes of a guard
+	 */
+	interface Listener {
+
+		/**
+		 * @param fidelity The new fidelity
+		 */
+		void onFidelityChange(Fidelity fidelity);
+	}
+
+	/**
+	 * @return True if the call site is captured
+	 */
+	boolean capturesLocation() {
+		return this == FULL;
+	}
+
+	/**
+	 * @return True if the MDC and NDC are copied into the message data
+	 */
+	boolean capturesMdc() {
+		return compareTo(NO_MDC) < 0;
+	}
+
+	/**
+	 * @return True if the stack traces are truncated and the system properties are not copied
+	 */
+	boolean truncatesStacks() {
+		return this == ERROR_ONLY;
+	}
+
+	/**
+	 * @param level The event level
+	 * @return True if events of the level are sent
+	 */
+	boolean accepts(final Level level) {
+		switch (this) {
+		case WARN_AND_ABOVE:
+			return level.isGreaterOrEqual(Level.WARN);
+		case ERROR_ONLY:
+			return level.isGreaterOrEqual(Level.ERROR);
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * @param other Another fidelity
+	 * @return The lower of both fidelities
+	 */
+	Fidelity min(final Fidelity other) {
+		return (compareTo(other) < 0) ? other : this;
+	}
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.helpers.LogLog;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stackify.api.LogMsgGroup;
+import com.stackify.api.common.log.LogTransport;
+import com.stackify.api.common.log.LogTransportPreProcessor;
+import com.stackify.api.common.mask.Masker;
+
+/**
+ * Writes the batches to rolling newline delimited JSON files instead of uploading them, for a sidecar
+ * tailing the files.
+ *
+ * <p>
+ * Each line is the JSON body that would have been posted to the Stackify API. The batches are masked
+ * and serialized by the caller and written by a separate thread through a buffered file channel, so
+ * the sender never waits for the disk. A file is rolled when it reaches its maximum size or age, and
+ * only the most recent files are kept.
+ *
+ * <p>
+ * The file names carry the process id and a random suffix, so several JVMs or tenant pipelines can
+ * share a directory and prefix. Each transport deletes its own files beyond the number kept, and the
+ * files of other writers with the same prefix once they were not modified for as many roll intervals,
+ * such as those left by earlier runs or reconfigurations.
+ */
+final class FileLogTransport implements LogTransport, Closeable {
+
+	/**
+	 * Transport name of the appender option
+	 */
+	static final String NAME = "file";
+
+	/**
+	 * Extension of the files
+	 */
+	static final String EXTENSION = ".ndjson";
+
+	/**
+	 * Batches waiting to be written
+	 */
+	private static final int QUEUE_CAPACITY = 1024;
+
+	/**
+	 * Size of the write buffer (bytes)
+	 */
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * Maximum time close waits for queued batches to be written (milliseconds)
+	 */
+	private static final long CLOSE_TIMEOUT = 5000;
+
+	/**
+	 * When the files are forced to the storage device
+	 */
+	enum Fsync {
+
+		/**
+		 * Never, left to the operating system
+		 */
+		NONE,
+
+		/**
+		 * When a file is rolled or closed
+		 */
+		ROLL,
+
+		/**
+		 * After each write to the file
+		 */
+		BATCH
+	}
+
+	/**
+	 * Directory of the files
+	 */
+	private final File directory;
+
+	/**
+	 * File name prefix
+	 */
+	private final String prefix;
+
+	/**
+	 * Process id and random suffix identifying the files of this transport
+	 */
+	private final String writerId;
+
+	/**
+	 * Maximum file size (bytes)
+	 */
+	private final long maxSize;
+
+	/**
+	 * Maximum file age (milliseconds)
+	 */
+	private final long rollInterval;
+
+	/**
+	 * Number of files kept, 0 to keep every file
+	 */
+	private final int maxFiles;
+
+	/**
+	 * Fsync policy
+	 */
+	private final Fsync fsync;
+
+	/**
+	 * Names of the files written with this prefix by any writer
+	 */
+	private final Pattern fileNames;
+
+	/**
+	 * Masking and JSON tagging
+	 */
+	private final LogTransportPreProcessor preProcessor;
+
+	/**
+	 * JSON converter
+	 */
+	private final ObjectMapper json = new ObjectMapper();
+
+	/**
+	 * Serialized batches waiting to be written
+	 */
+	private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_CAPACITY);
+
+	/**
+	 * Write buffer
+	 */
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	/**
+	 * Writer thread
+	 */
+	private final Thread writer;
+
+	/**
+	 * False once closed
+	 */
+	private volatile boolean running = true;
+
+	/**
+	 * Current file (null until the next write)
+	 */
+	private FileChannel channel;
+
+	/**
+	 * Bytes written to the current file
+	 */
+	private long size;
+
+	/**
+	 * Time the current file must be rolled (epoch milliseconds)
+	 */
+	private long rollTime;
+
+	/**
+	 * Files opened, to keep the file names unique
+	 */
+	private long sequence = 0;
+
+	/**
+	 * Files created by this transport and not deleted yet, oldest first (writer thread only)
+	 */
+	private final Deque<File> files = new ArrayDeque<File>();
+
+	/**
+	 * Constructor
+	 * @param directory Directory of the files
+	 * @param prefix File name prefix
+	 * @param maxSize Maximum file size (bytes)
+	 * @param rollInterval Maximum file age (milliseconds)
+	 * @param maxFiles Number of files kept, 0 to keep every file
+	 * @param fsync Fsync policy
+	 * @param masker Masker applied to the messages
+	 * @param skipJson Skip JSON tagging
+	 */
+	FileLogTransport(final File directory, final String prefix, final long maxSize, final long rollInterval, final int maxFiles,
+			final Fsync fsync, final Masker masker, final boolean skipJson) {
+		if (maxSize <= 0 || rollInterval <= 0 || maxFiles < 0) {
+			throw new IllegalArgumentException("Invalid file transport options: fileMaxSize=" + maxSize
+					+ ", fileRollInterval=" + rollInterval + ", fileMaxFiles=" + maxFiles);
+		}
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Can not create the Stackify log directory " + directory);
+		}
+
+		this.directory = directory;
+		this.prefix = prefix;
+		this.writerId = newWriterId();
+		this.maxSize = maxSize;
+		this.rollInterval = rollInterval;
+		this.maxFiles = maxFiles;
+		this.fsync = fsync;
+		this.fileNames = Pattern.compile(Pattern.quote(prefix) + "-\\d{8}-\\d{6}-\\d{3}-\\d+-[0-9a-f]{8}-\\d{6,}" + Pattern.quote(EXTENSION));
+		this.preProcessor = new LogTransportPreProcessor(masker, skipJson);
+
+		this.writer = ThreadRegistry.register(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "Stackify_LogFileWriter"));
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Masks, serializes and queues a batch
+	 * @see com.stackify.api.common.log.LogTransport#send(com.stackify.api.LogMsgGroup)
+	 */
+	@Override
+	public void send(final LogMsgGroup group) throws Exception {
+		if (!running) {
+			throw new IOException("Stackify log file transport is closed");
+		}
+
+		preProcessor.execute(group);
+
+		if (!queue.offer(json.writeValueAsBytes(group))) {
+			throw new IOException("Stackify log file writer is " + QUEUE_CAPACITY + " batches behind");
+		}
+	}
+
+	/**
+	 * @return Number of batches waiting to be written
+	 */
+	int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Writer loop
+	 */
+	private void write() {
+		try {
+			while (running || !queue.isEmpty()) {
+				byte[] line = queue.poll(100, TimeUnit.MILLISECONDS);
+
+				if (channel != null && rollTime <= System.currentTimeMillis()) {
+					closeFile();
+				}
+
+				if (line == null) {
+					continue;
+				}
+
+				try {
+					for (; line != null; line = queue.poll()) {
+						writeLine(line);
+					}
+
+					flushBuffer();
+
+					if (fsync == Fsync.BATCH) {
+						channel.force(false);
+					}
+				} catch (IOException e) {
+					LogLog.error("Exception writing Stackify log file in " + directory, e);
+					buffer.clear();
+					closeFile();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		closeFile();
+	}
+
+	/**
+	 * Appends a line to the current file, rolling it first when it is full
+	 * @param line The serialized batch
+	 * @throws IOException If the file can not be written
+	 */
+	private void writeLine(final byte[] line) throws IOException {
+		long length = line.length + 1;
+
+		if (channel != null && 0 < size && maxSize < size + length) {
+			flushBuffer();
+			closeFile();
+		}
+
+		if (channel == null) {
+			openFile();
+		}
+
+		if (buffer.remaining() < length) {
+			flushBuffer();
+		}
+
+		if (buffer.remaining() < length) {
+			writeFully(ByteBuffer.wrap(line));
+			writeFully(ByteBuffer.wrap(new byte[] {'\n'}));
+		} else {
+			buffer.put(line);
+			buffer.put((byte) '\n');
+		}
+
+		size += length;
+	}
+
+	/**
+	 * Writes the buffered lines to the current file
+	 * @throws IOException If the file can not be written
+	 */
+	private void flushBuffer() throws IOException {
+		buffer.flip();
+
+		try {
+			writeFully(buffer);
+		} finally {
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * @param bytes Bytes to write to the current file
+	 * @throws IOException If the file can not be written
+	 */
+	private void writeFully(final ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+	}
+
+	/**
+	 * Opens a new file
+	 * @throws IOException If the file can not be created
+	 */
+	private void openFile() throws IOException {
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		long now = System.currentTimeMillis();
+		File file = new File(directory, prefix + "-" + format.format(new Date(now)) + "-" + writerId + "-" + String.format("%06d", sequence++) + EXTENSION);
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		files.addLast(file);
+		size = 0;
+		rollTime = now + rollInterval;
+
+		deleteOldFiles();
+		deleteStaleFiles(now);
+	}
+
+	/**
+	 * Closes the current file
+	 */
+	private void closeFile() {
+		if (channel == null) {
+			return;
+		}
+
+		try {
+			if (fsync != Fsync.NONE) {
+				channel.force(false);
+			}
+
+			channel.close();
+		} catch (IOException e) {
+			LogLog.error("Exception closing Stackify log file in " + directory, e);
+		}
+
+		channel = null;
+	}
+
+	/**
+	 * Deletes the oldest files of this transport beyond the number of files kept
+	 */
+	private void deleteOldFiles() {
+		if (maxFiles == 0) {
+			return;
+		}
+
+		while (maxFiles < files.size()) {
+			File file = files.pollFirst();
+
+			if (!file.delete() && file.exists()) {
+				LogLog.warn("Unable to delete old Stackify log file " + file);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the files of other writers with this prefix not modified for fileMaxFiles roll intervals
+	 * @param now Current time (epoch milliseconds)
+	 */
+	private void deleteStaleFiles(final long now) {
+		if (maxFiles == 0) {
+			return;
+		}
+
+		File[] candidates = directory.listFiles();
+
+		if (candidates == null) {
+			return;
+		}
+
+		long staleTime = now - maxFiles * rollInterval;
+		String own = "-" + writerId + "-";
+
+		for (File file : candidates) {
+			String name = file.getName();
+
+			if (name.contains(own) || !fileNames.matcher(name).matches()) {
+				continue;
+			}
+
+			long modified = file.lastModified();
+
+			if (modified != 0 && modified < staleTime && !file.delete() && file.exists()) {
+				LogLog.warn("Unable to delete stale Stackify log file " + file);
+			}
+		}
+	}
+
+	/**
+	 * @return Process id and random suffix identifying the files of a transport
+	 */
+	private static String newWriterId() {
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		int at = name.indexOf('@');
+		String pid = (0 < at) ? name.substring(0, at) : "0";
+
+		return pid + "-" + String.format("%08x", ThreadLocalRandom.current().nextInt());
+	}
+
+	/**
+	 * @return Process id and random suffix in the names of the files of this transport
+	 */
+	String getWriterId() {
+		return writerId;
+	}
+
+	/**
+	 * Stops the writer after writing the queued batches
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		running = false;
+
+		try {
+			writer.join(CLOSE_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.Closeable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Lowers the fidelity of the appender while the heap is nearly full.
+ *
+ * <p>
+ * Each threshold is a fraction of the maximum size of the tenured heap pools, the first one reached
+ * lowers the fidelity to NO_LOCATION, the second to NO_MDC and so on. Only the pools supporting a
+ * usage threshold are measured: the old generation of each collector, not eden and the survivor
+ * spaces, which are routinely full after a young collection. The guard reads the pools' usage after
+ * each garbage collection, as the collectors notify it, and every second. It never changes the pools'
+ * collection usage thresholds, which are shared by the whole JVM. A level is left once the usage is 5%
+ * below its threshold.
+ */
+final class HeapGuard implements NotificationListener, Closeable {
+
+	/**
+	 * Usage below a threshold before its level is left (fraction of the maximum)
+	 */
+	private static final double HYSTERESIS = 0.05;
+
+	/**
+	 * Interval of the usage check (milliseconds)
+	 */
+	private static final long CHECK_INTERVAL = 1000;
+
+	/**
+	 * Type of the notification sent by a collector after each collection
+	 * (com.sun.management.GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)
+	 */
+	private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+	/**
+	 * Usage thresholds in ascending order (fractions of the maximum)
+	 */
+	private final double[] thresholds;
+
+	/**
+	 * Receives the fidelity changes
+	 */
+	private final Fidelity.Listener listener;
+
+	/**
+	 * Monitored tenured heap pools
+	 */
+	private final List<MemoryPoolMXBean> pools;
+
+	/**
+	 * Collectors notifying the guard
+	 */
+	private final List<NotificationEmitter> collectors;
+
+	/**
+	 * Checks the usage (null when not monitoring the JVM)
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Current level, the number of thresholds reached
+	 */
+	private volatile int level = 0;
+
+	/**
+	 * Number of level changes
+	 */
+	private volatile long transitions = 0;
+
+	/**
+	 * Constructor
+	 * @param thresholds Usage thresholds in ascending order (fractions of the maximum)
+	 * @param listener Receives the fidelity changes
+	 * @param monitor True to monitor the heap of the JVM, false to only apply the usages passed to update
+	 */
+	HeapGuard(final double[] thresholds, final Fidelity.Listener listener, final boolean monitor) {
+		this.thresholds = thresholds.clone();
+		this.listener = listener;
+
+		if (!monitor) {
+			this.pools = Collections.emptyList();
+			this.collectors = Collections.emptyList();
+			this.scheduler = null;
+			return;
+		}
+
+		this.pools = tenuredPools(ManagementFactory.getMemoryPoolMXBeans());
+
+		List<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (collector instanceof NotificationEmitter) {
+				((NotificationEmitter) collector).addNotificationListener(this, null, null);
+				emitters.add((NotificationEmitter) collector);
+			}
+		}
+
+		this.collectors = emitters;
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "Stackify_HeapGuard");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				check();
+			}
+		}, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Parses the heapPressureThresholds option
+	 * @param value Comma separated fractions of the maximum heap (null or empty for none)
+	 * @return The thresholds, null for none
+	 */
+	static double[] parseThresholds(final String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return null;
+		}
+
+		String[] parts = value.split(",");
+
+		if (Fidelity.values().length - 1 < parts.length) {
+			throw new IllegalArgumentException("At most " + (Fidelity.values().length - 1) + " heapPressureThresholds: " + value);
+		}
+
+		double[] thresholds = new double[parts.length];
+
+		for (int i = 0; i < parts.length; ++i) {
+			thresholds[i] = Double.parseDouble(parts[i].trim());
+
+			if (thresholds[i] <= 0 || 1 < thresholds[i] || (0 < i && thresholds[i] <= thresholds[i - 1])) {
+				throw new IllegalArgumentException("Invalid heapPressureThresholds: " + value);
+			}
+		}
+
+		return thresholds;
+	}
+
+	/**
+	 * Selects the tenured heap pools, those supporting a usage threshold
+	 * @param pools The memory pools of the JVM
+	 * @return The tenured heap pools with a collection usage and a maximum size
+	 */
+	static List<MemoryPoolMXBean> tenuredPools(final List<MemoryPoolMXBean> pools) {
+		List<MemoryPoolMXBean> tenured = new ArrayList<MemoryPoolMXBean>();
+
+		for (MemoryPoolMXBean pool : pools) {
+			if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() && pool.getCollectionUsage() != null
+					&& 0 < pool.getUsage().getMax()) {
+				tenured.add(pool);
+			}
+		}
+
+		return tenured;
+	}
+
+	/**
+	 * @param pools The monitored pools
+	 * @return Usage of the most used pool after the last collection (fraction of the maximum)
+	 */
+	static double collectionUsage(final List<MemoryPoolMXBean> pools) {
+		double usage = 0;
+
+		for (MemoryPoolMXBean pool : pools) {
+			MemoryUsage collected = pool.getCollectionUsage();
+
+			if (collected != null && 0 < collected.getMax()) {
+				usage = Math.max(usage, (double) collected.getUsed() / collected.getMax());
+			}
+		}
+
+		return usage;
+	}
+
+	/**
+	 * Re-evaluates the level after each garbage collection
+	 * @see javax.management.NotificationListener#handleNotification(javax.management.Notification, java.lang.Object)
+	 */
+	@Override
+	public void handleNotification(final Notification notification, final Object handback) {
+		if (GC_NOTIFICATION.equals(notification.getType())) {
+			check();
+		}
+	}
+
+	/**
+	 * Applies the usage of the most used tenured pool
+	 */
+	private void check() {
+		try {
+			update(collectionUsage(pools));
+		} catch (Exception e) {
+			LogLog.error("Exception checking the heap usage", e);
+		}
+	}
+
+	/**
+	 * Moves to the level of the usage
+	 * @param usage Heap usage after the last collection (fraction of the maximum)
+	 */
+	synchronized void update(final double usage) {
+		int next = level;
+
+		while (next < thresholds.length && thresholds[next] <= usage) {
+			++next;
+		}
+
+		while (0 < next && usage < thresholds[next - 1] - HYSTERESIS) {
+			--next;
+		}
+
+		if (next == level) {
+			return;
+		}
+
+		Fidelity fidelity = Fidelity.values()[next];
+
+		LogLog.warn("Stackify heap usage at " + Math.round(usage * 100) + "%, logging fidelity " + Fidelity.values()[level] + " -> " + fidelity);
+
+		level = next;
+		++transitions;
+
+		listener.onFidelityChange(fidelity);
+	}
+
+	/**
+	 * @return The fidelity of the current level
+	 */
+	Fidelity getFidelity() {
+		return Fidelity.values()[level];
+	}
+
+	/**
+	 * @return Current level, the number of thresholds reached
+	 */
+	int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return Number of level changes
+	 */
+	long getTransitions() {
+		return transitions;
+	}
+
+	/**
+	 * Stops monitoring the heap
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		if (scheduler == null) {
+			return;
+		}
+
+		scheduler.shutdownNow();
+
+		for (NotificationEmitter collector : collectors) {
+			try {
+				collector.removeNotificationListener(this);
+			} catch (ListenerNotFoundException e) {
+				// already removed
+			}
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the appends running without the appender lock, one slot per logging thread.
+ *
+ * <p>
+ * A thread marks its own slot when an append starts and ends, so appending takes no shared lock and
+ * writes no shared memory. The slot also guards against the thread reentering the appender. Before
+ * the appender closes a pipeline it detached, {@link #await(long)} waits for the appends that may
+ * still hold a reference to it.
+ */
+final class InFlightAppends {
+
+	/**
+	 * Registrations between two removals of the slots of ended threads
+	 */
+	private static final int PRUNE_INTERVAL = 1024;
+
+	/**
+	 * Slots of every thread that appended
+	 */
+	private final Queue<Slot> slots = new ConcurrentLinkedQueue<Slot>();
+
+	/**
+	 * Number of slots registered
+	 */
+	private final AtomicInteger registrations = new AtomicInteger();
+
+	/**
+	 * Slot of the current thread
+	 */
+	private final ThreadLocal<Slot> local = new ThreadLocal<Slot>() {
+		@Override
+		protected Slot initialValue() {
+			Slot slot = new Slot(Thread.currentThread());
+			slots.add(slot);
+
+			if (registrations.incrementAndGet() % PRUNE_INTERVAL == 0) {
+				prune();
+			}
+
+			return slot;
+		}
+	};
+
+	/**
+	 * Marks the start of an append on the current thread
+	 * @return The slot to pass to {@link #exit(Slot)}, null if the thread is already appending
+	 */
+	Slot enter() {
+		Slot slot = local.get();
+
+		if ((slot.appends & 1) != 0) {
+			return null;
+		}
+
+		// the volatile write is ordered before the appender reads its pipeline
+
+		slot.appends = slot.appends + 1;
+		return slot;
+	}
+
+	/**
+	 * Marks the end of an append
+	 * @param slot The slot returned by {@link #enter()}
+	 */
+	void exit(final Slot slot) {
+		slot.appends = slot.appends + 1;
+	}
+
+	/**
+	 * @return True if the current thread is appending
+	 */
+	boolean isAppending() {
+		return (local.get().appends & 1) != 0;
+	}
+
+	/**
+	 * Waits for the appends of the other threads that started before this call
+	 * @param timeout Maximum wait (milliseconds)
+	 * @return True if they all ended, false on timeout or interruption
+	 */
+	boolean await(final long timeout) {
+		Slot own = local.get();
+		List<Slot> running = new ArrayList<Slot>();
+		List<Long> started = new ArrayList<Long>();
+
+		for (Slot slot : slots) {
+			long appends = slot.appends;
+
+			if (slot != own && (appends & 1) != 0) {
+				running.add(slot);
+				started.add(Long.valueOf(appends));
+			}
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+		for (int i = 0; i < running.size(); ++i) {
+			while (running.get(i).appends == started.get(i).longValue()) {
+				if (0 <= System.nanoTime() - deadline) {
+					return false;
+				}
+
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Removes the slots of the ended threads
+	 */
+	private void prune() {
+		for (Iterator<Slot> it = slots.iterator(); it.hasNext();) {
+			Thread owner = it.next().owner.get();
+
+			if (owner == null || !owner.isAlive()) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Append state of one thread, written by its thread only
+	 */
+	static final class Slot {
+
+		/**
+		 * Thread owning the slot
+		 */
+		private final WeakReference<Thread> owner;
+
+		/**
+		 * Incremented when an append starts and ends, odd while appending
+		 */
+		private volatile long appends = 0;
+
+		/**
+		 * Constructor
+		 * @param owner Thread owning the slot
+		 */
+		private Slot(final Thread owner) {
+			this.owner = new WeakReference<Thread>(owner);
+		}
+	}
+}
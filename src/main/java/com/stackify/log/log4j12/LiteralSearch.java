@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds which of a set of literals occur in a text with a single pass over the text (Aho-Corasick).
+ */
+final class LiteralSearch {
+
+	/**
+	 * Sorted characters of the transitions of each state
+	 */
+	private final char[][] keys;
+
+	/**
+	 * Target state of each transition
+	 */
+	private final int[][] targets;
+
+	/**
+	 * Longest proper suffix state of each state
+	 */
+	private final int[] fail;
+
+	/**
+	 * Literals ending at each state, including those of its suffix states
+	 */
+	private final int[][] outputs;
+
+	/**
+	 * Number of literals
+	 */
+	private final int size;
+
+	/**
+	 * Constructor
+	 * @param literals The literals (not empty)
+	 */
+	LiteralSearch(final List<String> literals) {
+		List<TreeMap<Character, Integer>> trie = new ArrayList<TreeMap<Character, Integer>>();
+		List<List<Integer>> ends = new ArrayList<List<Integer>>();
+
+		trie.add(new TreeMap<Character, Integer>());
+		ends.add(new ArrayList<Integer>());
+
+		for (int i = 0; i < literals.size(); ++i) {
+			int state = 0;
+
+			for (char c : literals.get(i).toCharArray()) {
+				Integer next = trie.get(state).get(c);
+
+				if (next == null) {
+					next = trie.size();
+					trie.get(state).put(c, next);
+					trie.add(new TreeMap<Character, Integer>());
+					ends.add(new ArrayList<Integer>());
+				}
+
+				state = next;
+			}
+
+			ends.get(state).add(i);
+		}
+
+		int states = trie.size();
+
+		this.keys = new char[states][];
+		this.targets = new int[states][];
+		this.fail = new int[states];
+		this.outputs = new int[states][];
+		this.size = literals.size();
+
+		for (int state = 0; state < states; ++state) {
+			keys[state] = new char[trie.get(state).size()];
+			targets[state] = new int[trie.get(state).size()];
+
+			int t = 0;
+
+			for (Map.Entry<Character, Integer> entry : trie.get(state).entrySet()) {
+				keys[state][t] = entry.getKey();
+				targets[state][t] = entry.getValue();
+				++t;
+			}
+		}
+
+		// breadth first, so the suffix state of each state is complete before the state
+
+		Deque<Integer> queue = new ArrayDeque<Integer>();
+		outputs[0] = toArray(ends.get(0));
+
+		for (int t = 0; t < targets[0].length; ++t) {
+			fail[targets[0][t]] = 0;
+			queue.add(targets[0][t]);
+		}
+
+		while (!queue.isEmpty()) {
+			int state = queue.poll();
+			List<Integer> out = ends.get(state);
+
+			for (int suffixOutput : outputs[fail[state]]) {
+				out.add(suffixOutput);
+			}
+
+			outputs[state] = toArray(out);
+
+			for (int t = 0; t < keys[state].length; ++t) {
+				int suffix = fail[state];
+
+				while (suffix != 0 && next(suffix, keys[state][t]) < 0) {
+					suffix = fail[suffix];
+				}
+
+				int target = next(suffix, keys[state][t]);
+				fail[targets[state][t]] = (0 <= target) ? target : 0;
+				queue.add(targets[state][t]);
+			}
+		}
+	}
+
+	/**
+	 * @param values The values
+	 * @return The values as an array
+	 */
+	private static int[] toArray(final List<Integer> values) {
+		int[] array = new int[values.size()];
+
+		for (int i = 0; i < array.length; ++i) {
+			array[i] = values.get(i);
+		}
+
+		return array;
+	}
+
+	/**
+	 * @param state The state
+	 * @param c The character
+	 * @return The target state, -1 without a transition
+	 */
+	private int next(final int state, final char c) {
+		char[] k = keys[state];
+		int low = 0;
+		int high = k.length - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+
+			if (k[mid] < c) {
+				low = mid + 1;
+			} else if (c < k[mid]) {
+				high = mid - 1;
+			} else {
+				return targets[state][mid];
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Finds the literals occurring in the text
+	 * @param text The text
+	 * @return The indexes of the literals found
+	 */
+	BitSet search(final String text) {
+		BitSet found = new BitSet(size);
+		int remaining = size;
+		int state = 0;
+
+		for (int i = 0; i < text.length() && 0 < remaining; ++i) {
+			char c = text.charAt(i);
+			int target = next(state, c);
+
+			while (target < 0 && state != 0) {
+				state = fail[state];
+				target = next(state, c);
+			}
+
+			state = (0 <= target) ? target : 0;
+
+			for (int literal : outputs[state]) {
+				if (!found.get(literal)) {
+					found.set(literal);
+					--remaining;
+				}
+			}
+		}
+
+		return found;
+	}
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.helpers.LogLog;
+
+import com.stackify.api.AppIdentity;
+import com.stackify.api.EnvironmentDetail;
+import com.stackify.api.LogMsg;
+import com.stackify.api.LogMsgGroup;
+import com.stackify.api.common.AppIdentityService;
+import com.stackify.api.common.log.LogTransport;
+
+/**
+ * Queue of converted log messages with its own upload thread, used instead of the collector of the
+ * background service.
+ *
+ * <p>
+ * Messages are uploaded a linger time after they are queued. The error lane uses a short linger and
+ * its own transport so errors do not wait behind a backlog of bulk messages or uploads. The buffer
+ * lane holds the bulk messages in an off-heap (or large heap) queue. With a batch assembler, a backlog
+ * is masked and serialized several batches at a time on the assembler's pool and uploaded in order.
+ */
+final class LogLane extends Thread implements Closeable {
+
+	/**
+	 * Maximum messages per upload
+	 */
+	private static final int MAX_BATCH = 100;
+
+	/**
+	 * Upload attempts before a batch is dropped
+	 */
+	private static final int MAX_ATTEMPTS = 3;
+
+	/**
+	 * Delay between upload attempts (milliseconds)
+	 */
+	private static final long RETRY_DELAY = 1000;
+
+	/**
+	 * Maximum time close waits for queued messages to be uploaded (milliseconds)
+	 */
+	private static final long CLOSE_TIMEOUT = 5000;
+
+	/**
+	 * Batches drained per assembly thread at once
+	 */
+	private static final int BATCHES_PER_THREAD = 4;
+
+	/**
+	 * Platform reported in the batches
+	 */
+	private static final String PLATFORM = "java";
+
+	/**
+	 * Logger project name
+	 */
+	private final String logger;
+
+	/**
+	 * Environment detail
+	 */
+	private final EnvironmentDetail envDetail;
+
+	/**
+	 * Application identity
+	 */
+	private final AppIdentityService appIdentityService;
+
+	/**
+	 * Transport of this lane
+	 */
+	private final LogTransport transport;
+
+	/**
+	 * Parallel batch assembler (null to send each batch through the transport)
+	 */
+	private final BatchAssembler assembler;
+
+	/**
+	 * Time to wait for more messages before uploading (milliseconds)
+	 */
+	private final long linger;
+
+	/**
+	 * Messages waiting to be uploaded
+	 */
+	private final Queue<LogMsg> queue;
+
+	/**
+	 * Released for each queued message
+	 */
+	private final Semaphore pending = new Semaphore(0);
+
+	/**
+	 * Held for reading while a message is queued and for writing while the lane is closed, so every
+	 * message accepted is queued before the final upload
+	 */
+	private final ReadWriteLock admission = new ReentrantReadWriteLock();
+
+	/**
+	 * False once closed
+	 */
+	private volatile boolean running = true;
+
+	/**
+	 * Constructor
+	 * @param name Thread name
+	 * @param logger Logger project name
+	 * @param envDetail Environment detail
+	 * @param appIdentityService Application identity
+	 * @param transport Transport of this lane
+	 * @param assembler Parallel batch assembler (null to send each batch through the transport)
+	 * @param linger Time to wait for more messages before uploading (milliseconds)
+	 * @param queue Bounded queue of the messages waiting to be uploaded
+	 */
+	LogLane(final String name, final String logger, final EnvironmentDetail envDetail, final AppIdentityService appIdentityService,
+			final LogTransport transport, final BatchAssembler assembler, final long linger, final Queue<LogMsg> queue) {
+		super(name);
+		setDaemon(true);
+		this.logger = logger;
+		this.envDetail = envDetail;
+		this.appIdentityService = appIdentityService;
+		this.transport = transport;
+		this.assembler = assembler;
+		this.linger = linger;
+		this.queue = queue;
+	}
+
+	/**
+	 * Queues a log message
+	 * @param msg The log message
+	 * @return False if the lane is closed
+	 */
+	boolean add(final LogMsg msg) {
+		if (!admission.readLock().tryLock()) {
+			return false;
+		}
+
+		try {
+			if (!running) {
+				return false;
+			}
+
+			queue.offer(msg);
+			pending.release();
+			return true;
+		} finally {
+			admission.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Queues a chunk of log messages with a single hand-off to the queue
+	 * @param msgs The log messages, in logging order
+	 * @return False if the lane is closed
+	 */
+	boolean addAll(final List<LogMsg> msgs) {
+		if (!admission.readLock().tryLock()) {
+			return false;
+		}
+
+		try {
+			if (!running) {
+				return false;
+			}
+
+			queue.addAll(msgs);
+			pending.release(msgs.size());
+			return true;
+		} finally {
+			admission.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Number of messages waiting to be uploaded
+	 */
+	int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				if (pending.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+					if (0 < linger) {
+						Thread.sleep(linger);
+					}
+
+					pending.drainPermits();
+					uploadAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		uploadAll();
+	}
+
+	/**
+	 * Uploads every queued message
+	 */
+	private void uploadAll() {
+		int maxBatches = (assembler != null) ? assembler.getParallelism() * BATCHES_PER_THREAD : 1;
+
+		while (!queue.isEmpty()) {
+			List<LogMsgGroup> groups = new ArrayList<LogMsgGroup>(maxBatches);
+
+			while (groups.size() < maxBatches) {
+				List<LogMsg> msgs = drain();
+
+				if (msgs.isEmpty()) {
+					break;
+				}
+
+				try {
+					groups.add(newGroup(msgs));
+				} catch (Exception e) {
+					LogLog.warn("Dropping Stackify log batch", e);
+				}
+			}
+
+			if (groups.size() == 1 || assembler == null) {
+				for (LogMsgGroup group : groups) {
+					upload(group, null);
+				}
+			} else {
+				List<byte[]> bodies = assembler.assemble(groups);
+
+				for (int i = 0; i < groups.size(); ++i) {
+					if (bodies.get(i) != null) {
+						upload(groups.get(i), bodies.get(i));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the next batch of messages from the queue
+	 * @return Up to MAX_BATCH messages, empty when the queue is empty
+	 */
+	private List<LogMsg> drain() {
+		List<LogMsg> msgs = new ArrayList<LogMsg>(MAX_BATCH);
+
+		for (LogMsg msg = queue.poll(); msg != null; msg = (msgs.size() < MAX_BATCH) ? queue.poll() : null) {
+			msgs.add(msg);
+		}
+
+		return msgs;
+	}
+
+	/**
+	 * Uploads a batch, retrying a few times
+	 * @param group The batch
+	 * @param body The batch assembled by the assembler (null to send it through the transport)
+	 */
+	private void upload(final LogMsgGroup group, final byte[] body) {
+		for (int attempt = 1; ; ++attempt) {
+			try {
+				if (body != null) {
+					assembler.send(body);
+				} else {
+					transport.send(group);
+				}
+				return;
+			} catch (Exception e) {
+				if (MAX_ATTEMPTS <= attempt || !running) {
+					LogLog.warn("Dropping Stackify log batch after " + attempt + " failed upload(s)", e);
+					return;
+				}
+			}
+
+			try {
+				Thread.sleep(RETRY_DELAY);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Builds the batch like the collector of the background service
+	 * @param msgs The log messages
+	 * @return The batch
+	 */
+	private LogMsgGroup newGroup(final List<LogMsg> msgs) {
+		LogMsgGroup.Builder builder = LogMsgGroup.newBuilder()
+				.platform(PLATFORM)
+				.logger(logger)
+				.serverName(envDetail.getDeviceName())
+				.env(envDetail.getConfiguredEnvironmentName())
+				.appName(envDetail.getConfiguredAppName())
+				.appLoc(envDetail.getAppLocation());
+
+		AppIdentity appIdentity = appIdentityService.getAppIdentity();
+
+		if (appIdentity != null) {
+			builder.cdId(appIdentity.getDeviceId());
+			builder.cdAppId(appIdentity.getDeviceAppId());
+			builder.appNameId(appIdentity.getAppNameId());
+			builder.appEnvId(appIdentity.getAppEnvId());
+			builder.envId(appIdentity.getEnvId());
+			builder.env(appIdentity.getEnv());
+
+			if (appIdentity.getAppName() != null && 0 < appIdentity.getAppName().length()) {
+				builder.appName(appIdentity.getAppName());
+			}
+		}
+
+		return builder.msgs(msgs).build();
+	}
+
+	/**
+	 * Stops the lane after uploading the queued messages. The lane thread keeps uploading in the
+	 * background if it takes longer than the close timeout.
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		admission.writeLock().lock();
+
+		try {
+			running = false;
+		} finally {
+			admission.writeLock().unlock();
+		}
+
+		try {
+			join(CLOSE_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (isAlive()) {
+			LogLog.warn("Stackify log lane " + getName() + " still uploading " + queue.size() + " message(s) after " + CLOSE_TIMEOUT + " ms");
+		}
+	}
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stackify.api.LogMsg;
+import com.stackify.api.StackifyError;
+import com.stackify.api.common.ApiConfiguration;
+import com.stackify.api.common.AppIdentityService;
+import com.stackify.api.common.collect.SynchronizedEvictingQueue;
+import com.stackify.api.common.error.ErrorGovernor;
+import com.stackify.api.common.log.LogAppender;
+import com.stackify.api.common.log.LogTransport;
+
+/**
+ * Log appender pipeline used by the StackifyLogAppender. Extends the generic log appender with
+ * the transports configured on the log4j appender.
+ */
+public class LogPipeline extends LogAppender<LoggingEvent> {
+
+	/**
+	 * Messages reserved for errors in the error lane
+	 */
+	private static final int ERROR_CAPACITY = 1000;
+
+	/**
+	 * Time the buffer lane waits for more messages before uploading (milliseconds)
+	 */
+	private static final long BUFFER_LINGER = 1000;
+
+	/**
+	 * Messages held by the buffer lane when it queues them on the heap
+	 */
+	private static final int BUFFER_CAPACITY = 100000;
+
+	/**
+	 * Logger project name
+	 */
+	private final String logger;
+
+	/**
+	 * Masker shared with the transport, retargeted when the settings change
+	 */
+	private final SwappableMasker masker;
+
+	/**
+	 * Adapter converting the logging events
+	 */
+	private final LoggingEventAdapter eventAdapter;
+
+	/**
+	 * Content filter of the current settings (null to keep every event)
+	 */
+	private volatile ContentFilter contentFilter;
+
+	/**
+	 * Detail captured for each event
+	 */
+	private volatile Fidelity fidelity = Fidelity.FULL;
+
+	/**
+	 * One DEBUG or INFO event kept out of this many
+	 */
+	private volatile int sampleRate = 1;
+
+	/**
+	 * Options the pipeline was started with
+	 */
+	private final PipelineOptions options;
+
+	/**
+	 * Transport of the bulk messages
+	 */
+	private LogTransport transport;
+
+	/**
+	 * File transport (null when uploading)
+	 */
+	private FileLogTransport fileTransport;
+
+	/**
+	 * Relay transport (null when uploading)
+	 */
+	private RelayLogTransport relayTransport;
+
+	/**
+	 * Concurrent transport (null when uploading serially)
+	 */
+	private ConcurrentLogTransport concurrentTransport;
+
+	/**
+	 * Error lane (null when disabled or not activated)
+	 */
+	private volatile LogLane errorLane;
+
+	/**
+	 * Buffer lane (null when disabled or not activated)
+	 */
+	private volatile LogLane bufferLane;
+
+	/**
+	 * Per thread staging of the buffer lane (null when disabled)
+	 */
+	private volatile ThreadStaging staging;
+
+	/**
+	 * Parallel batch assembler of the buffer lane (null when disabled)
+	 */
+	private BatchAssembler assembler;
+
+	/**
+	 * Duplicate error throttle of the lanes
+	 */
+	private final ErrorGovernor errorGovernor = new ErrorGovernor();
+
+	/**
+	 * Background threads of the pipeline, those of its appender when started by one
+	 */
+	private final ThreadRegistry threads;
+
+	/**
+	 * Constructor
+	 * @param logger Logger project name
+	 * @param eventAdapter Adapter for logging events
+	 * @param settings Initial appender settings
+	 * @param options Pipeline options
+	 */
+	public LogPipeline(final String logger, final LoggingEventAdapter eventAdapter, final AppenderSettings settings, final PipelineOptions options) {
+		this(logger, eventAdapter, new SwappableMasker(settings.getMasker()), options);
+		update(settings);
+	}
+
+	/**
+	 * Constructor
+	 * @param logger Logger project name
+	 * @param eventAdapter Adapter for logging events
+	 * @param masker Masker shared with the transport
+	 * @param options Pipeline options
+	 */
+	private LogPipeline(final String logger, final LoggingEventAdapter eventAdapter, final SwappableMasker masker, final PipelineOptions options) {
+		super(logger, eventAdapter, masker, options.isSkipJson());
+		this.logger = logger;
+		this.masker = masker;
+		this.eventAdapter = eventAdapter;
+		this.options = options;
+
+		ThreadRegistry current = ThreadRegistry.current();
+		this.threads = (current != null) ? current : new ThreadRegistry();
+	}
+
+	/**
+	 * Applies new settings to the running pipeline
+	 * @param settings The appender settings
+	 */
+	public void update(final AppenderSettings settings) {
+		masker.setDelegate(settings.getMasker());
+		eventAdapter.setMdcProjection(settings.getMdcProjection());
+		contentFilter = settings.getContentFilter();
+
+		Fidelity next = (settings.getFidelity() != null) ? settings.getFidelity() : Fidelity.FULL;
+		eventAdapter.setFidelity(next);
+		fidelity = next;
+		sampleRate = Math.max(1, settings.getSampleRate());
+	}
+
+	/**
+	 * @see com.stackify.api.common.log.LogAppender#activate(com.stackify.api.common.ApiConfiguration)
+	 */
+	@Override
+	public void activate(final ApiConfiguration apiConfig) {
+		ThreadRegistry previous = threads.enter();
+
+		try {
+			start(apiConfig);
+		} finally {
+			ThreadRegistry.exit(previous);
+		}
+	}
+
+	/**
+	 * Starts the collector and the lanes, registering their threads
+	 * @param apiConfig The API configuration
+	 */
+	private void start(final ApiConfiguration apiConfig) {
+		super.activate(apiConfig);
+
+		boolean buffered = 0 < options.getOffHeapBufferSize() || 1 < options.getAssemblyThreads() || 0 < options.getStagingChunkSize();
+
+		if (!options.isErrorLane() && !buffered) {
+			return;
+		}
+
+		AppIdentityService appIdentityService = new AppIdentityService(apiConfig, new ObjectMapper());
+
+		if (options.isErrorLane()) {
+			LogTransport errorTransport = (fileTransport != null) ? fileTransport
+					: (relayTransport != null) ? relayTransport : super.getLogTransport(apiConfig);
+
+			LogLane lane = ThreadRegistry.register(new LogLane("Stackify_LogErrorLane", logger, apiConfig.getEnvDetail(), appIdentityService,
+					errorTransport, null, options.getErrorLinger(), new SynchronizedEvictingQueue<LogMsg>(ERROR_CAPACITY)));
+			lane.start();
+			errorLane = lane;
+		}
+
+		if (buffered) {
+			if (1 < options.getAssemblyThreads()) {
+				if (apiConfig.getTransport() == null || "direct".equalsIgnoreCase(apiConfig.getTransport())) {
+					assembler = new BatchAssembler(apiConfig, masker, options.isSkipJson(), options.getAssemblyThreads());
+				} else {
+					LogLog.warn("Stackify assemblyThreads is ignored by the " + apiConfig.getTransport() + " transport");
+				}
+			}
+
+			Queue<LogMsg> queue = (0 < options.getOffHeapBufferSize())
+					? new OffHeapLogQueue(options.getOffHeapBufferSize())
+					: new SynchronizedEvictingQueue<LogMsg>(BUFFER_CAPACITY);
+
+			LogLane lane = ThreadRegistry.register(new LogLane("Stackify_LogBuffer", logger, apiConfig.getEnvDetail(), appIdentityService,
+					transport, assembler, BUFFER_LINGER, queue));
+			lane.start();
+
+			if (0 < options.getStagingChunkSize()) {
+				staging = new ThreadStaging(options.getStagingChunkSize(), options.getStagingLinger(), new ThreadStaging.Sink() {
+					@Override
+					public void addAll(final List<LogMsg> msgs) {
+						lane.addAll(msgs);
+					}
+				});
+			}
+
+			bufferLane = lane;
+		}
+	}
+
+	/**
+	 * Drops the events below the level of the current fidelity, the DEBUG and INFO events left out by the
+	 * sample rate and the events rejected by the content filter, then
+	 * sends ERROR and FATAL events to the error lane and the other events to the buffer lane, or to the
+	 * background service when the lane is disabled
+	 * @see com.stackify.api.common.log.LogAppender#append(java.lang.Object)
+	 */
+	@Override
+	public void append(final LoggingEvent event) {
+		if (!fidelity.accepts(event.getLevel())) {
+			return;
+		}
+
+		int rate = sampleRate;
+
+		if (1 < rate && !event.getLevel().isGreaterOrEqual(Level.WARN) && ThreadLocalRandom.current().nextInt(rate) != 0) {
+			return;
+		}
+
+		ContentFilter filter = contentFilter;
+
+		if (filter != null && filter.drops(event, eventAdapter.getMessage(event))) {
+			return;
+		}
+
+		appendInternal(event);
+	}
+
+	/**
+	 * Sends an event of the appender itself, such as a rollup summary, without the fidelity, sampling
+	 * and filter drops of {@link #append(LoggingEvent)}: it stands for events that were already counted
+	 * @param event The logging event
+	 */
+	void appendInternal(final LoggingEvent event) {
+		LogLane lane = bufferLane;
+		LogLane errors = errorLane;
+		boolean errorLevel = eventAdapter.isErrorLevel(event);
+
+		if (errors != null && errorLevel) {
+			lane = errors;
+		}
+
+		if (lane == null) {
+			super.append(event);
+			return;
+		}
+
+		String className = eventAdapter.getClassName(event);
+
+		if (className != null && className.startsWith("com.stackify.")) {
+			return;
+		}
+
+		Throwable exception = eventAdapter.getThrowable(event);
+		StackifyError error = null;
+
+		if (exception != null || errorLevel) {
+			StackifyError stackifyError = eventAdapter.getStackifyError(event, exception);
+
+			if (options.isUnthrottledErrors()) {
+				error = stackifyError;
+			} else {
+
+				// the governor's counters are not thread safe, the pipeline may be fed by several threads
+
+				synchronized (errorGovernor) {
+					if (errorGovernor.errorShouldBeSent(stackifyError)) {
+						error = stackifyError;
+					}
+				}
+			}
+		}
+
+		LogMsg msg = eventAdapter.getLogMsg(event, error);
+		ThreadStaging threadStaging = staging;
+
+		if (threadStaging == null) {
+			lane.add(msg);
+		} else if (errorLevel) {
+
+			// errors never wait, the messages staged before them go first
+
+			threadStaging.flush();
+			lane.add(msg);
+		} else {
+			threadStaging.add(msg);
+		}
+	}
+
+	/**
+	 * @return Messages waiting in the buffer lane, 0 when the buffer lane is disabled
+	 */
+	public int getBacklog() {
+		LogLane lane = bufferLane;
+		return (lane != null) ? lane.getQueueDepth() : 0;
+	}
+
+	/**
+	 * @see com.stackify.api.common.log.LogAppender#getLogTransport(com.stackify.api.common.ApiConfiguration)
+	 */
+	@Override
+	protected LogTransport getLogTransport(final ApiConfiguration apiConfig) {
+
+		// the collector uploads on a shared fork join pool, measured for the CPU budget
+
+		if (FileLogTransport.NAME.equalsIgnoreCase(apiConfig.getTransport())) {
+			fileTransport = new FileLogTransport(new File(options.getFileDirectory()), options.getFilePrefix(), options.getFileMaxSize(),
+					options.getFileRollInterval(), options.getFileMaxFiles(), options.getFileFsync(), masker, options.isSkipJson());
+			transport = fileTransport;
+			return threads.measure(transport);
+		}
+
+		if (RelayLogTransport.NAME.equalsIgnoreCase(apiConfig.getTransport())) {
+			relayTransport = new RelayLogTransport(options.getRelayAddress(), apiConfig.getApiKey(), masker, options.isSkipJson());
+			transport = relayTransport;
+			return threads.measure(transport);
+		}
+
+		transport = super.getLogTransport(apiConfig);
+
+		if (1 < options.getUploaderThreads()) {
+			concurrentTransport = new ConcurrentLogTransport(transport, options.getUploaderThreads(), options.getUploaderPartition());
+			transport = concurrentTransport;
+		}
+
+		return threads.measure(transport);
+	}
+
+	/**
+	 * @return Background threads of the pipeline
+	 */
+	ThreadRegistry getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @see com.stackify.api.common.log.LogAppender#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		super.close();
+
+		final LogLane errors = errorLane;
+		closeLane(errors);
+		errorLane = null;
+
+		if (staging != null) {
+			staging.close();
+			staging = null;
+		}
+
+		final LogLane lane = bufferLane;
+		closeLane(lane);
+		bufferLane = null;
+
+		if ((errors == null || !errors.isAlive()) && (lane == null || !lane.isAlive())) {
+			closeTransports();
+			return;
+		}
+
+		// the transports are closed once the lanes uploaded what they accepted
+
+		Thread closer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (errors != null) {
+						errors.join();
+					}
+
+					if (lane != null) {
+						lane.join();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				closeTransports();
+			}
+		}, "Stackify_LogPipelineCloser");
+		closer.setDaemon(true);
+		closer.start();
+	}
+
+	/**
+	 * Closes the assembler and the transports once no lane uses them
+	 */
+	private void closeTransports() {
+		if (assembler != null) {
+			assembler.close();
+		}
+
+		if (concurrentTransport != null) {
+			concurrentTransport.close();
+		}
+
+		if (fileTransport != null) {
+			fileTransport.close();
+		}
+
+		if (relayTransport != null) {
+			relayTransport.close();
+		}
+	}
+
+	/**
+	 * Closes a lane after uploading its messages
+	 * @param lane The lane (may be null)
+	 */
+	private static void closeLane(final LogLane lane) {
+		if (lane != null) {
+			lane.close();
+		}
+	}
+}
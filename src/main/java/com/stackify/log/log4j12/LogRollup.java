@@ -0,0 +1,398 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Counts high frequency events in-process instead of sending each of them.
+ *
+ * <p>
+ * Events matching a rule are only counted. Once per window every rule that matched at least one event
+ * sends a single summary message with the count and rate in its data.
+ *
+ * <p>
+ * Rules are separated by semicolons, each rule is a comma separated list of attributes (see
+ * {@link RuleParser} for the escapes):
+ * <pre>
+ * name=health,logger=com.example.health,level=DEBUG,message=Health check *;logger=com.example.cache,message=Cache hit*
+ * </pre>
+ * <ul>
+ * <li>name: name of the summary (defaults to rollup-N)</li>
+ * <li>logger: logger name, matching the logger and its descendants (any logger when absent)</li>
+ * <li>level: exact event level (any level when absent)</li>
+ * <li>message: message template where * matches any text (any message when absent)</li>
+ * </ul>
+ */
+final class LogRollup implements Closeable {
+
+	/**
+	 * Rules in match order
+	 */
+	private final List<Rule> rules;
+
+	/**
+	 * Summary window (milliseconds)
+	 */
+	private final long window;
+
+	/**
+	 * Emits the summaries
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Pipeline receiving the summaries
+	 */
+	private volatile LogPipeline target;
+
+	/**
+	 * Start of the current window (epoch milliseconds)
+	 */
+	private long windowStart = System.currentTimeMillis();
+
+	/**
+	 * Constructor
+	 * @param rules Rules in match order
+	 * @param window Summary window (milliseconds)
+	 */
+	private LogRollup(final List<Rule> rules, final long window) {
+		this.rules = rules;
+		this.window = window;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = ThreadRegistry.register(new Thread(r, "Stackify_LogRollup"));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, window, window, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Parses the rollup rules
+	 * @param rules The rollupRules option (null or empty for none)
+	 * @param window Summary window (milliseconds)
+	 * @return The started rollup, null without rules
+	 */
+	static LogRollup create(final String rules, final long window) {
+		if (rules == null || rules.trim().isEmpty()) {
+			return null;
+		}
+
+		if (window <= 0) {
+			throw new IllegalArgumentException("Invalid rollupWindow: " + window);
+		}
+
+		List<Rule> parsed = new ArrayList<Rule>();
+
+		for (List<RuleParser.Attribute> rule : RuleParser.parse("rollupRules", rules)) {
+			parsed.add(Rule.parse(rule, parsed.size() + 1));
+		}
+
+		return new LogRollup(Collections.unmodifiableList(parsed), window);
+	}
+
+	/**
+	 * @param target Pipeline receiving the summaries
+	 */
+	void setTarget(final LogPipeline target) {
+		this.target = target;
+	}
+
+	/**
+	 * Counts the event if it matches a rule
+	 * @param event The logging event
+	 * @return True if the event was counted and must not be sent
+	 */
+	boolean offer(final LoggingEvent event) {
+		for (int i = 0; i < rules.size(); ++i) {
+			Rule rule = rules.get(i);
+
+			if (rule.matches(event)) {
+				rule.count.increment();
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Sends the summaries of the current window and starts a new one
+	 */
+	synchronized void flush() {
+		long now = System.currentTimeMillis();
+		long start = windowStart;
+		windowStart = now;
+
+		LogPipeline pipeline = target;
+
+		for (Rule rule : rules) {
+			long count = rule.count.sumThenReset();
+
+			if (0 < count && pipeline != null) {
+				try {
+					pipeline.appendInternal(rule.newSummaryEvent(new Summary(rule.name, count, start, now - start)));
+				} catch (Exception e) {
+					LogLog.error("Exception sending the Stackify rollup " + rule.name, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the rollup after sending the summaries of the current window
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+		flush();
+	}
+
+	/**
+	 * Rollup rule with its counter
+	 */
+	private static final class Rule {
+
+		/**
+		 * Summary name
+		 */
+		private final String name;
+
+		/**
+		 * Logger name (null for any)
+		 */
+		private final String logger;
+
+		/**
+		 * Event level (null for any)
+		 */
+		private final Level level;
+
+		/**
+		 * Literal parts of the message template between the wildcards (null for any)
+		 */
+		private final String[] message;
+
+		/**
+		 * Events counted in the current window
+		 */
+		private final LongAdder count = new LongAdder();
+
+		/**
+		 * Constructor
+		 * @param name Summary name
+		 * @param logger Logger name (null for any)
+		 * @param level Event level (null for any)
+		 * @param message Literal parts of the message template between the wildcards (null for any)
+		 */
+		private Rule(final String name, final String logger, final Level level, final String[] message) {
+			this.name = name;
+			this.logger = logger;
+			this.level = level;
+			this.message = message;
+		}
+
+		/**
+		 * Parses a rule
+		 * @param rule The rule attributes
+		 * @param index Position of the rule
+		 * @return The rule
+		 */
+		static Rule parse(final List<RuleParser.Attribute> rule, final int index) {
+			String name = "rollup-" + index;
+			String logger = null;
+			Level level = null;
+			String[] message = null;
+
+			for (RuleParser.Attribute attribute : rule) {
+				String key = attribute.getKey();
+				String value = attribute.getValue();
+
+				if ("name".equals(key)) {
+					name = value;
+				} else if ("logger".equals(key)) {
+					logger = value;
+				} else if ("level".equals(key)) {
+					level = Level.toLevel(value, null);
+
+					if (level == null) {
+						throw new IllegalArgumentException("Invalid rollupRules level: " + value);
+					}
+				} else if ("message".equals(key)) {
+					message = value.split("\\*", -1);
+				} else {
+					throw new IllegalArgumentException("Invalid rollupRules attribute: " + key);
+				}
+			}
+
+			return new Rule(name, logger, level, message);
+		}
+
+		/**
+		 * @param event The logging event
+		 * @return True if the event matches the rule
+		 */
+		boolean matches(final LoggingEvent event) {
+			if (level != null && !level.equals(event.getLevel())) {
+				return false;
+			}
+
+			if (logger != null) {
+				String loggerName = event.getLoggerName();
+
+				if (loggerName == null || !loggerName.startsWith(logger)
+						|| (loggerName.length() != logger.length() && loggerName.charAt(logger.length()) != '.')) {
+					return false;
+				}
+			}
+
+			if (message != null) {
+				Object msg = event.getMessage();
+				return msg instanceof String && matchesTemplate((String) msg);
+			}
+
+			return true;
+		}
+
+		/**
+		 * Matches the literal parts of the template in order
+		 * @param msg The message
+		 * @return True if the message matches the template
+		 */
+		private boolean matchesTemplate(final String msg) {
+			if (message.length == 1) {
+				return msg.equals(message[0]);
+			}
+
+			if (!msg.startsWith(message[0])) {
+				return false;
+			}
+
+			int pos = message[0].length();
+
+			for (int i = 1; i < message.length - 1; ++i) {
+				int found = msg.indexOf(message[i], pos);
+
+				if (found < 0) {
+					return false;
+				}
+
+				pos = found + message[i].length();
+			}
+
+			String last = message[message.length - 1];
+			return pos <= msg.length() - last.length() && msg.endsWith(last);
+		}
+
+		/**
+		 * @param summary The window summary
+		 * @return Event carrying the summary
+		 */
+		LoggingEvent newSummaryEvent(final Summary summary) {
+			String loggerName = (logger != null) ? logger : name;
+
+			return new LoggingEvent(LogRollup.class.getName(), Logger.getLogger(loggerName), summary.windowStart + summary.windowMs,
+					(level != null) ? level : Level.INFO, summary, Thread.currentThread().getName(), null, null,
+					new LocationInfo(null, loggerName, "rollup", null), null);
+		}
+	}
+
+	/**
+	 * Summary of the events counted by a rule during one window
+	 */
+	static final class Summary {
+
+		/**
+		 * Rule name
+		 */
+		private final String name;
+
+		/**
+		 * Events counted
+		 */
+		private final long count;
+
+		/**
+		 * Start of the window (epoch milliseconds)
+		 */
+		private final long windowStart;
+
+		/**
+		 * Length of the window (milliseconds)
+		 */
+		private final long windowMs;
+
+		/**
+		 * Constructor
+		 * @param name Rule name
+		 * @param count Events counted
+		 * @param windowStart Start of the window (epoch milliseconds)
+		 * @param windowMs Length of the window (milliseconds)
+		 */
+		Summary(final String name, final long count, final long windowStart, final long windowMs) {
+			this.name = name;
+			this.count = count;
+			this.windowStart = windowStart;
+			this.windowMs = windowMs;
+		}
+
+		/**
+		 * @return The summary data sent with the log message
+		 */
+		Map<String, Object> getData() {
+			Map<String, Object> data = new LinkedHashMap<String, Object>();
+			data.put("rollup", name);
+			data.put("count", count);
+			data.put("windowStart", windowStart);
+			data.put("windowMs", windowMs);
+			data.put("ratePerSecond", (0 < windowMs) ? count * 1000.0 / windowMs : 0.0);
+			return data;
+		}
+
+		/**
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return name + ": " + count + " events in " + windowMs + " ms";
+		}
+	}
+}
@@ -15,9 +15,11 @@
  */
 package com.stackify.log.log4j12;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import com.stackify.api.common.log.APMLogData;
@@ -28,9 +30,12 @@ import org.apache.log4j.spi.ThrowableInformation;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.stackify.api.EnvironmentDetail;
+import com.stackify.api.ErrorItem;
 import com.stackify.api.LogMsg;
 import com.stackify.api.StackifyError;
+import com.stackify.api.TraceFrame;
 import com.stackify.api.WebRequestDetail;
+import com.stackify.api.common.lang.StackTraceElements;
 import com.stackify.api.common.lang.Throwables;
 import com.stackify.api.common.log.EventAdapter;
 import com.stackify.api.common.log.ServletLogContext;
@@ -52,6 +57,21 @@ public class LoggingEventAdapter implements EventAdapter<LoggingEvent> {
 	 * JSON converter
 	 */
 	private final ObjectMapper json = new ObjectMapper();
+
+	/**
+	 * MDC entries copied into the log message data
+	 */
+	private volatile MdcProjection mdcProjection = MdcProjection.ALL;
+
+	/**
+	 * Detail captured for each event
+	 */
+	private volatile Fidelity fidelity = Fidelity.FULL;
+
+	/**
+	 * Stack frames kept per error when the stacks are truncated
+	 */
+	private static final int TRUNCATED_STACK_DEPTH = 10;
 	
 	/**
 	 * Constructor
@@ -62,6 +82,22 @@ public class LoggingEventAdapter implements EventAdapter<LoggingEvent> {
 		this.envDetail = envDetail;
 	}
 	
+	/**
+	 * @param mdcProjection MDC entries copied into the log message data
+	 */
+	public void setMdcProjection(final MdcProjection mdcProjection) {
+		Preconditions.checkNotNull(mdcProjection);
+		this.mdcProjection = mdcProjection;
+	}
+
+	/**
+	 * @param fidelity Detail captured for each event
+	 */
+	public void setFidelity(final Fidelity fidelity) {
+		Preconditions.checkNotNull(fidelity);
+		this.fidelity = fidelity;
+	}
+
 	/**
 	 * @see com.stackify.api.common.log.EventAdapter#getThrowable(java.lang.Object)
 	 */
@@ -95,18 +131,24 @@ public class LoggingEventAdapter implements EventAdapter<LoggingEvent> {
 	@Override
 	public StackifyError getStackifyError(final LoggingEvent event, final Throwable exception) {
 		
+		boolean detached = isDetached(event);
+
 		StackifyError.Builder builder = StackifyError.newBuilder();
 		builder.environmentDetail(envDetail);		
 		builder.occurredEpochMillis(event.getTimeStamp());
 		
 		if (exception != null) {
-			builder.error(Throwables.toErrorItem(getMessage(event), exception));
+			if (fidelity.truncatesStacks()) {
+				builder.error(toTruncatedErrorItem(getMessage(event), exception));
+			} else {
+				builder.error(Throwables.toErrorItem(getMessage(event), exception));
+			}
 		} else {
 			String className = null;
 			String methodName = null;
 			int lineNumber = 0;
 			
-			LocationInfo locInfo = event.getLocationInformation();
+			LocationInfo locInfo = getLocationInformation(event, detached);
 			
 			if (locInfo != null) {
 				className = locInfo.getClassName();
@@ -121,19 +163,27 @@ public class LoggingEventAdapter implements EventAdapter<LoggingEvent> {
 			builder.error(Throwables.toErrorItem(getMessage(event), className, methodName, lineNumber));
 		}
 
-		String user = APMLogData.isLinked() ? APMLogData.getUser() : ServletLogContext.getUser();
+		// the request context is only known on the thread that logged the event
 
-		if (user != null) {
-			builder.userName(user);
-		}
+		if (!detached) {
+			String user = APMLogData.isLinked() ? APMLogData.getUser() : ServletLogContext.getUser();
 
-		WebRequestDetail webRequest = APMLogData.isLinked() ? APMLogData.getWebRequest() : ServletLogContext.getWebRequest();
-		
-		if (webRequest != null) {
-			builder.webRequestDetail(webRequest);
+			if (user != null) {
+				builder.userName(user);
+			}
+
+			WebRequestDetail webRequest = APMLogData.isLinked() ? APMLogData.getWebRequest() : ServletLogContext.getWebRequest();
+
+			if (webRequest != null) {
+				builder.webRequestDetail(webRequest);
+			}
 		}
 		
-		builder.serverVariables(Maps.fromProperties(System.getProperties()));
+		// copying the system properties costs as much as converting the stack trace
+
+		if (!fidelity.truncatesStacks()) {
+			builder.serverVariables(Maps.fromProperties(System.getProperties()));
+		}
 		
 		return builder.build();
 	}
@@ -144,11 +194,20 @@ public class LoggingEventAdapter implements EventAdapter<LoggingEvent> {
 	@Override
 	public LogMsg getLogMsg(final LoggingEvent event, final StackifyError error) {
 		
+		boolean detached = isDetached(event);
+
 		LogMsg.Builder builder = LogMsg.newBuilder();
 		
-		builder.msg(getMessage(event));
+		Map<String, ?> props;
 
-		Map<String, String> props = getProperties(event);
+		if (event.getMessage() instanceof LogRollup.Summary) {
+			LogRollup.Summary summary = (LogRollup.Summary) event.getMessage();
+			builder.msg(summary.toString());
+			props = summary.getData();
+		} else {
+			builder.msg(getMessage(event));
+			props = fidelity.capturesMdc() ? getProperties(event) : Collections.<String, String>emptyMap();
+		}
 		
 		if (!props.isEmpty()) {
 			try {
@@ -163,13 +222,15 @@ public class LoggingEventAdapter implements EventAdapter<LoggingEvent> {
 		builder.epochMs(event.getTimeStamp());
 		builder.level(event.getLevel().toString().toLowerCase());
 
-		String transactionId = APMLogData.isLinked() ? APMLogData.getTransactionId() : ServletLogContext.getTransactionId();
-		
-		if (transactionId != null) {
-			builder.transId(transactionId);
+		if (!detached) {
+			String transactionId = APMLogData.isLinked() ? APMLogData.getTransactionId() : ServletLogContext.getTransactionId();
+
+			if (transactionId != null) {
+				builder.transId(transactionId);
+			}
 		}
 
-		LocationInfo locInfo = event.getLocationInformation();
+		LocationInfo locInfo = getLocationInformation(event, detached);
 
 		if (locInfo != null) {			
 			builder.srcMethod(locInfo.getClassName() + "." + locInfo.getMethodName());
@@ -211,21 +272,8 @@ public class LoggingEventAdapter implements EventAdapter<LoggingEvent> {
 		Map<String, String> properties = new HashMap<String, String>();
 		
 		// unload the MDC
-		
-		Map<?, ?> mdc = event.getProperties();
-		
-		if (mdc != null) {
-		    Iterator<?> mdcIterator = mdc.entrySet().iterator();
-		    
-		    while (mdcIterator.hasNext()) {
-		        Map.Entry<?, ?> entryPair = (Map.Entry<?, ?>) mdcIterator.next();
-		        
-		        Object key = entryPair.getKey();
-		        Object value = entryPair.getValue();
-		        
-		        properties.put(key.toString(), value != null ? value.toString() : null);
-		    }
-		}
+
+		mdcProjection.project(event, properties);
 		
 		// unload the NDC
 		
@@ -255,7 +303,7 @@ public class LoggingEventAdapter implements EventAdapter<LoggingEvent> {
 	 */
 	@Override
 	public String getClassName(final LoggingEvent event) {
-		LocationInfo locInfo = event.getLocationInformation();
+		LocationInfo locInfo = getLocationInformation(event, isDetached(event));
 
 		if (locInfo != null) {			
 			return locInfo.getClassName();
@@ -263,4 +311,76 @@ public class LoggingEventAdapter implements EventAdapter<LoggingEvent> {
 		
 		return null;
 	}
+
+	/**
+	 * Checks if the event is handled on another thread than the one that logged it, for example by the
+	 * dispatcher of an AsyncAppender. The MDC, NDC and thread name of such an event were already
+	 * captured, while the thread local request context and the call stack belong to the wrong thread.
+	 * @param event The logging event
+	 * @return True if the event is detached from the logging thread
+	 */
+	public static boolean isDetached(final LoggingEvent event) {
+		String threadName = event.getThreadName();
+		return threadName != null && !threadName.equals(Thread.currentThread().getName());
+	}
+
+	/**
+	 * Gets the location of the event without walking the stack of a detached event, or when the
+	 * location is not captured at the current fidelity
+	 * @param event The logging event
+	 * @param detached True if the event is detached from the logging thread
+	 * @return The location, null if it was not captured on the logging thread
+	 */
+	private LocationInfo getLocationInformation(final LoggingEvent event, final boolean detached) {
+		if ((detached || !fidelity.capturesLocation()) && !event.locationInformationExists()) {
+			return null;
+		}
+
+		return event.getLocationInformation();
+	}
+
+	/**
+	 * Converts an exception and its causes like Throwables.toErrorItem, keeping only the top frames
+	 * of each stack trace so the dropped frames are never converted
+	 * @param message The log message
+	 * @param exception The exception
+	 * @return The error
+	 */
+	private static ErrorItem toTruncatedErrorItem(final String message, final Throwable exception) {
+		List<Throwable> chain = Throwables.getCausalChain(exception);
+		ErrorItem inner = null;
+
+		for (int i = chain.size() - 1; 0 <= i; --i) {
+			Throwable t = chain.get(i);
+			String itemMessage = (i == 0) ? message : null;
+			String exceptionMessage = t.getMessage();
+
+			if (exceptionMessage != null && !exceptionMessage.isEmpty()) {
+				itemMessage = (itemMessage != null && !itemMessage.isEmpty()) ? exceptionMessage + " (" + itemMessage + ")" : exceptionMessage;
+			} else {
+				itemMessage = String.valueOf(itemMessage);
+			}
+
+			ErrorItem.Builder builder = ErrorItem.newBuilder();
+			builder.message(itemMessage);
+			builder.errorType(t.getClass().getCanonicalName());
+
+			StackTraceElement[] stackTrace = t.getStackTrace();
+			List<TraceFrame> frames = new ArrayList<TraceFrame>(TRUNCATED_STACK_DEPTH);
+
+			if (stackTrace != null && 0 < stackTrace.length) {
+				builder.sourceMethod(stackTrace[0].getClassName() + "." + stackTrace[0].getMethodName());
+
+				for (int f = 0; f < stackTrace.length && f < TRUNCATED_STACK_DEPTH; ++f) {
+					frames.add(StackTraceElements.toTraceFrame(stackTrace[f]));
+				}
+			}
+
+			builder.stackTrace(frames);
+			builder.innerError(inner);
+			inner = builder.build();
+		}
+
+		return inner;
+	}
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Compiled selection of the MDC entries copied into the data of a log message.
+ *
+ * <p>
+ * With an include list only the listed keys are looked up in the MDC, so the cost does not grow with
+ * the number of MDC entries. Without an include list every entry is copied except the excluded ones.
+ * Renames apply in both cases.
+ */
+public final class MdcProjection {
+
+	/**
+	 * Projection that copies every MDC entry unchanged
+	 */
+	public static final MdcProjection ALL = new MdcProjection(null, null, Collections.<String>emptySet(), Collections.<String, String>emptyMap());
+
+	/**
+	 * MDC keys to look up (null to copy every entry)
+	 */
+	private final String[] includeKeys;
+
+	/**
+	 * Output name of each included key
+	 */
+	private final String[] includeNames;
+
+	/**
+	 * MDC keys to skip when copying every entry
+	 */
+	private final Set<String> exclude;
+
+	/**
+	 * Output names by MDC key
+	 */
+	private final Map<String, String> renames;
+
+	/**
+	 * Constructor
+	 * @param includeKeys MDC keys to look up (null to copy every entry)
+	 * @param includeNames Output name of each included key
+	 * @param exclude MDC keys to skip when copying every entry
+	 * @param renames Output names by MDC key
+	 */
+	private MdcProjection(final String[] includeKeys, final String[] includeNames, final Set<String> exclude, final Map<String, String> renames) {
+		this.includeKeys = includeKeys;
+		this.includeNames = includeNames;
+		this.exclude = exclude;
+		this.renames = renames;
+	}
+
+	/**
+	 * Compiles the appender options into a projection
+	 * @param include Comma separated MDC keys to copy (null or empty for all)
+	 * @param exclude Comma separated MDC keys to skip
+	 * @param rename Comma separated key=name pairs
+	 * @return The projection
+	 */
+	public static MdcProjection compile(final String include, final String exclude, final String rename) {
+
+		List<String> includeList = split(include);
+		List<String> excludeList = split(exclude);
+		List<String> renameList = split(rename);
+
+		if (includeList.isEmpty() && excludeList.isEmpty() && renameList.isEmpty()) {
+			return ALL;
+		}
+
+		Map<String, String> renames = new HashMap<String, String>();
+
+		for (String pair : renameList) {
+			int eq = pair.indexOf('=');
+
+			if (eq <= 0 || eq == pair.length() - 1) {
+				throw new IllegalArgumentException("Invalid mdcRename entry: " + pair);
+			}
+
+			renames.put(pair.substring(0, eq).trim().intern(), pair.substring(eq + 1).trim().intern());
+		}
+
+		Set<String> excludeSet = new HashSet<String>();
+
+		for (String key : excludeList) {
+			excludeSet.add(key.intern());
+		}
+
+		if (includeList.isEmpty()) {
+			return new MdcProjection(null, null, excludeSet, renames);
+		}
+
+		List<String> keys = new ArrayList<String>();
+
+		for (String key : includeList) {
+			if (!excludeSet.contains(key) && !keys.contains(key)) {
+				keys.add(key.intern());
+			}
+		}
+
+		String[] includeKeys = keys.toArray(new String[keys.size()]);
+		String[] includeNames = new String[includeKeys.length];
+
+		for (int i = 0; i < includeKeys.length; ++i) {
+			String name = renames.get(includeKeys[i]);
+			includeNames[i] = (name != null) ? name : includeKeys[i];
+		}
+
+		return new MdcProjection(includeKeys, includeNames, Collections.<String>emptySet(), Collections.<String, String>emptyMap());
+	}
+
+	/**
+	 * Copies the projected MDC entries of the event
+	 * @param event The logging event
+	 * @param properties Map receiving the projected entries
+	 */
+	public void project(final LoggingEvent event, final Map<String, String> properties) {
+
+		if (includeKeys != null) {
+			for (int i = 0; i < includeKeys.length; ++i) {
+				Object value = event.getMDC(includeKeys[i]);
+
+				if (value != null) {
+					properties.put(includeNames[i], value.toString());
+				}
+			}
+			return;
+		}
+
+		Map<?, ?> mdc = event.getProperties();
+
+		if (mdc != null) {
+			Iterator<?> mdcIterator = mdc.entrySet().iterator();
+
+			while (mdcIterator.hasNext()) {
+				Map.Entry<?, ?> entryPair = (Map.Entry<?, ?>) mdcIterator.next();
+
+				String key = entryPair.getKey().toString();
+
+				if (exclude.contains(key)) {
+					continue;
+				}
+
+				String name = renames.get(key);
+				Object value = entryPair.getValue();
+
+				properties.put(name != null ? name : key, value != null ? value.toString() : null);
+			}
+		}
+	}
+
+	/**
+	 * Splits a comma separated option
+	 * @param value The option value
+	 * @return The trimmed, non-empty entries
+	 */
+	private static List<String> split(final String value) {
+		List<String> entries = new ArrayList<String>();
+
+		if (value != null) {
+			for (String entry : value.split(",")) {
+				String trimmed = entry.trim();
+
+				if (!trimmed.isEmpty()) {
+					entries.add(trimmed);
+				}
+			}
+		}
+
+		return entries;
+	}
+}
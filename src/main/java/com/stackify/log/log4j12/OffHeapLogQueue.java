@@ -0,0 +1,424 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.helpers.LogLog;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stackify.api.LogMsg;
+
+/**
+ * Bounded queue holding log messages serialized in direct memory.
+ *
+ * <p>
+ * Messages are serialized when queued into pooled direct buffer slabs, so a backlog of queued messages
+ * does not retain LogMsg object graphs on the heap. A message is only deserialized when it is polled
+ * for upload. The slabs are allocated up to a fixed budget and reused. When the budget is used up the
+ * oldest slab is dropped, like the evicting queue of the background service.
+ */
+final class OffHeapLogQueue extends AbstractQueue<LogMsg> {
+
+	/**
+	 * Default slab size (bytes)
+	 */
+	static final int SLAB_SIZE = 1024 * 1024;
+
+	/**
+	 * Bytes of the length prefix of each message
+	 */
+	private static final int HEADER = 4;
+
+	/**
+	 * JSON converter
+	 */
+	private final ObjectMapper json = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+	/**
+	 * Size of each slab (bytes)
+	 */
+	private final int slabSize;
+
+	/**
+	 * Maximum number of slabs
+	 */
+	private final int maxSlabs;
+
+	/**
+	 * Slabs holding messages, oldest first
+	 */
+	private final Deque<Slab> slabs = new ArrayDeque<Slab>();
+
+	/**
+	 * Empty slabs ready for reuse
+	 */
+	private final Deque<Slab> free = new ArrayDeque<Slab>();
+
+	/**
+	 * Number of slabs allocated
+	 */
+	private int allocated = 0;
+
+	/**
+	 * Number of queued messages
+	 */
+	private int size = 0;
+
+	/**
+	 * Number of messages dropped
+	 */
+	private long dropped = 0;
+
+	/**
+	 * Constructor
+	 * @param budget Direct memory budget (bytes)
+	 */
+	OffHeapLogQueue(final long budget) {
+		this(budget, SLAB_SIZE);
+	}
+
+	/**
+	 * Constructor
+	 * @param budget Direct memory budget (bytes)
+	 * @param slabSize Size of each slab (bytes)
+	 */
+	OffHeapLogQueue(final long budget, final int slabSize) {
+		if (budget < slabSize) {
+			throw new IllegalArgumentException("Off-heap buffer budget must hold at least one slab of " + slabSize + " bytes");
+		}
+
+		this.slabSize = slabSize;
+		this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, budget / slabSize);
+	}
+
+	/**
+	 * Serializes and queues a message
+	 * @see java.util.Queue#offer(java.lang.Object)
+	 */
+	@Override
+	public boolean offer(final LogMsg msg) {
+		byte[] bytes = encode(msg);
+
+		if (bytes == null) {
+			return false;
+		}
+
+		synchronized (this) {
+			return write(bytes);
+		}
+	}
+
+	/**
+	 * Serializes the messages, then queues them under a single lock
+	 * @see java.util.AbstractQueue#addAll(java.util.Collection)
+	 */
+	@Override
+	public boolean addAll(final Collection<? extends LogMsg> msgs) {
+		List<byte[]> encoded = new ArrayList<byte[]>(msgs.size());
+
+		for (LogMsg msg : msgs) {
+			byte[] bytes = encode(msg);
+
+			if (bytes != null) {
+				encoded.add(bytes);
+			}
+		}
+
+		boolean changed = false;
+
+		synchronized (this) {
+			for (byte[] bytes : encoded) {
+				changed |= write(bytes);
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * @param msg The message
+	 * @return The serialized message, null if it can not be serialized
+	 */
+	private byte[] encode(final LogMsg msg) {
+		try {
+			return json.writeValueAsBytes(msg);
+		} catch (IOException e) {
+			LogLog.error("Exception serializing Stackify log message", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Copies a serialized message into the newest slab
+	 * @param bytes The serialized message
+	 * @return False if the message is larger than a slab
+	 */
+	private boolean write(final byte[] bytes) {
+		if (slabSize < HEADER + bytes.length) {
+			++dropped;
+			return false;
+		}
+
+		Slab slab = slabs.peekLast();
+
+		if (slab == null || slab.remaining() < HEADER + bytes.length) {
+			slab = nextSlab();
+			slabs.addLast(slab);
+		}
+
+		slab.buffer.putInt(bytes.length);
+		slab.buffer.put(bytes);
+		++slab.count;
+		++size;
+		return true;
+	}
+
+	/**
+	 * Finds an empty slab, dropping the oldest messages when the budget is used up
+	 * @return Empty slab
+	 */
+	private Slab nextSlab() {
+		Slab slab = free.pollFirst();
+
+		if (slab != null) {
+			return slab;
+		}
+
+		if (allocated < maxSlabs) {
+			++allocated;
+			return new Slab(ByteBuffer.allocateDirect(slabSize));
+		}
+
+		slab = slabs.pollFirst();
+		size -= slab.count - slab.read;
+		dropped += slab.count - slab.read;
+		slab.clear();
+		return slab;
+	}
+
+	/**
+	 * Removes and deserializes the oldest message
+	 * @see java.util.Queue#poll()
+	 */
+	@Override
+	public LogMsg poll() {
+		byte[] bytes;
+
+		synchronized (this) {
+			bytes = read(true);
+		}
+
+		return decode(bytes);
+	}
+
+	/**
+	 * Deserializes the oldest message without removing it
+	 * @see java.util.Queue#peek()
+	 */
+	@Override
+	public LogMsg peek() {
+		byte[] bytes;
+
+		synchronized (this) {
+			bytes = read(false);
+		}
+
+		return decode(bytes);
+	}
+
+	/**
+	 * Copies the oldest message out of its slab
+	 * @param remove True to remove the message
+	 * @return The serialized message, null when empty
+	 */
+	private byte[] read(final boolean remove) {
+		Slab slab = slabs.peekFirst();
+
+		if (slab == null || slab.read == slab.count) {
+			return null;
+		}
+
+		int length = slab.buffer.getInt(slab.position);
+		byte[] bytes = new byte[length];
+
+		ByteBuffer view = slab.buffer.duplicate();
+		view.position(slab.position + HEADER);
+		view.get(bytes);
+
+		if (remove) {
+			slab.position += HEADER + length;
+			++slab.read;
+			--size;
+
+			if (slab.read == slab.count) {
+				slabs.pollFirst();
+				slab.clear();
+				free.addFirst(slab);
+			}
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * @param bytes The serialized message
+	 * @return The message, null if the bytes are null or corrupt
+	 */
+	private LogMsg decode(final byte[] bytes) {
+		if (bytes == null) {
+			return null;
+		}
+
+		try {
+			return json.readValue(bytes, LogMsg.class);
+		} catch (IOException e) {
+			LogLog.error("Exception deserializing Stackify log message", e);
+			return null;
+		}
+	}
+
+	/**
+	 * @see java.util.AbstractCollection#size()
+	 */
+	@Override
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return Number of messages dropped because the budget was used up
+	 */
+	synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return Direct memory allocated (bytes)
+	 */
+	synchronized long getAllocatedBytes() {
+		return (long) allocated * slabSize;
+	}
+
+	/**
+	 * Read-only iterator over a snapshot of the queued messages, oldest first. The serialized messages
+	 * are copied to the heap when it is created and deserialized as the iteration goes, so it is meant
+	 * for diagnostics and the AbstractQueue methods rather than for draining the queue.
+	 * @see java.util.AbstractCollection#iterator()
+	 */
+	@Override
+	public Iterator<LogMsg> iterator() {
+		final List<byte[]> snapshot = new ArrayList<byte[]>();
+
+		synchronized (this) {
+			for (Slab slab : slabs) {
+				ByteBuffer view = slab.buffer.duplicate();
+				int position = slab.position;
+
+				for (int i = slab.read; i < slab.count; ++i) {
+					int length = view.getInt(position);
+					byte[] bytes = new byte[length];
+
+					view.position(position + HEADER);
+					view.get(bytes);
+					snapshot.add(bytes);
+
+					position += HEADER + length;
+				}
+			}
+		}
+
+		return new Iterator<LogMsg>() {
+
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return next < snapshot.size();
+			}
+
+			@Override
+			public LogMsg next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+
+				return decode(snapshot.get(next++));
+			}
+		};
+	}
+
+	/**
+	 * Direct buffer holding length prefixed messages
+	 */
+	private static final class Slab {
+
+		/**
+		 * The buffer, positioned at the end of the written messages
+		 */
+		private final ByteBuffer buffer;
+
+		/**
+		 * Offset of the next message to read
+		 */
+		private int position = 0;
+
+		/**
+		 * Messages written
+		 */
+		private int count = 0;
+
+		/**
+		 * Messages read
+		 */
+		private int read = 0;
+
+		/**
+		 * Constructor
+		 * @param buffer The buffer
+		 */
+		private Slab(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		/**
+		 * @return Bytes left for writing
+		 */
+		private int remaining() {
+			return buffer.remaining();
+		}
+
+		/**
+		 * Empties the slab for reuse
+		 */
+		private void clear() {
+			buffer.clear();
+			position = 0;
+			count = 0;
+			read = 0;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Immutable snapshot of the appender options a pipeline is started with. Changing any of them
+ * requires a new pipeline (see {@link AppenderSettings} for the options that can be swapped).
+ */
+@Getter
+@Builder(builderClassName = "Builder", builderMethodName = "newBuilder", toBuilder = true)
+public final class PipelineOptions {
+
+	/**
+	 * Skip JSON tagging
+	 */
+	private final boolean skipJson;
+
+	/**
+	 * Number of concurrent upload lanes
+	 */
+	private final int uploaderThreads;
+
+	/**
+	 * Upload partition strategy
+	 */
+	private final String uploaderPartition;
+
+	/**
+	 * Uploads ERROR and FATAL messages through their own lane
+	 */
+	private final boolean errorLane;
+
+	/**
+	 * Sends the details of every error, without throttling the duplicates by the wall clock (replayed events)
+	 */
+	private final boolean unthrottledErrors;
+
+	/**
+	 * Linger time of the error lane (milliseconds)
+	 */
+	private final long errorLinger;
+
+	/**
+	 * Direct memory budget of the off-heap buffer (bytes), 0 to queue the messages on the heap
+	 */
+	private final long offHeapBufferSize;
+
+	/**
+	 * Number of threads masking and serializing a backlog in parallel, 1 to assemble each batch on the upload thread
+	 */
+	private final int assemblyThreads;
+
+	/**
+	 * Messages each thread stages before handing them to the queue, 0 to queue each message
+	 */
+	private final int stagingChunkSize;
+
+	/**
+	 * Maximum time a message stays staged (milliseconds)
+	 */
+	private final long stagingLinger;
+
+	/**
+	 * Directory of the files of the file transport
+	 */
+	private final String fileDirectory;
+
+	/**
+	 * File name prefix of the file transport
+	 */
+	private final String filePrefix;
+
+	/**
+	 * Maximum file size of the file transport (bytes)
+	 */
+	private final long fileMaxSize;
+
+	/**
+	 * Maximum file age of the file transport (milliseconds)
+	 */
+	private final long fileRollInterval;
+
+	/**
+	 * Number of files kept by the file transport, 0 to keep every file
+	 */
+	private final int fileMaxFiles;
+
+	/**
+	 * Fsync policy of the file transport
+	 */
+	private final FileLogTransport.Fsync fileFsync;
+
+	/**
+	 * Address of the host-level relay of the relay transport (host:port)
+	 */
+	private final String relayAddress;
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Holds the pipelines of closed appenders for a grace period so that an appender created by a
+ * log4j reconfiguration can adopt the running pipeline (and its queued events) instead of
+ * starting a new one. Pipelines that are not adopted in time are closed.
+ */
+final class PipelineRegistry {
+
+	/**
+	 * Parked pipelines by pipeline key
+	 */
+	private static final Map<String, Parked> PARKED = new HashMap<String, Parked>();
+
+	/**
+	 * Timer closing expired pipelines
+	 */
+	private static ScheduledExecutorService timer = null;
+
+	/**
+	 * Parks a pipeline until it is adopted or the grace period expires
+	 * @param key Pipeline key
+	 * @param pipeline The pipeline
+	 * @param gracePeriod Grace period (milliseconds)
+	 */
+	static void park(final String key, final LogPipeline pipeline, final long gracePeriod) {
+		Parked previous;
+
+		synchronized (PARKED) {
+			ScheduledFuture<?> expiry = getTimer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					expire(key, pipeline);
+				}
+			}, gracePeriod, TimeUnit.MILLISECONDS);
+
+			previous = PARKED.put(key, new Parked(pipeline, expiry));
+		}
+
+		if (previous != null) {
+			previous.expiry.cancel(false);
+			close(previous.pipeline);
+		}
+	}
+
+	/**
+	 * Takes over a parked pipeline
+	 * @param key Pipeline key
+	 * @return The parked pipeline or null if there is none
+	 */
+	static LogPipeline adopt(final String key) {
+		synchronized (PARKED) {
+			Parked parked = PARKED.remove(key);
+
+			if (parked == null) {
+				return null;
+			}
+
+			parked.expiry.cancel(false);
+			return parked.pipeline;
+		}
+	}
+
+	/**
+	 * Closes every parked pipeline
+	 */
+	static void closeAll() {
+		List<Parked> closing;
+
+		synchronized (PARKED) {
+			closing = new ArrayList<Parked>(PARKED.values());
+			PARKED.clear();
+		}
+
+		for (Parked parked : closing) {
+			parked.expiry.cancel(false);
+			close(parked.pipeline);
+		}
+	}
+
+	/**
+	 * Closes a pipeline if it is still parked under the key
+	 * @param key Pipeline key
+	 * @param pipeline The pipeline
+	 */
+	private static void expire(final String key, final LogPipeline pipeline) {
+		synchronized (PARKED) {
+			Parked parked = PARKED.get(key);
+
+			if (parked == null || parked.pipeline != pipeline) {
+				return;
+			}
+
+			PARKED.remove(key);
+		}
+
+		close(pipeline);
+	}
+
+	/**
+	 * @param pipeline The pipeline to close
+	 */
+	private static void close(final LogPipeline pipeline) {
+		try {
+			pipeline.close();
+		} catch (Exception e) {
+			LogLog.error("Exception closing Stackify log pipeline", e);
+		}
+	}
+
+	/**
+	 * @return The timer, created (with a shutdown hook flushing parked pipelines) on first use
+	 */
+	private static ScheduledExecutorService getTimer() {
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					Thread t = new Thread(r, "Stackify_PipelineRegistry");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					closeAll();
+				}
+			}, "Stackify_PipelineRegistryShutdown"));
+		}
+
+		return timer;
+	}
+
+	/**
+	 * Hidden constructor
+	 */
+	private PipelineRegistry() {
+	}
+
+	/**
+	 * Parked pipeline and its pending expiry
+	 */
+	private static class Parked {
+
+		/**
+		 * The pipeline
+		 */
+		private final LogPipeline pipeline;
+
+		/**
+		 * Scheduled close of the pipeline
+		 */
+		private final ScheduledFuture<?> expiry;
+
+		/**
+		 * Constructor
+		 * @param pipeline The pipeline
+		 * @param expiry Scheduled close of the pipeline
+		 */
+		Parked(final LogPipeline pipeline, final ScheduledFuture<?> expiry) {
+			this.pipeline = pipeline;
+			this.expiry = expiry;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import com.stackify.api.LogMsgGroup;
+import com.stackify.api.common.log.LogTransport;
+import com.stackify.api.common.log.LogTransportPreProcessor;
+import com.stackify.api.common.mask.Masker;
+import com.stackify.log.log4j12.relay.RelayProtocol;
+
+/**
+ * Sends the batches to a host-level {@link com.stackify.log.log4j12.relay.LogRelay} instead of uploading them.
+ *
+ * <p>
+ * The batches are masked and dictionary encoded here, then written to a single local connection
+ * which is opened on the first batch and reopened after a failure. Each batch waits for the relay to
+ * accept it, a failure is thrown so the caller retries the batch like a failed upload.
+ */
+final class RelayLogTransport implements LogTransport, Closeable {
+
+	/**
+	 * Transport name of the appender option
+	 */
+	static final String NAME = "relay";
+
+	/**
+	 * Connect timeout (milliseconds)
+	 */
+	private static final int CONNECT_TIMEOUT = 1000;
+
+	/**
+	 * Maximum wait for the relay to accept a batch (milliseconds)
+	 */
+	private static final int READ_TIMEOUT = 10000;
+
+	/**
+	 * Relay host
+	 */
+	private final String host;
+
+	/**
+	 * Relay port
+	 */
+	private final int port;
+
+	/**
+	 * API key sent with each batch
+	 */
+	private final String apiKey;
+
+	/**
+	 * Masking and JSON tagging
+	 */
+	private final LogTransportPreProcessor preProcessor;
+
+	/**
+	 * Batch encoder
+	 */
+	private final DictionaryBatchCodec codec = new DictionaryBatchCodec();
+
+	/**
+	 * Connection to the relay (null until the next batch)
+	 */
+	private Socket socket;
+
+	/**
+	 * Output of the connection
+	 */
+	private DataOutputStream out;
+
+	/**
+	 * Input of the connection
+	 */
+	private InputStream in;
+
+	/**
+	 * Constructor
+	 * @param address Relay address (host:port or port)
+	 * @param apiKey API key sent with each batch
+	 * @param masker Masker applied to the messages
+	 * @param skipJson Skip JSON tagging
+	 */
+	RelayLogTransport(final String address, final String apiKey, final Masker masker, final boolean skipJson) {
+		String value = address.trim();
+		int colon = value.lastIndexOf(':');
+
+		try {
+			this.host = (0 < colon) ? value.substring(0, colon) : "127.0.0.1";
+			this.port = Integer.parseInt(value.substring(colon + 1));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid relayAddress: " + address, e);
+		}
+
+		this.apiKey = apiKey;
+		this.preProcessor = new LogTransportPreProcessor(masker, skipJson);
+	}
+
+	/**
+	 * Masks, encodes and sends a batch to the relay
+	 * @see com.stackify.api.common.log.LogTransport#send(com.stackify.api.LogMsgGroup)
+	 */
+	@Override
+	public void send(final LogMsgGroup group) throws Exception {
+		preProcessor.execute(group);
+		byte[] batch = codec.encode(group);
+
+		synchronized (this) {
+			try {
+				if (socket == null) {
+					connect();
+				}
+
+				RelayProtocol.writeFrame(out, apiKey, batch);
+
+				int answer = in.read();
+
+				if (answer != RelayProtocol.ACCEPTED) {
+					throw new IOException((answer < 0) ? "Stackify relay closed the connection" : "Stackify relay rejected the batch");
+				}
+			} catch (IOException e) {
+				disconnect();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Opens the connection to the relay
+	 * @throws IOException If the relay can not be reached
+	 */
+	private void connect() throws IOException {
+		Socket s = new Socket();
+
+		try {
+			s.setTcpNoDelay(true);
+			s.setSoTimeout(READ_TIMEOUT);
+			s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+
+			out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			in = new BufferedInputStream(s.getInputStream());
+
+			out.writeInt(RelayProtocol.MAGIC);
+			socket = s;
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the connection, the next batch reopens it
+	 */
+	private void disconnect() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// reconnecting anyway
+			}
+		}
+
+		socket = null;
+		out = null;
+		in = null;
+	}
+
+	/**
+	 * Closes the connection to the relay
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public synchronized void close() {
+		disconnect();
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the rule options shared by the filter and the rollup.
+ *
+ * <p>
+ * Rules are separated by semicolons and each rule is a comma separated list of key=value attributes.
+ * A backslash before a comma or a semicolon makes it part of the value, so <code>regex=\d{1\,3}</code>
+ * is the expression <code>\d{1,3}</code>. Any other backslash is kept as is, and a doubled backslash
+ * stays a regex escaped backslash.
+ */
+final class RuleParser {
+
+	/**
+	 * Attribute of a rule
+	 */
+	static final class Attribute {
+
+		/**
+		 * Attribute key
+		 */
+		private final String key;
+
+		/**
+		 * Attribute value, unescaped and trimmed
+		 */
+		private final String value;
+
+		/**
+		 * Constructor
+		 * @param key Attribute key
+		 * @param value Attribute value, unescaped and trimmed
+		 */
+		private Attribute(final String key, final String value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		/**
+		 * @return Attribute key
+		 */
+		String getKey() {
+			return key;
+		}
+
+		/**
+		 * @return Attribute value, unescaped and trimmed
+		 */
+		String getValue() {
+			return value;
+		}
+	}
+
+	/**
+	 * Hidden constructor
+	 */
+	private RuleParser() {
+	}
+
+	/**
+	 * Parses the rules of an option
+	 * @param option Option name, used in the error messages
+	 * @param rules The option value
+	 * @return The attributes of each non-empty rule, in order
+	 */
+	static List<List<Attribute>> parse(final String option, final String rules) {
+		List<List<Attribute>> parsed = new ArrayList<List<Attribute>>();
+
+		for (String rule : split(rules, ';')) {
+			if (rule.trim().isEmpty()) {
+				continue;
+			}
+
+			List<Attribute> attributes = new ArrayList<Attribute>();
+
+			for (String attribute : split(rule, ',')) {
+				if (attribute.trim().isEmpty()) {
+					continue;
+				}
+
+				int eq = attribute.indexOf('=');
+
+				if (eq <= 0) {
+					throw new IllegalArgumentException("Invalid " + option + " attribute: " + unescape(attribute).trim());
+				}
+
+				attributes.add(new Attribute(attribute.substring(0, eq).trim(), unescape(attribute.substring(eq + 1)).trim()));
+			}
+
+			parsed.add(attributes);
+		}
+
+		return parsed;
+	}
+
+	/**
+	 * Splits on the separators not escaped by a backslash, keeping the escapes
+	 * @param text The text
+	 * @param separator The separator
+	 * @return The parts
+	 */
+	static List<String> split(final String text, final char separator) {
+		List<String> parts = new ArrayList<String>();
+		int start = 0;
+
+		for (int i = 0; i < text.length(); ++i) {
+			char c = text.charAt(i);
+
+			if (c == '\\') {
+				++i;
+			} else if (c == separator) {
+				parts.add(text.substring(start, i));
+				start = i + 1;
+			}
+		}
+
+		parts.add(text.substring(start));
+		return parts;
+	}
+
+	/**
+	 * Removes the backslashes escaping a comma or a semicolon
+	 * @param text The text
+	 * @return The unescaped text
+	 */
+	static String unescape(final String text) {
+		if (text.indexOf('\\') == -1) {
+			return text;
+		}
+
+		StringBuilder unescaped = new StringBuilder(text.length());
+
+		for (int i = 0; i < text.length(); ++i) {
+			char c = text.charAt(i);
+
+			if (c == '\\' && i + 1 < text.length()) {
+				char next = text.charAt(++i);
+
+				if (next != ',' && next != ';') {
+					unescaped.append(c);
+				}
+
+				unescaped.append(next);
+			} else {
+				unescaped.append(c);
+			}
+		}
+
+		return unescaped.toString();
+	}
+}
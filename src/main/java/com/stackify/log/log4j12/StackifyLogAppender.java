@@ -18,12 +18,14 @@ package com.stackify.log.log4j12;
 import com.stackify.api.common.mask.Masker;
 import lombok.Getter;
 import lombok.Setter;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LoggingEvent;
 
 import com.stackify.api.common.ApiClients;
 import com.stackify.api.common.ApiConfiguration;
 import com.stackify.api.common.ApiConfigurations;
-import com.stackify.api.common.log.LogAppender;
+import com.stackify.log.log4j12.relay.RelayProtocol;
 
 /**
  * Log4j 1.2 logger appender for sending logs to Stackify.
@@ -61,6 +63,11 @@ import com.stackify.api.common.log.LogAppender;
  */
 public class StackifyLogAppender extends NonReentrantAppender {
 
+	/**
+	 * Maximum time a detached pipeline waits for the appends still running without the lock (milliseconds)
+	 */
+	private static final long APPEND_DRAIN_TIMEOUT = 5000;
+
 	/**
 	 * API URL (Appender configuration parameter)
 	 */
@@ -82,9 +89,79 @@ public class StackifyLogAppender extends NonReentrantAppender {
 	private String environment = null;
 
 	/**
-	 * Generic log appender
+	 * Log appender pipeline
+	 */
+	private volatile LogPipeline logAppender;
+
+	/**
+	 * Key of the options the running pipeline was started with
+	 */
+	private String pipelineKey;
+
+	/**
+	 * Tenant router (null when routing is off)
+	 */
+	private volatile TenantRouter router;
+
+	/**
+	 * Settings of the running pipelines
+	 */
+	private volatile AppenderSettings settings;
+
+	/**
+	 * Rollup of high frequency events (null without rules)
+	 */
+	private volatile LogRollup rollup;
+
+	/**
+	 * Options the running rollup was created with
+	 */
+	private String rollupKey;
+
+	/**
+	 * Rate limiter of the call sites (null without a rate limit)
+	 */
+	private volatile CallSiteLimiter rateLimiter;
+
+	/**
+	 * Options the running rate limiter was created with
+	 */
+	private String rateLimiterKey;
+
+	/**
+	 * Appends running without the appender lock
+	 */
+	private final InFlightAppends inFlight = new InFlightAppends();
+
+	/**
+	 * True to append without the appender lock, when the messages are staged per thread
+	 */
+	private volatile boolean lockFree = false;
+
+	/**
+	 * Heap pressure guard (null when disabled)
+	 */
+	private volatile HeapGuard heapGuard;
+
+	/**
+	 * Option the running heap pressure guard was created with
+	 */
+	private String heapGuardKey;
+
+	/**
+	 * CPU budget governor (null when disabled)
+	 */
+	private volatile CpuGovernor cpuGovernor;
+
+	/**
+	 * Background threads started for this appender, measured by the CPU budget governor
 	 */
-	private LogAppender<LoggingEvent> logAppender;
+	private final ThreadRegistry threads = new ThreadRegistry();
+
+	/**
+	 * Option the running CPU budget governor was created with
+	 */
+	private String cpuGovernorKey;
 
 	@Setter
 	@Getter
@@ -114,6 +191,229 @@ public class StackifyLogAppender extends NonReentrantAppender {
 	@Getter
 	private String maskCustom;
 
+	/**
+	 * Comma separated MDC keys copied into the log data, all when empty (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String mdcInclude;
+
+	/**
+	 * Comma separated MDC keys left out of the log data (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String mdcExclude;
+
+	/**
+	 * Comma separated key=name pairs renaming MDC keys in the log data (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String mdcRename;
+
+	/**
+	 * Number of concurrent batch uploads (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String uploaderThreads = "1";
+
+	/**
+	 * Upload ordering partition, thread or transaction (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String uploaderPartition = ConcurrentLogTransport.PARTITION_THREAD;
+
+	/**
+	 * Milliseconds a closed appender keeps its pipeline running for adoption by the appender
+	 * that replaces it on reconfiguration, 0 to close immediately (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String reconfigureGracePeriod = "0";
+
+	/**
+	 * MDC key routing events to per-tenant pipelines, off when empty (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String routeMdcKey;
+
+	/**
+	 * Comma separated tenant=application pairs, every tenant is its own application when empty (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String routeApplications;
+
+	/**
+	 * Maximum number of tenant pipelines (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String routeMaxPartitions = "16";
+
+	/**
+	 * Uploads ERROR and FATAL messages through their own high priority queue (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String errorLane = "false";
+
+	/**
+	 * Milliseconds the error lane waits for more errors before uploading (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String errorLinger = "100";
+
+	/**
+	 * Bytes of direct memory holding the queued messages serialized, 0 to queue them on the heap (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String offHeapBufferSize = "0";
+
+	/**
+	 * Threads masking and serializing a backlog of batches in parallel, 1 to disable (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String assemblyThreads = "1";
+
+	/**
+	 * Messages each thread stages before handing them to the queue in one chunk, 0 to queue each message (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String stagingChunkSize = "0";
+
+	/**
+	 * Milliseconds a message stays staged at most (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String stagingLinger = "10";
+
+	/**
+	 * Directory of the files written by the file transport (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String fileDirectory = "stackify-logs";
+
+	/**
+	 * File name prefix of the file transport (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String filePrefix = "stackify";
+
+	/**
+	 * Bytes after which the file transport rolls its file (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String fileMaxSize = "104857600";
+
+	/**
+	 * Milliseconds after which the file transport rolls its file (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String fileRollInterval = "3600000";
+
+	/**
+	 * Number of files kept by the file transport, 0 to keep every file (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String fileMaxFiles = "10";
+
+	/**
+	 * When the file transport forces its file to disk: none, roll or batch (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String fileFsync = "roll";
+
+	/**
+	 * Address (host:port) of the host-level relay the relay transport sends to (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String relayAddress = "127.0.0.1:" + RelayProtocol.DEFAULT_PORT;
+
+	/**
+	 * Semicolon separated rules of events dropped by logger, level and message content (Appender configuration parameter)
+	 * @see ContentFilter
+	 */
+	@Setter
+	@Getter
+	private String filterRules;
+
+	/**
+	 * Comma separated fractions of the maximum heap lowering the logging fidelity one step each (Appender configuration parameter)
+	 * @see HeapGuard
+	 */
+	@Setter
+	@Getter
+	private String heapPressureThresholds;
+
+	/**
+	 * Percent of the CPU available to the JVM logging may use before its fidelity is lowered (Appender configuration parameter)
+	 * @see CpuGovernor
+	 */
+	@Setter
+	@Getter
+	private String cpuBudgetPercent;
+
+	/**
+	 * Semicolon separated rules of events counted instead of sent (Appender configuration parameter)
+	 * @see LogRollup
+	 */
+	@Setter
+	@Getter
+	private String rollupRules;
+
+	/**
+	 * Milliseconds between rollup summaries (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String rollupWindow = "60000";
+
+	/**
+	 * Events per second each call site may log, the excess is dropped (Appender configuration parameter)
+	 * @see CallSiteLimiter
+	 */
+	@Setter
+	@Getter
+	private String rateLimit;
+
+	/**
+	 * Events a call site may log at once, defaults to one second of events (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String rateLimitBurst;
+
+	/**
+	 * Maximum number of call sites tracked by the rate limit (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String rateLimitMaxSites = "10000";
+
+	/**
+	 * Milliseconds between summaries of the events dropped by the rate limit (Appender configuration parameter)
+	 */
+	@Setter
+	@Getter
+	private String rateLimitWindow = "60000";
+
 	/**
 	 * @return the apiUrl
 	 */
@@ -177,6 +477,351 @@ public class StackifyLogAppender extends NonReentrantAppender {
 	public void activateOptions() {
 		super.activateOptions();
 
+		// the threads started from here on are charged to this appender's CPU budget
+
+		ThreadRegistry previous = threads.enter();
+
+		try {
+
+			// lower the fidelity while the heap is nearly full
+
+			configureHeapGuard();
+
+			// lower the fidelity while logging exceeds its CPU budget
+
+			configureCpuGovernor();
+
+			// settings that can be swapped on a running pipeline
+
+			AppenderSettings settings = buildSettings();
+
+			// staged messages need no appender lock
+
+			this.lockFree = 0 < Integer.parseInt(stagingChunkSize.trim());
+
+			// count the high frequency events instead of sending them
+
+			configureRollup();
+
+			// drop the excess events of runaway call sites
+
+			configureRateLimiter();
+
+			// keep the running pipeline unless the credentials, endpoint or transport changed
+
+			String key = getPipelineKey();
+
+			if (this.logAppender != null) {
+				if (key.equals(this.pipelineKey)) {
+					this.settings = settings;
+					this.logAppender.update(settings);
+
+					if (this.router != null) {
+						this.router.update(settings);
+					}
+
+					setSummaryTarget();
+					applyFidelity();
+					return;
+				}
+
+				closeRouter();
+				closePipeline(detachPipeline());
+			}
+
+			this.settings = settings;
+
+			// route tenants to their own pipelines
+
+			if (routeMdcKey != null && !routeMdcKey.trim().isEmpty()) {
+				this.router = new TenantRouter(
+						routeMdcKey.trim(),
+						TenantRouter.parseApplications(routeApplications),
+						Integer.parseInt(routeMaxPartitions.trim()),
+						new TenantRouter.PipelineFactory() {
+							@Override
+							public LogPipeline create(final String tenantApplication) throws Exception {
+								ThreadRegistry previous = threads.enter();
+
+								try {
+									return startPipeline(tenantApplication);
+								} finally {
+									ThreadRegistry.exit(previous);
+								}
+							}
+						});
+			}
+
+			// take over the pipeline of the appender this one replaces
+
+			LogPipeline pipeline = PipelineRegistry.adopt(key);
+
+			if (pipeline != null) {
+				pipeline.update(settings);
+				threads.include(pipeline.getThreads());
+			} else {
+				pipeline = startPipeline(application);
+			}
+
+			this.logAppender = pipeline;
+			this.pipelineKey = key;
+
+			setSummaryTarget();
+			applyFidelity();
+		} catch (Exception e) {
+			errorHandler.error("Exception starting the Stackify_LogBackgroundService", e, 0);
+		} finally {
+			ThreadRegistry.exit(previous);
+		}
+	}
+
+	/**
+	 * Replaces the rollup when its options changed
+	 */
+	private void configureRollup() {
+		String key = rollupRules + "|" + rollupWindow;
+
+		if (key.equals(this.rollupKey)) {
+			return;
+		}
+
+		closeRollup();
+
+		this.rollup = LogRollup.create(rollupRules, Long.parseLong(rollupWindow.trim()));
+		this.rollupKey = key;
+	}
+
+	/**
+	 * Sends the rollup and rate limit summaries to the running pipeline
+	 */
+	private void setSummaryTarget() {
+		LogRollup logRollup = this.rollup;
+
+		if (logRollup != null) {
+			logRollup.setTarget(this.logAppender);
+		}
+
+		CallSiteLimiter limiter = this.rateLimiter;
+
+		if (limiter != null) {
+			limiter.setTarget(this.logAppender);
+		}
+	}
+
+	/**
+	 * Sends the pending rollup summaries and stops the rollup
+	 */
+	private void closeRollup() {
+		LogRollup logRollup = this.rollup;
+		this.rollup = null;
+		this.rollupKey = null;
+
+		if (logRollup != null) {
+			logRollup.close();
+		}
+	}
+
+	/**
+	 * Replaces the rate limiter when its options changed
+	 */
+	private void configureRateLimiter() {
+		String key = rateLimit + "|" + rateLimitBurst + "|" + rateLimitMaxSites + "|" + rateLimitWindow;
+
+		if (key.equals(this.rateLimiterKey)) {
+			return;
+		}
+
+		closeRateLimiter();
+
+		this.rateLimiter = CallSiteLimiter.create(rateLimit, rateLimitBurst, rateLimitMaxSites, rateLimitWindow);
+		this.rateLimiterKey = key;
+	}
+
+	/**
+	 * Sends the pending rate limit summaries and stops the rate limiter
+	 */
+	private void closeRateLimiter() {
+		CallSiteLimiter limiter = this.rateLimiter;
+		this.rateLimiter = null;
+		this.rateLimiterKey = null;
+
+		if (limiter != null) {
+			limiter.close();
+		}
+	}
+
+	/**
+	 * Replaces the heap pressure guard when its option changed
+	 */
+	private void configureHeapGuard() {
+		String key = String.valueOf(heapPressureThresholds);
+
+		if (key.equals(this.heapGuardKey)) {
+			return;
+		}
+
+		closeHeapGuard();
+
+		double[] thresholds = HeapGuard.parseThresholds(heapPressureThresholds);
+
+		if (thresholds != null) {
+			this.heapGuard = new HeapGuard(thresholds, new Fidelity.Listener() {
+				@Override
+				public void onFidelityChange(final Fidelity fidelity) {
+					applyFidelity();
+				}
+			}, true);
+		}
+
+		this.heapGuardKey = key;
+	}
+
+	/**
+	 * Stops the heap pressure guard
+	 */
+	private void closeHeapGuard() {
+		HeapGuard guard = this.heapGuard;
+		this.heapGuard = null;
+		this.heapGuardKey = null;
+
+		if (guard != null) {
+			guard.close();
+		}
+	}
+
+	/**
+	 * Replaces the CPU budget governor when its option changed
+	 */
+	private void configureCpuGovernor() {
+		String key = String.valueOf(cpuBudgetPercent);
+
+		if (key.equals(this.cpuGovernorKey)) {
+			return;
+		}
+
+		closeCpuGovernor();
+
+		Double budget = CpuGovernor.parseBudget(cpuBudgetPercent);
+
+		if (budget != null) {
+			this.cpuGovernor = new CpuGovernor(budget, new Fidelity.Listener() {
+				@Override
+				public void onFidelityChange(final Fidelity fidelity) {
+					applyFidelity();
+				}
+			}, threads);
+		}
+
+		this.cpuGovernorKey = key;
+	}
+
+	/**
+	 * Stops the CPU budget governor
+	 */
+	private void closeCpuGovernor() {
+		CpuGovernor governor = this.cpuGovernor;
+		this.cpuGovernor = null;
+		this.cpuGovernorKey = null;
+
+		if (governor != null) {
+			governor.close();
+		}
+	}
+
+	/**
+	 * @return The fidelity the pipelines must run at, the lowest of the heap guard and the CPU governor
+	 */
+	private Fidelity getFidelity() {
+		HeapGuard guard = this.heapGuard;
+		CpuGovernor governor = this.cpuGovernor;
+
+		Fidelity fidelity = (guard != null) ? guard.getFidelity() : Fidelity.FULL;
+		return (governor != null) ? fidelity.min(governor.getFidelity()) : fidelity;
+	}
+
+	/**
+	 * @return One DEBUG or INFO event kept out of this many
+	 */
+	private int getSampleRate() {
+		CpuGovernor governor = this.cpuGovernor;
+		return (governor != null) ? governor.getSampleRate() : 1;
+	}
+
+	/**
+	 * Swaps the settings of the running pipelines when the fidelity or the sample rate changed
+	 */
+	private synchronized void applyFidelity() {
+		AppenderSettings current = this.settings;
+		Fidelity fidelity = getFidelity();
+		int sampleRate = getSampleRate();
+
+		if (current == null || (current.getFidelity() == fidelity && current.getSampleRate() == sampleRate)) {
+			return;
+		}
+
+		AppenderSettings next = current.toBuilder().fidelity(fidelity).sampleRate(sampleRate).build();
+		this.settings = next;
+
+		LogPipeline pipeline = this.logAppender;
+
+		if (pipeline != null) {
+			pipeline.update(next);
+		}
+
+		TenantRouter tenantRouter = this.router;
+
+		if (tenantRouter != null) {
+			tenantRouter.update(next);
+		}
+	}
+
+	/**
+	 * @return Heap pressure level, the number of heapPressureThresholds reached
+	 */
+	public int getHeapPressureLevel() {
+		HeapGuard guard = this.heapGuard;
+		return (guard != null) ? guard.getLevel() : 0;
+	}
+
+	/**
+	 * @return Number of heap pressure level changes
+	 */
+	public long getHeapPressureTransitions() {
+		HeapGuard guard = this.heapGuard;
+		return (guard != null) ? guard.getTransitions() : 0;
+	}
+
+	/**
+	 * @return CPU budget level, 0 for full fidelity
+	 */
+	public int getCpuBudgetLevel() {
+		CpuGovernor governor = this.cpuGovernor;
+		return (governor != null) ? governor.getLevel() : 0;
+	}
+
+	/**
+	 * @return Number of CPU budget level changes
+	 */
+	public long getCpuBudgetTransitions() {
+		CpuGovernor governor = this.cpuGovernor;
+		return (governor != null) ? governor.getTransitions() : 0;
+	}
+
+	/**
+	 * @return CPU used by logging in the last second (percent of the CPU available to the JVM)
+	 */
+	public double getCpuUsagePercent() {
+		CpuGovernor governor = this.cpuGovernor;
+		return (governor != null) ? governor.getUsagePercent() : 0;
+	}
+
+	/**
+	 * Starts a pipeline with the current settings
+	 * @param application Application name
+	 * @return The activated pipeline
+	 */
+	private LogPipeline startPipeline(final String application) {
+
 		// build the api config
 
 		ApiConfiguration apiConfig = ApiConfigurations.fromPropertiesWithOverrides(apiUrl, apiKey, application, environment, transport, "false");
@@ -187,45 +832,131 @@ public class StackifyLogAppender extends NonReentrantAppender {
 
 		// build the log appender
 
-		try {
+		PipelineOptions options = PipelineOptions.newBuilder()
+				.skipJson(Boolean.parseBoolean(skipJson))
+				.uploaderThreads(Integer.parseInt(uploaderThreads.trim()))
+				.uploaderPartition(uploaderPartition)
+				.errorLane(Boolean.parseBoolean(errorLane))
+				.errorLinger(Long.parseLong(errorLinger.trim()))
+				.offHeapBufferSize(Long.parseLong(offHeapBufferSize.trim()))
+				.assemblyThreads(Integer.parseInt(assemblyThreads.trim()))
+				.stagingChunkSize(Integer.parseInt(stagingChunkSize.trim()))
+				.stagingLinger(Long.parseLong(stagingLinger.trim()))
+				.fileDirectory(fileDirectory)
+				.filePrefix(filePrefix)
+				.fileMaxSize(Long.parseLong(fileMaxSize.trim()))
+				.fileRollInterval(Long.parseLong(fileRollInterval.trim()))
+				.fileMaxFiles(Integer.parseInt(fileMaxFiles.trim()))
+				.fileFsync(FileLogTransport.Fsync.valueOf(fileFsync.trim().toUpperCase()))
+				.relayAddress(relayAddress)
+				.build();
 
-			// setup masker
+		LogPipeline pipeline = new LogPipeline(clientName, new LoggingEventAdapter(apiConfig.getEnvDetail()), settings, options);
+		pipeline.activate(apiConfig);
 
-			Masker masker = new Masker();
-			if (Boolean.parseBoolean(maskEnabled)) {
+		return pipeline;
+	}
 
-				// set default masks
-				masker.addMask(Masker.MASK_CREDITCARD);
-				masker.addMask(Masker.MASK_SSN);
+	/**
+	 * Builds the settings snapshot from the appender options
+	 * @return The appender settings
+	 */
+	private AppenderSettings buildSettings() {
 
-				if (maskCreditCard != null && !Boolean.parseBoolean(maskCreditCard)) {
-					masker.removeMask(Masker.MASK_CREDITCARD);
-				}
+		// setup masker
 
-				if (maskSSN != null && !Boolean.parseBoolean(maskSSN)) {
-					masker.removeMask(Masker.MASK_SSN);
-				}
+		Masker masker = new Masker();
+		if (Boolean.parseBoolean(maskEnabled)) {
 
-				if (Boolean.parseBoolean(maskIP)) {
-					masker.addMask(Masker.MASK_IP);
-				}
+			// set default masks
+			masker.addMask(Masker.MASK_CREDITCARD);
+			masker.addMask(Masker.MASK_SSN);
 
-				if (maskCustom != null) {
-					masker.addMask(maskCustom);
-				}
+			if (maskCreditCard != null && !Boolean.parseBoolean(maskCreditCard)) {
+				masker.removeMask(Masker.MASK_CREDITCARD);
+			}
 
-			} else {
-				masker.clearMasks();
+			if (maskSSN != null && !Boolean.parseBoolean(maskSSN)) {
+				masker.removeMask(Masker.MASK_SSN);
 			}
 
-			this.logAppender = new LogAppender<LoggingEvent>(
-					clientName,
-					new LoggingEventAdapter(apiConfig.getEnvDetail()),
-					masker,
-					Boolean.parseBoolean(skipJson));
-			this.logAppender.activate(apiConfig);
-		} catch (Exception e) {
-			errorHandler.error("Exception starting the Stackify_LogBackgroundService", e, 0);
+			if (Boolean.parseBoolean(maskIP)) {
+				masker.addMask(Masker.MASK_IP);
+			}
+
+			if (maskCustom != null) {
+				masker.addMask(maskCustom);
+			}
+
+		} else {
+			masker.clearMasks();
+		}
+
+		return AppenderSettings.newBuilder()
+				.masker(masker)
+				.mdcProjection(MdcProjection.compile(mdcInclude, mdcExclude, mdcRename))
+				.contentFilter(ContentFilter.compile(filterRules))
+				.fidelity(getFidelity())
+				.sampleRate(getSampleRate())
+				.build();
+	}
+
+	/**
+	 * @return Key of the options that require a new pipeline when they change
+	 */
+	String getPipelineKey() {
+		return getName() + "|" + apiUrl + "|" + apiKey + "|" + application + "|" + environment + "|" + transport
+				+ "|" + skipJson + "|" + uploaderThreads + "|" + uploaderPartition
+				+ "|" + routeMdcKey + "|" + routeApplications + "|" + routeMaxPartitions + "|" + errorLane + "|" + errorLinger
+				+ "|" + offHeapBufferSize + "|" + assemblyThreads + "|" + stagingChunkSize + "|" + stagingLinger
+				+ "|" + fileDirectory + "|" + filePrefix + "|" + fileMaxSize + "|" + fileRollInterval + "|" + fileMaxFiles + "|" + fileFsync
+				+ "|" + relayAddress;
+	}
+
+	/**
+	 * Appends under the appender lock, or without it when the messages are staged per thread. The
+	 * unlocked path applies the same threshold and filters, and guards against reentry with the
+	 * per-thread slot of {@link InFlightAppends}.
+	 * @see org.apache.log4j.AppenderSkeleton#doAppend(org.apache.log4j.spi.LoggingEvent)
+	 */
+	@Override
+	public void doAppend(final LoggingEvent event) {
+		if (!lockFree) {
+			super.doAppend(event);
+			return;
+		}
+
+		if (closed) {
+			LogLog.error("Attempted to append to closed appender named [" + name + "].");
+			return;
+		}
+
+		if (!isAsSevereAsThreshold(event.getLevel())) {
+			return;
+		}
+
+		for (Filter filter = getFirstFilter(); filter != null; filter = filter.getNext()) {
+			int decision = filter.decide(event);
+
+			if (decision == Filter.DENY) {
+				return;
+			}
+
+			if (decision == Filter.ACCEPT) {
+				break;
+			}
+		}
+
+		InFlightAppends.Slot slot = inFlight.enter();
+
+		if (slot == null) {
+			return;
+		}
+
+		try {
+			subAppend(event);
+		} finally {
+			inFlight.exit(slot);
 		}
 	}
 
@@ -234,12 +965,39 @@ public class StackifyLogAppender extends NonReentrantAppender {
 	 */
 	@Override
 	protected void subAppend(final LoggingEvent event) {
+		CpuGovernor governor = this.cpuGovernor;
+		long start = (governor != null) ? governor.begin() : -1;
+
 		try {
-			if (this.logAppender != null) {
-				this.logAppender.append(event);
+			LogPipeline pipeline = this.logAppender;
+
+			if (pipeline != null) {
+				LogRollup logRollup = this.rollup;
+
+				if (logRollup != null && logRollup.offer(event)) {
+					return;
+				}
+
+				CallSiteLimiter limiter = this.rateLimiter;
+
+				if (limiter != null && limiter.drops(event, getFidelity())) {
+					return;
+				}
+
+				TenantRouter tenantRouter = this.router;
+
+				if (tenantRouter != null && tenantRouter.append(event, pipeline, getFidelity())) {
+					return;
+				}
+
+				pipeline.append(event);
 			}
 		} catch (Exception e) {
 			errorHandler.error("Exception appending event to Stackify Log Appender", e, 0);
+		} finally {
+			if (governor != null) {
+				governor.end(start);
+			}
 		}
 	}
 
@@ -248,15 +1006,87 @@ public class StackifyLogAppender extends NonReentrantAppender {
 	 */
 	@Override
 	public void close() {
+		closeHeapGuard();
+		closeCpuGovernor();
+		closeRollup();
+		closeRateLimiter();
+		closeRouter();
+
+		LogPipeline pipeline = detachPipeline();
+
 		try {
-			if (this.logAppender != null) {
-				this.logAppender.close();
+			long gracePeriod = Long.parseLong(reconfigureGracePeriod.trim());
+
+			if (0 < gracePeriod && pipeline != null) {
+				PipelineRegistry.park(this.pipelineKey, pipeline, gracePeriod);
+				return;
+			}
+		} catch (Exception e) {
+			errorHandler.error("Exception parking Stackify Log Appender", e, 0);
+		}
+
+		closePipeline(pipeline);
+	}
+
+	/**
+	 * Detaches the running pipeline. Events are appended while holding the appender lock, or tracked
+	 * by {@link InFlightAppends} when appended without it, so once detached and drained no event can
+	 * still be on its way to the pipeline, and closing it uploads every event it accepted. The pipeline
+	 * is closed outside the lock, its threads may log to this appender.
+	 * @return The pipeline (may be null)
+	 */
+	private synchronized LogPipeline detachPipeline() {
+		LogPipeline pipeline = this.logAppender;
+		this.logAppender = null;
+		return pipeline;
+	}
+
+	/**
+	 * Closes a detached pipeline
+	 * @param pipeline The pipeline (may be null)
+	 */
+	private void closePipeline(final LogPipeline pipeline) {
+		try {
+			if (pipeline != null) {
+				awaitAppends();
+				pipeline.close();
 			}
 		} catch (Exception e) {
 			errorHandler.error("Exception closing Stackify Log Appender", e, 0);
 		}
 	}
 
+	/**
+	 * Closes the tenant pipelines
+	 */
+	private void closeRouter() {
+		TenantRouter tenantRouter = detachRouter();
+
+		if (tenantRouter != null) {
+			awaitAppends();
+			tenantRouter.close();
+		}
+	}
+
+	/**
+	 * Waits for the appends running without the lock, which may still use a detached pipeline
+	 */
+	private void awaitAppends() {
+		if (!inFlight.await(APPEND_DRAIN_TIMEOUT)) {
+			LogLog.warn("Stackify appender " + name + " closed a pipeline before every running append ended");
+		}
+	}
+
+	/**
+	 * Detaches the tenant router, see {@link #detachPipeline()}
+	 * @return The router (may be null)
+	 */
+	private synchronized TenantRouter detachRouter() {
+		TenantRouter tenantRouter = this.router;
+		this.router = null;
+		return tenantRouter;
+	}
+
 	/**
 	 * @see org.apache.log4j.Appender#requiresLayout()
 	 */
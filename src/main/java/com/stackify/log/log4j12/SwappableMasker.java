@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.stackify.api.common.mask.Masker;
+import com.stackify.api.common.util.Preconditions;
+
+/**
+ * Masker handed to the transport once at startup that forwards to a masker which can be
+ * replaced atomically while the pipeline keeps running.
+ */
+class SwappableMasker extends Masker {
+
+	/**
+	 * Current masker
+	 */
+	private volatile Masker delegate;
+
+	/**
+	 * Constructor
+	 * @param delegate Initial masker
+	 */
+	SwappableMasker(final Masker delegate) {
+		setDelegate(delegate);
+	}
+
+	/**
+	 * @param delegate Masker to use from now on
+	 */
+	void setDelegate(final Masker delegate) {
+		Preconditions.checkNotNull(delegate);
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @see com.stackify.api.common.mask.Masker#clearMasks()
+	 */
+	@Override
+	public void clearMasks() {
+		delegate.clearMasks();
+	}
+
+	/**
+	 * @see com.stackify.api.common.mask.Masker#removeMask(java.lang.String)
+	 */
+	@Override
+	public void removeMask(final String mask) {
+		delegate.removeMask(mask);
+	}
+
+	/**
+	 * @see com.stackify.api.common.mask.Masker#addMask(java.lang.String)
+	 */
+	@Override
+	public void addMask(final String mask) {
+		delegate.addMask(mask);
+	}
+
+	/**
+	 * @see com.stackify.api.common.mask.Masker#mask(java.lang.String)
+	 */
+	@Override
+	public String mask(final String value) {
+		return delegate.mask(value);
+	}
+
+	/**
+	 * @see com.stackify.api.common.mask.Masker#mask(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public String mask(final String value, final String maskValue) {
+		return delegate.mask(value, maskValue);
+	}
+
+	/**
+	 * @see com.stackify.api.common.mask.Masker#hasMasks()
+	 */
+	@Override
+	public boolean hasMasks() {
+		return delegate.hasMasks();
+	}
+
+	/**
+	 * @see com.stackify.api.common.mask.Masker#getMaskPatterns()
+	 */
+	@Override
+	public Map<String, Pattern> getMaskPatterns() {
+		return delegate.getMaskPatterns();
+	}
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Routes logging events to per-application pipelines by the value of an MDC key.
+ *
+ * <p>
+ * Each tenant gets its own pipeline, so its own bounded queue, batches and background thread. A
+ * noisy tenant only evicts its own queued events. Pipelines are started on the first event of a
+ * tenant, up to a maximum number of partitions. Events without the MDC key, of unmapped tenants or
+ * beyond the maximum are left to the default pipeline.
+ *
+ * <p>
+ * A pipeline is started on a starter thread, never on the logging thread, which may hold the
+ * appender lock. Meanwhile up to {@link #MAX_HELD} events of the tenant are held, detached from their
+ * logging thread like the events of an AsyncAppender, then appended in order once the pipeline runs.
+ * When it fails to start, the held events and the tenant's next events go to the default pipeline
+ * until the retry delay has passed.
+ */
+final class TenantRouter implements Closeable {
+
+	/**
+	 * Starts the pipeline of a tenant
+	 */
+	interface PipelineFactory {
+
+		/**
+		 * @param application Application name of the tenant
+		 * @return The activated pipeline
+		 * @throws Exception If the pipeline can not be started
+		 */
+		LogPipeline create(String application) throws Exception;
+	}
+
+	/**
+	 * Default delay before starting the pipeline of a tenant again after it failed (milliseconds)
+	 */
+	static final long RETRY_DELAY = 60000;
+
+	/**
+	 * Events of a tenant held while its pipeline starts, further events go to the default pipeline
+	 */
+	static final int MAX_HELD = 1000;
+
+	/**
+	 * MDC key holding the tenant
+	 */
+	private final String mdcKey;
+
+	/**
+	 * Application names by tenant (empty to use the tenant as application name)
+	 */
+	private final Map<String, String> applications;
+
+	/**
+	 * Maximum number of tenant pipelines
+	 */
+	private final int maxPartitions;
+
+	/**
+	 * Pipeline factory
+	 */
+	private final PipelineFactory factory;
+
+	/**
+	 * Delay before starting the pipeline of a tenant again after it failed (nanoseconds)
+	 */
+	private final long retryNanos;
+
+	/**
+	 * Starts the tenant pipelines
+	 */
+	private final ExecutorService starter;
+
+	/**
+	 * Running pipelines by tenant
+	 */
+	private final ConcurrentMap<String, LogPipeline> pipelines = new ConcurrentHashMap<String, LogPipeline>();
+
+	/**
+	 * Held events of the pipelines being started by tenant, guarded by the router lock
+	 */
+	private final Map<String, Held> starting = new HashMap<String, Held>();
+
+	/**
+	 * Time the pipeline of a tenant may be started again after it failed (System.nanoTime) by tenant
+	 */
+	private final ConcurrentMap<String, Long> failures = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Last settings applied to the pipelines, guarded by the router lock (null if never updated)
+	 */
+	private AppenderSettings settings;
+
+	/**
+	 * True once the partition limit has been reported
+	 */
+	private boolean limitReported = false;
+
+	/**
+	 * True once closed
+	 */
+	private boolean closed = false;
+
+	/**
+	 * Constructor
+	 * @param mdcKey MDC key holding the tenant
+	 * @param applications Application names by tenant (empty to use the tenant as application name)
+	 * @param maxPartitions Maximum number of tenant pipelines
+	 * @param factory Pipeline factory
+	 */
+	TenantRouter(final String mdcKey, final Map<String, String> applications, final int maxPartitions, final PipelineFactory factory) {
+		this(mdcKey, applications, maxPartitions, factory, RETRY_DELAY);
+	}
+
+	/**
+	 * Constructor
+	 * @param mdcKey MDC key holding the tenant
+	 * @param applications Application names by tenant (empty to use the tenant as application name)
+	 * @param maxPartitions Maximum number of tenant pipelines
+	 * @param factory Pipeline factory
+	 * @param retryDelay Delay before starting the pipeline of a tenant again after it failed (milliseconds)
+	 */
+	TenantRouter(final String mdcKey, final Map<String, String> applications, final int maxPartitions, final PipelineFactory factory, final long retryDelay) {
+		this.mdcKey = mdcKey;
+		this.applications = applications;
+		this.maxPartitions = maxPartitions;
+		this.factory = factory;
+		this.retryNanos = TimeUnit.MILLISECONDS.toNanos(retryDelay);
+		this.starter = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "Stackify_TenantStarter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Parses comma separated tenant=application pairs
+	 * @param value The option value
+	 * @return Application names by tenant
+	 */
+	static Map<String, String> parseApplications(final String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return Collections.emptyMap();
+		}
+
+		Map<String, String> applications = new HashMap<String, String>();
+
+		for (String pair : value.split(",")) {
+			if (pair.trim().isEmpty()) {
+				continue;
+			}
+
+			int eq = pair.indexOf('=');
+
+			if (eq <= 0 || pair.trim().endsWith("=")) {
+				throw new IllegalArgumentException("Invalid routeApplications entry: " + pair.trim());
+			}
+
+			applications.put(pair.substring(0, eq).trim(), pair.substring(eq + 1).trim());
+		}
+
+		return applications;
+	}
+
+	/**
+	 * Appends an event to the pipeline of its tenant, or holds it while that pipeline starts
+	 * @param event The logging event
+	 * @param fallback The default pipeline, receiving the held events if the tenant pipeline fails to start
+	 * @param fidelity Current fidelity, the location of a held event is captured when it is used
+	 * @return True if the tenant took the event, false to append it to the default pipeline
+	 */
+	boolean append(final LoggingEvent event, final LogPipeline fallback, final Fidelity fidelity) {
+		Object tenant = event.getMDC(mdcKey);
+
+		if (tenant == null) {
+			return false;
+		}
+
+		String key = tenant.toString();
+		LogPipeline pipeline = pipelines.get(key);
+
+		if (pipeline == null) {
+			Long retry = failures.get(key);
+
+			if (retry != null && System.nanoTime() - retry.longValue() < 0) {
+				return false;
+			}
+
+			synchronized (this) {
+				pipeline = pipelines.get(key);
+
+				if (pipeline == null) {
+					return hold(key, event, fallback, fidelity);
+				}
+			}
+		}
+
+		pipeline.append(event);
+		return true;
+	}
+
+	/**
+	 * Holds an event of a tenant without a running pipeline, starting the pipeline on its first event
+	 * @param tenant The tenant
+	 * @param event The logging event
+	 * @param fallback The default pipeline
+	 * @param fidelity Current fidelity
+	 * @return True if held, false for the default pipeline
+	 */
+	private boolean hold(final String tenant, final LoggingEvent event, final LogPipeline fallback, final Fidelity fidelity) {
+		if (closed) {
+			return false;
+		}
+
+		Held held = starting.get(tenant);
+
+		if (held == null) {
+			final String application = applications.isEmpty() ? tenant : applications.get(tenant);
+
+			if (application == null) {
+				return false;
+			}
+
+			if (maxPartitions <= pipelines.size() + starting.size()) {
+				if (!limitReported) {
+					LogLog.warn("Stackify tenant routing reached " + maxPartitions + " partitions, further tenants use the default pipeline");
+					limitReported = true;
+				}
+				return false;
+			}
+
+			held = new Held();
+			starting.put(tenant, held);
+
+			starter.execute(new Runnable() {
+				@Override
+				public void run() {
+					start(tenant, application);
+				}
+			});
+		}
+
+		if (MAX_HELD <= held.events.size()) {
+			return false;
+		}
+
+		// appended later by the starter thread
+
+		event.getThreadName();
+		event.getNDC();
+		event.getMDCCopy();
+		event.getRenderedMessage();
+
+		if (fidelity.capturesLocation()) {
+			event.getLocationInformation();
+		}
+
+		held.events.add(event);
+		held.fallback = fallback;
+		return true;
+	}
+
+	/**
+	 * Starts the pipeline of a tenant on the starter thread, then publishes it
+	 * @param tenant The tenant
+	 * @param application Application name of the tenant
+	 */
+	private void start(final String tenant, final String application) {
+		LogPipeline pipeline;
+
+		try {
+			pipeline = factory.create(application);
+		} catch (Exception e) {
+			LogLog.error("Exception starting the Stackify pipeline of tenant " + tenant + ", retrying in "
+					+ TimeUnit.NANOSECONDS.toMillis(retryNanos) + " ms", e);
+			pipeline = null;
+		}
+
+		publish(tenant, pipeline);
+	}
+
+	/**
+	 * Appends the held events, then makes the pipeline available or records that it failed
+	 * @param tenant The tenant
+	 * @param pipeline The started pipeline, null if it failed to start
+	 */
+	private void publish(final String tenant, final LogPipeline pipeline) {
+		while (true) {
+			List<LoggingEvent> events;
+			LogPipeline target;
+
+			synchronized (this) {
+				Held held = starting.get(tenant);
+				events = held.events;
+				target = (pipeline != null) ? pipeline : held.fallback;
+
+				if (events.isEmpty()) {
+					starting.remove(tenant);
+
+					if (pipeline == null) {
+						failures.put(tenant, Long.valueOf(System.nanoTime() + retryNanos));
+						return;
+					}
+
+					failures.remove(tenant);
+
+					if (!closed) {
+
+						// settings applied while starting, update() no longer misses the pipeline once published
+
+						if (settings != null) {
+							pipeline.update(settings);
+						}
+
+						pipelines.put(tenant, pipeline);
+						return;
+					}
+				} else {
+					held.events = new ArrayList<LoggingEvent>();
+				}
+			}
+
+			if (events.isEmpty()) {
+				closeQuietly(tenant, pipeline);
+				return;
+			}
+
+			// the events held meanwhile are appended by the next round, in order
+
+			for (LoggingEvent event : events) {
+				try {
+					if (target != null) {
+						target.append(event);
+					}
+				} catch (Exception e) {
+					LogLog.error("Exception appending a held event of tenant " + tenant, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param tenant The tenant
+	 * @return The running pipeline of the tenant, null if none
+	 */
+	LogPipeline getPipeline(final String tenant) {
+		return pipelines.get(tenant);
+	}
+
+	/**
+	 * @return Number of running tenant pipelines
+	 */
+	int getPartitionCount() {
+		return pipelines.size();
+	}
+
+	/**
+	 * Applies new settings to every tenant pipeline, including the ones still starting
+	 * @param settings The appender settings
+	 */
+	synchronized void update(final AppenderSettings settings) {
+		this.settings = settings;
+
+		for (LogPipeline pipeline : pipelines.values()) {
+			pipeline.update(settings);
+		}
+	}
+
+	/**
+	 * Closes every tenant pipeline. The pipelines still starting are closed by their starter thread.
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		Map<String, LogPipeline> running;
+
+		synchronized (this) {
+			closed = true;
+			running = new HashMap<String, LogPipeline>(pipelines);
+			pipelines.clear();
+			failures.clear();
+		}
+
+		starter.shutdown();
+
+		for (Map.Entry<String, LogPipeline> entry : running.entrySet()) {
+			closeQuietly(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * @param tenant The tenant
+	 * @param pipeline Pipeline to close, logging errors
+	 */
+	private static void closeQuietly(final String tenant, final LogPipeline pipeline) {
+		try {
+			pipeline.close();
+		} catch (Exception e) {
+			LogLog.error("Exception closing the Stackify pipeline of tenant " + tenant, e);
+		}
+	}
+
+	/**
+	 * Events held while the pipeline of a tenant starts
+	 */
+	private static final class Held {
+
+		/**
+		 * Held events, in logging order
+		 */
+		private List<LoggingEvent> events = new ArrayList<LoggingEvent>();
+
+		/**
+		 * Default pipeline of the last held event
+		 */
+		private LogPipeline fallback;
+	}
+}
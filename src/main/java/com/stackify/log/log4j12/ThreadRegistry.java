@@ -0,0 +1,209 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.stackify.api.LogMsgGroup;
+import com.stackify.api.common.log.LogTransport;
+
+/**
+ * Background threads started by the pipelines of one appender, whose CPU time the {@link CpuGovernor}
+ * measures.
+ *
+ * <p>
+ * The appender enters its registry while it starts a pipeline, the rollup or the rate limiter. The
+ * threads they create register themselves with {@link #register(Thread)}, including those created
+ * later by a registered thread, such as the workers of the batch assembler, which inherit the registry.
+ * The uploads the collector runs on shared pools are timed around each batch by the transport
+ * returned by {@link #measure(LogTransport)}. The threads of other appenders, of the relay, of the
+ * replay and of the governor itself are never registered.
+ */
+final class ThreadRegistry {
+
+	/**
+	 * Registry entered by the current thread or inherited from the thread that created it
+	 */
+	private static final InheritableThreadLocal<ThreadRegistry> CURRENT = new InheritableThreadLocal<ThreadRegistry>();
+
+	/**
+	 * Number of governors measuring a registry, the uploads are only timed while one does
+	 */
+	private static final AtomicInteger MONITORS = new AtomicInteger();
+
+	/**
+	 * Registered threads
+	 */
+	private final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+	/**
+	 * CPU time of the uploads run on unregistered threads (nanoseconds)
+	 */
+	private final LongAdder sharedNanos = new LongAdder();
+
+	/**
+	 * Registries of the pipelines taken over from a replaced appender
+	 */
+	private final List<ThreadRegistry> included = new CopyOnWriteArrayList<ThreadRegistry>();
+
+	/**
+	 * @return The registry entered by the current thread, null if none
+	 */
+	static ThreadRegistry current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Makes this registry the current one of the calling thread
+	 * @return The previous registry, to pass to exit
+	 */
+	ThreadRegistry enter() {
+		ThreadRegistry previous = CURRENT.get();
+		CURRENT.set(this);
+		return previous;
+	}
+
+	/**
+	 * Restores the registry of the calling thread
+	 * @param previous Value returned by enter
+	 */
+	static void exit(final ThreadRegistry previous) {
+		if (previous != null) {
+			CURRENT.set(previous);
+		} else {
+			CURRENT.remove();
+		}
+	}
+
+	/**
+	 * Registers a thread with the registry of the calling thread, if any
+	 * @param thread The new thread
+	 * @return The thread
+	 */
+	static <T extends Thread> T register(final T thread) {
+		ThreadRegistry registry = CURRENT.get();
+
+		if (registry != null) {
+			registry.threads.add(thread);
+		}
+
+		return thread;
+	}
+
+	/**
+	 * Measures the threads of another registry as well
+	 * @param registry The registry of a pipeline taken over
+	 */
+	void include(final ThreadRegistry registry) {
+		if (registry != this && !included.contains(registry)) {
+			included.add(registry);
+		}
+	}
+
+	/**
+	 * Starts counting the uploads on unregistered threads
+	 */
+	static void startMonitor() {
+		MONITORS.incrementAndGet();
+	}
+
+	/**
+	 * Stops counting the uploads on unregistered threads once no governor measures
+	 */
+	static void stopMonitor() {
+		MONITORS.decrementAndGet();
+	}
+
+	/**
+	 * @return Ids of the live registered threads, those of the included registries too
+	 */
+	List<Long> getThreadIds() {
+		List<Long> ids = new ArrayList<Long>();
+		collect(ids);
+
+		for (ThreadRegistry registry : included) {
+			registry.collect(ids);
+		}
+
+		return ids;
+	}
+
+	/**
+	 * Adds the ids of the live registered threads and forgets the terminated ones
+	 * @param ids Receives the thread ids
+	 */
+	private void collect(final List<Long> ids) {
+		for (Iterator<Thread> it = threads.iterator(); it.hasNext();) {
+			Thread thread = it.next();
+
+			if (thread.getState() == Thread.State.TERMINATED) {
+				it.remove();
+			} else {
+				ids.add(thread.getId());
+			}
+		}
+	}
+
+	/**
+	 * @return CPU time of the uploads run on unregistered threads, those of the included registries too (nanoseconds)
+	 */
+	long getSharedNanos() {
+		long total = sharedNanos.sum();
+
+		for (ThreadRegistry registry : included) {
+			total += registry.sharedNanos.sum();
+		}
+
+		return total;
+	}
+
+	/**
+	 * Measures the CPU time of the uploads run outside the registered threads
+	 * @param transport The transport given to the collector
+	 * @return The measuring transport
+	 */
+	LogTransport measure(final LogTransport transport) {
+		final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+		return new LogTransport() {
+			@Override
+			public void send(final LogMsgGroup group) throws Exception {
+				if (MONITORS.get() == 0 || threads.contains(Thread.currentThread())) {
+					transport.send(group);
+					return;
+				}
+
+				long start = threadBean.getCurrentThreadCpuTime();
+
+				try {
+					transport.send(group);
+				} finally {
+					sharedNanos.add(threadBean.getCurrentThreadCpuTime() - start);
+				}
+			}
+		};
+	}
+}
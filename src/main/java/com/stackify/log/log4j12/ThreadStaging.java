@@ -0,0 +1,283 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.Closeable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.helpers.LogLog;
+
+import com.stackify.api.LogMsg;
+
+/**
+ * Stages converted log messages per thread and hands them to the shared queue in chunks.
+ *
+ * <p>
+ * Each logging thread fills its own small buffer, so the shared queue is locked once per chunk instead
+ * of once per message. A buffer is handed off when it is full, when its oldest message is older than
+ * the linger time, when its thread logs an error (see {@link #flush()}) and after its thread ended.
+ * The last two are noticed by a timer running every half linger time.
+ */
+final class ThreadStaging implements Closeable {
+
+	/**
+	 * Receives the chunks
+	 */
+	interface Sink {
+
+		/**
+		 * @param msgs The chunk, in logging order
+		 */
+		void addAll(List<LogMsg> msgs);
+	}
+
+	/**
+	 * Messages per chunk
+	 */
+	private final int chunkSize;
+
+	/**
+	 * Maximum time a message waits in its buffer (nanoseconds)
+	 */
+	private final long lingerNanos;
+
+	/**
+	 * Receives the chunks
+	 */
+	private final Sink sink;
+
+	/**
+	 * Buffers of every thread that logged
+	 */
+	private final Queue<Stage> stages = new ConcurrentLinkedQueue<Stage>();
+
+	/**
+	 * Buffer of the current thread
+	 */
+	private final ThreadLocal<Stage> local = new ThreadLocal<Stage>() {
+		@Override
+		protected Stage initialValue() {
+			Stage stage = new Stage(Thread.currentThread(), chunkSize);
+			stages.add(stage);
+			return stage;
+		}
+	};
+
+	/**
+	 * Hands off the lingering buffers
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * True once closed
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor
+	 * @param chunkSize Messages per chunk
+	 * @param linger Maximum time a message waits in its buffer (milliseconds)
+	 * @param sink Receives the chunks
+	 */
+	ThreadStaging(final int chunkSize, final long linger, final Sink sink) {
+		if (chunkSize < 1 || linger < 1) {
+			throw new IllegalArgumentException("Invalid staging options: stagingChunkSize=" + chunkSize + ", stagingLinger=" + linger);
+		}
+
+		this.chunkSize = chunkSize;
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(linger);
+		this.sink = sink;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = ThreadRegistry.register(new Thread(r, "Stackify_LogStaging"));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		long period = Math.max(1, linger / 2);
+
+		this.scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				flushLingering();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stages a message of the current thread
+	 * @param msg The log message
+	 */
+	void add(final LogMsg msg) {
+		if (closed) {
+			sink.addAll(singleton(msg));
+			return;
+		}
+
+		Stage stage = local.get();
+
+		synchronized (stage) {
+			if (stage.msgs.isEmpty()) {
+				stage.since = System.nanoTime();
+			}
+
+			stage.msgs.add(msg);
+
+			// close() may have handed off the buffers while this one was being created or filled
+
+			if (closed || chunkSize <= stage.msgs.size()) {
+				handOff(stage);
+			}
+		}
+	}
+
+	/**
+	 * Hands off the buffer of the current thread
+	 */
+	void flush() {
+		Stage stage = local.get();
+
+		synchronized (stage) {
+			handOff(stage);
+		}
+	}
+
+	/**
+	 * Hands off the buffers older than the linger time and those of ended threads
+	 */
+	private void flushLingering() {
+		try {
+			long now = System.nanoTime();
+
+			for (Iterator<Stage> it = stages.iterator(); it.hasNext();) {
+				Stage stage = it.next();
+				Thread owner = stage.owner.get();
+				boolean ended = owner == null || !owner.isAlive();
+
+				synchronized (stage) {
+					if (ended || lingerNanos <= now - stage.since) {
+						handOff(stage);
+					}
+				}
+
+				if (ended) {
+					it.remove();
+				}
+			}
+		} catch (Exception e) {
+			LogLog.error("Exception handing off staged Stackify log messages", e);
+		}
+	}
+
+	/**
+	 * @return Number of messages staged by all threads
+	 */
+	int getStagedCount() {
+		int count = 0;
+
+		for (Stage stage : stages) {
+			synchronized (stage) {
+				count += stage.msgs.size();
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Stops the timer and hands off every buffer
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		scheduler.shutdownNow();
+
+		for (Stage stage : stages) {
+			synchronized (stage) {
+				handOff(stage);
+			}
+		}
+
+		stages.clear();
+	}
+
+	/**
+	 * Hands off a buffer while holding its lock, so the chunks of a thread keep their order
+	 * @param stage The buffer
+	 */
+	private void handOff(final Stage stage) {
+		if (stage.msgs.isEmpty()) {
+			return;
+		}
+
+		List<LogMsg> chunk = stage.msgs;
+		stage.msgs = new ArrayList<LogMsg>(chunkSize);
+		sink.addAll(chunk);
+	}
+
+	/**
+	 * @param msg The log message
+	 * @return List holding the message
+	 */
+	private static List<LogMsg> singleton(final LogMsg msg) {
+		List<LogMsg> msgs = new ArrayList<LogMsg>(1);
+		msgs.add(msg);
+		return msgs;
+	}
+
+	/**
+	 * Buffer of one thread, locked by its thread and the timer
+	 */
+	private static final class Stage {
+
+		/**
+		 * Thread filling the buffer
+		 */
+		private final WeakReference<Thread> owner;
+
+		/**
+		 * Staged messages in logging order
+		 */
+		private List<LogMsg> msgs;
+
+		/**
+		 * Time the oldest message was staged (System.nanoTime)
+		 */
+		private long since;
+
+		/**
+		 * Constructor
+		 * @param owner Thread filling the buffer
+		 * @param chunkSize Messages per chunk
+		 */
+		private Stage(final Thread owner, final int chunkSize) {
+			this.owner = new WeakReference<Thread>(owner);
+			this.msgs = new ArrayList<LogMsg>(chunkSize);
+		}
+	}
+}
@@ -0,0 +1,707 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12.relay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.helpers.LogLog;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stackify.api.LogMsg;
+import com.stackify.api.LogMsgGroup;
+import com.stackify.log.log4j12.DictionaryBatchCodec;
+
+/**
+ * Host-level relay merging the batches of the appenders of many local JVMs (transport=relay).
+ *
+ * <p>
+ * The appenders mask and encode their batches and send them over a local socket (see
+ * {@link RelayProtocol}). The relay merges the messages of the same API key and application into
+ * batches of up to batchSize messages, sealed when full or after the linger time. Sealed batches are
+ * gzipped into a disk spool, then uploaded in order by a single thread. Failed uploads are retried
+ * with an exponential backoff, and the spool survives a restart of the relay.
+ *
+ * <p>
+ * An appender batch is acknowledged only once it is journaled to disk. Its journal entry is released
+ * when all its messages are spooled, and the entries left by a crash are merged again on restart, so
+ * an acknowledged message is uploaded at least once. A merged batch that can not be spooled is kept
+ * and retried by the sealer, and appender batches are rejected once the journal fills the spool.
+ *
+ * <pre>
+ * java -cp stackify-log-log4j12.jar:&lt;dependencies&gt; com.stackify.log.log4j12.relay.LogRelay relay.properties
+ * </pre>
+ */
+public class LogRelay implements Closeable {
+
+	/**
+	 * Log upload path
+	 */
+	private static final String LOG_SAVE_PATH = "/Log/Save";
+
+	/**
+	 * First delay before retrying a failed upload (milliseconds)
+	 */
+	private static final long MIN_RETRY_DELAY = 1000;
+
+	/**
+	 * Longest delay before retrying a failed upload (milliseconds)
+	 */
+	private static final long MAX_RETRY_DELAY = 60000;
+
+	/**
+	 * Connect timeout of the uploads (milliseconds)
+	 */
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	/**
+	 * Read timeout of the uploads (milliseconds)
+	 */
+	private static final int READ_TIMEOUT = 15000;
+
+	/**
+	 * Relay options
+	 */
+	private final RelayOptions options;
+
+	/**
+	 * JSON converter
+	 */
+	private final ObjectMapper json = new ObjectMapper();
+
+	/**
+	 * Decoder of the appender batches
+	 */
+	private final DictionaryBatchCodec codec = new DictionaryBatchCodec();
+
+	/**
+	 * Batches waiting to be uploaded
+	 */
+	private final RelaySpool spool;
+
+	/**
+	 * Batches being merged, by API key and application
+	 */
+	private final Map<String, Pending> pending = new HashMap<String, Pending>();
+
+	/**
+	 * Pending batches holding messages of each journal entry (guarded by pending)
+	 */
+	private final Map<String, Integer> journalRefs = new HashMap<String, Integer>();
+
+	/**
+	 * Merged batches that could not be spooled, retried with the lingering ones (guarded by pending)
+	 */
+	private final List<Pending> unspooled = new ArrayList<Pending>();
+
+	/**
+	 * Open appender connections
+	 */
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Listening socket
+	 */
+	private final ServerSocket serverSocket;
+
+	/**
+	 * Accepts the appender connections
+	 */
+	private final Thread acceptor;
+
+	/**
+	 * Uploads the spooled batches
+	 */
+	private final Thread uploader;
+
+	/**
+	 * Seals the lingering batches
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Messages received from the appenders
+	 */
+	private final AtomicLong receivedCount = new AtomicLong();
+
+	/**
+	 * Batches uploaded
+	 */
+	private final AtomicLong uploadedCount = new AtomicLong();
+
+	/**
+	 * False once closed
+	 */
+	private volatile boolean running = true;
+
+	/**
+	 * Starts a relay
+	 * @param options Relay options
+	 * @throws IOException If the relay can not listen on its port
+	 */
+	public LogRelay(final RelayOptions options) throws IOException {
+		if (options.getBatchSize() < 1 || options.getLinger() < 1) {
+			throw new IllegalArgumentException("Invalid relay options: batchSize=" + options.getBatchSize() + ", linger=" + options.getLinger());
+		}
+
+		this.options = options;
+		this.spool = new RelaySpool(new File(options.getSpoolDirectory()), options.getSpoolMaxSize());
+
+		this.serverSocket = new ServerSocket();
+		this.serverSocket.setReuseAddress(true);
+		this.serverSocket.bind(new InetSocketAddress(InetAddress.getByName(options.getBindAddress()), options.getPort()));
+
+		this.acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "Stackify_RelayAcceptor");
+
+		this.uploader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				upload();
+			}
+		}, "Stackify_RelayUploader");
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "Stackify_RelaySealer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		long period = Math.max(1, options.getLinger() / 4);
+
+		this.scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				sealLingering();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+
+		this.acceptor.setDaemon(true);
+		this.acceptor.start();
+		this.uploader.setDaemon(true);
+		this.uploader.start();
+
+		recover();
+	}
+
+	/**
+	 * Runs a relay until the JVM stops
+	 * @param args Optional path of a properties file with the {@link RelayOptions}
+	 * @throws Exception If the relay can not start
+	 */
+	public static void main(final String[] args) throws Exception {
+		Properties properties = new Properties();
+
+		if (0 < args.length) {
+			InputStream in = new FileInputStream(args[0]);
+
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		}
+
+		final LogRelay relay = new LogRelay(RelayOptions.fromProperties(properties));
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				relay.close();
+			}
+		}, "Stackify_RelayShutdown"));
+
+		relay.acceptor.join();
+	}
+
+	/**
+	 * @return The port the relay listens on
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @return Messages received from the appenders
+	 */
+	public long getReceivedCount() {
+		return receivedCount.get();
+	}
+
+	/**
+	 * @return Batches uploaded
+	 */
+	public long getUploadedCount() {
+		return uploadedCount.get();
+	}
+
+	/**
+	 * @return Batches waiting in the spool
+	 */
+	public int getSpooledCount() {
+		return spool.getCount();
+	}
+
+	/**
+	 * @return Batches dropped because the spool was full
+	 */
+	public long getDroppedCount() {
+		return spool.getDropped();
+	}
+
+	/**
+	 * Merges the journal entries left by a previous run
+	 */
+	private void recover() {
+		for (String name : spool.takeRecovered()) {
+			try {
+				RelaySpool.Batch frame = spool.readJournal(name);
+				merge(frame.getApiKey(), codec.decode(frame.getBody()), name);
+			} catch (IOException e) {
+				LogLog.error("Exception recovering Stackify relay journal entry " + name + ", dropping it", e);
+				spool.release(name);
+			}
+		}
+	}
+
+	/**
+	 * Acceptor loop, one thread per appender connection
+	 */
+	private void accept() {
+		while (running) {
+			try {
+				final Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				connections.add(socket);
+
+				Thread connection = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				}, "Stackify_RelayConnection-" + socket.getPort());
+				connection.setDaemon(true);
+				connection.start();
+			} catch (IOException e) {
+				if (running) {
+					LogLog.error("Exception accepting a Stackify relay connection", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the frames of an appender connection
+	 * @param socket The connection
+	 */
+	private void serve(final Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+			if (in.readInt() != RelayProtocol.MAGIC) {
+				LogLog.warn("Closing Stackify relay connection from " + socket.getRemoteSocketAddress() + ": not an appender");
+				return;
+			}
+
+			while (running) {
+				String apiKey = in.readUTF();
+				byte[] batch = RelayProtocol.readBatch(in);
+				int answer = RelayProtocol.ACCEPTED;
+
+				try {
+					LogMsgGroup group = codec.decode(batch);
+
+					// on disk before the appender drops the batch
+
+					merge(apiKey, group, spool.journal(apiKey, batch));
+				} catch (IOException e) {
+					LogLog.error("Exception accepting a Stackify relay batch", e);
+					answer = RelayProtocol.REJECTED;
+				}
+
+				out.write(answer);
+				out.flush();
+			}
+		} catch (EOFException e) {
+			// appender disconnected
+		} catch (SocketException e) {
+			// appender or relay closed the connection
+		} catch (IOException e) {
+			if (running) {
+				LogLog.error("Exception reading Stackify relay connection", e);
+			}
+		} finally {
+			connections.remove(socket);
+			closeQuietly(socket);
+		}
+	}
+
+	/**
+	 * Merges the messages of an appender batch into the pending batch of its API key and application
+	 * @param apiKey The API key of the batch
+	 * @param group The appender batch
+	 * @throws IOException If the batch header can not be serialized
+	 */
+	void merge(final String apiKey, final LogMsgGroup group) throws IOException {
+		merge(apiKey, group, null);
+	}
+
+	/**
+	 * Merges the messages of an appender batch into the pending batch of its API key and application
+	 * @param apiKey The API key of the batch
+	 * @param group The appender batch
+	 * @param journal Journal entry of the batch, released once its messages are spooled (null if none)
+	 * @throws IOException If the batch header can not be serialized
+	 */
+	private void merge(final String apiKey, final LogMsgGroup group, final String journal) throws IOException {
+		List<LogMsg> msgs = (group.getMsgs() != null) ? group.getMsgs() : new ArrayList<LogMsg>();
+		LogMsgGroup header = group.toBuilder().msgs(null).build();
+		String key = apiKey + "\n" + json.writeValueAsString(header);
+
+		List<Pending> sealed = new ArrayList<Pending>();
+
+		synchronized (pending) {
+			for (LogMsg msg : msgs) {
+				Pending batch = pending.get(key);
+
+				if (batch == null) {
+					batch = new Pending(apiKey, header, options.getBatchSize());
+					pending.put(key, batch);
+				}
+
+				batch.msgs.add(msg);
+
+				if (journal != null && batch.journals.add(journal)) {
+					Integer refs = journalRefs.get(journal);
+					journalRefs.put(journal, (refs == null) ? 1 : refs + 1);
+				}
+
+				if (options.getBatchSize() <= batch.msgs.size()) {
+					pending.remove(key);
+					sealed.add(batch);
+				}
+			}
+		}
+
+		if (msgs.isEmpty() && journal != null) {
+			spool.release(journal);
+		}
+
+		receivedCount.addAndGet(msgs.size());
+
+		for (Pending batch : sealed) {
+			seal(batch);
+		}
+	}
+
+	/**
+	 * Seals the batches older than the linger time
+	 */
+	private void sealLingering() {
+		seal(TimeUnit.MILLISECONDS.toNanos(options.getLinger()));
+	}
+
+	/**
+	 * Seals the pending batches
+	 * @param age Minimum age of the sealed batches (nanoseconds)
+	 */
+	private void seal(final long age) {
+		List<Pending> sealed = new ArrayList<Pending>();
+		long now = System.nanoTime();
+
+		synchronized (pending) {
+			sealed.addAll(unspooled);
+			unspooled.clear();
+
+			for (Iterator<Pending> it = pending.values().iterator(); it.hasNext();) {
+				Pending batch = it.next();
+
+				if (age <= now - batch.since) {
+					it.remove();
+					sealed.add(batch);
+				}
+			}
+		}
+
+		for (Pending batch : sealed) {
+			seal(batch);
+		}
+	}
+
+	/**
+	 * Gzips a merged batch into the spool
+	 * @param batch The merged batch
+	 */
+	private void seal(final Pending batch) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+			json.writeValue(gzip, batch.header.toBuilder().msgs(batch.msgs).build());
+			gzip.close();
+
+			spool.write(batch.apiKey, bytes.toByteArray());
+		} catch (Exception e) {
+
+			// kept with its journal entries and retried, the next run merges the entries again
+
+			LogLog.error("Exception spooling a Stackify relay batch of " + batch.msgs.size() + " messages, retrying", e);
+
+			synchronized (pending) {
+				unspooled.add(batch);
+			}
+			return;
+		}
+
+		release(batch);
+	}
+
+	/**
+	 * Releases the journal entries whose messages are all spooled
+	 * @param batch The spooled batch
+	 */
+	private void release(final Pending batch) {
+		List<String> released = new ArrayList<String>();
+
+		synchronized (pending) {
+			for (String journal : batch.journals) {
+				int refs = journalRefs.get(journal) - 1;
+
+				if (refs == 0) {
+					journalRefs.remove(journal);
+					released.add(journal);
+				} else {
+					journalRefs.put(journal, refs);
+				}
+			}
+		}
+
+		for (String journal : released) {
+			spool.release(journal);
+		}
+	}
+
+	/**
+	 * Uploader loop, oldest batch first
+	 */
+	private void upload() {
+		long retryDelay = 0;
+
+		try {
+			while (running) {
+				RelaySpool.Batch batch = spool.peek(MIN_RETRY_DELAY);
+
+				if (batch == null) {
+					continue;
+				}
+
+				int status;
+
+				try {
+					status = post(batch.getApiKey(), batch.getBody());
+				} catch (IOException e) {
+					status = -1;
+				}
+
+				if (200 <= status && status < 300) {
+					spool.delete(batch.getName());
+					uploadedCount.incrementAndGet();
+					retryDelay = 0;
+				} else if (400 <= status && status < 500 && status != 408 && status != 429) {
+
+					// resending can not succeed
+
+					LogLog.error("Stackify rejected relay batch " + batch.getName() + " with HTTP " + status + ", dropping it");
+					spool.delete(batch.getName());
+				} else {
+					retryDelay = Math.min(MAX_RETRY_DELAY, Math.max(MIN_RETRY_DELAY, retryDelay * 2));
+
+					LogLog.warn("Stackify relay upload failed (" + ((status < 0) ? "no connection" : "HTTP " + status)
+							+ "), " + spool.getCount() + " batches spooled, retrying in " + retryDelay + " ms");
+
+					Thread.sleep(retryDelay);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Posts a gzipped batch to the Stackify API
+	 * @param apiKey The API key of the batch
+	 * @param body The gzipped JSON body
+	 * @return The HTTP status
+	 * @throws IOException If the batch can not be posted
+	 */
+	private int post(final String apiKey, final byte[] body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(options.getApiUrl() + LOG_SAVE_PATH).openConnection();
+
+		try {
+			connection.setDoInput(true);
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/json");
+			connection.setRequestProperty("Content-Encoding", "gzip");
+			connection.setRequestProperty("X-Stackify-Key", apiKey);
+			connection.setRequestProperty("X-Stackify-PV", "V1");
+			connection.setRequestMethod("POST");
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+			connection.setFixedLengthStreamingMode(body.length);
+
+			OutputStream out = connection.getOutputStream();
+			out.write(body);
+			out.close();
+
+			int status = connection.getResponseCode();
+			InputStream response = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+
+			if (response != null) {
+				while (0 <= response.read()) {
+					// drain, so the connection is reused
+				}
+				response.close();
+			}
+
+			return status;
+		} catch (IOException e) {
+			connection.disconnect();
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops accepting batches and spools the pending ones. The spooled batches are uploaded by the next run.
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		if (!running) {
+			return;
+		}
+
+		running = false;
+
+		closeQuietly(serverSocket);
+
+		for (Socket socket : connections) {
+			closeQuietly(socket);
+		}
+
+		scheduler.shutdownNow();
+		uploader.interrupt();
+
+		try {
+			uploader.join(READ_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		seal(0);
+	}
+
+	/**
+	 * @param closeable Socket to close, ignoring errors
+	 */
+	private static void closeQuietly(final Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	/**
+	 * Batch being merged
+	 */
+	private static final class Pending {
+
+		/**
+		 * The API key of the batch
+		 */
+		private final String apiKey;
+
+		/**
+		 * Application of the batch (without messages)
+		 */
+		private final LogMsgGroup header;
+
+		/**
+		 * Merged messages
+		 */
+		private final List<LogMsg> msgs;
+
+		/**
+		 * Journal entries with messages in the batch
+		 */
+		private final Set<String> journals = new HashSet<String>();
+
+		/**
+		 * Time the first message was merged (System.nanoTime)
+		 */
+		private final long since = System.nanoTime();
+
+		/**
+		 * Constructor
+		 * @param apiKey The API key of the batch
+		 * @param header Application of the batch (without messages)
+		 * @param batchSize Messages per merged batch
+		 */
+		private Pending(final String apiKey, final LogMsgGroup header, final int batchSize) {
+			this.apiKey = apiKey;
+			this.header = header;
+			this.msgs = new ArrayList<LogMsg>(batchSize);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12.relay;
+
+import java.util.Properties;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Immutable options of a {@link LogRelay}.
+ */
+@Getter
+@Builder(builderClassName = "Builder", builderMethodName = "newBuilder", toBuilder = true)
+public final class RelayOptions {
+
+	/**
+	 * Address the relay listens on
+	 */
+	private final String bindAddress;
+
+	/**
+	 * Port the relay listens on, 0 for any free port
+	 */
+	private final int port;
+
+	/**
+	 * Stackify API URL the merged batches are uploaded to
+	 */
+	private final String apiUrl;
+
+	/**
+	 * Directory of the batches waiting to be uploaded
+	 */
+	private final String spoolDirectory;
+
+	/**
+	 * Bytes of batches kept on disk, the oldest batches are dropped beyond it
+	 */
+	private final long spoolMaxSize;
+
+	/**
+	 * Messages per merged batch
+	 */
+	private final int batchSize;
+
+	/**
+	 * Maximum time a message waits for its batch to fill (milliseconds)
+	 */
+	private final long linger;
+
+	/**
+	 * Reads the options from properties, with defaults for the missing ones
+	 * @param properties The properties (bindAddress, port, apiUrl, spoolDirectory, spoolMaxSize, batchSize and linger)
+	 * @return The options
+	 */
+	public static RelayOptions fromProperties(final Properties properties) {
+		return RelayOptions.newBuilder()
+				.bindAddress(properties.getProperty("bindAddress", "127.0.0.1").trim())
+				.port(Integer.parseInt(properties.getProperty("port", String.valueOf(RelayProtocol.DEFAULT_PORT)).trim()))
+				.apiUrl(properties.getProperty("apiUrl", "https://api.stackify.com").trim())
+				.spoolDirectory(properties.getProperty("spoolDirectory", "stackify-relay").trim())
+				.spoolMaxSize(Long.parseLong(properties.getProperty("spoolMaxSize", "1073741824").trim()))
+				.batchSize(Integer.parseInt(properties.getProperty("batchSize", "2000").trim()))
+				.linger(Long.parseLong(properties.getProperty("linger", "5000").trim()))
+				.build();
+	}
+}
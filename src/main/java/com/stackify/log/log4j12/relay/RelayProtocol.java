@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12.relay;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Wire format between the appenders and the relay.
+ *
+ * <p>
+ * A connection starts with the {@link #MAGIC} number sent by the appender, followed by frames:
+ * <pre>
+ * apiKey (modified UTF-8) | length (int) | batch (DictionaryBatchCodec, masked)
+ * </pre>
+ * The relay answers each frame with one byte, {@link #ACCEPTED} once the batch is merged or
+ * {@link #REJECTED} when it can not be decoded.
+ */
+public final class RelayProtocol {
+
+	/**
+	 * First bytes of a connection ("SLR1")
+	 */
+	public static final int MAGIC = 0x534c5231;
+
+	/**
+	 * Default relay port
+	 */
+	public static final int DEFAULT_PORT = 9442;
+
+	/**
+	 * Answer to a merged batch
+	 */
+	public static final int ACCEPTED = 0;
+
+	/**
+	 * Answer to a batch that can not be decoded
+	 */
+	public static final int REJECTED = 1;
+
+	/**
+	 * Largest encoded batch (bytes)
+	 */
+	public static final int MAX_FRAME = 64 * 1024 * 1024;
+
+	/**
+	 * Hidden constructor
+	 */
+	private RelayProtocol() {
+	}
+
+	/**
+	 * Writes a frame
+	 * @param out The connection
+	 * @param apiKey The API key of the batch
+	 * @param batch The encoded batch
+	 * @throws IOException If the frame can not be written
+	 */
+	public static void writeFrame(final DataOutputStream out, final String apiKey, final byte[] batch) throws IOException {
+		out.writeUTF(apiKey);
+		out.writeInt(batch.length);
+		out.write(batch);
+		out.flush();
+	}
+
+	/**
+	 * Reads the batch of a frame, after its API key
+	 * @param in The connection
+	 * @return The encoded batch
+	 * @throws IOException If the frame can not be read or is too large
+	 */
+	public static byte[] readBatch(final DataInputStream in) throws IOException {
+		int length = in.readInt();
+
+		if (length < 0 || MAX_FRAME < length) {
+			throw new IOException("Invalid Stackify relay frame length " + length);
+		}
+
+		byte[] batch = new byte[length];
+		in.readFully(batch);
+		return batch;
+	}
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12.relay;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Disk buffer of the merged batches waiting to be uploaded.
+ *
+ * <p>
+ * Each batch is a file holding its API key and its gzipped JSON body, named by a sequence number so
+ * the oldest batch is uploaded first. A file is written under a temporary name and renamed once
+ * complete, so the batches left by a previous run are uploaded after a restart. The oldest batches
+ * are dropped when the spool exceeds its maximum size.
+ *
+ * <p>
+ * The spool also journals each appender batch as received, before the relay acknowledges it. A
+ * journal entry is released once its messages are spooled in merged batches, and the entries left by
+ * a crash are merged again by the next run. Journal entries count toward the maximum size: the oldest
+ * batches are dropped to make room for them, and a batch is refused once the journal alone fills the
+ * spool. Every file is forced to the storage device before it is renamed into place.
+ */
+final class RelaySpool {
+
+	/**
+	 * Extension of the batch files
+	 */
+	static final String EXTENSION = ".batch";
+
+	/**
+	 * Extension of the journaled appender batches
+	 */
+	static final String JOURNAL_EXTENSION = ".frame";
+
+	/**
+	 * Extension of the files being written
+	 */
+	private static final String TEMP_EXTENSION = ".tmp";
+
+	/**
+	 * Directory of the batch files
+	 */
+	private final File directory;
+
+	/**
+	 * Bytes of batches kept, the oldest are dropped beyond it
+	 */
+	private final long maxSize;
+
+	/**
+	 * Size of each batch file, by file name (oldest first)
+	 */
+	private final TreeMap<String, Long> files = new TreeMap<String, Long>();
+
+	/**
+	 * Size of each journal entry not released yet, by file name
+	 */
+	private final Map<String, Long> journals = new HashMap<String, Long>();
+
+	/**
+	 * Journaled appender batches left by a previous run (oldest first)
+	 */
+	private final TreeSet<String> recovered = new TreeSet<String>();
+
+	/**
+	 * Total size of the batch files
+	 */
+	private long size = 0;
+
+	/**
+	 * Total size of the journal entries not released yet
+	 */
+	private long journalSize = 0;
+
+	/**
+	 * Sequence number of the next batch
+	 */
+	private long sequence = 0;
+
+	/**
+	 * Number of batches dropped because the spool was full
+	 */
+	private long dropped = 0;
+
+	/**
+	 * Constructor, picks up the batches of a previous run
+	 * @param directory Directory of the batch files
+	 * @param maxSize Bytes of batches kept, the oldest are dropped beyond it
+	 */
+	RelaySpool(final File directory, final long maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Invalid spoolMaxSize: " + maxSize);
+		}
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Can not create the Stackify relay spool directory " + directory);
+		}
+
+		this.directory = directory;
+		this.maxSize = maxSize;
+
+		File[] existing = directory.listFiles();
+
+		for (File file : (existing != null) ? existing : new File[0]) {
+			String name = file.getName();
+
+			if (name.endsWith(TEMP_EXTENSION)) {
+				file.delete();
+			} else if (name.endsWith(EXTENSION)) {
+				files.put(name, file.length());
+				size += file.length();
+				sequence = Math.max(sequence, Long.parseLong(name.substring(0, name.length() - EXTENSION.length())) + 1);
+			} else if (name.endsWith(JOURNAL_EXTENSION)) {
+				recovered.add(name);
+				journals.put(name, file.length());
+				journalSize += file.length();
+				sequence = Math.max(sequence, Long.parseLong(name.substring(0, name.length() - JOURNAL_EXTENSION.length())) + 1);
+			}
+		}
+	}
+
+	/**
+	 * Adds a batch
+	 * @param apiKey The API key of the batch
+	 * @param body The gzipped JSON body
+	 * @throws IOException If the batch can not be written
+	 */
+	void write(final String apiKey, final byte[] body) throws IOException {
+		String name;
+
+		synchronized (this) {
+			name = String.format("%019d", sequence++) + EXTENSION;
+		}
+
+		File file = writeFile(name, apiKey, body);
+
+		synchronized (this) {
+			files.put(name, file.length());
+			size += file.length();
+
+			while (maxSize < size + journalSize && 1 < files.size()) {
+				dropOldest();
+			}
+
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Journals an appender batch before it is acknowledged
+	 * @param apiKey The API key of the batch
+	 * @param frame The encoded appender batch
+	 * @return Name of the journal entry, to release once its messages are spooled
+	 * @throws IOException If the batch can not be written
+	 */
+	String journal(final String apiKey, final byte[] frame) throws IOException {
+		String name;
+
+		synchronized (this) {
+			while (maxSize < size + journalSize + frame.length && !files.isEmpty()) {
+				dropOldest();
+			}
+
+			if (maxSize < size + journalSize + frame.length) {
+				throw new IOException("Stackify relay spool is full with " + journals.size() + " journaled batches not spooled yet");
+			}
+
+			name = String.format("%019d", sequence++) + JOURNAL_EXTENSION;
+			journals.put(name, (long) frame.length);
+			journalSize += frame.length;
+		}
+
+		try {
+			writeFile(name, apiKey, frame);
+		} catch (IOException e) {
+			forget(name);
+			throw e;
+		}
+
+		return name;
+	}
+
+	/**
+	 * Deletes a journal entry whose messages are spooled
+	 * @param name Name of the journal entry
+	 */
+	void release(final String name) {
+		forget(name);
+
+		if (!new File(directory, name).delete()) {
+			LogLog.warn("Unable to delete Stackify relay journal entry " + name);
+		}
+	}
+
+	/**
+	 * Stops counting a journal entry toward the spool size
+	 * @param name Name of the journal entry
+	 */
+	private synchronized void forget(final String name) {
+		Long length = journals.remove(name);
+
+		if (length != null) {
+			journalSize -= length;
+		}
+	}
+
+	/**
+	 * Drops the oldest batch to make room, holding the spool lock
+	 */
+	private void dropOldest() {
+		Map.Entry<String, Long> oldest = files.pollFirstEntry();
+		size -= oldest.getValue();
+		++dropped;
+
+		new File(directory, oldest.getKey()).delete();
+		LogLog.warn("Stackify relay spool is full, dropped batch " + oldest.getKey());
+	}
+
+	/**
+	 * @return Names of the journal entries left by a previous run, oldest first
+	 */
+	synchronized List<String> takeRecovered() {
+		List<String> names = new ArrayList<String>(recovered);
+		recovered.clear();
+		return names;
+	}
+
+	/**
+	 * @param name Name of a journal entry
+	 * @return The journaled appender batch, its body being the encoded batch
+	 * @throws IOException If the entry can not be read
+	 */
+	Batch readJournal(final String name) throws IOException {
+		return read(name);
+	}
+
+	/**
+	 * Writes a file under a temporary name, forces it to the device and renames it
+	 * @param name File name
+	 * @param apiKey The API key of the content
+	 * @param body The content
+	 * @return The file
+	 * @throws IOException If the file can not be written
+	 */
+	private File writeFile(final String name, final String apiKey, final byte[] body) throws IOException {
+		File temp = new File(directory, name + TEMP_EXTENSION);
+		FileOutputStream stream = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+		try {
+			out.writeUTF(apiKey);
+			out.write(body);
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		File file = new File(directory, name);
+
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Can not rename the Stackify relay file " + temp);
+		}
+
+		return file;
+	}
+
+	/**
+	 * Reads the oldest batch, waiting for one
+	 * @param timeout Maximum wait (milliseconds)
+	 * @return The oldest batch, null if none arrived in time
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	synchronized Batch peek(final long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		while (true) {
+			while (files.isEmpty()) {
+				long remaining = deadline - System.currentTimeMillis();
+
+				if (remaining <= 0) {
+					return null;
+				}
+
+				wait(remaining);
+			}
+
+			String name = files.firstKey();
+
+			try {
+				return read(name);
+			} catch (IOException e) {
+				LogLog.error("Exception reading Stackify relay batch " + name + ", dropping it", e);
+				delete(name);
+			}
+		}
+	}
+
+	/**
+	 * @param name File name of the batch
+	 * @return The batch
+	 * @throws IOException If the batch can not be read
+	 */
+	private Batch read(final String name) throws IOException {
+		byte[] bytes = Files.readAllBytes(new File(directory, name).toPath());
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+		String apiKey = in.readUTF();
+		byte[] body = Arrays.copyOfRange(bytes, bytes.length - in.available(), bytes.length);
+
+		return new Batch(name, apiKey, body);
+	}
+
+	/**
+	 * Removes an uploaded batch
+	 * @param name File name of the batch
+	 */
+	synchronized void delete(final String name) {
+		Long length = files.remove(name);
+
+		if (length != null) {
+			size -= length;
+			new File(directory, name).delete();
+		}
+	}
+
+	/**
+	 * @return Number of batches waiting to be uploaded
+	 */
+	synchronized int getCount() {
+		return files.size();
+	}
+
+	/**
+	 * @return Total size of the batches waiting to be uploaded (bytes)
+	 */
+	synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return Total size of the journal entries not released yet (bytes)
+	 */
+	synchronized long getJournalSize() {
+		return journalSize;
+	}
+
+	/**
+	 * @return Number of batches dropped because the spool was full
+	 */
+	synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Batch read from the spool
+	 */
+	static final class Batch {
+
+		/**
+		 * File name of the batch
+		 */
+		private final String name;
+
+		/**
+		 * The API key of the batch
+		 */
+		private final String apiKey;
+
+		/**
+		 * The gzipped JSON body
+		 */
+		private final byte[] body;
+
+		/**
+		 * Constructor
+		 * @param name File name of the batch
+		 * @param apiKey The API key of the batch
+		 * @param body The gzipped JSON body
+		 */
+		private Batch(final String name, final String apiKey, final byte[] body) {
+			this.name = name;
+			this.apiKey = apiKey;
+			this.body = body;
+		}
+
+		/**
+		 * @return File name of the batch
+		 */
+		String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The API key of the batch
+		 */
+		String getApiKey() {
+			return apiKey;
+		}
+
+		/**
+		 * @return The gzipped JSON body
+		 */
+		byte[] getBody() {
+			return body;
+		}
+	}
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12.replay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.stackify.api.common.ApiClients;
+import com.stackify.api.common.ApiConfiguration;
+import com.stackify.api.common.ApiConfigurations;
+import com.stackify.api.common.mask.Masker;
+import com.stackify.log.log4j12.AppenderSettings;
+import com.stackify.log.log4j12.ConcurrentLogTransport;
+import com.stackify.log.log4j12.LogPipeline;
+import com.stackify.log.log4j12.LoggingEventAdapter;
+import com.stackify.log.log4j12.MdcProjection;
+import com.stackify.log.log4j12.PipelineOptions;
+import com.stackify.log.log4j12.StackifyLogAppender;
+
+/**
+ * Replays log files written by a log4j PatternLayout into Stackify, for example after an outage.
+ *
+ * <p>
+ * Each file is split into chunks parsed in parallel from memory-mapped reads. A chunk starts at its
+ * first record and finishes the record running past its end, so records spanning several lines
+ * (stack traces) are never split. The records are rebuilt into logging events with their original
+ * timestamps, then converted by the {@link LoggingEventAdapter} and uploaded through a
+ * {@link LogPipeline} whose buffer lane masks and serializes the backlog in parallel. The parsing
+ * threads wait while the buffer lane is full, so no event is evicted. The duplicate errors are not
+ * throttled, as the throttle counts them by the time they are replayed rather than logged.
+ *
+ * <pre>
+ * java -cp stackify-log-log4j12.jar:&lt;dependencies&gt; com.stackify.log.log4j12.replay.LogReplay replay.properties app.log [app.log.1 ...]
+ * </pre>
+ */
+public class LogReplay implements Closeable {
+
+	/**
+	 * Bytes read past the end of a chunk to finish its last record
+	 */
+	private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+	/**
+	 * Messages waiting in the buffer lane before the parsing threads wait
+	 */
+	private static final int MAX_BACKLOG = 50000;
+
+	/**
+	 * Events appended by a parsing thread between two checks of the backlog
+	 */
+	private static final int BACKLOG_CHECK_INTERVAL = 256;
+
+	/**
+	 * Replay options
+	 */
+	private final ReplayOptions options;
+
+	/**
+	 * Charset of the files
+	 */
+	private final Charset charset;
+
+	/**
+	 * Time zone of the dates
+	 */
+	private final TimeZone timeZone;
+
+	/**
+	 * Converts and uploads the events
+	 */
+	private final LogPipeline pipeline;
+
+	/**
+	 * Parses the chunks
+	 */
+	private final ExecutorService parsers;
+
+	/**
+	 * Events replayed
+	 */
+	private final AtomicLong eventCount = new AtomicLong();
+
+	/**
+	 * Lines skipped before the first record of a file
+	 */
+	private final AtomicLong skippedLineCount = new AtomicLong();
+
+	/**
+	 * Records cut at {@link #MAX_RECORD_LENGTH} past the end of their chunk
+	 */
+	private final AtomicLong truncatedRecordCount = new AtomicLong();
+
+	/**
+	 * Bytes of the files replayed
+	 */
+	private final AtomicLong byteCount = new AtomicLong();
+
+	/**
+	 * Starts the pipeline of a replay
+	 * @param options Replay options
+	 */
+	public LogReplay(final ReplayOptions options) {
+		if (options.getThreads() < 1 || options.getChunkSize() < 1) {
+			throw new IllegalArgumentException("Invalid replay options: threads=" + options.getThreads() + ", chunkSize=" + options.getChunkSize());
+		}
+
+		this.options = options;
+		this.charset = options.toCharset();
+		this.timeZone = (options.getTimeZone() != null) ? TimeZone.getTimeZone(options.getTimeZone().trim()) : TimeZone.getDefault();
+
+		// fail on an invalid pattern before starting anything
+
+		new ReplayPattern(options.getPattern(), timeZone);
+
+		Masker masker = new Masker();
+
+		if (options.isMaskEnabled()) {
+			masker.addMask(Masker.MASK_CREDITCARD);
+			masker.addMask(Masker.MASK_SSN);
+		} else {
+			masker.clearMasks();
+		}
+
+		ApiConfiguration apiConfig = ApiConfigurations.fromPropertiesWithOverrides(options.getApiUrl(), options.getApiKey(),
+				options.getApplication(), options.getEnvironment(), null, "false");
+
+		String clientName = ApiClients.getApiClient(StackifyLogAppender.class, "/stackify-log-log4j12.properties", "stackify-log-log4j12");
+
+		AppenderSettings settings = AppenderSettings.newBuilder()
+				.masker(masker)
+				.mdcProjection(MdcProjection.ALL)
+				.build();
+
+		// the buffer lane with a parallel assembler drains the backlog
+
+		PipelineOptions pipelineOptions = PipelineOptions.newBuilder()
+				.uploaderThreads(options.getUploaderThreads())
+				.uploaderPartition(ConcurrentLogTransport.PARTITION_THREAD)
+				.assemblyThreads(Math.max(2, options.getThreads()))
+				.unthrottledErrors(true)
+				.build();
+
+		this.pipeline = new LogPipeline(clientName, new LoggingEventAdapter(apiConfig.getEnvDetail()), settings, pipelineOptions);
+		this.pipeline.activate(apiConfig);
+
+		final AtomicInteger threadCount = new AtomicInteger();
+
+		this.parsers = Executors.newFixedThreadPool(options.getThreads(), new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "Stackify_ReplayParser-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Replays files
+	 * @param args Path of a properties file with the {@link ReplayOptions}, then the log files in order
+	 * @throws Exception If a file can not be replayed
+	 */
+	public static void main(final String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: LogReplay replay.properties file...");
+			System.exit(2);
+		}
+
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(args[0]);
+
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+
+		LogReplay replay = new LogReplay(ReplayOptions.fromProperties(properties));
+
+		try {
+			for (int i = 1; i < args.length; ++i) {
+				long start = System.nanoTime();
+				long bytes = replay.getByteCount();
+				long events = replay.replay(new File(args[i]));
+				double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+
+				System.out.println(args[i] + ": " + events + " events, " + Math.round((replay.getByteCount() - bytes) / seconds / (1024 * 1024))
+						+ " MB/s");
+			}
+		} finally {
+			replay.close();
+		}
+
+		System.out.println("Uploaded " + replay.getEventCount() + " events");
+	}
+
+	/**
+	 * Parses a file and appends its events to the pipeline
+	 * @param file The log file
+	 * @return Events of the file
+	 * @throws IOException If the file can not be read
+	 * @throws InterruptedException If interrupted while parsing
+	 */
+	public long replay(final File file) throws IOException, InterruptedException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			final FileChannel channel = raf.getChannel();
+			final long size = channel.size();
+
+			List<Future<Long>> chunks = new ArrayList<Future<Long>>();
+
+			for (long offset = 0; offset < size; offset += options.getChunkSize()) {
+				final long start = offset;
+				final long end = Math.min(size, offset + options.getChunkSize());
+
+				chunks.add(parsers.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						return parseChunk(file, channel, size, start, end);
+					}
+				}));
+			}
+
+			long events = 0;
+
+			for (Future<Long> chunk : chunks) {
+				try {
+					events += chunk.get();
+				} catch (ExecutionException e) {
+					for (Future<Long> other : chunks) {
+						other.cancel(true);
+					}
+
+					throw new IOException("Exception replaying " + file, e.getCause());
+				}
+			}
+
+			byteCount.addAndGet(size);
+
+			return events;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Parses the records starting in a chunk of a file
+	 * @param file The log file
+	 * @param channel The file
+	 * @param size Size of the file
+	 * @param start Start of the chunk
+	 * @param end End of the chunk
+	 * @return Events of the chunk
+	 * @throws IOException If the file can not be read
+	 * @throws InterruptedException If interrupted while waiting for the pipeline
+	 */
+	private long parseChunk(final File file, final FileChannel channel, final long size, final long start, final long end) throws IOException, InterruptedException {
+
+		// map one byte before the chunk to know if it starts a line
+
+		long from = (start == 0) ? 0 : start - 1;
+		long to = Math.min(size, end + MAX_RECORD_LENGTH);
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+
+		int limit = buffer.limit();
+		int chunkEnd = (int) (end - from);
+		int pos = 0;
+
+		if (start != 0) {
+			while (pos < limit && buffer.get(pos) != '\n') {
+				++pos;
+			}
+
+			++pos;
+		}
+
+		ReplayPattern pattern = new ReplayPattern(options.getPattern(), timeZone);
+		byte[] bytes = new byte[256];
+
+		ReplayPattern.Record record = null;
+		int recordPos = 0;
+		StringBuilder continuation = new StringBuilder();
+		boolean continued = false;
+		long events = 0;
+		long skipped = 0;
+
+		while (pos < limit) {
+			int eol = pos;
+
+			while (eol < limit && buffer.get(eol) != '\n') {
+				++eol;
+			}
+
+			int length = eol - pos;
+
+			if (0 < length && buffer.get(eol - 1) == '\r') {
+				--length;
+			}
+
+			if (bytes.length < length) {
+				bytes = new byte[Math.max(length, bytes.length * 2)];
+			}
+
+			buffer.position(pos);
+			buffer.get(bytes, 0, length);
+
+			boolean inChunk = pos < chunkEnd;
+
+			if (record == null && !inChunk) {
+				break;
+			}
+
+			String line = new String(bytes, 0, length, charset);
+			ReplayPattern.Record next = pattern.parse(line);
+
+			if (next == null) {
+
+				// lines before the first record belong to the previous chunk
+
+				if (record != null) {
+					if (continued) {
+						continuation.append('\n');
+					}
+
+					continuation.append(line);
+					continued = true;
+				} else if (start == 0 && inChunk) {
+					++skipped;
+				}
+			} else {
+				if (record != null) {
+					append(pattern.toEvent(record, continued ? continuation.toString() : null), ++events);
+				}
+
+				// a record starting after the chunk belongs to the next chunk
+
+				if (!inChunk) {
+					record = null;
+					break;
+				}
+
+				record = next;
+				recordPos = pos;
+				continuation.setLength(0);
+				continued = false;
+			}
+
+			pos = eol + 1;
+		}
+
+		if (record != null) {
+
+			// the mapping ended before the file, the record may go on
+
+			if (to < size) {
+				truncatedRecordCount.incrementAndGet();
+				LogLog.warn("Stackify replay cut the record at byte " + (from + recordPos) + " of " + file + " to " + MAX_RECORD_LENGTH
+						+ " bytes past its chunk");
+			}
+
+			append(pattern.toEvent(record, continued ? continuation.toString() : null), ++events);
+		}
+
+		skippedLineCount.addAndGet(skipped);
+
+		return events;
+	}
+
+	/**
+	 * Appends an event to the pipeline, waiting while its backlog is full
+	 * @param event The event
+	 * @param index Number of events appended by the chunk
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private void append(final LoggingEvent event, final long index) throws InterruptedException {
+		if (index % BACKLOG_CHECK_INTERVAL == 0) {
+			while (MAX_BACKLOG < pipeline.getBacklog()) {
+				Thread.sleep(1);
+			}
+		}
+
+		pipeline.append(event);
+		eventCount.incrementAndGet();
+	}
+
+	/**
+	 * @return Events replayed
+	 */
+	public long getEventCount() {
+		return eventCount.get();
+	}
+
+	/**
+	 * @return Lines at the start of the files that are not part of a record
+	 */
+	public long getSkippedLineCount() {
+		return skippedLineCount.get();
+	}
+
+	/**
+	 * @return Records cut at the maximum record length
+	 */
+	public long getTruncatedRecordCount() {
+		return truncatedRecordCount.get();
+	}
+
+	/**
+	 * @return Bytes of the files replayed
+	 */
+	public long getByteCount() {
+		return byteCount.get();
+	}
+
+	/**
+	 * Uploads the remaining events and stops the pipeline
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		parsers.shutdownNow();
+		pipeline.close();
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12.replay;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Properties;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Immutable options of a {@link LogReplay}.
+ */
+@Getter
+@Builder(builderClassName = "Builder", builderMethodName = "newBuilder", toBuilder = true)
+public final class ReplayOptions {
+
+	/**
+	 * Stackify API URL
+	 */
+	private final String apiUrl;
+
+	/**
+	 * Stackify API key
+	 */
+	private final String apiKey;
+
+	/**
+	 * Application name
+	 */
+	private final String application;
+
+	/**
+	 * Environment
+	 */
+	private final String environment;
+
+	/**
+	 * PatternLayout conversion pattern the files were written with
+	 */
+	private final String pattern;
+
+	/**
+	 * Charset of the files, one writing ASCII as single bytes such as UTF-8 or ISO-8859-1
+	 */
+	private final String charset;
+
+	/**
+	 * Time zone of the dates in the files
+	 */
+	private final String timeZone;
+
+	/**
+	 * Number of threads parsing chunks of a file in parallel
+	 */
+	private final int threads;
+
+	/**
+	 * Bytes of a file parsed by one task
+	 */
+	private final int chunkSize;
+
+	/**
+	 * Number of concurrent upload lanes
+	 */
+	private final int uploaderThreads;
+
+	/**
+	 * Masks credit card and social security numbers before upload
+	 */
+	private final boolean maskEnabled;
+
+	/**
+	 * @return The charset of the files
+	 * @throws IllegalArgumentException If the charset is unknown, or does not write ASCII as single bytes
+	 * (UTF-16, UTF-32), as the files are split at the line feed bytes before they are decoded
+	 */
+	Charset toCharset() {
+		Charset files = Charset.forName(charset);
+		String ascii = "\r\n -:[]09AZaz";
+
+		if (!files.canEncode() || !Arrays.equals(ascii.getBytes(files), ascii.getBytes(Charset.forName("US-ASCII")))) {
+			throw new IllegalArgumentException("Unsupported replay charset " + charset + ", the files must be ASCII compatible (UTF-8, ISO-8859-1, ...)");
+		}
+
+		return files;
+	}
+
+	/**
+	 * Reads the options from properties, with defaults for the missing ones
+	 * @param properties The properties (apiUrl, apiKey, application, environment, pattern, charset, timeZone,
+	 * threads, chunkSize, uploaderThreads and maskEnabled)
+	 * @return The options
+	 */
+	public static ReplayOptions fromProperties(final Properties properties) {
+		return ReplayOptions.newBuilder()
+				.apiUrl(properties.getProperty("apiUrl", "https://api.stackify.com").trim())
+				.apiKey(properties.getProperty("apiKey"))
+				.application(properties.getProperty("application"))
+				.environment(properties.getProperty("environment"))
+				.pattern(properties.getProperty("pattern", "%d %-5p [%t] %c - %m%n"))
+				.charset(properties.getProperty("charset", "UTF-8").trim())
+				.timeZone(properties.getProperty("timeZone"))
+				.threads(Integer.parseInt(properties.getProperty("threads", String.valueOf(Runtime.getRuntime().availableProcessors())).trim()))
+				.chunkSize(Integer.parseInt(properties.getProperty("chunkSize", "33554432").trim()))
+				.uploaderThreads(Integer.parseInt(properties.getProperty("uploaderThreads", "2").trim()))
+				.maskEnabled(Boolean.parseBoolean(properties.getProperty("maskEnabled", "false").trim()))
+				.build();
+	}
+}
@@ -0,0 +1,728 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12.replay;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Parses the lines written by a log4j PatternLayout back into logging events.
+ *
+ * <p>
+ * The conversion pattern is compiled into literals and fields: %d (a SimpleDateFormat, ISO8601 or
+ * DATE), %p, %c, %C, %t, %m, %x, %X{key}, %F, %L, %M and %l, with their padding. A line is matched
+ * from left to right without backtracking: the date is matched by its format, the level, logger,
+ * class, file, line and method by a single word, and the other fields extend to the next literal.
+ * Other conversions are skipped like text. A line that does not match, or whose date or level does
+ * not parse, continues the previous record, like the lines of a stack trace.
+ *
+ * <p>
+ * Not thread safe, each parsing thread uses its own instance.
+ */
+final class ReplayPattern {
+
+	/**
+	 * Fields of the conversions
+	 */
+	private enum Field {
+		DATE, LEVEL, LOGGER, CLASS, FILE, LINE, METHOD, LOCATION, THREAD, NDC, MDC, MESSAGE, IGNORED
+	}
+
+	/**
+	 * Thread name of the events when the pattern has no %t
+	 */
+	private static final String UNKNOWN_THREAD = "?";
+
+	/**
+	 * Fully qualified name of the logger class of the events
+	 */
+	private static final String FQCN = Logger.class.getName();
+
+	/**
+	 * Literals and fields of the pattern
+	 */
+	private final Token[] tokens;
+
+	/**
+	 * Matches the dates of the %d field
+	 */
+	private final Matcher dateMatcher;
+
+	/**
+	 * Parses the %d group, without its trailing milliseconds if any
+	 */
+	private final SimpleDateFormat dateFormat;
+
+	/**
+	 * True if the date ends with its milliseconds, added to the time of the rest of the date
+	 */
+	private final boolean trailingMillis;
+
+	/**
+	 * Position of the date parsing
+	 */
+	private final ParsePosition position = new ParsePosition(0);
+
+	/**
+	 * Loggers by name
+	 */
+	private final Map<String, Logger> loggers = new HashMap<String, Logger>();
+
+	/**
+	 * Last date parsed, without its trailing milliseconds
+	 */
+	private String lastDate;
+
+	/**
+	 * Time of the last date parsed
+	 */
+	private long lastTime;
+
+	/**
+	 * Constructor
+	 * @param conversionPattern The PatternLayout conversion pattern
+	 * @param timeZone Time zone of the dates
+	 */
+	ReplayPattern(final String conversionPattern, final TimeZone timeZone) {
+		List<Token> list = new ArrayList<Token>();
+		StringBuilder literal = new StringBuilder();
+		String datePattern = null;
+
+		int i = 0;
+		int length = conversionPattern.length();
+
+		while (i < length) {
+			char c = conversionPattern.charAt(i++);
+
+			if (c != '%') {
+				literal.append(c);
+				continue;
+			}
+
+			if (length <= i) {
+				throw new IllegalArgumentException("Invalid pattern: " + conversionPattern);
+			}
+
+			if (conversionPattern.charAt(i) == '%') {
+				literal.append('%');
+				++i;
+				continue;
+			}
+
+			// format modifiers, only the padding matters
+
+			int start = i;
+
+			while (i < length && "-.0123456789".indexOf(conversionPattern.charAt(i)) != -1) {
+				++i;
+			}
+
+			boolean leftJustified = start < i && conversionPattern.charAt(start) == '-';
+			int widthStart = leftJustified ? start + 1 : start;
+			boolean padded = widthStart < i && Character.isDigit(conversionPattern.charAt(widthStart));
+
+			if (length <= i) {
+				throw new IllegalArgumentException("Invalid pattern: " + conversionPattern);
+			}
+
+			char conversion = conversionPattern.charAt(i++);
+			String option = null;
+
+			if (i < length && conversionPattern.charAt(i) == '{') {
+				int close = conversionPattern.indexOf('}', i);
+
+				if (close == -1) {
+					throw new IllegalArgumentException("Invalid pattern: " + conversionPattern);
+				}
+
+				option = conversionPattern.substring(i + 1, close);
+				i = close + 1;
+			}
+
+			Field field;
+
+			switch (conversion) {
+			case 'd':
+				datePattern = toDatePattern(option);
+				field = Field.DATE;
+				break;
+			case 'p':
+				field = Field.LEVEL;
+				break;
+			case 'c':
+				field = Field.LOGGER;
+				break;
+			case 'C':
+				field = Field.CLASS;
+				break;
+			case 'F':
+				field = Field.FILE;
+				break;
+			case 'L':
+				field = Field.LINE;
+				break;
+			case 'M':
+				field = Field.METHOD;
+				break;
+			case 'l':
+				field = Field.LOCATION;
+				break;
+			case 't':
+				field = Field.THREAD;
+				break;
+			case 'x':
+				field = Field.NDC;
+				break;
+			case 'X':
+				field = (option != null) ? Field.MDC : Field.IGNORED;
+				break;
+			case 'm':
+				field = Field.MESSAGE;
+				break;
+			case 'n':
+				continue;
+			default:
+				field = Field.IGNORED;
+				break;
+			}
+
+			if (0 < literal.length()) {
+				list.add(new Token(literal.toString(), null, null, false, false));
+				literal.setLength(0);
+			}
+
+			list.add(new Token(null, field, (field == Field.MDC) ? option : null, padded, leftJustified));
+		}
+
+		if (0 < literal.length()) {
+			list.add(new Token(literal.toString(), null, null, false, false));
+		}
+
+		if (datePattern == null) {
+			throw new IllegalArgumentException("The pattern has no %d date: " + conversionPattern);
+		}
+
+		this.tokens = list.toArray(new Token[list.size()]);
+		this.dateMatcher = Pattern.compile(toDateRegex(datePattern)).matcher("");
+
+		// consecutive events mostly differ by their milliseconds only, the rest of the date is parsed once
+
+		this.trailingMillis = datePattern.endsWith("SSS") && !datePattern.endsWith("'SSS");
+		this.dateFormat = new SimpleDateFormat(trailingMillis ? datePattern.replaceAll("S+$", "") : datePattern);
+		this.dateFormat.setLenient(false);
+
+		if (timeZone != null) {
+			this.dateFormat.setTimeZone(timeZone);
+		}
+	}
+
+	/**
+	 * @param option Option of the %d conversion
+	 * @return The SimpleDateFormat pattern of the option
+	 */
+	private static String toDatePattern(final String option) {
+		if (option == null || option.equals("ISO8601")) {
+			return "yyyy-MM-dd HH:mm:ss,SSS";
+		}
+
+		if (option.equals("DATE")) {
+			return "dd MMM yyyy HH:mm:ss,SSS";
+		}
+
+		if (option.equals("ABSOLUTE")) {
+			throw new IllegalArgumentException("%d{ABSOLUTE} has no day, the original timestamps can not be rebuilt");
+		}
+
+		return option;
+	}
+
+	/**
+	 * @param datePattern A SimpleDateFormat pattern
+	 * @return Expression matching the dates of the pattern
+	 */
+	private static String toDateRegex(final String datePattern) {
+		StringBuilder regex = new StringBuilder();
+		int i = 0;
+
+		while (i < datePattern.length()) {
+			char c = datePattern.charAt(i);
+
+			if (c == '\'') {
+				int close = datePattern.indexOf('\'', i + 1);
+				String literal = (close == -1) ? datePattern.substring(i + 1) : datePattern.substring(i + 1, close);
+				regex.append(literal.isEmpty() ? "'" : Pattern.quote(literal));
+				i = (close == -1) ? datePattern.length() : close + 1;
+				continue;
+			}
+
+			if (!Character.isLetter(c)) {
+				regex.append(Pattern.quote(String.valueOf(c)));
+				++i;
+				continue;
+			}
+
+			int count = 0;
+
+			while (i < datePattern.length() && datePattern.charAt(i) == c) {
+				++count;
+				++i;
+			}
+
+			switch (c) {
+			case 'M':
+				regex.append((count < 3) ? "\\d{1,2}" : "[^\\s\\d]+");
+				break;
+			case 'E':
+			case 'a':
+			case 'G':
+				regex.append("[^\\s\\d]+");
+				break;
+			case 'z':
+				regex.append("[\\w+\\-:]+");
+				break;
+			case 'Z':
+			case 'X':
+				regex.append("(?:Z|[+\\-]\\d{2}:?(?:\\d{2})?)");
+				break;
+			default:
+				regex.append("\\d+");
+				break;
+			}
+		}
+
+		return regex.toString();
+	}
+
+	/**
+	 * Parses the first line of a record
+	 * @param line The line, without its line separator
+	 * @return The record, null if the line continues the previous record
+	 */
+	Record parse(final String line) {
+		Record record = new Record();
+		int length = line.length();
+		int pos = 0;
+
+		for (int t = 0; t < tokens.length; ++t) {
+			Token token = tokens[t];
+
+			if (token.literal != null) {
+				if (!line.startsWith(token.literal, pos)) {
+					return null;
+				}
+
+				pos += token.literal.length();
+				continue;
+			}
+
+			Token next = (t + 1 < tokens.length) ? tokens[t + 1] : null;
+
+			if (token.padded && !token.leftJustified) {
+				while (pos < length && line.charAt(pos) == ' ') {
+					++pos;
+				}
+			}
+
+			int end = findEnd(line, pos, token.field, next);
+
+			if (end < 0) {
+				return null;
+			}
+
+			String value = line.substring(pos, end);
+			pos = end;
+
+			if (token.padded) {
+				value = value.trim();
+
+				if (token.leftJustified) {
+
+					// leave the spaces of the next literal
+
+					int spaces = 0;
+
+					while (pos + spaces < length && line.charAt(pos + spaces) == ' ') {
+						++spaces;
+					}
+
+					int kept = 0;
+
+					while (next != null && next.literal != null && kept < next.literal.length() && next.literal.charAt(kept) == ' ') {
+						++kept;
+					}
+
+					pos += Math.max(0, spaces - kept);
+				}
+			}
+
+			if (!set(record, token, value)) {
+				return null;
+			}
+		}
+
+		return (pos == length) ? record : null;
+	}
+
+	/**
+	 * Finds the end of a field
+	 * @param line The line
+	 * @param pos Start of the field
+	 * @param field The field
+	 * @param next The token after the field, null if last
+	 * @return End of the field, -1 if the line does not match
+	 */
+	private int findEnd(final String line, final int pos, final Field field, final Token next) {
+		int length = line.length();
+		int end = pos;
+
+		switch (field) {
+		case DATE:
+			dateMatcher.reset(line).region(pos, length);
+			return dateMatcher.lookingAt() ? dateMatcher.end() : -1;
+		case LEVEL:
+			while (end < length && Character.isLetter(line.charAt(end))) {
+				++end;
+			}
+
+			return (pos < end) ? end : -1;
+		case LOGGER:
+		case CLASS:
+		case FILE:
+		case LINE:
+		case METHOD:
+
+			// a single word, ending before the next literal when it does not start with a space
+
+			char stop = (next != null && next.literal != null) ? next.literal.charAt(0) : ' ';
+
+			while (end < length && line.charAt(end) != stop && !Character.isWhitespace(line.charAt(end))) {
+				++end;
+			}
+
+			return end;
+		default:
+			if (next == null) {
+				return length;
+			}
+
+			if (next.literal != null) {
+				return line.indexOf(next.literal, pos);
+			}
+
+			while (end < length && !Character.isWhitespace(line.charAt(end))) {
+				++end;
+			}
+
+			return end;
+		}
+	}
+
+	/**
+	 * Sets a field of a record
+	 * @param record The record
+	 * @param token The field
+	 * @param value The text of the field
+	 * @return False if the value is not valid
+	 */
+	private boolean set(final Record record, final Token token, final String value) {
+		switch (token.field) {
+		case DATE:
+			int end = value.length();
+			int millis = 0;
+
+			if (trailingMillis) {
+				while (0 < end && Character.isDigit(value.charAt(end - 1))) {
+					--end;
+				}
+
+				if (end == value.length() || 9 < value.length() - end) {
+					return false;
+				}
+
+				millis = Integer.parseInt(value.substring(end));
+			}
+
+			if (lastDate == null || lastDate.length() != end || !value.regionMatches(0, lastDate, 0, end)) {
+				position.setIndex(0);
+				position.setErrorIndex(-1);
+
+				String text = value.substring(0, end);
+				Date date = dateFormat.parse(text, position);
+
+				if (date == null || position.getIndex() != end) {
+					return false;
+				}
+
+				lastDate = text;
+				lastTime = date.getTime();
+			}
+
+			record.timeStamp = lastTime + millis;
+			return true;
+		case LEVEL:
+			record.level = Level.toLevel(value, null);
+			return record.level != null;
+		case LOGGER:
+			record.loggerName = value;
+			return true;
+		case CLASS:
+			record.className = value;
+			return true;
+		case FILE:
+			record.fileName = value;
+			return true;
+		case LINE:
+			record.lineNumber = value;
+			return true;
+		case METHOD:
+			record.methodName = value;
+			return true;
+		case LOCATION:
+			record.setLocation(value);
+			return true;
+		case THREAD:
+			record.threadName = value;
+			return true;
+		case NDC:
+			record.ndc = value.equals("null") ? null : value;
+			return true;
+		case MDC:
+			if (!value.isEmpty()) {
+				if (record.mdc == null) {
+					record.mdc = new Hashtable<String, String>();
+				}
+
+				record.mdc.put(token.key, value);
+			}
+			return true;
+		case MESSAGE:
+			record.message = value;
+			return true;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Rebuilds the logging event of a record
+	 * @param record The record
+	 * @param continuation Lines continuing the record, null if none
+	 * @return The logging event, with the original timestamp
+	 */
+	LoggingEvent toEvent(final Record record, final String continuation) {
+		Logger logger = getLogger(record.loggerName);
+
+		String message = (record.message != null) ? record.message : "";
+
+		if (continuation != null) {
+			message = message + "\n" + continuation;
+		}
+
+		Level level = (record.level != null) ? record.level : Level.INFO;
+		String threadName = (record.threadName != null) ? record.threadName : UNKNOWN_THREAD;
+
+		LocationInfo location = null;
+
+		if (record.className != null || record.methodName != null || record.fileName != null || record.lineNumber != null) {
+			location = new LocationInfo(record.fileName, record.className, record.methodName, record.lineNumber);
+		}
+
+		return new LoggingEvent(FQCN, logger, record.timeStamp, level, message, threadName, null, record.ndc, location, record.mdc);
+	}
+
+	/**
+	 * @param name Logger name, null for the root logger
+	 * @return The logger
+	 */
+	private Logger getLogger(final String name) {
+		if (name == null) {
+			return Logger.getRootLogger();
+		}
+
+		Logger logger = loggers.get(name);
+
+		if (logger == null) {
+			logger = Logger.getLogger(name);
+			loggers.put(name, logger);
+		}
+
+		return logger;
+	}
+
+	/**
+	 * Literal or field of the pattern
+	 */
+	private static final class Token {
+
+		/**
+		 * Text of a literal, null for a field
+		 */
+		private final String literal;
+
+		/**
+		 * The field, null for a literal
+		 */
+		private final Field field;
+
+		/**
+		 * MDC key of a %X{key} field
+		 */
+		private final String key;
+
+		/**
+		 * True if the field has a minimum width
+		 */
+		private final boolean padded;
+
+		/**
+		 * True if the field is padded on the right
+		 */
+		private final boolean leftJustified;
+
+		/**
+		 * Constructor
+		 * @param literal Text of a literal, null for a field
+		 * @param field The field, null for a literal
+		 * @param key MDC key of a %X{key} field
+		 * @param padded True if the field has a minimum width
+		 * @param leftJustified True if the field is padded on the right
+		 */
+		private Token(final String literal, final Field field, final String key, final boolean padded, final boolean leftJustified) {
+			this.literal = literal;
+			this.field = field;
+			this.key = key;
+			this.padded = padded;
+			this.leftJustified = leftJustified;
+		}
+	}
+
+	/**
+	 * Fields of the first line of a record
+	 */
+	static final class Record {
+
+		/**
+		 * Timestamp (milliseconds)
+		 */
+		private long timeStamp;
+
+		/**
+		 * Level (null for INFO)
+		 */
+		private Level level;
+
+		/**
+		 * Logger name (null for the root logger)
+		 */
+		private String loggerName;
+
+		/**
+		 * Thread name
+		 */
+		private String threadName;
+
+		/**
+		 * Message, without the continuation lines
+		 */
+		private String message;
+
+		/**
+		 * NDC
+		 */
+		private String ndc;
+
+		/**
+		 * MDC properties (null if none)
+		 */
+		private Map<String, String> mdc;
+
+		/**
+		 * Class of the call site
+		 */
+		private String className;
+
+		/**
+		 * Method of the call site
+		 */
+		private String methodName;
+
+		/**
+		 * File of the call site
+		 */
+		private String fileName;
+
+		/**
+		 * Line of the call site
+		 */
+		private String lineNumber;
+
+		/**
+		 * Splits a %l location, class.method(file:line)
+		 * @param location The location
+		 */
+		private void setLocation(final String location) {
+			int open = location.lastIndexOf('(');
+			int close = location.lastIndexOf(')');
+
+			if (open == -1 || close < open) {
+				return;
+			}
+
+			int dot = location.lastIndexOf('.', open);
+			int colon = location.lastIndexOf(':', close);
+
+			if (0 < dot) {
+				className = location.substring(0, dot);
+				methodName = location.substring(dot + 1, open);
+			}
+
+			if (open < colon) {
+				fileName = location.substring(open + 1, colon);
+				lineNumber = location.substring(colon + 1, close);
+			} else {
+				fileName = location.substring(open + 1, close);
+			}
+		}
+
+		/**
+		 * @return Timestamp (milliseconds)
+		 */
+		long getTimeStamp() {
+			return timeStamp;
+		}
+
+		/**
+		 * @return Message, without the continuation lines
+		 */
+		String getMessage() {
+			return message;
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Bytes allocated per event by the StackifyLogAppender against the in-process stub endpoint.
+ *
+ * <p>
+ * Each scenario logs a warm-up round, then measures the bytes allocated by the logging thread and by
+ * the background threads of the pipeline until the stub received every event. The background threads
+ * are the ones the appender started, plus the fork join pool that the collector's retry policy
+ * uploads from. The surefire configuration runs each test class in its own JVM, so no other test
+ * uses that pool. The
+ * test fails when an average exceeds its budget. The budgets are 1.5 times the highest averages of
+ * 10 runs on Java 8, so JVM and batching differences pass while a significant regression fails the
+ * build. Skipped on JVMs that do not measure thread allocation.
+ */
+public class AllocationBudgetTest {
+
+	/**
+	 * Events logged before measuring
+	 */
+	private static final int WARM_UP = 5000;
+
+	/**
+	 * Events measured, fewer than the 10000 messages the background service queues
+	 */
+	private static final int EVENTS = 5000;
+
+	/**
+	 * Time the stub may take to receive the events (milliseconds)
+	 */
+	private static final long DRAIN_TIMEOUT = 60000;
+
+	/**
+	 * Stub endpoint of every scenario
+	 */
+	private static StubStackifyServer server;
+
+	/**
+	 * Starts the stub endpoint
+	 * @throws Exception
+	 */
+	@BeforeClass
+	public static void startServer() throws Exception {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+
+		server = new StubStackifyServer(2);
+		server.setRecording(false);
+	}
+
+	/**
+	 * Stops the stub endpoint
+	 */
+	@AfterClass
+	public static void stopServer() {
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	/**
+	 * testInfo
+	 * @throws Exception
+	 */
+	@Test
+	public void testInfo() throws Exception {
+		Scenario scenario = new Scenario(Level.INFO, 0, null, false);
+		scenario.assertBudget(10200, 2000);
+	}
+
+	/**
+	 * testInfoWithMdc
+	 * @throws Exception
+	 */
+	@Test
+	public void testInfoWithMdc() throws Exception {
+		Scenario scenario = new Scenario(Level.INFO, 10, null, false);
+		scenario.assertBudget(12800, 2600);
+	}
+
+	/**
+	 * testErrorWithDeepException
+	 * @throws Exception
+	 */
+	@Test
+	public void testErrorWithDeepException() throws Exception {
+		Scenario scenario = new Scenario(Level.ERROR, 0, deepException(100), false);
+		scenario.assertBudget(110000, 4500);
+	}
+
+	/**
+	 * testInfoMasked
+	 * @throws Exception
+	 */
+	@Test
+	public void testInfoMasked() throws Exception {
+		Scenario scenario = new Scenario(Level.INFO, 0, null, true);
+		scenario.assertBudget(11000, 4000);
+	}
+
+	/**
+	 * @param depth Frames below the throw
+	 * @return Exception with a cause, thrown from a deep stack
+	 */
+	private static Exception deepException(final int depth) {
+		if (depth == 0) {
+			return new IllegalStateException("deep failure", new IllegalArgumentException("cause"));
+		}
+
+		return deepException(depth - 1);
+	}
+
+	/**
+	 * @return Ids of the live threads
+	 */
+	private static Set<Long> getThreadIds() {
+		Set<Long> ids = new HashSet<Long>();
+
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			ids.add(thread.getId());
+		}
+
+		return ids;
+	}
+
+	/**
+	 * @param existing Ids of the threads alive before the appender started
+	 * @return Bytes allocated so far by each thread of the pipeline and by the current thread, by thread id
+	 */
+	private static Map<Long, Long> getAllocatedBytes(final Set<Long> existing) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Map<Long, Long> allocated = new HashMap<Long, Long>();
+
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			String name = thread.getName();
+
+			// the background service uploads from the fork join pool of its retry policy (the common pool
+			// or one of its own), which may have been started by a previous scenario
+
+			boolean started = name.startsWith("Stackify") && !existing.contains(thread.getId());
+
+			if (thread == Thread.currentThread() || started || name.startsWith("ForkJoinPool")) {
+				allocated.put(thread.getId(), threads.getThreadAllocatedBytes(thread.getId()));
+			}
+		}
+
+		return allocated;
+	}
+
+	/**
+	 * Logging workload of one scenario
+	 */
+	private static final class Scenario {
+
+		/**
+		 * Level of the events
+		 */
+		private final Level level;
+
+		/**
+		 * Number of MDC entries of the logging thread
+		 */
+		private final int mdcKeys;
+
+		/**
+		 * Exception logged with each event (may be null)
+		 */
+		private final Exception exception;
+
+		/**
+		 * True to mask credit card and social security numbers
+		 */
+		private final boolean masked;
+
+		/**
+		 * Constructor
+		 * @param level Level of the events
+		 * @param mdcKeys Number of MDC entries of the logging thread
+		 * @param exception Exception logged with each event (may be null)
+		 * @param masked True to mask credit card and social security numbers
+		 */
+		private Scenario(final Level level, final int mdcKeys, final Exception exception, final boolean masked) {
+			this.level = level;
+			this.mdcKeys = mdcKeys;
+			this.exception = exception;
+			this.masked = masked;
+		}
+
+		/**
+		 * Measures the scenario and compares the averages to the budgets
+		 * @param callerBudget Bytes per event the logging thread may allocate
+		 * @param pipelineBudget Bytes per event the background threads may allocate
+		 * @throws Exception
+		 */
+		void assertBudget(final long callerBudget, final long pipelineBudget) throws Exception {
+			Set<Long> existing = getThreadIds();
+			StackifyLogAppender appender = new StackifyLogAppender();
+			appender.setApiUrl(server.getUrl());
+			appender.setApiKey("allocation");
+			appender.setApplication("allocation");
+			appender.setEnvironment("allocation");
+			appender.setMaskEnabled(String.valueOf(masked));
+			appender.activateOptions();
+
+			Logger logger = Logger.getLogger("allocation");
+			logger.setAdditivity(false);
+			logger.setLevel(Level.DEBUG);
+			logger.addAppender(appender);
+
+			long caller;
+			long pipeline;
+
+			try {
+				for (int i = 0; i < mdcKeys; ++i) {
+					MDC.put("key" + i, "value" + i);
+				}
+
+				log(logger, WARM_UP);
+
+				Map<Long, Long> start = getAllocatedBytes(existing);
+				log(logger, EVENTS);
+				Map<Long, Long> end = getAllocatedBytes(existing);
+
+				caller = end.get(Thread.currentThread().getId()) - start.get(Thread.currentThread().getId());
+				pipeline = -caller;
+
+				for (Map.Entry<Long, Long> thread : end.entrySet()) {
+					Long before = start.get(thread.getKey());
+					pipeline += thread.getValue() - ((before != null) ? before : 0L);
+				}
+			} finally {
+				MDC.clear();
+				logger.removeAppender(appender);
+				appender.close();
+			}
+
+			String name = level + (0 < mdcKeys ? " with " + mdcKeys + " MDC keys" : "") + (exception != null ? " and an exception" : "")
+					+ (masked ? " masked" : "");
+
+			System.out.println("allocation: " + name + ": " + (caller / EVENTS) + " bytes/event on the logging thread, "
+					+ (pipeline / EVENTS) + " bytes/event in the pipeline");
+
+			Assert.assertTrue(name + ": " + (caller / EVENTS) + " bytes/event on the logging thread, budget " + callerBudget,
+					caller / EVENTS <= callerBudget);
+			Assert.assertTrue(name + ": " + (pipeline / EVENTS) + " bytes/event in the pipeline, budget " + pipelineBudget,
+					pipeline / EVENTS <= pipelineBudget);
+		}
+
+		/**
+		 * Logs events, then waits until the stub received them
+		 * @param logger The logger
+		 * @param events Number of events
+		 * @throws Exception
+		 */
+		private void log(final Logger logger, final int events) throws Exception {
+			long expected = server.getMsgCount() + events;
+
+			for (int i = 0; i < events; ++i) {
+
+				// log with the test as the caller class so the location resolves outside com.stackify.
+				// (events from com.stackify classes are never sent)
+
+				logger.log(AllocationBudgetTest.class.getName(), level, masked ? "payment 4111 1111 1111 1111 declined" : "request handled", exception);
+			}
+
+			long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+
+			while (server.getMsgCount() < expected) {
+				Assert.assertTrue("Timed out waiting for the stub to receive the events", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+		}
+	}
+}
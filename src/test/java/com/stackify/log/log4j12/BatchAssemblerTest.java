@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stackify.api.LogMsg;
+import com.stackify.api.LogMsgGroup;
+import com.stackify.api.common.ApiConfiguration;
+import com.stackify.api.common.ApiConfigurations;
+import com.stackify.api.common.mask.Masker;
+
+/**
+ * BatchAssembler JUnit Test
+ */
+public class BatchAssemblerTest {
+
+	/**
+	 * testAssembleKeepsOrder
+	 * @throws Exception
+	 */
+	@Test
+	public void testAssembleKeepsOrder() throws Exception {
+		ApiConfiguration apiConfig = ApiConfigurations.fromPropertiesWithOverrides("http://localhost", "key", "app", "test", null, "false");
+
+		Masker masker = new Masker();
+		masker.addMask(Masker.MASK_EMAIL);
+
+		List<LogMsgGroup> groups = new ArrayList<LogMsgGroup>();
+
+		for (int g = 0; g < 37; ++g) {
+			List<LogMsg> msgs = new ArrayList<LogMsg>();
+
+			for (int i = 0; i < 100; ++i) {
+				msgs.add(LogMsg.newBuilder().msg("user" + (g * 100 + i) + "@example.com logged in").epochMs((long) g * 100 + i).level("info").build());
+			}
+
+			groups.add(LogMsgGroup.newBuilder().appName("app").msgs(msgs).build());
+		}
+
+		BatchAssembler assembler = new BatchAssembler(apiConfig, masker, false, 4);
+
+		try {
+			List<byte[]> bodies = assembler.assemble(groups);
+
+			Assert.assertEquals(groups.size(), bodies.size());
+
+			ObjectMapper json = new ObjectMapper();
+			long expected = 0;
+
+			for (byte[] body : bodies) {
+				for (LogMsg msg : json.readValue(body, LogMsgGroup.class).getMsgs()) {
+					Assert.assertEquals(Long.valueOf(expected++), msg.getEpochMs());
+					Assert.assertFalse(msg.getMsg().contains("@example.com"));
+				}
+			}
+
+			Assert.assertEquals(3700L, expected);
+		} finally {
+			assembler.close();
+		}
+	}
+}
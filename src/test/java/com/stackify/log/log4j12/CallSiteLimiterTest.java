@@ -0,0 +1,279 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.stackify.api.EnvironmentDetail;
+import com.stackify.api.LogMsg;
+
+/**
+ * CallSiteLimiter JUnit Test
+ */
+public class CallSiteLimiterTest {
+
+	/**
+	 * One second (nanoseconds)
+	 */
+	private static final long SECOND = 1000000000L;
+
+	/**
+	 * testDropsPerCallSite
+	 */
+	@Test
+	public void testDropsPerCallSite() {
+		CallSiteLimiter limiter = new CallSiteLimiter(10, 5, 100, 0);
+
+		try {
+			for (int i = 0; i < 5; ++i) {
+				Assert.assertFalse(limiter.drops(newLocatedEvent(10, "loop " + i), Fidelity.FULL, 0));
+			}
+
+			Assert.assertTrue(limiter.drops(newLocatedEvent(10, "loop 5"), Fidelity.FULL, 0));
+			Assert.assertFalse(limiter.drops(newLocatedEvent(20, "elsewhere"), Fidelity.FULL, 0));
+
+			// one token every 100 ms
+
+			Assert.assertFalse(limiter.drops(newLocatedEvent(10, "loop 6"), Fidelity.FULL, SECOND / 10));
+			Assert.assertTrue(limiter.drops(newLocatedEvent(10, "loop 7"), Fidelity.FULL, SECOND / 10));
+
+			// never more than the burst
+
+			for (int i = 0; i < 5; ++i) {
+				Assert.assertFalse(limiter.drops(newLocatedEvent(10, "loop " + i), Fidelity.FULL, 60 * SECOND));
+			}
+
+			Assert.assertTrue(limiter.drops(newLocatedEvent(10, "loop 5"), Fidelity.FULL, 60 * SECOND));
+			Assert.assertEquals(2, limiter.getSiteCount());
+		} finally {
+			limiter.close();
+		}
+	}
+
+	/**
+	 * testDropsByMessageTemplate
+	 */
+	@Test
+	public void testDropsByMessageTemplate() {
+		CallSiteLimiter limiter = new CallSiteLimiter(1, 1, 100, 0);
+
+		try {
+			Assert.assertFalse(limiter.drops(newEvent("com.example.Job", Level.INFO, "request 1 took 5 ms"), Fidelity.NO_LOCATION, 0));
+			Assert.assertTrue(limiter.drops(newEvent("com.example.Job", Level.INFO, "request 22 took 17 ms"), Fidelity.NO_LOCATION, 0));
+			Assert.assertFalse(limiter.drops(newEvent("com.example.Job", Level.INFO, "cache miss 1"), Fidelity.NO_LOCATION, 0));
+			Assert.assertFalse(limiter.drops(newEvent("com.example.Job", Level.WARN, "request 3 took 5 ms"), Fidelity.NO_LOCATION, 0));
+			Assert.assertFalse(limiter.drops(newEvent("com.example.Other", Level.INFO, "request 4 took 5 ms"), Fidelity.NO_LOCATION, 0));
+		} finally {
+			limiter.close();
+		}
+	}
+
+	/**
+	 * testFlushSummary
+	 */
+	@Test
+	public void testFlushSummary() {
+		CallSiteLimiter limiter = new CallSiteLimiter(10, 5, 100, 0);
+		LogPipeline pipeline = Mockito.mock(LogPipeline.class);
+		limiter.setTarget(pipeline);
+
+		for (int i = 0; i < 100; ++i) {
+			limiter.drops(newLocatedEvent(10, "loop " + i), Fidelity.FULL, 0);
+		}
+
+		limiter.flush();
+		limiter.flush();
+		limiter.close();
+
+		ArgumentCaptor<LoggingEvent> captor = ArgumentCaptor.forClass(LoggingEvent.class);
+		Mockito.verify(pipeline).appendInternal(captor.capture());
+		Mockito.verify(pipeline, Mockito.never()).append(Mockito.any(LoggingEvent.class));
+
+		LoggingEventAdapter adapter = new LoggingEventAdapter(Mockito.mock(EnvironmentDetail.class));
+		LogMsg msg = adapter.getLogMsg(captor.getValue(), null);
+
+		Assert.assertTrue(msg.getMsg().startsWith("rateLimit com.example.Job com.example.Job.run:10: 95 events in "));
+		Assert.assertTrue(msg.getData().contains("\"count\":95"));
+		Assert.assertEquals("warn", msg.getLevel());
+		Assert.assertEquals("com.example.Job.run", msg.getSrcMethod());
+		Assert.assertEquals(Integer.valueOf(10), msg.getSrcLine());
+	}
+
+	/**
+	 * testEviction
+	 */
+	@Test
+	public void testEviction() {
+		CallSiteLimiter limiter = new CallSiteLimiter(1, 1, 2, 0);
+		LogPipeline pipeline = Mockito.mock(LogPipeline.class);
+		limiter.setTarget(pipeline);
+
+		limiter.drops(newLocatedEvent(10, "first"), Fidelity.FULL, 0);
+		Assert.assertTrue(limiter.drops(newLocatedEvent(10, "first"), Fidelity.FULL, 0));
+
+		for (int line = 20; line < 100; line += 10) {
+			Assert.assertFalse(limiter.drops(newLocatedEvent(line, "other"), Fidelity.FULL, 0));
+			Assert.assertTrue(limiter.getSiteCount() <= 2);
+		}
+
+		limiter.close();
+
+		// the dropped event is reported once, by its call site or as evicted
+
+		ArgumentCaptor<LoggingEvent> captor = ArgumentCaptor.forClass(LoggingEvent.class);
+		Mockito.verify(pipeline).appendInternal(captor.capture());
+		Mockito.verify(pipeline, Mockito.never()).append(Mockito.any(LoggingEvent.class));
+
+		List<LoggingEvent> summaries = captor.getAllValues();
+		LogMsg msg = new LoggingEventAdapter(Mockito.mock(EnvironmentDetail.class)).getLogMsg(summaries.get(0), null);
+
+		Assert.assertTrue(msg.getData().contains("\"count\":1"));
+	}
+
+	/**
+	 * testEvictionKeepsFloodingSite
+	 */
+	@Test
+	public void testEvictionKeepsFloodingSite() {
+		CallSiteLimiter limiter = new CallSiteLimiter(1, 5, 2, 0);
+
+		try {
+			for (int i = 0; i < 10; ++i) {
+				limiter.drops(newLocatedEvent(10, "flood " + i), Fidelity.FULL, 0);
+			}
+
+			Assert.assertFalse(limiter.drops(newLocatedEvent(20, "once"), Fidelity.FULL, 0));
+
+			// each new call site evicts a bucket with tokens left, never the empty one of the flood
+
+			for (int line = 30; line < 1000; line += 10) {
+				Assert.assertFalse(limiter.drops(newLocatedEvent(line, "once"), Fidelity.FULL, 0));
+				Assert.assertTrue(limiter.drops(newLocatedEvent(10, "flood"), Fidelity.FULL, 0));
+				Assert.assertEquals(2, limiter.getSiteCount());
+			}
+		} finally {
+			limiter.close();
+		}
+	}
+
+	/**
+	 * testFlushKeepsConcurrentDrops
+	 *
+	 * Idle buckets removed by the flush while events are dropped lose no count.
+	 * @throws Exception
+	 */
+	@Test
+	public void testFlushKeepsConcurrentDrops() throws Exception {
+		final CallSiteLimiter limiter = new CallSiteLimiter(1000000, 1, 4, 0);
+		final LogPipeline pipeline = Mockito.mock(LogPipeline.class);
+		limiter.setTarget(pipeline);
+
+		final long[] drops = new long[1];
+
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long now = 0;
+
+				for (int i = 0; i < 200000; ++i) {
+
+					// drops at even times, refills past the next odd one
+
+					now += (i % 2 == 0) ? 0 : 2000;
+
+					if (limiter.drops(newLocatedEvent(10 * (i % 8), "event"), Fidelity.FULL, now)) {
+						++drops[0];
+					}
+				}
+			}
+		});
+
+		producer.start();
+
+		while (producer.isAlive()) {
+			limiter.flush();
+		}
+
+		producer.join();
+		limiter.close();
+
+		ArgumentCaptor<LoggingEvent> captor = ArgumentCaptor.forClass(LoggingEvent.class);
+		Mockito.verify(pipeline, Mockito.atLeast(0)).appendInternal(captor.capture());
+
+		LoggingEventAdapter adapter = new LoggingEventAdapter(Mockito.mock(EnvironmentDetail.class));
+		long reported = 0;
+
+		for (LoggingEvent summary : captor.getAllValues()) {
+			String data = adapter.getLogMsg(summary, null).getData();
+			int start = data.indexOf("\"count\":") + 8;
+			int end = start;
+
+			while (end < data.length() && Character.isDigit(data.charAt(end))) {
+				++end;
+			}
+
+			reported += Long.parseLong(data.substring(start, end));
+		}
+
+		Assert.assertEquals(drops[0], reported);
+	}
+
+	/**
+	 * testCreateWithoutRate
+	 */
+	@Test
+	public void testCreateWithoutRate() {
+		Assert.assertNull(CallSiteLimiter.create(null, null, "10000", "60000"));
+		Assert.assertNull(CallSiteLimiter.create(" ", "5", "10000", "60000"));
+	}
+
+	/**
+	 * testCreateInvalid
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateInvalid() {
+		CallSiteLimiter.create("100", "0", "10000", "60000");
+	}
+
+	/**
+	 * @param line Line of the call site
+	 * @param message Event message
+	 * @return INFO event of com.example.Job with its location
+	 */
+	private static LoggingEvent newLocatedEvent(final int line, final String message) {
+		return new LoggingEvent(Logger.class.getName(), Logger.getLogger("com.example.Job"), System.currentTimeMillis(), Level.INFO, message,
+				Thread.currentThread().getName(), null, null, new LocationInfo("Job.java", "com.example.Job", "run", String.valueOf(line)), null);
+	}
+
+	/**
+	 * @param logger Logger name
+	 * @param level Event level
+	 * @param message Event message
+	 * @return Logging event
+	 */
+	private static LoggingEvent newEvent(final String logger, final Level level, final String message) {
+		return new LoggingEvent(Logger.class.getName(), Logger.getLogger(logger), level, message, null);
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stackify.api.EnvironmentDetail;
+import com.stackify.api.LogMsg;
+import com.stackify.api.LogMsgGroup;
+import com.stackify.api.common.ApiConfiguration;
+import com.stackify.api.common.log.LogTransport;
+import com.stackify.api.common.log.LogTransportDirect;
+import com.stackify.api.common.mask.Masker;
+
+/**
+ * ConcurrentLogTransport JUnit Test
+ */
+public class ConcurrentLogTransportTest {
+
+	/**
+	 * testOrderPreservedPerPartition
+	 * @throws Exception
+	 */
+	@Test
+	public void testOrderPreservedPerPartition() throws Exception {
+		final List<LogMsg> received = new ArrayList<LogMsg>();
+
+		LogTransport delegate = new LogTransport() {
+			@Override
+			public void send(final LogMsgGroup group) throws Exception {
+				Thread.sleep(1);
+
+				synchronized (received) {
+					received.addAll(group.getMsgs());
+				}
+			}
+		};
+
+		ConcurrentLogTransport transport = new ConcurrentLogTransport(delegate, 4, ConcurrentLogTransport.PARTITION_THREAD);
+
+		for (int batch = 0; batch < 50; ++batch) {
+			List<LogMsg> msgs = new ArrayList<LogMsg>();
+
+			for (int i = 0; i < 8; ++i) {
+				msgs.add(LogMsg.newBuilder().th("th" + i).msg(Integer.toString(batch)).build());
+			}
+
+			transport.send(LogMsgGroup.newBuilder().msgs(msgs).build());
+		}
+
+		transport.close();
+
+		Assert.assertEquals(400, received.size());
+
+		Map<String, Integer> last = new HashMap<String, Integer>();
+
+		for (LogMsg msg : received) {
+			int batch = Integer.parseInt(msg.getMsg());
+			Integer previous = last.put(msg.getTh(), batch);
+			Assert.assertTrue(previous == null || previous < batch);
+		}
+	}
+
+	/**
+	 * testUploadsConcurrently
+	 * @throws Exception
+	 */
+	@Test
+	public void testUploadsConcurrently() throws Exception {
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+
+		LogTransport delegate = new LogTransport() {
+			@Override
+			public void send(final LogMsgGroup group) throws Exception {
+				int current = inFlight.incrementAndGet();
+
+				int max = maxInFlight.get();
+
+				while (max < current && !maxInFlight.compareAndSet(max, current)) {
+					max = maxInFlight.get();
+				}
+
+				Thread.sleep(50);
+				inFlight.decrementAndGet();
+			}
+		};
+
+		ConcurrentLogTransport transport = new ConcurrentLogTransport(delegate, 4, ConcurrentLogTransport.PARTITION_TRANSACTION);
+
+		for (int batch = 0; batch < 4; ++batch) {
+			List<LogMsg> msgs = new ArrayList<LogMsg>();
+
+			for (int i = 0; i < 16; ++i) {
+				msgs.add(LogMsg.newBuilder().transId("tx" + i).build());
+			}
+
+			transport.send(LogMsgGroup.newBuilder().msgs(msgs).build());
+		}
+
+		transport.close();
+
+		Assert.assertTrue(1 < maxInFlight.get());
+	}
+
+	/**
+	 * testRetriesWithBackoff
+	 * @throws Exception
+	 */
+	@Test
+	public void testRetriesWithBackoff() throws Exception {
+		final AtomicInteger attempts = new AtomicInteger();
+
+		LogTransport delegate = new LogTransport() {
+			@Override
+			public void send(final LogMsgGroup group) throws Exception {
+				if (attempts.incrementAndGet() < 3) {
+					throw new Exception("unavailable");
+				}
+			}
+		};
+
+		ConcurrentLogTransport transport = new ConcurrentLogTransport(delegate, 1, ConcurrentLogTransport.PARTITION_THREAD, 1, 10, 5);
+		transport.send(LogMsgGroup.newBuilder().msgs(new ArrayList<LogMsg>()).build());
+		transport.close();
+
+		Assert.assertEquals(3, attempts.get());
+	}
+
+	/**
+	 * testUploadToStubServer
+	 * @throws Exception
+	 */
+	@Test
+	public void testUploadToStubServer() throws Exception {
+		StubStackifyServer server = new StubStackifyServer(4);
+
+		try {
+			server.setFailures(1);
+
+			ApiConfiguration apiConfig = ApiConfiguration.newBuilder()
+					.apiUrl(server.getUrl())
+					.apiKey("key")
+					.envDetail(Mockito.mock(EnvironmentDetail.class))
+					.build();
+
+			LogTransport direct = new LogTransportDirect(apiConfig, new ObjectMapper(), new Masker(), false);
+			ConcurrentLogTransport transport = new ConcurrentLogTransport(direct, 2, ConcurrentLogTransport.PARTITION_THREAD, 1, 10, 5);
+
+			for (int batch = 0; batch < 10; ++batch) {
+				List<LogMsg> msgs = new ArrayList<LogMsg>();
+				msgs.add(LogMsg.newBuilder().th("a").msg("a" + batch).build());
+				msgs.add(LogMsg.newBuilder().th("b").msg("b" + batch).build());
+				transport.send(LogMsgGroup.newBuilder().msgs(msgs).build());
+			}
+
+			transport.close();
+
+			Assert.assertEquals(20L, server.getMsgCount());
+		} finally {
+			server.stop();
+		}
+	}
+}
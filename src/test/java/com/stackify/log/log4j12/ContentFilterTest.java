@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * ContentFilter JUnit Test
+ */
+public class ContentFilterTest {
+
+	/**
+	 * testCompileEmpty
+	 */
+	@Test
+	public void testCompileEmpty() {
+		Assert.assertNull(ContentFilter.compile(null));
+		Assert.assertNull(ContentFilter.compile(" "));
+	}
+
+	/**
+	 * testDrops
+	 */
+	@Test
+	public void testDrops() {
+		ContentFilter filter = ContentFilter.compile("action=keep,logger=com.example.payments;"
+				+ "logger=org.apache.http,level=WARN,contains=Connection reset;"
+				+ "regex=Retrying after \\d+ms;"
+				+ "logger=com.example.noisy");
+
+		Assert.assertTrue(drops(filter, "org.apache.http.impl", Level.WARN, "I/O error: Connection reset by peer"));
+		Assert.assertFalse(drops(filter, "org.apache.http.impl", Level.ERROR, "I/O error: Connection reset by peer"));
+		Assert.assertFalse(drops(filter, "org.apache.httpclient", Level.WARN, "I/O error: Connection reset by peer"));
+		Assert.assertFalse(drops(filter, "org.apache.http.impl", Level.WARN, "I/O error: Connection refused"));
+		Assert.assertTrue(drops(filter, "com.example.Client", Level.INFO, "Retrying after 250ms"));
+		Assert.assertFalse(drops(filter, "com.example.Client", Level.INFO, "Retrying after a while"));
+		Assert.assertTrue(drops(filter, "com.example.noisy.Poller", Level.INFO, null));
+		Assert.assertFalse(drops(filter, "com.example.payments", Level.WARN, "Retrying after 250ms"));
+		Assert.assertFalse(drops(filter, "com.example.Client", Level.INFO, null));
+	}
+
+	/**
+	 * testRequiredLiteral
+	 */
+	@Test
+	public void testRequiredLiteral() {
+		Assert.assertEquals("Retrying after ", ContentFilter.requiredLiteral("Retrying after \\d+ms"));
+		Assert.assertEquals("timeout", ContentFilter.requiredLiteral("^.*timeout.*$"));
+		Assert.assertEquals("@example.com", ContentFilter.requiredLiteral("[a-z]+@example\\.com"));
+		Assert.assertEquals("Cache mi", ContentFilter.requiredLiteral("Cache mis?"));
+		Assert.assertEquals(" attempts", ContentFilter.requiredLiteral("x{2,3} attempts"));
+		Assert.assertEquals("failed", ContentFilter.requiredLiteral("(optional )?failed"));
+		Assert.assertNull(ContentFilter.requiredLiteral("foo|bar"));
+		Assert.assertNull(ContentFilter.requiredLiteral("(?i)timeout"));
+		Assert.assertNull(ContentFilter.requiredLiteral("\\d+"));
+	}
+
+	/**
+	 * testRequiredLiteralEscapes
+	 *
+	 * Code point, class and back reference escapes end the literal instead of adding their digits.
+	 */
+	@Test
+	public void testRequiredLiteralEscapes() {
+		Assert.assertEquals("BC", ContentFilter.requiredLiteral("\\x41BC"));
+		Assert.assertEquals("id ", ContentFilter.requiredLiteral("id \\x{41}"));
+		Assert.assertEquals(" ok", ContentFilter.requiredLiteral("\\u0041 ok"));
+		Assert.assertEquals("xyz", ContentFilter.requiredLiteral("\\0101xyz"));
+		Assert.assertEquals("Bc", ContentFilter.requiredLiteral("\\cABc"));
+		Assert.assertEquals(" name", ContentFilter.requiredLiteral("\\p{Lu} name"));
+		Assert.assertEquals("a.b", ContentFilter.requiredLiteral("a\\.b\\12"));
+		Assert.assertNull(ContentFilter.requiredLiteral("\\x41"));
+
+		ContentFilter filter = ContentFilter.compile("regex=\\x41BC;regex=\\u0044EF;regex=\\0107HI");
+
+		Assert.assertTrue(drops(filter, "com.example", Level.INFO, "ABC"));
+		Assert.assertTrue(drops(filter, "com.example", Level.INFO, "DEF"));
+		Assert.assertTrue(drops(filter, "com.example", Level.INFO, "GHI"));
+		Assert.assertFalse(drops(filter, "com.example", Level.INFO, "41BC"));
+	}
+
+	/**
+	 * testRequiredLiteralClasses
+	 *
+	 * A leading ] and nested or intersected classes are part of the class, not of the literal.
+	 */
+	@Test
+	public void testRequiredLiteralClasses() {
+		Assert.assertEquals("bar", ContentFilter.requiredLiteral("fo[^]]bar"));
+		Assert.assertEquals("xyz", ContentFilter.requiredLiteral("[a-z&&[^b]]xyz"));
+		Assert.assertEquals("id", ContentFilter.requiredLiteral("[]]id"));
+		Assert.assertEquals("end", ContentFilter.requiredLiteral("[\\]x]end"));
+		Assert.assertNull(ContentFilter.requiredLiteral("[a-z"));
+
+		ContentFilter filter = ContentFilter.compile("regex=fo[^]]bar;regex=[a-z&&[^b]]xyz;regex=[]]id");
+
+		Assert.assertTrue(drops(filter, "com.example", Level.INFO, "foxbar"));
+		Assert.assertFalse(drops(filter, "com.example", Level.INFO, "fo]bar"));
+		Assert.assertTrue(drops(filter, "com.example", Level.INFO, "cxyz"));
+		Assert.assertFalse(drops(filter, "com.example", Level.INFO, "bxyz"));
+		Assert.assertTrue(drops(filter, "com.example", Level.INFO, "]id"));
+		Assert.assertFalse(drops(filter, "com.example", Level.INFO, "id"));
+	}
+
+	/**
+	 * testEscapedSeparators
+	 */
+	@Test
+	public void testEscapedSeparators() {
+		ContentFilter filter = ContentFilter.compile("regex=took \\d{1\\,3} ms;contains=a\\,b\\;c,level=WARN");
+
+		Assert.assertTrue(drops(filter, "com.example", Level.INFO, "took 250 ms"));
+		Assert.assertFalse(drops(filter, "com.example", Level.INFO, "took 2500 ms"));
+		Assert.assertTrue(drops(filter, "com.example", Level.WARN, "x a,b;c y"));
+		Assert.assertFalse(drops(filter, "com.example", Level.INFO, "x a,b;c y"));
+		Assert.assertFalse(drops(filter, "com.example", Level.WARN, "x a"));
+	}
+
+	/**
+	 * testLiteralSearch
+	 */
+	@Test
+	public void testLiteralSearch() {
+		List<String> literals = Arrays.asList("he", "she", "his", "hers", "abab", "bab", "a", "ab");
+		LiteralSearch search = new LiteralSearch(literals);
+		Random random = new Random(42);
+
+		for (int n = 0; n < 1000; ++n) {
+			StringBuilder text = new StringBuilder();
+
+			for (int i = random.nextInt(20); 0 < i; --i) {
+				text.append("abehirs".charAt(random.nextInt(7)));
+			}
+
+			BitSet found = search.search(text.toString());
+
+			for (int i = 0; i < literals.size(); ++i) {
+				Assert.assertEquals(text + " " + literals.get(i), text.toString().contains(literals.get(i)), found.get(i));
+			}
+		}
+	}
+
+	/**
+	 * testInvalidRules
+	 */
+	@Test
+	public void testInvalidRules() {
+		for (String rules : Arrays.asList("logger", "action=ignore", "level=LOUD", "regex=(", "colour=red", "contains=a,regex=b")) {
+			try {
+				ContentFilter.compile(rules);
+				Assert.fail(rules);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * @param filter The filter
+	 * @param logger Logger name
+	 * @param level Event level
+	 * @param message Event message
+	 * @return True if the filter drops the event
+	 */
+	private static boolean drops(final ContentFilter filter, final String logger, final Level level, final String message) {
+		LoggingEvent event = new LoggingEvent(Logger.class.getName(), Logger.getLogger(logger), level, message, null);
+		return filter.drops(event, message);
+	}
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.stackify.api.LogMsgGroup;
+import com.stackify.api.common.log.LogTransport;
+
+/**
+ * CpuGovernor JUnit Test
+ */
+public class CpuGovernorTest {
+
+	/**
+	 * testParseBudget
+	 */
+	@Test
+	public void testParseBudget() {
+		Assert.assertNull(CpuGovernor.parseBudget(null));
+		Assert.assertNull(CpuGovernor.parseBudget(""));
+		Assert.assertEquals(Double.valueOf(2.5), CpuGovernor.parseBudget(" 2.5 "));
+	}
+
+	/**
+	 * testParseBudgetInvalid
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseBudgetInvalid() {
+		CpuGovernor.parseBudget("0");
+	}
+
+	/**
+	 * testUpdate
+	 */
+	@Test
+	public void testUpdate() {
+		final List<Fidelity> changes = new ArrayList<Fidelity>();
+
+		CpuGovernor governor = new CpuGovernor(10, new Fidelity.Listener() {
+			@Override
+			public void onFidelityChange(final Fidelity fidelity) {
+				changes.add(fidelity);
+			}
+		}, null);
+
+		try {
+			Assert.assertEquals(-1L, governor.begin());
+
+			governor.update(8);
+			Assert.assertEquals(0, governor.getLevel());
+
+			// 2.5 times the budget, one step
+
+			governor.update(25);
+			Assert.assertEquals(Fidelity.NO_LOCATION, governor.getFidelity());
+
+			// 5 times the budget, two steps
+
+			governor.update(50);
+			Assert.assertEquals(3, governor.getLevel());
+			Assert.assertEquals(Fidelity.NO_MDC, governor.getFidelity());
+			Assert.assertEquals(2, governor.getSampleRate());
+
+			// far over budget, down to the last step
+
+			governor.update(100000);
+			Assert.assertEquals(Fidelity.ERROR_ONLY, governor.getFidelity());
+			Assert.assertEquals(1, governor.getSampleRate());
+
+			Assert.assertEquals(3L, governor.getTransitions());
+			Assert.assertEquals(3, changes.size());
+		} finally {
+			governor.close();
+		}
+	}
+
+	/**
+	 * testRecovery
+	 */
+	@Test
+	public void testRecovery() {
+		CpuGovernor governor = new CpuGovernor(10, new Fidelity.Listener() {
+			@Override
+			public void onFidelityChange(final Fidelity fidelity) {
+			}
+		}, null);
+
+		try {
+			governor.update(25);
+			Assert.assertEquals(1, governor.getLevel());
+
+			for (int i = 0; i < 4; ++i) {
+				governor.update(1);
+			}
+
+			// a window near the budget restarts the recovery
+
+			governor.update(8);
+
+			for (int i = 0; i < 4; ++i) {
+				governor.update(1);
+			}
+
+			Assert.assertEquals(1, governor.getLevel());
+
+			governor.update(1);
+			Assert.assertEquals(0, governor.getLevel());
+			Assert.assertEquals(Fidelity.FULL, governor.getFidelity());
+		} finally {
+			governor.close();
+		}
+	}
+
+	/**
+	 * testMeasuresFromStart
+	 *
+	 * The CPU a registered thread used before the governor started is not counted, and the uploads
+	 * run on other threads are.
+	 * @throws Exception
+	 */
+	@Test
+	public void testMeasuresFromStart() throws Exception {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean().isThreadCpuTimeSupported());
+
+		ThreadRegistry registry = new ThreadRegistry();
+		Thread busy = startBusy(registry, "Stackify_BusyTest", 300);
+
+		CpuGovernor governor = new CpuGovernor(100, new Fidelity.Listener() {
+			@Override
+			public void onFidelityChange(final Fidelity fidelity) {
+			}
+		}, registry);
+
+		// 300 ms of CPU in a window of one second
+
+		double spun = 30.0 / Runtime.getRuntime().availableProcessors();
+
+		try {
+			Thread.sleep(1500);
+			Assert.assertTrue("usage " + governor.getUsagePercent(), governor.getUsagePercent() < spun / 2);
+
+			LogTransport transport = registry.measure(new LogTransport() {
+				@Override
+				public void send(final LogMsgGroup group) {
+					spin(300);
+				}
+			});
+
+			transport.send(LogMsgGroup.newBuilder().build());
+
+			long start = System.currentTimeMillis();
+
+			while (governor.getUsagePercent() < spun / 2 && System.currentTimeMillis() - start < 2500) {
+				Thread.sleep(10);
+			}
+
+			Assert.assertTrue("usage " + governor.getUsagePercent(), spun / 2 < governor.getUsagePercent());
+		} finally {
+			governor.close();
+			busy.interrupt();
+			busy.join();
+		}
+	}
+
+	/**
+	 * testMeasuresOwnThreadsOnly
+	 *
+	 * The threads and uploads of another appender are not charged to this one.
+	 * @throws Exception
+	 */
+	@Test
+	public void testMeasuresOwnThreadsOnly() throws Exception {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean().isThreadCpuTimeSupported());
+
+		ThreadRegistry own = new ThreadRegistry();
+		ThreadRegistry other = new ThreadRegistry();
+
+		CpuGovernor governor = new CpuGovernor(100, new Fidelity.Listener() {
+			@Override
+			public void onFidelityChange(final Fidelity fidelity) {
+			}
+		}, own);
+
+		double spun = 30.0 / Runtime.getRuntime().availableProcessors();
+		Thread busy = null;
+
+		try {
+			busy = startBusy(other, "Stackify_LogBuffer", 300);
+
+			other.measure(new LogTransport() {
+				@Override
+				public void send(final LogMsgGroup group) {
+					spin(300);
+				}
+			}).send(LogMsgGroup.newBuilder().build());
+
+			Thread.sleep(1500);
+			Assert.assertTrue("usage " + governor.getUsagePercent(), governor.getUsagePercent() < spun / 2);
+		} finally {
+			governor.close();
+
+			if (busy != null) {
+				busy.interrupt();
+				busy.join();
+			}
+		}
+	}
+
+	/**
+	 * testThreadCpuTimeDisabled
+	 *
+	 * The governor leaves the JVM-wide thread CPU time measurement disabled and does not measure.
+	 */
+	@Test
+	public void testThreadCpuTimeDisabled() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadBean.isThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled());
+
+		threadBean.setThreadCpuTimeEnabled(false);
+
+		try {
+			CpuGovernor governor = new CpuGovernor(10, new Fidelity.Listener() {
+				@Override
+				public void onFidelityChange(final Fidelity fidelity) {
+				}
+			}, new ThreadRegistry());
+
+			try {
+				Assert.assertFalse(threadBean.isThreadCpuTimeEnabled());
+
+				for (int i = 0; i < 100; ++i) {
+					Assert.assertEquals(-1L, governor.begin());
+				}
+			} finally {
+				governor.close();
+			}
+		} finally {
+			threadBean.setThreadCpuTimeEnabled(true);
+		}
+	}
+
+	/**
+	 * Starts a thread registered with a registry that uses some CPU then waits to be interrupted
+	 * @param registry The registry
+	 * @param name Thread name
+	 * @param millis CPU time to use (milliseconds)
+	 * @return The thread, once it used the CPU time
+	 * @throws InterruptedException
+	 */
+	private static Thread startBusy(final ThreadRegistry registry, final String name, final long millis) throws InterruptedException {
+		final Object lock = new Object();
+		Thread busy;
+		ThreadRegistry previous = registry.enter();
+
+		try {
+			busy = ThreadRegistry.register(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					spin(millis);
+
+					synchronized (lock) {
+						try {
+							lock.wait();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				}
+			}, name));
+		} finally {
+			ThreadRegistry.exit(previous);
+		}
+
+		busy.start();
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+		while (threadBean.getThreadCpuTime(busy.getId()) < millis * 1000000L) {
+			Thread.sleep(10);
+		}
+
+		return busy;
+	}
+
+	/**
+	 * Uses the CPU of the current thread
+	 * @param millis CPU time to use (milliseconds)
+	 */
+	private static void spin(final long millis) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		long end = threadBean.getCurrentThreadCpuTime() + millis * 1000000L;
+
+		while (threadBean.getCurrentThreadCpuTime() < end) {
+			Math.sqrt(end);
+		}
+	}
+
+	/**
+	 * testBudgetHolds
+	 *
+	 * Logs expensive events (caller location, MDC, masking, deep stack traces) from threads doing
+	 * little else, and compares the CPU share of logging without and with a budget (mvn test -Pbenchmark).
+	 * @throws Exception
+	 */
+	@Test
+	public void testBudgetHolds() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+		double unbudgeted = measureShare(null);
+		double budgeted = measureShare("5");
+
+		System.out.println("logging CPU share: no budget " + Math.round(unbudgeted * 10) / 10.0 + "%, cpuBudgetPercent=5 "
+				+ Math.round(budgeted * 10) / 10.0 + "%");
+
+		// the errors are never dropped, they alone cost about the budget in this workload
+
+		Assert.assertTrue(budgeted < unbudgeted / 2);
+	}
+
+	/**
+	 * Runs the adversarial workload and measures the CPU share of logging once the governor settled
+	 * @param budget The cpuBudgetPercent option
+	 * @return CPU used by logging (percent of the CPU available to the JVM)
+	 * @throws Exception
+	 */
+	private static double measureShare(final String budget) throws Exception {
+		StubStackifyServer server = new StubStackifyServer(2);
+		server.setRecording(false);
+
+		StackifyLogAppender appender = new StackifyLogAppender();
+		appender.setApiUrl(server.getUrl());
+		appender.setApiKey("key");
+		appender.setApplication("app");
+		appender.setEnvironment("test");
+		appender.setMaskEnabled("true");
+		appender.setCpuBudgetPercent(budget);
+		appender.activateOptions();
+
+		final long timerNanos = timerNanos();
+		final Logger logger = Logger.getLogger("benchmark");
+		final AtomicLong loggingNanos = new AtomicLong();
+		final long settleEnd = System.currentTimeMillis() + 8000;
+		final long end = settleEnd + 6000;
+
+		List<Thread> workers = new ArrayList<Thread>();
+
+		for (int t = 0; t < 2; ++t) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+					for (int m = 0; m < 10; ++m) {
+						MDC.put("key" + m, "value" + m);
+					}
+
+					for (long i = 0; System.currentTimeMillis() < end; ++i) {
+						work(20000);
+
+						LoggingEvent event = (i % 50 == 0)
+								? new LoggingEvent(Logger.class.getName(), logger, Level.ERROR, "failed for user" + i + "@example.com", deepException(100))
+								: new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "request " + i + " from user" + i + "@example.com took 12 ms", null);
+
+						long start = threads.getCurrentThreadCpuTime();
+						appender.doAppend(event);
+
+						if (settleEnd <= System.currentTimeMillis()) {
+							loggingNanos.addAndGet(Math.max(0, threads.getCurrentThreadCpuTime() - start - timerNanos));
+						}
+					}
+				}
+			}, "benchmark-" + t);
+
+			worker.start();
+			workers.add(worker);
+		}
+
+		Thread.sleep(Math.max(0, settleEnd - System.currentTimeMillis()));
+		long background = backgroundCpu();
+		long measureStart = System.nanoTime();
+
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		background = backgroundCpu() - background;
+		long capacity = (System.nanoTime() - measureStart) * Runtime.getRuntime().availableProcessors();
+
+		appender.close();
+		server.stop();
+
+		return 100.0 * (loggingNanos.get() + background) / capacity;
+	}
+
+	/**
+	 * @return Average CPU time of reading the current thread CPU time, counted once by each measurement (nanoseconds)
+	 */
+	private static long timerNanos() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		int reads = 100000;
+		long start = threads.getCurrentThreadCpuTime();
+
+		for (int i = 1; i < reads; ++i) {
+			threads.getCurrentThreadCpuTime();
+		}
+
+		return (threads.getCurrentThreadCpuTime() - start) / reads;
+	}
+
+	/**
+	 * @return CPU time of the appender's background threads (nanoseconds)
+	 */
+	private static long backgroundCpu() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Map<Long, Long> cpu = new HashMap<Long, Long>();
+
+		for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if (info != null && info.getThreadName().startsWith("Stackify")) {
+				cpu.put(info.getThreadId(), Math.max(0, threads.getThreadCpuTime(info.getThreadId())));
+			}
+		}
+
+		long total = 0;
+
+		for (long nanos : cpu.values()) {
+			total += nanos;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Application work between the events
+	 * @param nanos CPU time to spend
+	 */
+	private static void work(final long nanos) {
+		long start = System.nanoTime();
+
+		while (System.nanoTime() - start < nanos) {
+			// busy
+		}
+	}
+
+	/**
+	 * @param depth Stack depth
+	 * @return An exception with a deep stack trace
+	 */
+	private static Exception deepException(final int depth) {
+		return (depth == 0) ? new IllegalStateException("deep") : deepException(depth - 1);
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stackify.api.LogMsg;
+import com.stackify.api.LogMsgGroup;
+import com.stackify.api.StackifyError;
+import com.stackify.api.common.lang.Throwables;
+
+/**
+ * DictionaryBatchCodec JUnit Test
+ */
+public class DictionaryBatchCodecTest {
+
+	/**
+	 * testRoundTrip
+	 * @throws Exception
+	 */
+	@Test
+	public void testRoundTrip() throws Exception {
+		LogMsgGroup group = newBatch(200);
+
+		DictionaryBatchCodec codec = new DictionaryBatchCodec();
+		LogMsgGroup decoded = codec.decode(codec.encode(group));
+
+		Assert.assertEquals(group.getAppName(), decoded.getAppName());
+		Assert.assertEquals(group.getServerName(), decoded.getServerName());
+		Assert.assertEquals(group.getMsgs().size(), decoded.getMsgs().size());
+
+		ObjectMapper json = new ObjectMapper();
+
+		for (int i = 0; i < group.getMsgs().size(); ++i) {
+			Assert.assertEquals(json.writeValueAsString(group.getMsgs().get(i)), json.writeValueAsString(decoded.getMsgs().get(i)));
+		}
+	}
+
+	/**
+	 * testRoundTripEmpty
+	 * @throws Exception
+	 */
+	@Test
+	public void testRoundTripEmpty() throws Exception {
+		LogMsgGroup group = LogMsgGroup.newBuilder().appName("app").msgs(new ArrayList<LogMsg>()).build();
+
+		DictionaryBatchCodec codec = new DictionaryBatchCodec();
+		LogMsgGroup decoded = codec.decode(codec.encode(group));
+
+		Assert.assertEquals("app", decoded.getAppName());
+		Assert.assertTrue(decoded.getMsgs().isEmpty());
+	}
+
+	/**
+	 * testSmallerThanJson
+	 *
+	 * Compares the encoded size and encoding time against the gzipped JSON batches sent to Stackify.
+	 * @throws Exception
+	 */
+	@Test
+	public void testSmallerThanJson() throws Exception {
+		LogMsgGroup group = newBatch(2000);
+
+		ObjectMapper json = new ObjectMapper();
+
+		long[] jsonResult = measure(json, null, group);
+		long[] defaultResult = measure(json, new DictionaryBatchCodec(), group);
+		long[] fastResult = measure(json, new DictionaryBatchCodec(Deflater.BEST_SPEED), group);
+
+		System.out.println("2000 msgs: json+gzip " + jsonResult[0] + " bytes " + jsonResult[1] + " us"
+				+ ", dictionary+deflate " + defaultResult[0] + " bytes " + defaultResult[1] + " us"
+				+ ", dictionary+deflate(fast) " + fastResult[0] + " bytes " + fastResult[1] + " us");
+
+		Assert.assertTrue(defaultResult[0] < jsonResult[0]);
+		Assert.assertTrue(fastResult[0] < jsonResult[0]);
+	}
+
+	/**
+	 * Measures the encoded size and average encoding time of a batch
+	 * @param json JSON converter
+	 * @param codec Codec to measure, null for gzipped JSON
+	 * @param group The batch
+	 * @return Encoded bytes and microseconds per batch
+	 * @throws Exception
+	 */
+	private static long[] measure(final ObjectMapper json, final DictionaryBatchCodec codec, final LogMsgGroup group) throws Exception {
+		byte[] encoded = null;
+		long start = 0;
+
+		for (int i = 0; i < 70; ++i) {
+			if (i == 20) {
+				start = System.nanoTime();
+			}
+
+			encoded = (codec == null) ? gzip(json.writeValueAsBytes(group)) : codec.encode(group);
+		}
+
+		return new long[] {encoded.length, (System.nanoTime() - start) / 50 / 1000};
+	}
+
+	/**
+	 * Builds a batch with the repetition of a typical service
+	 * @param size Number of messages
+	 * @return The batch
+	 */
+	private static LogMsgGroup newBatch(final int size) {
+		List<String> levels = Arrays.asList("debug", "info", "warn", "error");
+		List<LogMsg> msgs = new ArrayList<LogMsg>();
+
+		StackifyError error = StackifyError.newBuilder()
+				.error(Throwables.toErrorItem("failure", new IllegalStateException("failure")))
+				.occurredEpochMillis(1400000000000L)
+				.build();
+
+		for (int i = 0; i < size; ++i) {
+			msgs.add(LogMsg.newBuilder()
+					.msg("processed request " + i + " in " + (i % 97) + "ms")
+					.data("{\"requestId\":\"req-" + (i / 10) + "\",\"tenant\":\"tenant" + (i % 3) + "\",\"region\":\"us-east-1\"}")
+					.th("http-nio-8080-exec-" + (i % 16))
+					.epochMs(1400000000000L + i)
+					.level(levels.get(i % levels.size()))
+					.transId((i % 5 == 0) ? null : "tx-" + (i / 20))
+					.srcMethod("com.example.service.Handler" + (i % 12) + ".handle")
+					.srcLine(100 + (i % 12))
+					.ex((i % 100 == 0) ? error : null)
+					.build());
+		}
+
+		return LogMsgGroup.newBuilder()
+				.appName("app")
+				.env("prod")
+				.serverName("host-1")
+				.logger("stackify-log-log4j12")
+				.platform("java")
+				.msgs(msgs)
+				.build();
+	}
+
+	/**
+	 * @param bytes Bytes to compress
+	 * @return The gzipped bytes
+	 * @throws Exception
+	 */
+	private static byte[] gzip(final byte[] bytes) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(bytes);
+		gzip.close();
+		return out.toByteArray();
+	}
+}
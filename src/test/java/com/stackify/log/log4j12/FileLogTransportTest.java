@@ -0,0 +1,311 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stackify.api.LogMsg;
+import com.stackify.api.LogMsgGroup;
+import com.stackify.api.common.ApiConfiguration;
+import com.stackify.api.common.ApiConfigurations;
+import com.stackify.api.common.log.LogTransport;
+import com.stackify.api.common.log.LogTransportDirect;
+import com.stackify.api.common.mask.Masker;
+
+/**
+ * FileLogTransport JUnit Test
+ */
+public class FileLogTransportTest {
+
+	/**
+	 * Temporary log directory
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * testWritesNdjson
+	 * @throws Exception
+	 */
+	@Test
+	public void testWritesNdjson() throws Exception {
+		Masker masker = new Masker();
+		masker.addMask(Masker.MASK_EMAIL);
+
+		FileLogTransport transport = new FileLogTransport(folder.getRoot(), "app", 1024 * 1024, 60000, 0,
+				FileLogTransport.Fsync.ROLL, masker, false);
+
+		try {
+			for (int g = 0; g < 10; ++g) {
+				transport.send(newGroup(g, 100));
+			}
+		} finally {
+			transport.close();
+		}
+
+		File[] files = listFiles();
+		Assert.assertEquals(1, files.length);
+
+		List<String> lines = Files.readAllLines(files[0].toPath(), StandardCharsets.UTF_8);
+		Assert.assertEquals(10, lines.size());
+
+		ObjectMapper json = new ObjectMapper();
+		long expected = 0;
+
+		for (String line : lines) {
+			LogMsgGroup group = json.readValue(line, LogMsgGroup.class);
+			Assert.assertEquals("app", group.getAppName());
+
+			for (LogMsg msg : group.getMsgs()) {
+				Assert.assertEquals(Long.valueOf(expected++), msg.getEpochMs());
+				Assert.assertFalse(msg.getMsg().contains("@example.com"));
+			}
+		}
+
+		Assert.assertEquals(1000L, expected);
+	}
+
+	/**
+	 * testRollsBySize
+	 * @throws Exception
+	 */
+	@Test
+	public void testRollsBySize() throws Exception {
+		int lineSize = new ObjectMapper().writeValueAsBytes(newGroup(0, 10)).length + 1;
+
+		FileLogTransport transport = new FileLogTransport(folder.getRoot(), "app", 3L * lineSize + 10, 60000, 3,
+				FileLogTransport.Fsync.NONE, new Masker(), false);
+
+		try {
+			for (int g = 0; g < 15; ++g) {
+				transport.send(newGroup(0, 10));
+			}
+		} finally {
+			transport.close();
+		}
+
+		File[] files = listFiles();
+		Assert.assertEquals(3, files.length);
+
+		for (File file : files) {
+			Assert.assertEquals(3, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+		}
+	}
+
+	/**
+	 * testSharedDirectory
+	 *
+	 * Two transports with the same prefix keep their own files apart, and neither deletes the recent
+	 * files of the other or of an earlier run.
+	 * @throws Exception
+	 */
+	@Test
+	public void testSharedDirectory() throws Exception {
+		int lineSize = new ObjectMapper().writeValueAsBytes(newGroup(0, 10)).length + 1;
+		File earlier = folder.newFile("app-20140101-000000-000-1-00000000-000000" + FileLogTransport.EXTENSION);
+
+		FileLogTransport first = new FileLogTransport(folder.getRoot(), "app", lineSize, 60000, 2,
+				FileLogTransport.Fsync.NONE, new Masker(), false);
+		FileLogTransport second = new FileLogTransport(folder.getRoot(), "app", lineSize, 60000, 2,
+				FileLogTransport.Fsync.NONE, new Masker(), false);
+
+		Assert.assertNotEquals(first.getWriterId(), second.getWriterId());
+
+		try {
+			for (int g = 0; g < 10; ++g) {
+				first.send(newGroup(g, 10));
+				second.send(newGroup(g, 10));
+			}
+		} finally {
+			first.close();
+			second.close();
+		}
+
+		Assert.assertTrue(earlier.exists());
+		Assert.assertEquals(5, listFiles().length);
+
+		for (FileLogTransport transport : new FileLogTransport[] {first, second}) {
+			int count = 0;
+
+			for (File file : listFiles()) {
+				if (file.getName().contains("-" + transport.getWriterId() + "-")) {
+					++count;
+				}
+			}
+
+			Assert.assertEquals(2, count);
+		}
+	}
+
+	/**
+	 * testDeletesStaleFiles
+	 *
+	 * Files of other writers with the same prefix are deleted once they were not modified for
+	 * fileMaxFiles roll intervals, so restarts do not pile up files.
+	 * @throws Exception
+	 */
+	@Test
+	public void testDeletesStaleFiles() throws Exception {
+		long now = System.currentTimeMillis();
+
+		File stale = folder.newFile("app-20140101-000000-000-1-00000000-000000" + FileLogTransport.EXTENSION);
+		Assert.assertTrue(stale.setLastModified(now - 3 * 60000));
+		File recent = folder.newFile("app-20140101-000000-000-1-00000000-000001" + FileLogTransport.EXTENSION);
+		Assert.assertTrue(recent.setLastModified(now - 60000));
+		File otherPrefix = folder.newFile("apps-20140101-000000-000-1-00000000-000000" + FileLogTransport.EXTENSION);
+		Assert.assertTrue(otherPrefix.setLastModified(now - 3 * 60000));
+		File otherName = folder.newFile("app-notes" + FileLogTransport.EXTENSION);
+		Assert.assertTrue(otherName.setLastModified(now - 3 * 60000));
+
+		FileLogTransport transport = new FileLogTransport(folder.getRoot(), "app", 1024 * 1024, 60000, 2,
+				FileLogTransport.Fsync.NONE, new Masker(), false);
+
+		try {
+			transport.send(newGroup(0, 10));
+		} finally {
+			transport.close();
+		}
+
+		Assert.assertFalse(stale.exists());
+		Assert.assertTrue(recent.exists());
+		Assert.assertTrue(otherPrefix.exists());
+		Assert.assertTrue(otherName.exists());
+	}
+
+	/**
+	 * testRollsByTime
+	 * @throws Exception
+	 */
+	@Test
+	public void testRollsByTime() throws Exception {
+		FileLogTransport transport = new FileLogTransport(folder.getRoot(), "app", 1024 * 1024, 200, 0,
+				FileLogTransport.Fsync.BATCH, new Masker(), false);
+
+		try {
+			transport.send(newGroup(0, 10));
+			Thread.sleep(500);
+			transport.send(newGroup(0, 10));
+		} finally {
+			transport.close();
+		}
+
+		Assert.assertEquals(2, listFiles().length);
+	}
+
+	/**
+	 * testThroughput
+	 *
+	 * Compares the batches per second of the file transport and of the direct transport to a local
+	 * stub (mvn test -Pbenchmark).
+	 * @throws Exception
+	 */
+	@Test
+	public void testThroughput() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+		int batches = 2000;
+
+		FileLogTransport file = new FileLogTransport(folder.getRoot(), "app", 100 * 1024 * 1024, 3600000, 0,
+				FileLogTransport.Fsync.ROLL, new Masker(), false);
+
+		long start = System.nanoTime();
+
+		try {
+			send(file, batches);
+		} finally {
+			file.close();
+		}
+
+		long fileMs = (System.nanoTime() - start) / 1000000;
+
+		StubStackifyServer server = new StubStackifyServer(4);
+		server.setRecording(false);
+
+		ApiConfiguration apiConfig = ApiConfigurations.fromPropertiesWithOverrides(server.getUrl(), "key", "app", "test", null, "false");
+
+		start = System.nanoTime();
+
+		try {
+			send(new LogTransportDirect(apiConfig, new ObjectMapper(), new Masker(), false), batches);
+		} finally {
+			server.stop();
+		}
+
+		long httpMs = (System.nanoTime() - start) / 1000000;
+
+		System.out.println(batches + " batches of 100 msgs: file " + fileMs + " ms (" + (batches * 1000L / Math.max(1, fileMs))
+				+ " batches/s), http " + httpMs + " ms (" + (batches * 1000L / Math.max(1, httpMs)) + " batches/s)");
+	}
+
+	/**
+	 * Sends batches, retrying while the file writer is behind
+	 * @param transport The transport
+	 * @param batches Number of batches
+	 * @throws Exception
+	 */
+	private static void send(final LogTransport transport, final int batches) throws Exception {
+		for (int g = 0; g < batches; ++g) {
+			for (int attempt = 0; ; ++attempt) {
+				try {
+					transport.send(newGroup(g, 100));
+					break;
+				} catch (Exception e) {
+					if (100 < attempt) {
+						throw e;
+					}
+					Thread.sleep(1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The log files, oldest first
+	 */
+	private File[] listFiles() {
+		File[] files = folder.getRoot().listFiles();
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * @param index Batch index
+	 * @param size Number of messages
+	 * @return A batch
+	 */
+	private static LogMsgGroup newGroup(final int index, final int size) {
+		List<LogMsg> msgs = new ArrayList<LogMsg>();
+
+		for (int i = 0; i < size; ++i) {
+			long n = (long) index * size + i;
+			msgs.add(LogMsg.newBuilder().msg("user" + n + "@example.com logged in").epochMs(n).level("info").th("main").build());
+		}
+
+		return LogMsgGroup.newBuilder().appName("app").env("test").serverName("host").platform("java").logger("test").msgs(msgs).build();
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * HeapGuard JUnit Test
+ */
+public class HeapGuardTest {
+
+	/**
+	 * testParseThresholds
+	 */
+	@Test
+	public void testParseThresholds() {
+		Assert.assertNull(HeapGuard.parseThresholds(null));
+		Assert.assertNull(HeapGuard.parseThresholds(" "));
+		Assert.assertArrayEquals(new double[] {0.8, 0.9, 0.95}, HeapGuard.parseThresholds("0.8, 0.9,0.95"), 0);
+	}
+
+	/**
+	 * testParseThresholdsNotAscending
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseThresholdsNotAscending() {
+		HeapGuard.parseThresholds("0.9,0.8");
+	}
+
+	/**
+	 * testParseThresholdsTooMany
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseThresholdsTooMany() {
+		HeapGuard.parseThresholds("0.5,0.6,0.7,0.8,0.9");
+	}
+
+	/**
+	 * testUpdate
+	 */
+	@Test
+	public void testUpdate() {
+		final List<Fidelity> changes = new ArrayList<Fidelity>();
+
+		HeapGuard guard = new HeapGuard(new double[] {0.8, 0.9}, new Fidelity.Listener() {
+			@Override
+			public void onFidelityChange(final Fidelity fidelity) {
+				changes.add(fidelity);
+			}
+		}, false);
+
+		try {
+			guard.update(0.5);
+			Assert.assertEquals(Fidelity.FULL, guard.getFidelity());
+
+			guard.update(0.95);
+			Assert.assertEquals(2, guard.getLevel());
+			Assert.assertEquals(Fidelity.NO_MDC, guard.getFidelity());
+
+			// within the hysteresis of the second threshold
+
+			guard.update(0.87);
+			Assert.assertEquals(2, guard.getLevel());
+
+			guard.update(0.82);
+			Assert.assertEquals(Fidelity.NO_LOCATION, guard.getFidelity());
+
+			guard.update(0.1);
+			Assert.assertEquals(Fidelity.FULL, guard.getFidelity());
+
+			Assert.assertEquals(3, guard.getTransitions());
+			Assert.assertEquals(3, changes.size());
+			Assert.assertEquals(Fidelity.NO_MDC, changes.get(0));
+			Assert.assertEquals(Fidelity.NO_LOCATION, changes.get(1));
+			Assert.assertEquals(Fidelity.FULL, changes.get(2));
+		} finally {
+			guard.close();
+		}
+	}
+
+	/**
+	 * testFullSurvivorEmptyOldGen
+	 *
+	 * A survivor space full after a young collection does not count as heap pressure, as seen with the
+	 * Parallel collector and a small heap.
+	 */
+	@Test
+	public void testFullSurvivorEmptyOldGen() {
+		MemoryPoolMXBean eden = pool(MemoryType.HEAP, false, 0, 64L << 20);
+		MemoryPoolMXBean survivor = pool(MemoryType.HEAP, false, 5L << 20, 5L << 20);
+		MemoryPoolMXBean oldGen = pool(MemoryType.HEAP, true, 0, 170L << 20);
+		MemoryPoolMXBean metaspace = pool(MemoryType.NON_HEAP, true, 10L << 20, 10L << 20);
+
+		List<MemoryPoolMXBean> tenured = HeapGuard.tenuredPools(Arrays.asList(eden, survivor, oldGen, metaspace));
+
+		Assert.assertEquals(Arrays.asList(oldGen), tenured);
+		Assert.assertEquals(0.0, HeapGuard.collectionUsage(tenured), 0.0);
+
+		Mockito.when(oldGen.getCollectionUsage()).thenReturn(new MemoryUsage(0, 153L << 20, 170L << 20, 170L << 20));
+		Assert.assertEquals(0.9, HeapGuard.collectionUsage(tenured), 0.001);
+	}
+
+	/**
+	 * testMonitor
+	 *
+	 * The guard picks up the usage after a collection and leaves the JVM-wide pool thresholds alone.
+	 * @throws Exception
+	 */
+	@Test
+	public void testMonitor() throws Exception {
+		List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+		List<Long> before = new ArrayList<Long>();
+
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.isCollectionUsageThresholdSupported()) {
+				pools.add(pool);
+				before.add(pool.getCollectionUsageThreshold());
+			}
+		}
+
+		HeapGuard guard = new HeapGuard(new double[] {0.000001}, new Fidelity.Listener() {
+			@Override
+			public void onFidelityChange(final Fidelity fidelity) {
+			}
+		}, true);
+
+		try {
+			System.gc();
+
+			long deadline = System.currentTimeMillis() + 5000;
+
+			while (guard.getLevel() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+
+			Assert.assertEquals(Fidelity.NO_LOCATION, guard.getFidelity());
+		} finally {
+			guard.close();
+		}
+
+		for (int i = 0; i < pools.size(); ++i) {
+			Assert.assertEquals(before.get(i).longValue(), pools.get(i).getCollectionUsageThreshold());
+		}
+	}
+
+	/**
+	 * testFidelity
+	 */
+	@Test
+	public void testFidelity() {
+		Assert.assertTrue(Fidelity.FULL.capturesLocation());
+		Assert.assertFalse(Fidelity.NO_LOCATION.capturesLocation());
+		Assert.assertTrue(Fidelity.NO_LOCATION.capturesMdc());
+		Assert.assertFalse(Fidelity.NO_MDC.capturesMdc());
+		Assert.assertTrue(Fidelity.NO_MDC.accepts(Level.DEBUG));
+		Assert.assertFalse(Fidelity.WARN_AND_ABOVE.accepts(Level.INFO));
+		Assert.assertTrue(Fidelity.WARN_AND_ABOVE.accepts(Level.WARN));
+		Assert.assertFalse(Fidelity.ERROR_ONLY.accepts(Level.WARN));
+		Assert.assertTrue(Fidelity.ERROR_ONLY.truncatesStacks());
+		Assert.assertEquals(Fidelity.NO_MDC, Fidelity.NO_LOCATION.min(Fidelity.NO_MDC));
+	}
+
+	/**
+	 * @param type Pool type
+	 * @param tenured True if the pool supports a usage threshold
+	 * @param used Bytes used after the last collection
+	 * @param max Maximum size (bytes)
+	 * @return Mock memory pool
+	 */
+	private static MemoryPoolMXBean pool(final MemoryType type, final boolean tenured, final long used, final long max) {
+		MemoryUsage usage = new MemoryUsage(0, used, max, max);
+		MemoryPoolMXBean pool = Mockito.mock(MemoryPoolMXBean.class);
+		Mockito.when(pool.getType()).thenReturn(type);
+		Mockito.when(pool.isUsageThresholdSupported()).thenReturn(tenured);
+		Mockito.when(pool.getUsage()).thenReturn(usage);
+		Mockito.when(pool.getCollectionUsage()).thenReturn(usage);
+		return pool;
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stackify.api.LogMsg;
+import com.stackify.api.LogMsgGroup;
+import com.stackify.api.common.ApiConfiguration;
+import com.stackify.api.common.ApiConfigurations;
+import com.stackify.api.common.AppIdentityService;
+import com.stackify.api.common.collect.SynchronizedEvictingQueue;
+import com.stackify.api.common.log.LogTransport;
+import com.stackify.api.common.log.LogTransportDirect;
+import com.stackify.api.common.mask.Masker;
+
+/**
+ * LogLane JUnit Test
+ */
+public class LogLaneTest {
+
+	/**
+	 * testErrorVisibleUnderInfoFlood
+	 *
+	 * Measures the time until an error reaches the endpoint while the bulk queue is saturated.
+	 * @throws Exception
+	 */
+	@Test
+	public void testErrorVisibleUnderInfoFlood() throws Exception {
+		StubStackifyServer server = new StubStackifyServer(4);
+		server.setLatency(200);
+
+		ApiConfiguration apiConfig = ApiConfigurations.fromPropertiesWithOverrides(server.getUrl(), "key", "app", "test", null, "false");
+
+		AppenderSettings settings = AppenderSettings.newBuilder()
+				.masker(new Masker())
+				.mdcProjection(MdcProjection.ALL)
+				.build();
+
+		PipelineOptions options = PipelineOptions.newBuilder()
+				.uploaderThreads(1)
+				.errorLane(true)
+				.errorLinger(50)
+				.build();
+
+		LogPipeline pipeline = new LogPipeline("test", new LoggingEventAdapter(apiConfig.getEnvDetail()), settings, options);
+
+		try {
+			pipeline.activate(apiConfig);
+
+			for (int i = 0; i < 20000; ++i) {
+				pipeline.append(newEvent(Level.INFO, "info " + i));
+			}
+
+			long start = System.currentTimeMillis();
+			pipeline.append(newEvent(Level.ERROR, "failure"));
+
+			long visible = -1;
+
+			while (visible < 0 && System.currentTimeMillis() - start < 10000) {
+				if (containsError(server)) {
+					visible = System.currentTimeMillis() - start;
+				} else {
+					Thread.sleep(5);
+				}
+			}
+
+			System.out.println("error visible after " + visible + " ms with 20000 info events queued");
+
+			Assert.assertTrue(0 <= visible);
+			Assert.assertTrue(visible < 2000);
+		} finally {
+			pipeline.close();
+			server.stop();
+		}
+	}
+
+	/**
+	 * testOffHeapBufferUpload
+	 * @throws Exception
+	 */
+	@Test
+	public void testOffHeapBufferUpload() throws Exception {
+		StubStackifyServer server = new StubStackifyServer(4);
+
+		ApiConfiguration apiConfig = ApiConfigurations.fromPropertiesWithOverrides(server.getUrl(), "key", "app", "test", null, "false");
+
+		AppenderSettings settings = AppenderSettings.newBuilder()
+				.masker(new Masker())
+				.mdcProjection(MdcProjection.ALL)
+				.build();
+
+		PipelineOptions options = PipelineOptions.newBuilder()
+				.uploaderThreads(1)
+				.offHeapBufferSize(4 * OffHeapLogQueue.SLAB_SIZE)
+				.build();
+
+		LogPipeline pipeline = new LogPipeline("test", new LoggingEventAdapter(apiConfig.getEnvDetail()), settings, options);
+
+		try {
+			pipeline.activate(apiConfig);
+
+			for (int i = 0; i < 5000; ++i) {
+				pipeline.append(newEvent((i % 100 == 0) ? Level.ERROR : Level.INFO, "message " + i));
+			}
+		} finally {
+			pipeline.close();
+			server.stop();
+		}
+
+		Assert.assertEquals(5000L, server.getMsgCount());
+	}
+
+	/**
+	 * testCloseDrainsAcceptedMessages
+	 *
+	 * Every message a lane accepted while it is closed concurrently is uploaded.
+	 * @throws Exception
+	 */
+	@Test
+	public void testCloseDrainsAcceptedMessages() throws Exception {
+		ApiConfiguration apiConfig = ApiConfigurations.fromPropertiesWithOverrides("http://localhost:1", "key", "app", "test", null, "false");
+		final AtomicLong uploaded = new AtomicLong();
+
+		LogTransport transport = new LogTransport() {
+			@Override
+			public void send(final LogMsgGroup group) {
+				uploaded.addAndGet(group.getMsgs().size());
+			}
+		};
+
+		final LogLane lane = new LogLane("Stackify_LogBuffer", "test", apiConfig.getEnvDetail(), Mockito.mock(AppIdentityService.class),
+				transport, null, 0, new SynchronizedEvictingQueue<LogMsg>(1000000));
+		lane.start();
+
+		final AtomicLong accepted = new AtomicLong();
+		Thread[] adders = new Thread[4];
+
+		for (int t = 0; t < adders.length; ++t) {
+			adders[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 100000 && lane.add(LogMsg.newBuilder().msg("message").level("info").build()); ++i) {
+						accepted.incrementAndGet();
+					}
+				}
+			});
+			adders[t].start();
+		}
+
+		Thread.sleep(200);
+		lane.close();
+
+		for (Thread adder : adders) {
+			adder.join();
+		}
+
+		Assert.assertFalse(lane.isAlive());
+		Assert.assertTrue(0 < accepted.get());
+		Assert.assertEquals(accepted.get(), uploaded.get());
+	}
+
+	/**
+	 * testBacklogDrain
+	 *
+	 * Drains a backlog of 100k messages serially and with one assembly thread per core (mvn test -Pbenchmark).
+	 * @throws Exception
+	 */
+	@Test
+	public void testBacklogDrain() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		long serial = drainBacklog(1);
+		long parallel = drainBacklog(Math.max(2, cores));
+
+		System.out.println("100000 msg backlog drained in " + serial + " ms serially, " + parallel + " ms with "
+				+ Math.max(2, cores) + " assembly threads on " + cores + " cores");
+	}
+
+	/**
+	 * Uploads a backlog through a lane and checks it arrives complete and in order
+	 * @param assemblyThreads Number of assembly threads
+	 * @return Time to drain the backlog (milliseconds)
+	 * @throws Exception
+	 */
+	private static long drainBacklog(final int assemblyThreads) throws Exception {
+		int backlog = 100000;
+
+		StubStackifyServer server = new StubStackifyServer(4);
+		server.setRecording(true);
+
+		ApiConfiguration apiConfig = ApiConfigurations.fromPropertiesWithOverrides(server.getUrl(), "key", "app", "test", null, "false");
+
+		Masker masker = new Masker();
+		masker.addMask(Masker.MASK_EMAIL);
+		masker.addMask(Masker.MASK_IP);
+
+		BatchAssembler assembler = (1 < assemblyThreads) ? new BatchAssembler(apiConfig, masker, false, assemblyThreads) : null;
+
+		LogLane lane = new LogLane("Stackify_LogBuffer", "test", apiConfig.getEnvDetail(),
+				new AppIdentityService(apiConfig, new ObjectMapper()), new LogTransportDirect(apiConfig, new ObjectMapper(), masker, false),
+				assembler, 0, new SynchronizedEvictingQueue<LogMsg>(backlog));
+
+		try {
+			for (int i = 0; i < backlog; ++i) {
+				lane.add(LogMsg.newBuilder()
+						.msg("request " + i + " from user" + (i % 1000) + "@example.com at 10.0." + (i % 250) + ".1")
+						.data("{\"requestId\":\"req-" + i + "\",\"tenant\":\"tenant" + (i % 3) + "\"}")
+						.th("http-nio-8080-exec-" + (i % 16))
+						.epochMs((long) i)
+						.level("info")
+						.srcMethod("org.example.Handler.handle")
+						.srcLine(42)
+						.build());
+			}
+
+			long start = System.currentTimeMillis();
+			lane.start();
+
+			while (server.getMsgCount() < backlog && System.currentTimeMillis() - start < 120000) {
+				Thread.sleep(10);
+			}
+
+			long elapsed = System.currentTimeMillis() - start;
+
+			Assert.assertEquals(backlog, server.getMsgCount());
+
+			long expected = 0;
+
+			for (LogMsgGroup group : server.getGroups()) {
+				for (LogMsg msg : group.getMsgs()) {
+					Assert.assertEquals(Long.valueOf(expected++), msg.getEpochMs());
+					Assert.assertFalse(msg.getMsg().contains("@example.com"));
+				}
+			}
+
+			return elapsed;
+		} finally {
+			lane.close();
+
+			if (assembler != null) {
+				assembler.close();
+			}
+
+			server.stop();
+		}
+	}
+
+	/**
+	 * @param server The stub endpoint
+	 * @return True if an error message has been received
+	 */
+	private static boolean containsError(final StubStackifyServer server) {
+		for (LogMsgGroup group : server.getGroups()) {
+			for (LogMsg msg : group.getMsgs()) {
+				if ("error".equals(msg.getLevel())) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @param level Event level
+	 * @param message Event message
+	 * @return Logging event located outside of the Stackify packages
+	 */
+	private static LoggingEvent newEvent(final Level level, final String message) {
+		return new LoggingEvent(Logger.class.getName(), Logger.getLogger("test"), System.currentTimeMillis(), level, message,
+				Thread.currentThread().getName(), null, null, new LocationInfo("Handler.java", "org.example.Handler", "handle", "42"), null);
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.stackify.api.EnvironmentDetail;
+import com.stackify.api.LogMsg;
+
+/**
+ * LogRollup JUnit Test
+ */
+public class LogRollupTest {
+
+	/**
+	 * testOfferMatchingRules
+	 */
+	@Test
+	public void testOfferMatchingRules() {
+		LogRollup rollup = LogRollup.create("name=health,logger=com.example.health,level=DEBUG,message=Health check * ok;"
+				+ "logger=com.example.cache,message=*hit*", 60000);
+
+		try {
+			Assert.assertTrue(rollup.offer(newEvent("com.example.health", Level.DEBUG, "Health check db ok")));
+			Assert.assertTrue(rollup.offer(newEvent("com.example.health.Db", Level.DEBUG, "Health check db ok")));
+			Assert.assertFalse(rollup.offer(newEvent("com.example.healthy", Level.DEBUG, "Health check db ok")));
+			Assert.assertFalse(rollup.offer(newEvent("com.example.health", Level.INFO, "Health check db ok")));
+			Assert.assertFalse(rollup.offer(newEvent("com.example.health", Level.DEBUG, "Health check db failed")));
+			Assert.assertTrue(rollup.offer(newEvent("com.example.cache", Level.INFO, "Cache hit for key 1")));
+			Assert.assertFalse(rollup.offer(newEvent("com.example.cache", Level.INFO, "Cache miss for key 1")));
+		} finally {
+			rollup.close();
+		}
+	}
+
+	/**
+	 * testOfferEscapedSeparators
+	 */
+	@Test
+	public void testOfferEscapedSeparators() {
+		LogRollup rollup = LogRollup.create("name=retry,message=Retry 1\\, 2\\; or 3 *;name=other,message=Other", 60000);
+
+		try {
+			Assert.assertTrue(rollup.offer(newEvent("com.example", Level.INFO, "Retry 1, 2; or 3 times")));
+			Assert.assertFalse(rollup.offer(newEvent("com.example", Level.INFO, "Retry 1")));
+			Assert.assertTrue(rollup.offer(newEvent("com.example", Level.INFO, "Other")));
+		} finally {
+			rollup.close();
+		}
+	}
+
+	/**
+	 * testFlushSummary
+	 */
+	@Test
+	public void testFlushSummary() {
+		LogRollup rollup = LogRollup.create("name=health,logger=com.example.health", 60000);
+		LogPipeline pipeline = Mockito.mock(LogPipeline.class);
+		rollup.setTarget(pipeline);
+
+		for (int i = 0; i < 1000; ++i) {
+			rollup.offer(newEvent("com.example.health", Level.DEBUG, "Health check " + i));
+		}
+
+		rollup.flush();
+		rollup.flush();
+		rollup.close();
+
+		ArgumentCaptor<LoggingEvent> captor = ArgumentCaptor.forClass(LoggingEvent.class);
+		Mockito.verify(pipeline).appendInternal(captor.capture());
+		Mockito.verify(pipeline, Mockito.never()).append(Mockito.any(LoggingEvent.class));
+
+		LoggingEventAdapter adapter = new LoggingEventAdapter(Mockito.mock(EnvironmentDetail.class));
+		LoggingEvent summary = captor.getValue();
+		LogMsg msg = adapter.getLogMsg(summary, null);
+
+		Assert.assertEquals("com.example.health", adapter.getClassName(summary));
+		Assert.assertTrue(msg.getMsg().startsWith("health: 1000 events in "));
+		Assert.assertTrue(msg.getData().contains("\"rollup\":\"health\",\"count\":1000"));
+		Assert.assertEquals("info", msg.getLevel());
+	}
+
+	/**
+	 * testCreateWithoutRules
+	 */
+	@Test
+	public void testCreateWithoutRules() {
+		Assert.assertNull(LogRollup.create(null, 60000));
+		Assert.assertNull(LogRollup.create(" ", 60000));
+	}
+
+	/**
+	 * testCreateInvalidLevel
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateInvalidLevel() {
+		LogRollup.create("level=LOUD", 60000);
+	}
+
+	/**
+	 * @param logger Logger name
+	 * @param level Event level
+	 * @param message Event message
+	 * @return Logging event
+	 */
+	private static LoggingEvent newEvent(final String logger, final Level level, final String message) {
+		return new LoggingEvent(Logger.class.getName(), Logger.getLogger(logger), level, message, null);
+	}
+}
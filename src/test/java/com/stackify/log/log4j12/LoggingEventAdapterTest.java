@@ -26,8 +26,10 @@ import org.apache.log4j.spi.ThrowableInformation;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.powermock.reflect.Whitebox;
 
 import com.stackify.api.EnvironmentDetail;
+import com.stackify.api.ErrorItem;
 import com.stackify.api.LogMsg;
 import com.stackify.api.StackifyError;
 import com.stackify.api.WebRequestDetail;
@@ -113,6 +115,56 @@ public class LoggingEventAdapterTest {
 		Assert.assertEquals("ndcContext", properties.get("NDC"));
 	}
 	
+	/**
+	 * testGetPropertiesWithMdcInclude
+	 */
+	@Test
+	public void testGetPropertiesWithMdcInclude() {
+		LoggingEvent event = Mockito.mock(LoggingEvent.class);
+		Mockito.when(event.getMDC("mdc1")).thenReturn("val1");
+		Mockito.when(event.getMDC("mdc2")).thenReturn("val2");
+		Mockito.when(event.getMDC("mdc3")).thenReturn("val3");
+
+		LoggingEventAdapter adapter = new LoggingEventAdapter(Mockito.mock(EnvironmentDetail.class));
+		adapter.setMdcProjection(MdcProjection.compile("mdc1, mdc2, missing", "mdc2", "mdc1=first"));
+		Map<String, String> properties = adapter.getProperties(event);
+
+		Assert.assertEquals(1, properties.size());
+		Assert.assertEquals("val1", properties.get("first"));
+		Mockito.verify(event, Mockito.never()).getProperties();
+		Mockito.verify(event, Mockito.never()).getMDC("mdc2");
+	}
+
+	/**
+	 * testGetPropertiesWithMdcExcludeAndRename
+	 */
+	@Test
+	public void testGetPropertiesWithMdcExcludeAndRename() {
+		Map<String, String> mdcProperties = new HashMap<String, String>();
+		mdcProperties.put("mdc1", "val1");
+		mdcProperties.put("mdc2", "val2");
+		mdcProperties.put("mdc3", "val3");
+
+		LoggingEvent event = Mockito.mock(LoggingEvent.class);
+		Mockito.when(event.getProperties()).thenReturn(mdcProperties);
+
+		LoggingEventAdapter adapter = new LoggingEventAdapter(Mockito.mock(EnvironmentDetail.class));
+		adapter.setMdcProjection(MdcProjection.compile(null, "mdc2", "mdc3=third"));
+		Map<String, String> properties = adapter.getProperties(event);
+
+		Assert.assertEquals(2, properties.size());
+		Assert.assertEquals("val1", properties.get("mdc1"));
+		Assert.assertEquals("val3", properties.get("third"));
+	}
+
+	/**
+	 * testMdcProjectionInvalidRename
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testMdcProjectionInvalidRename() {
+		MdcProjection.compile(null, null, "mdc1");
+	}
+
 	/**
 	 * testGetThrowable
 	 */
@@ -182,6 +234,7 @@ public class LoggingEventAdapterTest {
 		Mockito.when(event.getMessage()).thenReturn(msg);
 		Mockito.when(event.getThreadName()).thenReturn(th);
 		Mockito.when(event.getLevel()).thenReturn(Level.DEBUG);
+		Whitebox.setInternalState(event, "locationInfo", locInfo);
 		Mockito.when(event.getLocationInformation()).thenReturn(locInfo);
 		Mockito.when(event.getProperties()).thenReturn(properties);
 
@@ -215,6 +268,44 @@ public class LoggingEventAdapterTest {
 		Assert.assertNotNull(error);
 	}
 	
+	/**
+	 * testGetStackifyErrorTruncated
+	 */
+	@Test
+	public void testGetStackifyErrorTruncated() {
+		LoggingEvent event = Mockito.mock(LoggingEvent.class);
+		Mockito.when(event.getMessage()).thenReturn("Exception message");
+
+		Throwable exception = new IllegalStateException("outer", deepException(30));
+
+		LoggingEventAdapter adapter = new LoggingEventAdapter(Mockito.mock(EnvironmentDetail.class));
+		ErrorItem full = adapter.getStackifyError(event, exception).getError();
+
+		adapter.setFidelity(Fidelity.ERROR_ONLY);
+		StackifyError error = adapter.getStackifyError(event, exception);
+		ErrorItem truncated = error.getError();
+
+		Assert.assertNull(error.getServerVariables());
+
+		for (; full != null; full = full.getInnerError(), truncated = truncated.getInnerError()) {
+			Assert.assertEquals(full.getMessage(), truncated.getMessage());
+			Assert.assertEquals(full.getErrorType(), truncated.getErrorType());
+			Assert.assertEquals(full.getSourceMethod(), truncated.getSourceMethod());
+			Assert.assertEquals(10, truncated.getStackTrace().size());
+			Assert.assertEquals(full.getStackTrace().subList(0, 10), truncated.getStackTrace());
+		}
+
+		Assert.assertNull(truncated);
+	}
+
+	/**
+	 * @param depth Stack depth
+	 * @return An exception with a deep stack trace
+	 */
+	private static Exception deepException(final int depth) {
+		return (depth == 0) ? new IllegalArgumentException("deep") : deepException(depth - 1);
+	}
+	
 	/**
 	 * testGetStackifyErrorServletContext
 	 */
@@ -258,6 +349,29 @@ public class LoggingEventAdapterTest {
 		Assert.assertEquals(transactionId, logMsg.getTransId());
 	}
 	
+	/**
+	 * testGetLogMsgDetached
+	 */
+	@Test
+	public void testGetLogMsgDetached() {
+		ServletLogContext.putTransactionId(UUID.randomUUID().toString());
+
+		LoggingEvent event = Mockito.mock(LoggingEvent.class);
+		Mockito.when(event.getThreadName()).thenReturn("caller-thread");
+		Mockito.when(event.getLevel()).thenReturn(Level.INFO);
+
+		LoggingEventAdapter adapter = new LoggingEventAdapter(Mockito.mock(EnvironmentDetail.class));
+		LogMsg logMsg = adapter.getLogMsg(event, null);
+
+		Assert.assertTrue(LoggingEventAdapter.isDetached(event));
+		Assert.assertNull(logMsg.getTransId());
+		Assert.assertNull(logMsg.getSrcMethod());
+		Assert.assertEquals("caller-thread", logMsg.getTh());
+		Mockito.verify(event, Mockito.never()).getLocationInformation();
+
+		ServletLogContext.clear();
+	}
+
 	/**
 	 * testIsErrorLevel
 	 */
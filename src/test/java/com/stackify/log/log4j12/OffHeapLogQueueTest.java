@@ -0,0 +1,214 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stackify.api.LogMsg;
+import com.stackify.api.StackifyError;
+import com.stackify.api.common.collect.SynchronizedEvictingQueue;
+import com.stackify.api.common.lang.Throwables;
+
+/**
+ * OffHeapLogQueue JUnit Test
+ */
+public class OffHeapLogQueueTest {
+
+	/**
+	 * testRoundTrip
+	 * @throws Exception
+	 */
+	@Test
+	public void testRoundTrip() throws Exception {
+		OffHeapLogQueue queue = new OffHeapLogQueue(32 * 4096, 4096);
+		ObjectMapper json = new ObjectMapper();
+
+		LogMsg[] msgs = new LogMsg[100];
+
+		for (int i = 0; i < msgs.length; ++i) {
+			msgs[i] = newMsg(i);
+			Assert.assertTrue(queue.offer(msgs[i]));
+		}
+
+		Assert.assertEquals(100, queue.size());
+		Assert.assertEquals(json.writeValueAsString(msgs[0]), json.writeValueAsString(queue.peek()));
+
+		for (int i = 0; i < msgs.length; ++i) {
+			Assert.assertEquals(json.writeValueAsString(msgs[i]), json.writeValueAsString(queue.poll()));
+		}
+
+		Assert.assertTrue(queue.isEmpty());
+		Assert.assertNull(queue.poll());
+		Assert.assertEquals(0, queue.getDropped());
+	}
+
+	/**
+	 * testAddAll
+	 */
+	@Test
+	public void testAddAll() {
+		OffHeapLogQueue queue = new OffHeapLogQueue(32 * 4096, 4096);
+		List<LogMsg> msgs = new ArrayList<LogMsg>();
+
+		for (int i = 0; i < 100; ++i) {
+			msgs.add(newMsg(i));
+		}
+
+		Assert.assertTrue(queue.addAll(msgs));
+		Assert.assertEquals(100, queue.size());
+
+		for (int i = 0; i < 100; ++i) {
+			Assert.assertEquals(msgs.get(i).getMsg(), queue.poll().getMsg());
+		}
+	}
+
+	/**
+	 * testIterator
+	 *
+	 * The iterator reads a snapshot across slabs without consuming it.
+	 */
+	@Test
+	public void testIterator() {
+		OffHeapLogQueue queue = new OffHeapLogQueue(32 * 4096, 4096);
+
+		for (int i = 0; i < 100; ++i) {
+			queue.offer(newMsg(i));
+		}
+
+		queue.poll();
+
+		int expected = 1;
+
+		for (LogMsg msg : queue) {
+			Assert.assertEquals(newMsg(expected++).getMsg(), msg.getMsg());
+		}
+
+		Assert.assertEquals(100, expected);
+		Assert.assertEquals(99, queue.size());
+		Assert.assertTrue(queue.toString().startsWith("["));
+		Assert.assertEquals(newMsg(1).getMsg(), queue.poll().getMsg());
+	}
+
+	/**
+	 * testEvictsOldestWhenFull
+	 */
+	@Test
+	public void testEvictsOldestWhenFull() {
+		OffHeapLogQueue queue = new OffHeapLogQueue(2 * 4096, 4096);
+
+		for (int i = 0; i < 1000; ++i) {
+			queue.offer(newMsg(i));
+		}
+
+		Assert.assertEquals(2 * 4096L, queue.getAllocatedBytes());
+		Assert.assertEquals(1000, queue.size() + queue.getDropped());
+		Assert.assertTrue(0 < queue.getDropped());
+
+		LogMsg oldest = queue.poll();
+		Assert.assertTrue(Integer.parseInt(oldest.getMsg().substring("message ".length())) > 0);
+
+		long last = -1;
+
+		for (LogMsg msg = oldest; msg != null; msg = queue.poll()) {
+			long index = Long.parseLong(msg.getMsg().substring("message ".length()));
+			Assert.assertTrue(last < index);
+			last = index;
+		}
+
+		Assert.assertEquals(999L, last);
+	}
+
+	/**
+	 * testRetainedHeap
+	 *
+	 * Compares the heap retained by a backlog held on the heap and off-heap.
+	 */
+	@Test
+	public void testRetainedHeap() {
+		int backlog = 50000;
+
+		long base = usedHeap();
+		Queue<LogMsg> heap = new SynchronizedEvictingQueue<LogMsg>(backlog);
+
+		for (int i = 0; i < backlog; ++i) {
+			heap.offer(newMsg(i));
+		}
+
+		long heapRetained = usedHeap() - base;
+		Assert.assertEquals(backlog, heap.size());
+		heap = null;
+
+		base = usedHeap();
+		OffHeapLogQueue offHeap = new OffHeapLogQueue(64L * OffHeapLogQueue.SLAB_SIZE);
+
+		for (int i = 0; i < backlog; ++i) {
+			offHeap.offer(newMsg(i));
+		}
+
+		long offHeapRetained = usedHeap() - base;
+		Assert.assertEquals(backlog, offHeap.size());
+
+		System.out.println(backlog + " queued msgs: heap queue retains " + (heapRetained / 1024) + " KB, off-heap queue retains "
+				+ (offHeapRetained / 1024) + " KB of heap and " + (offHeap.getAllocatedBytes() / 1024) + " KB of direct memory");
+
+		Assert.assertTrue(offHeapRetained < heapRetained);
+	}
+
+	/**
+	 * @return Heap used after a full collection
+	 */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+
+		for (int i = 0; i < 3; ++i) {
+			System.gc();
+		}
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * @param i Message index
+	 * @return Log message
+	 */
+	private static LogMsg newMsg(final int i) {
+		StackifyError error = null;
+
+		if (i % 50 == 0) {
+			error = StackifyError.newBuilder()
+					.error(Throwables.toErrorItem("failure", new IllegalStateException("failure " + i)))
+					.occurredEpochMillis(1400000000000L + i)
+					.build();
+		}
+
+		return LogMsg.newBuilder()
+				.msg("message " + i)
+				.data("{\"requestId\":\"req-" + i + "\",\"tenant\":\"tenant" + (i % 3) + "\"}")
+				.th("http-nio-8080-exec-" + (i % 16))
+				.epochMs(1400000000000L + i)
+				.level((error != null) ? "error" : "info")
+				.srcMethod("com.example.Handler.handle")
+				.srcLine(42)
+				.ex(error)
+				.build();
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.stackify.api.LogMsg;
+import com.stackify.api.LogMsgGroup;
+import com.stackify.api.common.ApiConfiguration;
+import com.stackify.api.common.ApiConfigurations;
+import com.stackify.api.common.mask.Masker;
+import com.stackify.log.log4j12.relay.LogRelay;
+import com.stackify.log.log4j12.relay.RelayOptions;
+
+/**
+ * RelayLogTransport JUnit Test
+ */
+public class RelayLogTransportTest {
+
+	/**
+	 * Temporary spool directory
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * testPipelinesThroughRelay
+	 *
+	 * Three pipelines, standing in for three JVMs, log through one relay to the stub.
+	 * @throws Exception
+	 */
+	@Test
+	public void testPipelinesThroughRelay() throws Exception {
+		StubStackifyServer server = new StubStackifyServer(4);
+
+		LogRelay relay = new LogRelay(RelayOptions.newBuilder()
+				.bindAddress("127.0.0.1")
+				.port(0)
+				.apiUrl(server.getUrl())
+				.spoolDirectory(folder.getRoot().getPath())
+				.spoolMaxSize(64 * 1024 * 1024)
+				.batchSize(600)
+				.linger(60000)
+				.build());
+
+		ApiConfiguration apiConfig = ApiConfigurations.fromPropertiesWithOverrides(server.getUrl(), "key", "app", "test",
+				RelayLogTransport.NAME, "false");
+
+		Masker masker = new Masker();
+		masker.addMask(Masker.MASK_EMAIL);
+
+		AppenderSettings settings = AppenderSettings.newBuilder()
+				.masker(masker)
+				.mdcProjection(MdcProjection.ALL)
+				.build();
+
+		PipelineOptions options = PipelineOptions.newBuilder()
+				.uploaderThreads(1)
+				.relayAddress("127.0.0.1:" + relay.getPort())
+				.build();
+
+		List<LogPipeline> pipelines = new ArrayList<LogPipeline>();
+
+		try {
+			for (int p = 0; p < 3; ++p) {
+				LogPipeline pipeline = new LogPipeline("test", new LoggingEventAdapter(apiConfig.getEnvDetail()), settings, options);
+				pipeline.activate(apiConfig);
+				pipelines.add(pipeline);
+			}
+
+			for (int i = 0; i < 200; ++i) {
+				for (LogPipeline pipeline : pipelines) {
+					pipeline.append(newEvent("user" + i + "@example.com logged in"));
+				}
+			}
+
+			long start = System.currentTimeMillis();
+
+			while (server.getMsgCount() < 600 && System.currentTimeMillis() - start < 10000) {
+				Thread.sleep(20);
+			}
+		} finally {
+			for (LogPipeline pipeline : pipelines) {
+				pipeline.close();
+			}
+
+			relay.close();
+			server.stop();
+		}
+
+		List<LogMsgGroup> groups = server.getGroups();
+
+		Assert.assertEquals(600L, server.getMsgCount());
+		Assert.assertEquals(1, groups.size());
+		Assert.assertEquals(0, relay.getSpooledCount());
+
+		for (LogMsg msg : groups.get(0).getMsgs()) {
+			Assert.assertFalse(msg.getMsg().contains("@example.com"));
+		}
+	}
+
+	/**
+	 * testRelayUnavailable
+	 * @throws Exception
+	 */
+	@Test(expected = IOException.class)
+	public void testRelayUnavailable() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+
+		RelayLogTransport transport = new RelayLogTransport("127.0.0.1:" + port, "key", new Masker(), false);
+
+		try {
+			List<LogMsg> msgs = new ArrayList<LogMsg>();
+			msgs.add(LogMsg.newBuilder().msg("msg").level("info").build());
+
+			transport.send(LogMsgGroup.newBuilder().appName("app").msgs(msgs).build());
+		} finally {
+			transport.close();
+		}
+	}
+
+	/**
+	 * testInvalidAddress
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidAddress() {
+		new RelayLogTransport("localhost:relay", "key", new Masker(), false);
+	}
+
+	/**
+	 * @param message The message
+	 * @return An INFO event
+	 */
+	private static LoggingEvent newEvent(final String message) {
+		return new LoggingEvent(Logger.class.getName(), Logger.getLogger("test"), System.currentTimeMillis(), Level.INFO, message,
+				Thread.currentThread().getName(), null, null, new LocationInfo("Handler.java", "org.example.Handler", "handle", "42"), null);
+	}
+}
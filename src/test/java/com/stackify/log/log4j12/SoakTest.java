@@ -0,0 +1,315 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Soak and load test of the StackifyLogAppender against the in-process stub endpoint.
+ *
+ * <p>
+ * Skipped unless run with -Dsoak=true (or the soak profile). The workload is tuned with system properties:
+ * <ul>
+ * <li>soak.threads - logging threads (default 4)</li>
+ * <li>soak.seconds - duration (default 30)</li>
+ * <li>soak.errorRatio - share of events logged at ERROR with an exception (default 0.01)</li>
+ * <li>soak.mdcKeys - MDC entries per thread (default 5)</li>
+ * <li>soak.latencyMs - stub endpoint latency per request (default 0)</li>
+ * <li>soak.failureRate - share of uploads the stub rejects with a 500 (default 0.0)</li>
+ * <li>soak.uploaderThreads - appender uploaderThreads option (default 1)</li>
+ * <li>soak.offHeapBufferSize - appender offHeapBufferSize option, to compare GC activity with the heap queue (default 0)</li>
+ * </ul>
+ *
+ * <p>
+ * Prints a report with the caller side latency of each log statement, throughput, allocation per event and
+ * a once per second timeline of heap usage, GC activity and the undelivered backlog.
+ */
+public class SoakTest {
+
+	/**
+	 * Latency samples kept per thread
+	 */
+	private static final int SAMPLES = 100000;
+
+	/**
+	 * Events logged so far
+	 */
+	private final AtomicLong produced = new AtomicLong();
+
+	/**
+	 * testSoak
+	 * @throws Exception
+	 */
+	@Test
+	public void testSoak() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean("soak"));
+
+		int threads = Integer.getInteger("soak.threads", 4);
+		int seconds = Integer.getInteger("soak.seconds", 30);
+		int mdcKeys = Integer.getInteger("soak.mdcKeys", 5);
+		double errorRatio = Double.parseDouble(System.getProperty("soak.errorRatio", "0.01"));
+
+		StubStackifyServer server = new StubStackifyServer(8);
+		server.setRecording(false);
+		server.setLatency(Long.getLong("soak.latencyMs", 0));
+		server.setFailureRate(Double.parseDouble(System.getProperty("soak.failureRate", "0.0")));
+
+		StackifyLogAppender appender = new StackifyLogAppender();
+		appender.setApiUrl(server.getUrl());
+		appender.setApiKey("soak");
+		appender.setApplication("soak");
+		appender.setEnvironment("soak");
+		appender.setUploaderThreads(System.getProperty("soak.uploaderThreads", "1"));
+		appender.setOffHeapBufferSize(System.getProperty("soak.offHeapBufferSize", "0"));
+		appender.activateOptions();
+
+		Logger logger = Logger.getLogger("soak");
+		logger.setAdditivity(false);
+		logger.setLevel(Level.DEBUG);
+		logger.addAppender(appender);
+
+		ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+		sampler.scheduleAtFixedRate(new TimelineSampler(server), 1, 1, TimeUnit.SECONDS);
+
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+		CountDownLatch done = new CountDownLatch(threads);
+		List<Workload> workloads = new ArrayList<Workload>();
+
+		for (int i = 0; i < threads; ++i) {
+			Workload workload = new Workload(logger, deadline, mdcKeys, errorRatio, done);
+			workloads.add(workload);
+
+			Thread t = new Thread(workload, "soak-" + i);
+			t.start();
+		}
+
+		done.await();
+		long elapsed = TimeUnit.SECONDS.toMillis(seconds);
+
+		appender.close();
+		logger.removeAppender(appender);
+		sampler.shutdownNow();
+		server.stop();
+
+		report(workloads, elapsed, server.getMsgCount());
+
+		Assert.assertTrue(0 < produced.get());
+	}
+
+	/**
+	 * Prints the latency, throughput and allocation report
+	 * @param workloads Finished workloads
+	 * @param elapsed Duration of the run (milliseconds)
+	 * @param delivered Messages received by the stub endpoint
+	 */
+	private void report(final List<Workload> workloads, final long elapsed, final long delivered) {
+		int count = 0;
+
+		for (Workload workload : workloads) {
+			count += workload.sampleCount;
+		}
+
+		long[] latencies = new long[count];
+		long allocated = 0;
+		long events = 0;
+		int offset = 0;
+
+		for (Workload workload : workloads) {
+			System.arraycopy(workload.samples, 0, latencies, offset, workload.sampleCount);
+			offset += workload.sampleCount;
+			allocated += workload.allocated;
+			events += workload.events;
+		}
+
+		Arrays.sort(latencies);
+
+		System.out.println("=== Stackify log4j soak report ===");
+		System.out.println("events:            " + events);
+		System.out.println("delivered:         " + delivered);
+		System.out.println("throughput:        " + (events * 1000 / Math.max(1, elapsed)) + " events/s");
+		System.out.println("latency p50:       " + percentile(latencies, 0.50) + " ns");
+		System.out.println("latency p99:       " + percentile(latencies, 0.99) + " ns");
+		System.out.println("latency p99.9:     " + percentile(latencies, 0.999) + " ns");
+		System.out.println("latency max:       " + (count == 0 ? 0 : latencies[count - 1]) + " ns");
+
+		if (0 <= allocated) {
+			System.out.println("allocated/event:   " + (allocated / Math.max(1, events)) + " bytes");
+		}
+	}
+
+	/**
+	 * @param sorted Sorted samples
+	 * @param p Percentile (0.0 to 1.0)
+	 * @return The sample at the percentile
+	 */
+	private static long percentile(final long[] sorted, final double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+
+		return sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))];
+	}
+
+	/**
+	 * @return Bytes allocated so far by the current thread, or -1 if not supported by the JVM
+	 */
+	static long getAllocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Logging thread of the workload
+	 */
+	private class Workload implements Runnable {
+
+		private final Logger logger;
+		private final long deadline;
+		private final int mdcKeys;
+		private final double errorRatio;
+		private final CountDownLatch done;
+
+		private final long[] samples = new long[SAMPLES];
+		private int sampleCount = 0;
+		private long events = 0;
+		private long allocated = 0;
+
+		Workload(final Logger logger, final long deadline, final int mdcKeys, final double errorRatio, final CountDownLatch done) {
+			this.logger = logger;
+			this.deadline = deadline;
+			this.mdcKeys = mdcKeys;
+			this.errorRatio = errorRatio;
+			this.done = done;
+		}
+
+		/**
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			try {
+				for (int i = 0; i < mdcKeys; ++i) {
+					MDC.put("key" + i, "value" + i);
+				}
+
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				Exception exception = new IllegalStateException("soak failure");
+				long startAllocated = getAllocatedBytes();
+
+				while (System.currentTimeMillis() < deadline) {
+					boolean error = random.nextDouble() < errorRatio;
+
+					// log through Workload as the caller class so location lookup resolves outside com.stackify.
+					// (events from com.stackify classes are never sent)
+
+					long start = System.nanoTime();
+
+					if (error) {
+						logger.log(Workload.class.getName(), Level.ERROR, "soak error " + events, exception);
+					} else {
+						logger.log(Workload.class.getName(), Level.INFO, "soak message " + events, null);
+					}
+
+					record(System.nanoTime() - start, random);
+					produced.incrementAndGet();
+				}
+
+				allocated = (0 <= startAllocated) ? getAllocatedBytes() - startAllocated : -1;
+			} finally {
+				MDC.clear();
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Keeps a uniform reservoir sample of the latencies
+		 * @param latency Latency of one log statement (nanoseconds)
+		 * @param random Random source
+		 */
+		private void record(final long latency, final ThreadLocalRandom random) {
+			++events;
+
+			if (sampleCount < SAMPLES) {
+				samples[sampleCount++] = latency;
+			} else {
+				long slot = random.nextLong(events);
+
+				if (slot < SAMPLES) {
+					samples[(int) slot] = latency;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prints heap, GC and backlog once per second
+	 */
+	private class TimelineSampler implements Runnable {
+
+		private final StubStackifyServer server;
+		private final long start = System.currentTimeMillis();
+
+		TimelineSampler(final StubStackifyServer server) {
+			this.server = server;
+		}
+
+		/**
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			long gcCount = 0;
+			long gcTime = 0;
+
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				gcCount += Math.max(0, gc.getCollectionCount());
+				gcTime += Math.max(0, gc.getCollectionTime());
+			}
+
+			long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+			System.out.println(String.format("t=%ds heap=%dMB gcCount=%d gcTime=%dms produced=%d backlog=%d",
+					(System.currentTimeMillis() - start) / 1000,
+					heap / (1024 * 1024),
+					gcCount,
+					gcTime,
+					produced.get(),
+					produced.get() - server.getMsgCount()));
+		}
+	}
+}
@@ -15,17 +15,25 @@
  */
 package com.stackify.log.log4j12;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.log4j.spi.LoggingEvent;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import com.stackify.api.common.ApiConfiguration;
-import com.stackify.api.common.log.LogAppender;
 
 /**
  * StackifyLogAppender JUnit Test
@@ -95,6 +103,20 @@ public class StackifyLogAppenderTest {
 		Assert.assertEquals(environment, appender.getEnvironment());
 	}
 	
+	/**
+	 * testGetSetUploader
+	 */
+	@Test
+	public void testGetSetUploader() {
+		StackifyLogAppender appender = new StackifyLogAppender();
+		Assert.assertEquals("1", appender.getUploaderThreads());
+		Assert.assertEquals("thread", appender.getUploaderPartition());
+		appender.setUploaderThreads("4");
+		appender.setUploaderPartition("transaction");
+		Assert.assertEquals("4", appender.getUploaderThreads());
+		Assert.assertEquals("transaction", appender.getUploaderPartition());
+	}
+
 	/**
 	 * testRequiresLayout
 	 */
@@ -118,9 +140,9 @@ public class StackifyLogAppenderTest {
 		appender.setApplication(application);
 		appender.setEnvironment(environment);
 		
-		LogAppender<LoggingEvent> logAppender = Mockito.mock(LogAppender.class);
+		LogPipeline logAppender = Mockito.mock(LogPipeline.class);
 		
-		PowerMockito.whenNew(LogAppender.class).withAnyArguments().thenReturn(logAppender);
+		PowerMockito.whenNew(LogPipeline.class).withAnyArguments().thenReturn(logAppender);
 
 		appender.activateOptions();
 		
@@ -135,4 +157,208 @@ public class StackifyLogAppenderTest {
 		
 		Mockito.verify(logAppender).close();
 	}
+
+	/**
+	 * testAppendWithoutLock
+	 *
+	 * With staging on, an append blocked in the pipeline neither holds up the other threads nor lets
+	 * close() release the pipeline under it, and a reentrant append is ignored.
+	 * @throws Exception
+	 */
+	@Test
+	public void testAppendWithoutLock() throws Exception {
+		final StackifyLogAppender appender = new StackifyLogAppender();
+		appender.setApiKey("key");
+		appender.setApplication("application");
+		appender.setEnvironment("environment");
+		appender.setStagingChunkSize("64");
+
+		final LoggingEvent blocking = Mockito.mock(LoggingEvent.class);
+		final LoggingEvent reentrant = Mockito.mock(LoggingEvent.class);
+		final LoggingEvent other = Mockito.mock(LoggingEvent.class);
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger reentered = new AtomicInteger();
+
+		LogPipeline logAppender = Mockito.mock(LogPipeline.class);
+
+		Mockito.doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(final InvocationOnMock invocation) throws Throwable {
+				appender.doAppend(reentrant);
+				entered.countDown();
+				release.await();
+				return null;
+			}
+		}).when(logAppender).append(blocking);
+
+		Mockito.doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(final InvocationOnMock invocation) {
+				reentered.incrementAndGet();
+				return null;
+			}
+		}).when(logAppender).append(reentrant);
+
+		PowerMockito.whenNew(LogPipeline.class).withAnyArguments().thenReturn(logAppender);
+
+		appender.activateOptions();
+
+		Thread blocked = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				appender.doAppend(blocking);
+			}
+		});
+
+		blocked.start();
+		Assert.assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+		appender.doAppend(other);
+		Mockito.verify(logAppender).append(other);
+		Assert.assertEquals(0, reentered.get());
+
+		Thread closing = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				appender.close();
+			}
+		});
+
+		closing.start();
+		Thread.sleep(200);
+
+		Mockito.verify(logAppender, Mockito.never()).close();
+
+		release.countDown();
+		closing.join(5000);
+		blocked.join(5000);
+
+		Mockito.verify(logAppender).close();
+	}
+
+	/**
+	 * testReactivateKeepsPipeline
+	 * @throws Exception
+	 */
+	@Test
+	public void testReactivateKeepsPipeline() throws Exception {
+		StackifyLogAppender appender = new StackifyLogAppender();
+		appender.setApiKey("key");
+		appender.setApplication("application");
+		appender.setEnvironment("environment");
+
+		LogPipeline logAppender = Mockito.mock(LogPipeline.class);
+
+		PowerMockito.whenNew(LogPipeline.class).withAnyArguments().thenReturn(logAppender);
+
+		appender.activateOptions();
+
+		appender.setMaskEnabled("true");
+		appender.activateOptions();
+
+		PowerMockito.verifyNew(LogPipeline.class, Mockito.times(1)).withArguments(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+		Mockito.verify(logAppender).update(Mockito.any(AppenderSettings.class));
+		Mockito.verify(logAppender, Mockito.never()).close();
+
+		appender.setApiKey("other");
+		appender.activateOptions();
+
+		Mockito.verify(logAppender).close();
+		PowerMockito.verifyNew(LogPipeline.class, Mockito.times(2)).withArguments(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+	}
+
+	/**
+	 * testReconfigureGracePeriod
+	 * @throws Exception
+	 */
+	@Test
+	public void testReconfigureGracePeriod() throws Exception {
+		LogPipeline logAppender = Mockito.mock(LogPipeline.class);
+
+		PowerMockito.whenNew(LogPipeline.class).withAnyArguments().thenReturn(logAppender);
+
+		StackifyLogAppender first = new StackifyLogAppender();
+		first.setName("STACKIFY");
+		first.setApiKey("key");
+		first.setApplication("graceApplication");
+		first.setReconfigureGracePeriod("60000");
+		first.activateOptions();
+		first.close();
+
+		StackifyLogAppender second = new StackifyLogAppender();
+		second.setName("STACKIFY");
+		second.setApiKey("key");
+		second.setApplication("graceApplication");
+		second.setReconfigureGracePeriod("60000");
+		second.activateOptions();
+
+		PowerMockito.verifyNew(LogPipeline.class, Mockito.times(1)).withArguments(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+		Mockito.verify(logAppender, Mockito.never()).close();
+
+		LoggingEvent event = Mockito.mock(LoggingEvent.class);
+		second.doAppend(event);
+
+		Mockito.verify(logAppender).append(event);
+
+		second.setReconfigureGracePeriod("0");
+		second.close();
+
+		Mockito.verify(logAppender).close();
+	}
+
+	/**
+	 * testRouteByMdc
+	 * @throws Exception
+	 */
+	@Test
+	public void testRouteByMdc() throws Exception {
+		final List<LogPipeline> created = Collections.synchronizedList(new ArrayList<LogPipeline>());
+
+		PowerMockito.whenNew(LogPipeline.class).withAnyArguments().thenAnswer(new Answer<LogPipeline>() {
+			@Override
+			public LogPipeline answer(final InvocationOnMock invocation) {
+				LogPipeline pipeline = Mockito.mock(LogPipeline.class);
+				created.add(pipeline);
+				return pipeline;
+			}
+		});
+
+		StackifyLogAppender appender = new StackifyLogAppender();
+		appender.setApiKey("key");
+		appender.setApplication("application");
+		appender.setRouteMdcKey("tenant");
+		appender.activateOptions();
+
+		int defaultCount = created.size();
+		LogPipeline defaultPipeline = created.get(defaultCount - 1);
+
+		LoggingEvent tenantEvent = Mockito.mock(LoggingEvent.class);
+		Mockito.when(tenantEvent.getMDC("tenant")).thenReturn("acme");
+		appender.doAppend(tenantEvent);
+		appender.doAppend(tenantEvent);
+
+		// the tenant pipeline starts off the logging thread
+
+		long start = System.currentTimeMillis();
+
+		while (created.size() == defaultCount && System.currentTimeMillis() - start < 5000) {
+			Thread.sleep(5);
+		}
+
+		LogPipeline tenantPipeline = created.get(created.size() - 1);
+		Assert.assertNotSame(defaultPipeline, tenantPipeline);
+
+		LoggingEvent otherEvent = Mockito.mock(LoggingEvent.class);
+		appender.doAppend(otherEvent);
+
+		Mockito.verify(tenantPipeline, Mockito.timeout(5000).times(2)).append(tenantEvent);
+		Mockito.verify(defaultPipeline).append(otherEvent);
+		Mockito.verify(defaultPipeline, Mockito.never()).append(tenantEvent);
+
+		appender.close();
+
+		Mockito.verify(defaultPipeline).close();
+		Mockito.verify(tenantPipeline).close();
+	}
 }
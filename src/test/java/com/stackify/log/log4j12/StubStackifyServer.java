@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPInputStream;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stackify.api.LogMsgGroup;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the Stackify API used by the tests. Accepts every request, records the
+ * uploaded log batches and answers with an empty JSON object.
+ */
+public class StubStackifyServer implements HttpHandler {
+
+	/**
+	 * Log upload path
+	 */
+	private static final String LOG_SAVE_PATH = "/Log/Save";
+
+	/**
+	 * JVM-wide property disabling Nagle's algorithm on the server sockets
+	 */
+	private static final String NODELAY = "sun.net.httpserver.nodelay";
+
+	/**
+	 * JSON converter
+	 */
+	private final ObjectMapper json = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+	/**
+	 * Received log batches
+	 */
+	private final List<LogMsgGroup> groups = new ArrayList<LogMsgGroup>();
+
+	/**
+	 * Number of log messages received
+	 */
+	private long msgCount = 0;
+
+	/**
+	 * False to only count the received messages instead of keeping the batches
+	 */
+	private volatile boolean recording = true;
+
+	/**
+	 * HTTP server
+	 */
+	private final HttpServer server;
+
+	/**
+	 * Value of the nodelay property before the server started, restored by stop()
+	 */
+	private final String previousNodelay;
+
+	/**
+	 * Delay added before each response (milliseconds)
+	 */
+	private volatile long latency = 0;
+
+	/**
+	 * Number of upcoming log uploads to reject with a 500
+	 */
+	private volatile int failures = 0;
+
+	/**
+	 * Probability (0.0 to 1.0) of rejecting a log upload with a 500
+	 */
+	private volatile double failureRate = 0.0;
+
+	/**
+	 * Constructor
+	 * @param threads Number of request handling threads
+	 * @throws IOException If the server can not bind
+	 */
+	public StubStackifyServer(final int threads) throws IOException {
+		previousNodelay = System.setProperty(NODELAY, "true");
+
+		try {
+			server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			server.createContext("/", this);
+			server.setExecutor(Executors.newFixedThreadPool(threads));
+			server.start();
+		} catch (IOException e) {
+			restoreNodelay();
+			throw e;
+		} catch (RuntimeException e) {
+			restoreNodelay();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return Base URL of the stub, to be used as the apiUrl
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * @param latency Delay added before each response (milliseconds)
+	 */
+	public void setLatency(final long latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * @param failures Number of upcoming log uploads to reject with a 500
+	 */
+	public synchronized void setFailures(final int failures) {
+		this.failures = failures;
+	}
+
+	/**
+	 * @param failureRate Probability (0.0 to 1.0) of rejecting a log upload with a 500
+	 */
+	public void setFailureRate(final double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	/**
+	 * @param recording False to only count the received messages instead of keeping the batches
+	 */
+	public void setRecording(final boolean recording) {
+		this.recording = recording;
+	}
+
+	/**
+	 * @return Copy of the log batches received so far
+	 */
+	public synchronized List<LogMsgGroup> getGroups() {
+		return new ArrayList<LogMsgGroup>(groups);
+	}
+
+	/**
+	 * @return Number of log messages received so far
+	 */
+	public synchronized long getMsgCount() {
+		return msgCount;
+	}
+
+	/**
+	 * Stops the server and restores the nodelay property
+	 */
+	public void stop() {
+		server.stop(0);
+		restoreNodelay();
+	}
+
+	/**
+	 * Restores the nodelay property to its value before the server started
+	 */
+	private void restoreNodelay() {
+		if (previousNodelay == null) {
+			System.clearProperty(NODELAY);
+		} else {
+			System.setProperty(NODELAY, previousNodelay);
+		}
+	}
+
+	/**
+	 * @see com.sun.net.httpserver.HttpHandler#handle(com.sun.net.httpserver.HttpExchange)
+	 */
+	@Override
+	public void handle(final HttpExchange exchange) throws IOException {
+		try {
+			byte[] body = read(exchange);
+
+			if (0 < latency) {
+				Thread.sleep(latency);
+			}
+
+			int status = 200;
+
+			if (LOG_SAVE_PATH.equals(exchange.getRequestURI().getPath())) {
+				synchronized (this) {
+					if (0 < failures) {
+						--failures;
+						status = 500;
+					} else if (ThreadLocalRandom.current().nextDouble() < failureRate) {
+						status = 500;
+					} else {
+						LogMsgGroup group = json.readValue(body, LogMsgGroup.class);
+						msgCount += group.getMsgs().size();
+
+						if (recording) {
+							groups.add(group);
+						}
+					}
+				}
+			}
+
+			byte[] response = "{}".getBytes("UTF-8");
+			exchange.sendResponseHeaders(status, response.length);
+
+			OutputStream os = exchange.getResponseBody();
+			os.write(response);
+			os.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Reads the (optionally gzipped) request body
+	 * @param exchange The exchange
+	 * @return The request body
+	 * @throws IOException If the body can not be read
+	 */
+	private byte[] read(final HttpExchange exchange) throws IOException {
+		InputStream is = exchange.getRequestBody();
+
+		if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+			is = new GZIPInputStream(is);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+
+		while ((n = is.read(buffer)) != -1) {
+			bytes.write(buffer, 0, n);
+		}
+
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+import com.stackify.api.common.mask.Masker;
+
+/**
+ * TenantRouter JUnit Test
+ */
+public class TenantRouterTest {
+
+	/**
+	 * testRoute
+	 * @throws Exception
+	 */
+	@Test
+	public void testRoute() throws Exception {
+		List<String> started = new ArrayList<String>();
+		TenantRouter router = new TenantRouter("tenant", Collections.<String, String>emptyMap(), 16, factory(started));
+		LogPipeline fallback = Mockito.mock(LogPipeline.class);
+
+		LoggingEvent first = event("acme");
+		Assert.assertTrue(router.append(first, fallback, Fidelity.FULL));
+		LogPipeline acme = awaitPipeline(router, "acme");
+		Mockito.verify(acme, Mockito.timeout(5000)).append(first);
+
+		LoggingEvent second = event("acme");
+		Assert.assertTrue(router.append(second, fallback, Fidelity.FULL));
+		Mockito.verify(acme).append(second);
+
+		Assert.assertTrue(router.append(event("globex"), fallback, Fidelity.FULL));
+		Assert.assertNotSame(acme, awaitPipeline(router, "globex"));
+		Assert.assertFalse(router.append(event(null), fallback, Fidelity.FULL));
+
+		Assert.assertEquals(2, router.getPartitionCount());
+		Assert.assertEquals("[acme, globex]", started.toString());
+
+		router.close();
+
+		Mockito.verify(acme).close();
+		Assert.assertFalse(router.append(event("initech"), fallback, Fidelity.FULL));
+		Mockito.verifyZeroInteractions(fallback);
+	}
+
+	/**
+	 * testRouteMappedApplications
+	 * @throws Exception
+	 */
+	@Test
+	public void testRouteMappedApplications() throws Exception {
+		List<String> started = new ArrayList<String>();
+		Map<String, String> applications = TenantRouter.parseApplications("acme=AcmeApp, globex=GlobexApp");
+		TenantRouter router = new TenantRouter("tenant", applications, 16, factory(started));
+		LogPipeline fallback = Mockito.mock(LogPipeline.class);
+
+		Assert.assertTrue(router.append(event("acme"), fallback, Fidelity.FULL));
+		Assert.assertFalse(router.append(event("unknown"), fallback, Fidelity.FULL));
+		awaitPipeline(router, "acme");
+		Assert.assertEquals("[AcmeApp]", started.toString());
+	}
+
+	/**
+	 * testRouteMaxPartitions
+	 * @throws Exception
+	 */
+	@Test
+	public void testRouteMaxPartitions() throws Exception {
+		TenantRouter router = new TenantRouter("tenant", Collections.<String, String>emptyMap(), 2, factory(new ArrayList<String>()));
+		LogPipeline fallback = Mockito.mock(LogPipeline.class);
+
+		Assert.assertTrue(router.append(event("a"), fallback, Fidelity.FULL));
+		Assert.assertTrue(router.append(event("b"), fallback, Fidelity.FULL));
+		Assert.assertFalse(router.append(event("c"), fallback, Fidelity.FULL));
+		Assert.assertTrue(router.append(event("a"), fallback, Fidelity.FULL));
+
+		awaitPipeline(router, "a");
+		awaitPipeline(router, "b");
+		Assert.assertEquals(2, router.getPartitionCount());
+	}
+
+	/**
+	 * testRouteFailureBackoff
+	 *
+	 * A tenant whose pipeline fails to start uses the default pipeline until the retry delay passed.
+	 * @throws Exception
+	 */
+	@Test
+	public void testRouteFailureBackoff() throws Exception {
+		final AtomicInteger attempts = new AtomicInteger();
+
+		TenantRouter.PipelineFactory failing = new TenantRouter.PipelineFactory() {
+			@Override
+			public LogPipeline create(final String application) throws Exception {
+				if (attempts.incrementAndGet() == 1) {
+					throw new IllegalStateException("test");
+				}
+				return Mockito.mock(LogPipeline.class);
+			}
+		};
+
+		TenantRouter router = new TenantRouter("tenant", Collections.<String, String>emptyMap(), 16, failing, 1000);
+		LogPipeline fallback = Mockito.mock(LogPipeline.class);
+
+		// the held event goes to the default pipeline
+
+		LoggingEvent held = event("acme");
+		Assert.assertTrue(router.append(held, fallback, Fidelity.FULL));
+		Mockito.verify(fallback, Mockito.timeout(5000)).append(held);
+
+		Assert.assertFalse(router.append(event("acme"), fallback, Fidelity.FULL));
+		Assert.assertEquals(1, attempts.get());
+
+		Thread.sleep(1100);
+
+		Assert.assertTrue(router.append(event("acme"), fallback, Fidelity.FULL));
+		awaitPipeline(router, "acme");
+		Assert.assertEquals(2, attempts.get());
+		Assert.assertEquals(1, router.getPartitionCount());
+	}
+
+	/**
+	 * testRouteWhileStarting
+	 *
+	 * A slow pipeline start holds neither the logging thread nor the other tenants, and the events
+	 * held meanwhile are appended in order.
+	 * @throws Exception
+	 */
+	@Test
+	public void testRouteWhileStarting() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		TenantRouter.PipelineFactory slow = new TenantRouter.PipelineFactory() {
+			@Override
+			public LogPipeline create(final String application) throws Exception {
+				if ("slow".equals(application)) {
+					entered.countDown();
+					release.await();
+				}
+				return Mockito.mock(LogPipeline.class);
+			}
+		};
+
+		TenantRouter router = new TenantRouter("tenant", Collections.<String, String>emptyMap(), 16, slow);
+		LogPipeline fallback = Mockito.mock(LogPipeline.class);
+
+		List<LoggingEvent> events = new ArrayList<LoggingEvent>();
+
+		for (int i = 0; i < TenantRouter.MAX_HELD; ++i) {
+			LoggingEvent event = event("slow");
+			events.add(event);
+			Assert.assertTrue(router.append(event, fallback, Fidelity.FULL));
+		}
+
+		Assert.assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+		// beyond the held events the default pipeline takes them
+
+		Assert.assertFalse(router.append(event("slow"), fallback, Fidelity.FULL));
+
+		Assert.assertTrue(router.append(event("fast"), fallback, Fidelity.FULL));
+		awaitPipeline(router, "fast");
+
+		release.countDown();
+		LogPipeline pipeline = awaitPipeline(router, "slow");
+
+		InOrder order = Mockito.inOrder(pipeline);
+
+		for (LoggingEvent event : events) {
+			order.verify(pipeline).append(event);
+		}
+
+		Assert.assertEquals(2, router.getPartitionCount());
+	}
+
+	/**
+	 * testHeldEventDetached
+	 *
+	 * A held event keeps the MDC and thread of the thread that logged it.
+	 * @throws Exception
+	 */
+	@Test
+	public void testHeldEventDetached() throws Exception {
+		TenantRouter router = new TenantRouter("tenant", Collections.<String, String>emptyMap(), 16, factory(new ArrayList<String>()));
+		LoggingEvent event;
+
+		MDC.put("tenant", "acme");
+
+		try {
+			event = new LoggingEvent(TenantRouterTest.class.getName(), Logger.getLogger("test"), Level.INFO, "held", null);
+			Assert.assertTrue(router.append(event, Mockito.mock(LogPipeline.class), Fidelity.FULL));
+		} finally {
+			MDC.remove("tenant");
+		}
+
+		Mockito.verify(awaitPipeline(router, "acme"), Mockito.timeout(5000)).append(event);
+
+		Assert.assertEquals("acme", event.getMDC("tenant"));
+		Assert.assertEquals(Thread.currentThread().getName(), event.getThreadName());
+		Assert.assertNotNull(event.getLocationInformation());
+	}
+
+	/**
+	 * testUpdateWhileStarting
+	 *
+	 * Settings applied while a pipeline starts reach it once published.
+	 * @throws Exception
+	 */
+	@Test
+	public void testUpdateWhileStarting() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final LogPipeline pipeline = Mockito.mock(LogPipeline.class);
+
+		TenantRouter router = new TenantRouter("tenant", Collections.<String, String>emptyMap(), 16, new TenantRouter.PipelineFactory() {
+			@Override
+			public LogPipeline create(final String application) throws Exception {
+				entered.countDown();
+				release.await();
+				return pipeline;
+			}
+		});
+
+		Assert.assertTrue(router.append(event("acme"), Mockito.mock(LogPipeline.class), Fidelity.FULL));
+		Assert.assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+		AppenderSettings settings = AppenderSettings.newBuilder()
+				.masker(new Masker())
+				.mdcProjection(MdcProjection.ALL)
+				.build();
+		router.update(settings);
+
+		release.countDown();
+		Assert.assertSame(pipeline, awaitPipeline(router, "acme"));
+		Mockito.verify(pipeline).update(settings);
+	}
+
+	/**
+	 * testParseApplicationsInvalid
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseApplicationsInvalid() {
+		TenantRouter.parseApplications("acme=");
+	}
+
+	/**
+	 * Waits until the pipeline of a tenant runs
+	 * @param router The router
+	 * @param tenant The tenant
+	 * @return The pipeline
+	 * @throws InterruptedException
+	 */
+	private static LogPipeline awaitPipeline(final TenantRouter router, final String tenant) throws InterruptedException {
+		long start = System.currentTimeMillis();
+
+		while (router.getPipeline(tenant) == null && System.currentTimeMillis() - start < 5000) {
+			Thread.sleep(5);
+		}
+
+		Assert.assertNotNull(router.getPipeline(tenant));
+		return router.getPipeline(tenant);
+	}
+
+	/**
+	 * @param started Receives the application name of each started pipeline
+	 * @return Factory of mock pipelines
+	 */
+	private static TenantRouter.PipelineFactory factory(final List<String> started) {
+		return new TenantRouter.PipelineFactory() {
+			@Override
+			public LogPipeline create(final String application) {
+				synchronized (started) {
+					started.add(application);
+				}
+				return Mockito.mock(LogPipeline.class);
+			}
+		};
+	}
+
+	/**
+	 * @param tenant MDC tenant value
+	 * @return Mock logging event
+	 */
+	private static LoggingEvent event(final String tenant) {
+		LoggingEvent event = Mockito.mock(LoggingEvent.class);
+		Mockito.when(event.getMDC("tenant")).thenReturn(tenant);
+		return event;
+	}
+}
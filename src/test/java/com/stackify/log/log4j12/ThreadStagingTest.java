@@ -0,0 +1,285 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.stackify.api.LogMsg;
+
+/**
+ * ThreadStaging JUnit Test
+ */
+public class ThreadStagingTest {
+
+	/**
+	 * testHandOffBySize
+	 */
+	@Test
+	public void testHandOffBySize() {
+		RecordingSink sink = new RecordingSink();
+		ThreadStaging staging = new ThreadStaging(10, 60000, sink);
+
+		try {
+			for (int i = 0; i < 25; ++i) {
+				staging.add(newMsg("main", i));
+			}
+
+			Assert.assertEquals(2, sink.chunks.size());
+			Assert.assertEquals(10, sink.chunks.get(0).size());
+			Assert.assertEquals(5, staging.getStagedCount());
+
+			staging.flush();
+
+			Assert.assertEquals(3, sink.chunks.size());
+			Assert.assertEquals(5, sink.chunks.get(2).size());
+			Assert.assertEquals(0, staging.getStagedCount());
+		} finally {
+			staging.close();
+		}
+	}
+
+	/**
+	 * testHandOffAfterLinger
+	 * @throws Exception
+	 */
+	@Test
+	public void testHandOffAfterLinger() throws Exception {
+		RecordingSink sink = new RecordingSink();
+		ThreadStaging staging = new ThreadStaging(100, 20, sink);
+
+		try {
+			for (int i = 0; i < 3; ++i) {
+				staging.add(newMsg("main", i));
+			}
+
+			long start = System.currentTimeMillis();
+
+			while (sink.count() < 3 && System.currentTimeMillis() - start < 2000) {
+				Thread.sleep(5);
+			}
+
+			Assert.assertEquals(3, sink.count());
+		} finally {
+			staging.close();
+		}
+	}
+
+	/**
+	 * testConcurrentProducers
+	 *
+	 * Checks that no message is lost or duplicated and that each thread's messages keep their order.
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentProducers() throws Exception {
+		final RecordingSink sink = new RecordingSink();
+		final ThreadStaging staging = new ThreadStaging(64, 1, sink);
+
+		int threads = 4;
+		final int count = 10000;
+
+		List<Thread> producers = new ArrayList<Thread>();
+
+		for (int t = 0; t < threads; ++t) {
+			final String name = "producer-" + t;
+
+			producers.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < count; ++i) {
+						staging.add(newMsg(name, i));
+					}
+				}
+			}, name));
+		}
+
+		for (Thread producer : producers) {
+			producer.start();
+		}
+
+		for (Thread producer : producers) {
+			producer.join();
+		}
+
+		long start = System.currentTimeMillis();
+
+		while (sink.count() < threads * count && System.currentTimeMillis() - start < 2000) {
+			Thread.sleep(5);
+		}
+
+		staging.close();
+
+		Map<String, Long> next = new HashMap<String, Long>();
+
+		synchronized (sink) {
+			Assert.assertEquals(threads * count, sink.count());
+
+			for (List<LogMsg> chunk : sink.chunks) {
+				for (LogMsg msg : chunk) {
+					long expected = next.containsKey(msg.getTh()) ? next.get(msg.getTh()) : 0L;
+					Assert.assertEquals(Long.valueOf(expected), msg.getEpochMs());
+					next.put(msg.getTh(), expected + 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * testScaling
+	 *
+	 * Compares the throughput of Logger.log from several threads through an appender queueing each
+	 * message under the appender lock and through one staging them without the lock (mvn test -Pbenchmark).
+	 * @throws Exception
+	 */
+	@Test
+	public void testScaling() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		StubStackifyServer server = new StubStackifyServer(2);
+		server.setRecording(false);
+
+		try {
+			for (int threads = 1; threads <= Math.max(8, cores); threads *= 2) {
+				long locked = measure(server, threads, 0);
+				long staged = measure(server, threads, 64);
+
+				System.out.println(threads + " threads: " + locked + " events/s queued per message under the appender lock, "
+						+ staged + " events/s staged without it (" + cores + " CPUs)");
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Logs from several threads through a Stackify appender
+	 * @param server Stub endpoint
+	 * @param threads Number of threads
+	 * @param chunkSize Staging chunk size, 0 to queue each message under the appender lock
+	 * @return Events logged per second
+	 * @throws Exception
+	 */
+	private static long measure(final StubStackifyServer server, final int threads, final int chunkSize) throws Exception {
+		final int count = 100000;
+
+		StackifyLogAppender appender = new StackifyLogAppender();
+		appender.setName("scaling-" + threads + "-" + chunkSize);
+		appender.setApiUrl(server.getUrl());
+		appender.setApiKey("scaling");
+		appender.setApplication("scaling");
+		appender.setEnvironment("scaling");
+		appender.setStagingChunkSize(String.valueOf(chunkSize));
+		appender.activateOptions();
+
+		final Logger logger = Logger.getLogger("scaling");
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+		logger.removeAllAppenders();
+		logger.addAppender(appender);
+
+		final CountDownLatch ready = new CountDownLatch(1);
+		List<Thread> producers = new ArrayList<Thread>();
+
+		for (int t = 0; t < threads; ++t) {
+			producers.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ready.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+
+					// log as a caller outside com.stackify, whose events the appender never sends
+
+					for (int i = 0; i < count; ++i) {
+						logger.log(ThreadStagingTest.class.getName(), Level.INFO, "request handled", null);
+					}
+				}
+			}));
+		}
+
+		for (Thread producer : producers) {
+			producer.start();
+		}
+
+		long start = System.nanoTime();
+		ready.countDown();
+
+		for (Thread producer : producers) {
+			producer.join();
+		}
+
+		long elapsed = System.nanoTime() - start;
+
+		logger.removeAppender(appender);
+		appender.close();
+
+		return (long) threads * count * 1000000000L / elapsed;
+	}
+
+	/**
+	 * @param thread Thread name
+	 * @param sequence Sequence number of the message in its thread
+	 * @return A log message
+	 */
+	private static LogMsg newMsg(final String thread, final long sequence) {
+		return LogMsg.newBuilder().msg("message " + sequence).th(thread).epochMs(sequence).level("info").build();
+	}
+
+	/**
+	 * Sink keeping the chunks
+	 */
+	private static final class RecordingSink implements ThreadStaging.Sink {
+
+		/**
+		 * Received chunks
+		 */
+		private final List<List<LogMsg>> chunks = new ArrayList<List<LogMsg>>();
+
+		/**
+		 * @see com.stackify.log.log4j12.ThreadStaging.Sink#addAll(java.util.List)
+		 */
+		@Override
+		public synchronized void addAll(final List<LogMsg> msgs) {
+			chunks.add(msgs);
+		}
+
+		/**
+		 * @return Number of messages received
+		 */
+		synchronized int count() {
+			int count = 0;
+
+			for (List<LogMsg> chunk : chunks) {
+				count += chunk.size();
+			}
+
+			return count;
+		}
+	}
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12.relay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.stackify.api.LogMsg;
+import com.stackify.api.LogMsgGroup;
+import com.stackify.log.log4j12.DictionaryBatchCodec;
+import com.stackify.log.log4j12.StubStackifyServer;
+
+/**
+ * LogRelay JUnit Test
+ */
+public class LogRelayTest {
+
+	/**
+	 * Temporary spool directory
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * testMergesByApplication
+	 * @throws Exception
+	 */
+	@Test
+	public void testMergesByApplication() throws Exception {
+		StubStackifyServer server = new StubStackifyServer(4);
+		LogRelay relay = new LogRelay(newOptions(server.getUrl(), 250, 100));
+
+		try {
+			Socket socket = new Socket("127.0.0.1", relay.getPort());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			DictionaryBatchCodec codec = new DictionaryBatchCodec();
+
+			try {
+				out.writeInt(RelayProtocol.MAGIC);
+
+				for (int g = 0; g < 6; ++g) {
+					RelayProtocol.writeFrame(out, "key", codec.encode(newGroup((g % 2 == 0) ? "app1" : "app2", g, 100)));
+					Assert.assertEquals(RelayProtocol.ACCEPTED, in.read());
+				}
+
+				RelayProtocol.writeFrame(out, "key", new byte[] {1, 2, 3});
+				Assert.assertEquals(RelayProtocol.REJECTED, in.read());
+			} finally {
+				socket.close();
+			}
+
+			waitFor(server, 600);
+		} finally {
+			relay.close();
+			server.stop();
+		}
+
+		// app1 and app2 each sealed once full (250), then once lingering (50)
+
+		Assert.assertEquals(600L, server.getMsgCount());
+		Assert.assertEquals(4, server.getGroups().size());
+		Assert.assertEquals(600L, relay.getReceivedCount());
+		Assert.assertEquals(4L, relay.getUploadedCount());
+
+		for (LogMsgGroup group : server.getGroups()) {
+			for (LogMsg msg : group.getMsgs()) {
+				Assert.assertEquals(group.getAppName(), msg.getMsg().substring(0, 4));
+			}
+		}
+	}
+
+	/**
+	 * testSpoolSurvivesRestart
+	 * @throws Exception
+	 */
+	@Test
+	public void testSpoolSurvivesRestart() throws Exception {
+		ServerSocket closed = new ServerSocket(0);
+		String unreachable = "http://127.0.0.1:" + closed.getLocalPort();
+		closed.close();
+
+		LogRelay offline = new LogRelay(newOptions(unreachable, 1000, 60000));
+
+		try {
+			offline.merge("key", newGroup("app1", 0, 10));
+			offline.merge("key", newGroup("app2", 1, 10));
+		} finally {
+			offline.close();
+		}
+
+		Assert.assertEquals(2, offline.getSpooledCount());
+
+		StubStackifyServer server = new StubStackifyServer(4);
+		server.setFailures(1);
+
+		LogRelay relay = new LogRelay(newOptions(server.getUrl(), 1000, 60000));
+
+		try {
+			waitFor(server, 20);
+			Assert.assertEquals(0, relay.getSpooledCount());
+		} finally {
+			relay.close();
+			server.stop();
+		}
+
+		Assert.assertEquals(20L, server.getMsgCount());
+		Assert.assertEquals(2L, relay.getUploadedCount());
+	}
+
+	/**
+	 * testJournalSurvivesCrash
+	 * @throws Exception
+	 */
+	@Test
+	public void testJournalSurvivesCrash() throws Exception {
+		ServerSocket closed = new ServerSocket(0);
+		String unreachable = "http://127.0.0.1:" + closed.getLocalPort();
+		closed.close();
+
+		DictionaryBatchCodec codec = new DictionaryBatchCodec();
+		LogRelay offline = new LogRelay(newOptions(unreachable, 1000, 60000));
+
+		try {
+			Socket socket = new Socket("127.0.0.1", offline.getPort());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+
+			try {
+				out.writeInt(RelayProtocol.MAGIC);
+				RelayProtocol.writeFrame(out, "key", codec.encode(newGroup("app1", 0, 100)));
+				Assert.assertEquals(RelayProtocol.ACCEPTED, in.read());
+			} finally {
+				socket.close();
+			}
+
+			// acknowledged while still merging, so only the journal holds it
+
+			Assert.assertEquals(1, countJournal());
+			Assert.assertEquals(0, offline.getSpooledCount());
+		} finally {
+			offline.close();
+		}
+
+		Assert.assertEquals(0, countJournal());
+		Assert.assertEquals(1, offline.getSpooledCount());
+
+		// a batch acknowledged by a relay killed before spooling it
+
+		new RelaySpool(folder.getRoot(), 64 * 1024 * 1024).journal("key", codec.encode(newGroup("app2", 1, 50)));
+
+		StubStackifyServer server = new StubStackifyServer(4);
+		LogRelay relay = new LogRelay(newOptions(server.getUrl(), 1000, 100));
+
+		try {
+			waitFor(server, 150);
+		} finally {
+			relay.close();
+			server.stop();
+		}
+
+		Assert.assertEquals(150L, server.getMsgCount());
+		Assert.assertEquals(0, countJournal());
+		Assert.assertEquals(0, relay.getSpooledCount());
+	}
+
+	/**
+	 * testSpoolFull
+	 * @throws Exception
+	 */
+	@Test
+	public void testSpoolFull() throws Exception {
+		RelaySpool spool = new RelaySpool(folder.getRoot(), 2500);
+
+		for (int i = 0; i < 5; ++i) {
+			spool.write("key", new byte[1000]);
+		}
+
+		Assert.assertEquals(2, spool.getCount());
+		Assert.assertEquals(3L, spool.getDropped());
+
+		RelaySpool.Batch oldest = spool.peek(0);
+		Assert.assertEquals("key", oldest.getApiKey());
+		Assert.assertEquals(1000, oldest.getBody().length);
+		Assert.assertTrue(oldest.getName().startsWith("0000000000000000003"));
+
+		spool.delete(oldest.getName());
+		Assert.assertEquals(1, new RelaySpool(folder.getRoot(), 2500).getCount());
+	}
+
+	/**
+	 * testJournalCountsTowardSpool
+	 *
+	 * Journal entries make room by dropping the oldest batches, and are refused once they alone fill
+	 * the spool.
+	 * @throws Exception
+	 */
+	@Test
+	public void testJournalCountsTowardSpool() throws Exception {
+		RelaySpool spool = new RelaySpool(folder.getRoot(), 2500);
+
+		spool.write("key", new byte[1000]);
+		spool.write("key", new byte[1000]);
+
+		String first = spool.journal("key", new byte[1000]);
+		spool.journal("key", new byte[1000]);
+
+		Assert.assertEquals(0, spool.getCount());
+		Assert.assertEquals(2L, spool.getDropped());
+		Assert.assertEquals(2000L, spool.getJournalSize());
+
+		try {
+			spool.journal("key", new byte[1000]);
+			Assert.fail();
+		} catch (IOException e) {
+			// full
+		}
+
+		Assert.assertEquals(2, countJournal());
+
+		spool.release(first);
+		spool.journal("key", new byte[1000]);
+		Assert.assertEquals(2000L, spool.getJournalSize());
+	}
+
+	/**
+	 * testSealRetried
+	 *
+	 * A merged batch that can not be spooled is kept with its journal entry and spooled by a later
+	 * sealer run.
+	 * @throws Exception
+	 */
+	@Test
+	public void testSealRetried() throws Exception {
+		ServerSocket closed = new ServerSocket(0);
+		String unreachable = "http://127.0.0.1:" + closed.getLocalPort();
+		closed.close();
+
+		DictionaryBatchCodec codec = new DictionaryBatchCodec();
+		LogRelay relay = new LogRelay(newOptions(unreachable, 100, 400));
+
+		try {
+
+			// the journal entry takes sequence 0, each attempt to spool the merged batch the next one
+
+			List<File> blockers = new ArrayList<File>();
+
+			for (int i = 1; i <= 100; ++i) {
+				blockers.add(folder.newFolder(String.format("%019d", i) + RelaySpool.EXTENSION + ".tmp"));
+			}
+
+			Socket socket = new Socket("127.0.0.1", relay.getPort());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+
+			try {
+				out.writeInt(RelayProtocol.MAGIC);
+				RelayProtocol.writeFrame(out, "key", codec.encode(newGroup("app1", 0, 100)));
+				Assert.assertEquals(RelayProtocol.ACCEPTED, in.read());
+			} finally {
+				socket.close();
+			}
+
+			Assert.assertEquals(1, countJournal());
+			Assert.assertEquals(0, relay.getSpooledCount());
+
+			Thread.sleep(300);
+			Assert.assertEquals(1, countJournal());
+
+			for (File blocker : blockers) {
+				Assert.assertTrue(blocker.delete());
+			}
+
+			long start = System.currentTimeMillis();
+
+			while (countJournal() != 0 && System.currentTimeMillis() - start < 5000) {
+				Thread.sleep(20);
+			}
+
+			Assert.assertEquals(0, countJournal());
+			Assert.assertEquals(1, relay.getSpooledCount());
+		} finally {
+			relay.close();
+		}
+	}
+
+	/**
+	 * @param apiUrl Upstream URL
+	 * @param batchSize Messages per merged batch
+	 * @param linger Maximum time a message waits for its batch (milliseconds)
+	 * @return Relay options on a free port
+	 */
+	private RelayOptions newOptions(final String apiUrl, final int batchSize, final long linger) {
+		return RelayOptions.newBuilder()
+				.bindAddress("127.0.0.1")
+				.port(0)
+				.apiUrl(apiUrl)
+				.spoolDirectory(folder.getRoot().getPath())
+				.spoolMaxSize(64 * 1024 * 1024)
+				.batchSize(batchSize)
+				.linger(linger)
+				.build();
+	}
+
+	/**
+	 * @return Number of journal entries in the spool directory
+	 */
+	private int countJournal() {
+		int count = 0;
+
+		for (String name : folder.getRoot().list()) {
+			if (name.endsWith(RelaySpool.JOURNAL_EXTENSION)) {
+				++count;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Waits until the stub received a number of messages
+	 * @param server The stub
+	 * @param count Number of messages
+	 * @throws InterruptedException
+	 */
+	private static void waitFor(final StubStackifyServer server, final long count) throws InterruptedException {
+		long start = System.currentTimeMillis();
+
+		while (server.getMsgCount() < count && System.currentTimeMillis() - start < 10000) {
+			Thread.sleep(20);
+		}
+	}
+
+	/**
+	 * @param appName Application name
+	 * @param index Batch index
+	 * @param size Number of messages
+	 * @return A batch
+	 */
+	private static LogMsgGroup newGroup(final String appName, final int index, final int size) {
+		List<LogMsg> msgs = new ArrayList<LogMsg>();
+
+		for (int i = 0; i < size; ++i) {
+			long n = (long) index * size + i;
+			msgs.add(LogMsg.newBuilder().msg(appName + " msg " + n).epochMs(n).level("info").th("main").build());
+		}
+
+		return LogMsgGroup.newBuilder().appName(appName).env("test").serverName("host").platform("java").logger("test").msgs(msgs).build();
+	}
+}
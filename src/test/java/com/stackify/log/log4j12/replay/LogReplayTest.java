@@ -0,0 +1,363 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12.replay;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.stackify.api.LogMsg;
+import com.stackify.api.LogMsgGroup;
+import com.stackify.log.log4j12.StubStackifyServer;
+
+/**
+ * LogReplay JUnit Test
+ */
+public class LogReplayTest {
+
+	/**
+	 * Conversion pattern of the test files
+	 */
+	private static final String PATTERN = "%d{ISO8601} %-5p [%t] %c - %m%n";
+
+	/**
+	 * First timestamp of the test files
+	 */
+	private static final long START = 1400000000000L;
+
+	/**
+	 * Temporary log files
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * testReplay
+	 *
+	 * Small chunks split many records, including multi-line ones, across chunk boundaries.
+	 * @throws Exception
+	 */
+	@Test
+	public void testReplay() throws Exception {
+		File file = writeLog(3000);
+
+		StubStackifyServer server = new StubStackifyServer(2);
+		LogReplay replay = new LogReplay(newOptions(server.getUrl(), 3, 4096));
+
+		try {
+			Assert.assertEquals(3000L, replay.replay(file));
+		} finally {
+			replay.close();
+			server.stop();
+		}
+
+		Assert.assertEquals(3000L, replay.getEventCount());
+		Assert.assertEquals(1L, replay.getSkippedLineCount());
+		Assert.assertEquals(file.length(), replay.getByteCount());
+		Assert.assertEquals(3000L, server.getMsgCount());
+
+		Map<Long, LogMsg> msgs = new HashMap<Long, LogMsg>();
+
+		for (LogMsgGroup group : server.getGroups()) {
+			Assert.assertEquals("app", group.getAppName());
+
+			for (LogMsg msg : group.getMsgs()) {
+				msgs.put(msg.getEpochMs(), msg);
+			}
+		}
+
+		Assert.assertEquals(3000, msgs.size());
+
+		LogMsg info = msgs.get(START + 1);
+		Assert.assertEquals("info", info.getLevel());
+		Assert.assertEquals("worker-1", info.getTh());
+		Assert.assertEquals("request 1 took 12 ms", info.getMsg());
+
+		LogMsg error = msgs.get(START + 10);
+		Assert.assertEquals("error", error.getLevel());
+		Assert.assertTrue(error.getMsg().startsWith("request 10 failed\njava.lang.IllegalStateException: 10\n\tat "));
+		Assert.assertTrue(error.getMsg().endsWith("(Job.java:4)"));
+	}
+
+	/**
+	 * testReplayEmpty
+	 * @throws Exception
+	 */
+	@Test
+	public void testReplayEmpty() throws Exception {
+		StubStackifyServer server = new StubStackifyServer(1);
+		LogReplay replay = new LogReplay(newOptions(server.getUrl(), 2, 4096));
+
+		try {
+			Assert.assertEquals(0L, replay.replay(folder.newFile()));
+		} finally {
+			replay.close();
+			server.stop();
+		}
+	}
+
+	/**
+	 * testCharsets
+	 *
+	 * Charsets writing ASCII as single bytes are accepted, those splitting records wrongly at the line
+	 * feed bytes are not.
+	 */
+	@Test
+	public void testCharsets() {
+		for (String charset : new String[] {"UTF-8", "ISO-8859-1", "windows-1252", "US-ASCII"}) {
+			Assert.assertEquals(Charset.forName(charset), newOptions("http://localhost", 1, 4096).toBuilder().charset(charset).build().toCharset());
+		}
+
+		for (String charset : new String[] {"UTF-16", "UTF-16LE", "UTF-32BE"}) {
+			try {
+				newOptions("http://localhost", 1, 4096).toBuilder().charset(charset).build().toCharset();
+				Assert.fail(charset);
+			} catch (IllegalArgumentException e) {
+				// not ASCII compatible
+			}
+		}
+	}
+
+	/**
+	 * testReplayUtf16Rejected
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testReplayUtf16Rejected() {
+		new LogReplay(newOptions("http://localhost", 1, 4096).toBuilder().charset("UTF-16").build());
+	}
+
+	/**
+	 * testReplayDuplicateErrors
+	 *
+	 * Errors replayed faster than the duplicate error throttle allows keep their details.
+	 * @throws Exception
+	 */
+	@Test
+	public void testReplayDuplicateErrors() throws Exception {
+		File file = folder.newFile();
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+
+		try {
+			for (int i = 0; i < 150; ++i) {
+				out.write("2014-05-13 16:53:20," + String.format("%03d", i % 1000) + " ERROR [worker-1] org.example.Job - request failed\n");
+			}
+		} finally {
+			out.close();
+		}
+
+		StubStackifyServer server = new StubStackifyServer(1);
+		LogReplay replay = new LogReplay(newOptions(server.getUrl(), 1, 1024 * 1024));
+
+		try {
+			Assert.assertEquals(150L, replay.replay(file));
+		} finally {
+			replay.close();
+			server.stop();
+		}
+
+		int details = 0;
+
+		for (LogMsgGroup group : server.getGroups()) {
+			for (LogMsg msg : group.getMsgs()) {
+				if (msg.getEx() != null) {
+					++details;
+				}
+			}
+		}
+
+		Assert.assertEquals(150, details);
+	}
+
+	/**
+	 * testReplayTruncated
+	 *
+	 * A record running past the maximum record length is cut and counted, the next one is intact.
+	 * @throws Exception
+	 */
+	@Test
+	public void testReplayTruncated() throws Exception {
+		File file = folder.newFile();
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+
+		try {
+			out.write("2014-05-13 16:53:20,000 ERROR [worker-1] org.example.Job - request 0 failed\n");
+
+			for (int i = 0; i < 40000; ++i) {
+				out.write("\tat org.example.Job.step" + i + "(Job.java:" + i + ")\n");
+			}
+
+			out.write("2014-05-13 16:53:20,001 INFO  [worker-1] org.example.Job - request 1 done\n");
+		} finally {
+			out.close();
+		}
+
+		StubStackifyServer server = new StubStackifyServer(1);
+		LogReplay replay = new LogReplay(newOptions(server.getUrl(), 2, 4096));
+
+		try {
+			Assert.assertEquals(2L, replay.replay(file));
+		} finally {
+			replay.close();
+			server.stop();
+		}
+
+		Assert.assertEquals(1L, replay.getTruncatedRecordCount());
+		Assert.assertEquals(2L, server.getMsgCount());
+	}
+
+	/**
+	 * testThroughput
+	 *
+	 * Reports the parsing throughput of one thread, then replays a large file to the stub (mvn test -Pbenchmark).
+	 * @throws Exception
+	 */
+	@Test
+	public void testThroughput() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+		File file = writeLog(1000000);
+
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+		try {
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				lines.add(line);
+			}
+		} finally {
+			in.close();
+		}
+
+		double parseSeconds = Double.MAX_VALUE;
+
+		for (int round = 0; round < 5; ++round) {
+			ReplayPattern pattern = new ReplayPattern(PATTERN, TimeZone.getTimeZone("UTC"));
+			long start = System.nanoTime();
+
+			for (String line : lines) {
+				ReplayPattern.Record record = pattern.parse(line);
+
+				if (record != null) {
+					pattern.toEvent(record, null);
+				}
+			}
+
+			parseSeconds = Math.min(parseSeconds, (System.nanoTime() - start) / 1e9);
+		}
+
+		StubStackifyServer server = new StubStackifyServer(4);
+		server.setRecording(false);
+
+		LogReplay replay = new LogReplay(newOptions(server.getUrl(), Runtime.getRuntime().availableProcessors(), 32 * 1024 * 1024));
+		long start = System.nanoTime();
+
+		try {
+			replay.replay(file);
+		} finally {
+			replay.close();
+			server.stop();
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println("replay: parsing " + Math.round(file.length() / parseSeconds / (1024 * 1024)) + " MB/s per thread, to the stub "
+				+ Math.round(file.length() / seconds / (1024 * 1024)) + " MB/s, " + Math.round(replay.getEventCount() / seconds) + " events/s ("
+				+ Runtime.getRuntime().availableProcessors() + " CPUs)");
+
+		Assert.assertEquals(1000000L, server.getMsgCount());
+	}
+
+	/**
+	 * @param apiUrl Stub URL
+	 * @param threads Parsing threads
+	 * @param chunkSize Bytes per chunk
+	 * @return Replay options of the test files
+	 */
+	private static ReplayOptions newOptions(final String apiUrl, final int threads, final int chunkSize) {
+		return ReplayOptions.newBuilder()
+				.apiUrl(apiUrl)
+				.apiKey("key")
+				.application("app")
+				.environment("test")
+				.pattern(PATTERN)
+				.charset("UTF-8")
+				.timeZone("UTC")
+				.threads(threads)
+				.chunkSize(chunkSize)
+				.uploaderThreads(1)
+				.build();
+	}
+
+	/**
+	 * Writes a log file, every 10th record is an error with a stack trace
+	 * @param records Number of records
+	 * @return The file
+	 * @throws IOException
+	 */
+	private File writeLog(final int records) throws IOException {
+		File file = folder.newFile();
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+
+		try {
+
+			// the tail of a record of a previous file
+
+			out.write("\tat org.example.Previous.run(Previous.java:1)\n");
+
+			for (int i = 0; i < records; ++i) {
+				String date = format.format(new Date(START + i));
+
+				if (i % 10 == 0) {
+					out.write(date + " ERROR [worker-" + (i % 4) + "] org.example.Job - request " + i + " failed\n");
+					out.write("java.lang.IllegalStateException: " + i + "\n");
+
+					for (int f = 0; f < 5; ++f) {
+						out.write("\tat org.example.Job.step" + f + "(Job.java:" + f + ")\n");
+					}
+				} else {
+					out.write(date + " INFO  [worker-" + (i % 4) + "] org.example.Handler - request " + i + " took 12 ms\r\n");
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		return file;
+	}
+}
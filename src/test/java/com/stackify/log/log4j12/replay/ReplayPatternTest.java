@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Stackify
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackify.log.log4j12.replay;
+
+import java.util.TimeZone;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * ReplayPattern JUnit Test
+ */
+public class ReplayPatternTest {
+
+	/**
+	 * UTC
+	 */
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	/**
+	 * testRoundTrip
+	 *
+	 * Lines written by a PatternLayout parse back into the same fields.
+	 */
+	@Test
+	public void testRoundTrip() {
+		String conversionPattern = "%d{yyyy-MM-dd'T'HH:mm:ss.SSS} %-5p [%t] %c{1} %X{user} (%F:%L) %M - %m%n";
+
+		LoggingEvent original = new LoggingEvent(Logger.class.getName(), Logger.getLogger("Handler"), 1400000000123L, Level.WARN,
+				"slow request: 12 ms", "http-nio-8080-exec-1", null, "ndc", new LocationInfo("Handler.java", "org.example.Handler", "handle", "42"),
+				null);
+		original.setProperty("user", "alice");
+
+		TimeZone defaultZone = TimeZone.getDefault();
+
+		String line;
+
+		try {
+			TimeZone.setDefault(UTC);
+			line = new PatternLayout(conversionPattern).format(original);
+		} finally {
+			TimeZone.setDefault(defaultZone);
+		}
+
+		ReplayPattern pattern = new ReplayPattern(conversionPattern, UTC);
+		ReplayPattern.Record record = pattern.parse(line.trim());
+
+		Assert.assertNotNull(record);
+
+		LoggingEvent event = pattern.toEvent(record, null);
+
+		Assert.assertEquals(1400000000123L, event.getTimeStamp());
+		Assert.assertEquals(Level.WARN, event.getLevel());
+		Assert.assertEquals("http-nio-8080-exec-1", event.getThreadName());
+		Assert.assertEquals("Handler", event.getLoggerName());
+		Assert.assertEquals("alice", event.getMDC("user"));
+		Assert.assertEquals("slow request: 12 ms", event.getMessage());
+		Assert.assertTrue(event.locationInformationExists());
+		Assert.assertEquals("Handler.java", event.getLocationInformation().getFileName());
+		Assert.assertEquals("42", event.getLocationInformation().getLineNumber());
+		Assert.assertEquals("handle", event.getLocationInformation().getMethodName());
+	}
+
+	/**
+	 * testContinuation
+	 */
+	@Test
+	public void testContinuation() {
+		ReplayPattern pattern = new ReplayPattern("%d{ISO8601} %-5p %c - %m%n", UTC);
+
+		ReplayPattern.Record record = pattern.parse("2014-05-13 16:53:20,123 ERROR org.example.Job - failed");
+
+		Assert.assertNotNull(record);
+		Assert.assertNull(pattern.parse("java.lang.IllegalStateException: failed"));
+		Assert.assertNull(pattern.parse("\tat org.example.Job.run(Job.java:12)"));
+
+		// a date or level that does not parse continues the record
+
+		Assert.assertNull(pattern.parse("2014-13-45 16:53:20,123 ERROR org.example.Job - failed"));
+		Assert.assertNull(pattern.parse("2014-05-13 16:53:20,123 OOPS org.example.Job - failed"));
+
+		LoggingEvent event = pattern.toEvent(record, "java.lang.IllegalStateException: failed\n\tat org.example.Job.run(Job.java:12)");
+
+		Assert.assertEquals(1400000000123L, event.getTimeStamp());
+		Assert.assertEquals(Level.ERROR, event.getLevel());
+		Assert.assertEquals("failed\njava.lang.IllegalStateException: failed\n\tat org.example.Job.run(Job.java:12)", event.getMessage());
+		Assert.assertEquals("?", event.getThreadName());
+		Assert.assertFalse(event.locationInformationExists());
+	}
+
+	/**
+	 * testLocation
+	 */
+	@Test
+	public void testLocation() {
+		ReplayPattern pattern = new ReplayPattern("%d{DATE} %p %l: %m", UTC);
+
+		LoggingEvent event = pattern.toEvent(pattern.parse("13 May 2014 16:53:20,123 INFO org.example.Handler.handle(Handler.java:42): ok"), null);
+
+		Assert.assertEquals(1400000000123L, event.getTimeStamp());
+		Assert.assertEquals("org.example.Handler", event.getLocationInformation().getClassName());
+		Assert.assertEquals("handle", event.getLocationInformation().getMethodName());
+		Assert.assertEquals("Handler.java", event.getLocationInformation().getFileName());
+		Assert.assertEquals("42", event.getLocationInformation().getLineNumber());
+		Assert.assertEquals("ok", event.getMessage());
+	}
+
+	/**
+	 * testNoDate
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoDate() {
+		new ReplayPattern("%r [%t] %p %c %x - %m%n", UTC);
+	}
+}